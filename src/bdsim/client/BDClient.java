@@ -8,13 +8,15 @@ import java.awt.Font;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Map;
@@ -58,10 +60,14 @@ import org.xml.sax.SAXException;
 import bdsim.common.BDRequest;
 import bdsim.common.BDResponse;
 import bdsim.common.BDResponseHandler;
+import bdsim.common.BDResultSet;
+import bdsim.common.BDRow;
+import bdsim.common.BDWireProtocol;
 import bdsim.common.messages.BDCreateResponse;
 import bdsim.common.messages.BDDropRequest;
 import bdsim.common.messages.BDDropResponse;
 import bdsim.common.messages.BDErrorResponse;
+import bdsim.common.messages.BDFetchRequest;
 import bdsim.common.messages.BDInfoRequest;
 import bdsim.common.messages.BDInfoResponse;
 import bdsim.common.messages.BDLoadRequest;
@@ -132,7 +138,8 @@ public final class BDClient extends JFrame {
 			removeAllData();
 
 			m_statuslabel.setText("Retrieved " + numrecords
-					+ " records from server [" + (((double)elapsed)/1000.) + "s]");
+					+ (response.hasMore() ? " records so far" : " records")
+					+ " from server [" + (((double)elapsed)/1000.) + "s]");
 
             if (response.getResults() != null) {
 
@@ -152,21 +159,26 @@ public final class BDClient extends JFrame {
 							columns[i] = schema.getName(i);
 						}
 
-						for (int row = 0; row < response.getResults().getData()
-								.size(); row++) {
-							Object[] data = new Object[columns.length];
-
-							for (int col = 0; col < columns.length; col++) {
-								data[col] = response.getResults().getData()
-										.get(row).getField(col);
-							}
-							m_tablemodel.addRow(data);
-						}
+						addRows(response.getResults());
 					}
 				}
 			}
 		}
 
+		/**
+		 * Adds the rows of a page of a result to the ones shown.
+		 */
+		void addRows(BDResultSet results) {
+			int columns = m_tablemodel.getColumnCount();
+			for (BDRow row : results.getData()) {
+				Object[] data = new Object[columns];
+				for (int col = 0; col < columns; col++) {
+					data[col] = row.getField(col);
+				}
+				m_tablemodel.addRow(data);
+			}
+		}
+
 		public void handle(BDSaveResponse response, long elapsed) {
 			JFileChooser chooser = new JFileChooser();
 			int returnVal = chooser.showOpenDialog(BDClient.this);
@@ -188,6 +200,9 @@ public final class BDClient extends JFrame {
 	private final static String LOGGER_CONF = "conf/logger.conf";
 	private static final long serialVersionUID = 8847929953493642974L;
 
+	/** The number of rows of a result to get from the server at a time */
+	private static final int FETCH_SIZE = 1000;
+
 	public static void main(String[] args) {
 		Thread.currentThread().setName("client");
 
@@ -207,9 +222,9 @@ public final class BDClient extends JFrame {
 	private int m_port;
 	private JTextField m_portfield;
 	private JProgressBar m_progress;
-	private ObjectOutputStream m_requestwriter;
+	private DataOutputStream m_requestwriter;
 	private ClientResponseHandler m_responseHandler;
-	private ObjectInputStream m_responsereader;
+	private DataInputStream m_responsereader;
 	private Map<String, BDSchema> m_schemas;
 	private Thread m_serverconn;
 	private Socket m_socket;
@@ -515,10 +530,12 @@ public final class BDClient extends JFrame {
 			this.m_port = Integer.parseInt(m_portfield.getText().trim());
 			this.m_host = m_hostfield.getText().trim();
 			this.m_socket = new Socket(m_host, m_port);
-			this.m_requestwriter = new ObjectOutputStream(m_socket
-					.getOutputStream());
-			this.m_responsereader = new ObjectInputStream(m_socket
-					.getInputStream());
+			this.m_socket.setTcpNoDelay(true);
+			this.m_requestwriter = new DataOutputStream(new BufferedOutputStream(
+					m_socket.getOutputStream()));
+			this.m_responsereader = new DataInputStream(new BufferedInputStream(
+					m_socket.getInputStream()));
+			BDWireProtocol.writeHeader(m_requestwriter);
 		} catch (NumberFormatException e) {
 			error = "Illegal port number: " + m_portfield.getText();
 		} catch (UnknownHostException e) {
@@ -571,7 +588,7 @@ public final class BDClient extends JFrame {
                         
                         while(null != (line = breader.readLine())) {
                             logger.debug("Making request with SQL: " + line);
-                            makeRequest(new BDSqlRequest(line));
+                            makeRequest(new BDSqlRequest(line, FETCH_SIZE));
                         }
                     } catch (FileNotFoundException e) {
                         e.printStackTrace();
@@ -728,14 +745,36 @@ public final class BDClient extends JFrame {
 	 */
 	private void makeRequest(BDRequest request) {
 		try {
-			m_requestwriter.writeObject(request);
+			BDWireProtocol.writeRequest(m_requestwriter, request);
 			m_progress.setIndeterminate(true);
 
 			long start = System.currentTimeMillis();
-			BDResponse response = (BDResponse) (m_responsereader.readObject());
+			BDResponse response = BDWireProtocol.readResponse(m_responsereader);
 			long elapsed = System.currentTimeMillis();
 
 			response.handle(m_responseHandler, elapsed - start);
+
+			// The rest of a result comes a page at a time
+			int records = m_tablemodel.getRowCount();
+			while (response instanceof BDResultResponse
+					&& ((BDResultResponse) response).hasMore()) {
+				BDWireProtocol.writeRequest(m_requestwriter, new BDFetchRequest(
+						((BDResultResponse) response).getCursorId()));
+				response = BDWireProtocol.readResponse(m_responsereader);
+				elapsed = System.currentTimeMillis();
+				if (!(response instanceof BDResultResponse)) {
+					response.handle(m_responseHandler, elapsed - start);
+					break;
+				}
+				BDResultResponse page = (BDResultResponse) response;
+				if (page.getResults() != null) {
+					m_responseHandler.addRows(page.getResults());
+					records += page.getResults().getData().size();
+				}
+				m_statuslabel.setText("Retrieved " + records
+						+ (page.hasMore() ? " records so far" : " records")
+						+ " from server [" + (((double) elapsed) / 1000.) + "s]");
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (ClassNotFoundException e) {
@@ -758,7 +797,7 @@ public final class BDClient extends JFrame {
 			m_disconnectbutton.setEnabled(false);
 			m_submitbutton.setEnabled(false);
 
-			BDRequest request = new BDSqlRequest(m_sqlBox.getText());
+			BDRequest request = new BDSqlRequest(m_sqlBox.getText(), FETCH_SIZE);
 			makeRequest(request);
 		} else {
 			m_statuslabel.setText("Please specify SQL to submit");
@@ -1,32 +1,53 @@
 package bdsim.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import bdsim.common.BDResponse;
 import bdsim.common.BDResponseHandler;
+import bdsim.common.BDWireProtocol;
+import bdsim.common.BDWireProtocol.Tagged;
+import bdsim.common.messages.BDFetchRequest;
+import bdsim.common.messages.BDResultResponse;
 import bdsim.common.messages.BDSqlRequest;
 
 /**
  * Simply connects to the server, takes SQL requests, and delegates the
  * response handling to the caller. 
  * 
+ * Besides waiting for the response to each request, a client can pipeline
+ * them: send several requests and receive their responses later, in the
+ * order the server finishes them.
+ * 
  * @author acath, wpijewsk
  */
 public class BDSimpleClient {
 
-	private ObjectOutputStream m_requestWriter;
-	private ObjectInputStream m_responseReader;
+	private DataOutputStream m_requestWriter;
+	private DataInputStream m_responseReader;
 	private Socket m_socket;
+
+	/** The correlation ID of the last pipelined request */
+	private int m_lastId;
+
+	/** The number of pipelined requests that have not been answered yet */
+	private int m_pending;
 	
 	public BDSimpleClient(String host, int port) {
 		try {
 			m_socket = new Socket(host, port);
-			m_requestWriter = new ObjectOutputStream(m_socket.getOutputStream());
-			m_responseReader = new ObjectInputStream(m_socket.getInputStream());
+			m_socket.setTcpNoDelay(true);
+			m_requestWriter = new DataOutputStream(new BufferedOutputStream(
+					m_socket.getOutputStream()));
+			m_responseReader = new DataInputStream(new BufferedInputStream(
+					m_socket.getInputStream()));
+			BDWireProtocol.writeHeader(m_requestWriter);
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 			System.exit(-1);
@@ -38,14 +59,92 @@ public class BDSimpleClient {
 
 	public void request(String query, BDResponseHandler handler)
 			throws IOException, ClassNotFoundException {
-		m_requestWriter.writeObject(new BDSqlRequest(query));
-		BDResponse response = (BDResponse) m_responseReader.readObject();
-		if (handler != null && response != null) {
-			response.handle(handler, 0);
+		request(query, 0, handler);
+	}
+
+	/**
+	 * Runs a query whose result comes back fetchSize rows at a time; the
+	 * handler gets a BDResultResponse for each page.
+	 * 
+	 * @param fetchSize
+	 *            The number of rows in a page, or 0 for the whole result at
+	 *            once
+	 */
+	public void request(String query, int fetchSize, BDResponseHandler handler)
+			throws IOException, ClassNotFoundException {
+		if (m_pending > 0) {
+			throw new IllegalStateException(m_pending
+					+ " pipelined requests have not been received");
+		}
+		BDWireProtocol.writeRequest(m_requestWriter, new BDSqlRequest(query,
+				fetchSize));
+		BDResponse response = BDWireProtocol.readResponse(m_responseReader);
+		while (response != null) {
+			if (handler != null) {
+				response.handle(handler, 0);
+			}
+			if (!(response instanceof BDResultResponse)
+					|| !((BDResultResponse) response).hasMore()) {
+				break;
+			}
+			BDWireProtocol.writeRequest(m_requestWriter, new BDFetchRequest(
+					((BDResultResponse) response).getCursorId()));
+			response = BDWireProtocol.readResponse(m_responseReader);
 		}
 	// Commented out to allow more than one test to execute in the same session	
 //		m_requestWriter.close();
 //		m_responseReader.close();
 //		m_socket.close();
 	}
+
+	/**
+	 * Sends a query without waiting for its response.
+	 * 
+	 * @return The correlation ID that receive returns with the response
+	 */
+	public int send(String query) throws IOException {
+		int id = ++m_lastId;
+		BDWireProtocol.writeRequest(m_requestWriter, id, new BDSqlRequest(query));
+		m_pending++;
+		return id;
+	}
+
+	/**
+	 * Waits for the response to one of the queries sent, which need not be
+	 * the one sent first.
+	 * 
+	 * @return The correlation ID of the query the response is for
+	 */
+	public int receive(BDResponseHandler handler) throws IOException,
+			ClassNotFoundException {
+		if (m_pending == 0) {
+			throw new IllegalStateException("No pipelined requests were sent");
+		}
+		Tagged<BDResponse> response = BDWireProtocol
+				.readTaggedResponse(m_responseReader);
+		m_pending--;
+		if (handler != null) {
+			response.getMessage().handle(handler, 0);
+		}
+		return response.getId();
+	}
+
+	/**
+	 * Runs many queries, keeping up to window of them on their way to the
+	 * server at a time instead of waiting for each response in turn. The
+	 * handler gets the responses in the order the server finishes them.
+	 */
+	public void requestAll(List<String> queries, int window,
+			BDResponseHandler handler) throws IOException,
+			ClassNotFoundException {
+		for (String query : queries) {
+			if (m_pending >= window) {
+				receive(handler);
+			}
+			send(query);
+		}
+		while (m_pending > 0) {
+			receive(handler);
+		}
+	}
 }
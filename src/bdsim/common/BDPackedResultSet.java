@@ -0,0 +1,101 @@
+package bdsim.common;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+
+/**
+ * A result set as the client receives it over the binary protocol: one
+ * shared schema and an array per column, rather than an object per row. Rows
+ * are views onto the arrays that are made when they are asked for.
+ */
+public final class BDPackedResultSet implements BDResultSet, Serializable {
+
+	private static final long serialVersionUID = 6181367104322170384L;
+
+	private final BDSchema m_schema;
+
+	private final int m_numRows;
+
+	/** Per column a double[], a String[] or an Object[] */
+	private final Object[] m_columns;
+
+	/** Per double[] column, the rows that are null, or null if there are none */
+	private final BitSet[] m_nulls;
+
+	private final class Row extends BDRow {
+
+		private static final long serialVersionUID = -1913553458113207795L;
+
+		private final int m_row;
+
+		Row(int row) {
+			super(BDPackedResultSet.this.m_schema);
+			m_row = row;
+		}
+
+		public Object getField(String key) {
+			return getField(m_schema.getPosition(key));
+		}
+
+		public Object getField(int position) {
+			return getValue(m_row, position);
+		}
+	}
+
+	BDPackedResultSet(BDSchema schema, int numRows, Object[] columns, BitSet[] nulls) {
+		m_schema = schema;
+		m_numRows = numRows;
+		m_columns = columns;
+		m_nulls = nulls;
+	}
+
+	public List<? extends BDRow> getData() {
+		return new AbstractList<BDRow>() {
+			public BDRow get(int row) {
+				if (row < 0 || row >= m_numRows) {
+					throw new IndexOutOfBoundsException("Row " + row);
+				}
+				return new Row(row);
+			}
+
+			public int size() {
+				return m_numRows;
+			}
+		};
+	}
+
+	public BDSchema getSchema() {
+		return m_schema;
+	}
+
+	public int getNumRows() {
+		return m_numRows;
+	}
+
+	/**
+	 * @return The value in a row and column, without making the row
+	 */
+	public Object getValue(int row, int column) {
+		Object values = m_columns[column];
+		if (values instanceof double[]) {
+			BitSet nulls = m_nulls[column];
+			if (nulls != null && nulls.get(row)) {
+				return null;
+			}
+			return ((double[]) values)[row];
+		}
+		return ((Object[]) values)[row];
+	}
+
+	/**
+	 * Result sets received from the server cannot be added to.
+	 */
+	public void addRow(BDTuple tuple) {
+		throw new UnsupportedOperationException("Received result sets are read-only");
+	}
+}
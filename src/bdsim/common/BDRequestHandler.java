@@ -1,7 +1,9 @@
 package bdsim.common;
 
+import bdsim.common.messages.BDCloseRequest;
 import bdsim.common.messages.BDCreateRequest;
 import bdsim.common.messages.BDDropRequest;
+import bdsim.common.messages.BDFetchRequest;
 import bdsim.common.messages.BDInfoRequest;
 import bdsim.common.messages.BDLoadRequest;
 import bdsim.common.messages.BDSaveRequest;
@@ -21,4 +23,6 @@ public interface BDRequestHandler {
 	public BDResponse handle(BDDropRequest request);
 	public BDResponse handle(BDLoadRequest request);
 	public BDResponse handle(BDSaveRequest request);
+	public BDResponse handle(BDFetchRequest request);
+	public BDResponse handle(BDCloseRequest request);
 }
@@ -0,0 +1,577 @@
+package bdsim.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Vector;
+
+import bdsim.common.messages.BDCloseRequest;
+import bdsim.common.messages.BDErrorResponse;
+import bdsim.common.messages.BDFetchRequest;
+import bdsim.common.messages.BDResultResponse;
+import bdsim.common.messages.BDSqlRequest;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+
+/**
+ * The binary protocol clients and server talk over a connection. After the
+ * client opens the connection with writeHeader, each request and response
+ * is one frame: its length, a byte for its kind, a correlation ID and its
+ * contents. A response carries the ID of the request it answers, so a client
+ * may send several requests before reading any responses, and the server
+ * may answer them in a different order.
+ *
+ * SQL requests, cursor fetches, errors and result sets, which is almost all
+ * of the traffic, have their own compact encodings. A result set sends its
+ * column names and types once, followed by the values column by column:
+ * numbers as plain doubles and strings as UTF-8 bytes, with a tag per value
+ * only in columns that mix types. The client decodes it into a BDPackedResultSet, which keeps
+ * each column in one array. Other messages are rare and are sent as
+ * serialized objects inside a frame.
+ */
+public final class BDWireProtocol {
+
+	/** The first bytes on a connection, "BDWP" */
+	public static final int MAGIC = 0x42445750;
+
+	public static final int VERSION = 3;
+
+	/** The bytes writeHeader writes */
+	public static final int HEADER_SIZE = 5;
+
+	/** The bytes of the length each frame starts with */
+	public static final int LENGTH_SIZE = 4;
+
+	/**
+	 * The most bytes a frame may hold. Lengths are read from the other end
+	 * of the connection, so a longer one is taken for a corrupt stream
+	 * instead of being allocated.
+	 */
+	public static final int MAX_FRAME_SIZE = 1 << 26;
+
+	// Kinds of frames
+	private static final byte SQL_REQUEST = 1;
+	private static final byte RESULT_RESPONSE = 2;
+	private static final byte ERROR_RESPONSE = 3;
+	private static final byte OBJECT = 4;
+	private static final byte FETCH_REQUEST = 5;
+	private static final byte CLOSE_REQUEST = 6;
+
+	// Encodings of result set columns
+	private static final byte NUMBERS = 1;
+	private static final byte STRINGS = 2;
+	private static final byte VALUES = 3;
+
+	// Tags of values in VALUES columns
+	private static final byte NULL = 0;
+	private static final byte DOUBLE = 1;
+	private static final byte STRING = 2;
+	private static final byte INTEGER = 3;
+	private static final byte LONG = 4;
+	private static final byte FLOAT = 5;
+	private static final byte SERIALIZED = 6;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A frame being put together, which is written out once its length is
+	 * known without copying it again.
+	 */
+	private static final class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+
+	/**
+	 * A request or response together with the correlation ID of its frame.
+	 */
+	public static final class Tagged<T> {
+
+		private final int m_id;
+
+		private final T m_message;
+
+		public Tagged(int id, T message) {
+			m_id = id;
+			m_message = message;
+		}
+
+		public int getId() {
+			return m_id;
+		}
+
+		public T getMessage() {
+			return m_message;
+		}
+	}
+
+	private BDWireProtocol() {
+	}
+
+	/**
+	 * Starts a connection; written once by the client before its first
+	 * request.
+	 */
+	public static void writeHeader(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.flush();
+	}
+
+	/**
+	 * Reads the start of a connection written by writeHeader.
+	 *
+	 * @throws StreamCorruptedException
+	 *             If the client does not speak this protocol
+	 */
+	public static void readHeader(DataInputStream in) throws IOException {
+		int magic = in.readInt();
+		int version = in.readUnsignedByte();
+		if (magic != MAGIC) {
+			throw new StreamCorruptedException("Not a BDWP connection");
+		}
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Unsupported protocol version "
+					+ version);
+		}
+	}
+
+	public static void writeRequest(DataOutputStream out, BDRequest request)
+			throws IOException {
+		writeRequest(out, 0, request);
+	}
+
+	/**
+	 * @param id
+	 *            The correlation ID the response to the request will carry
+	 */
+	public static void writeRequest(DataOutputStream out, int id,
+			BDRequest request) throws IOException {
+		FrameBuffer frame = new FrameBuffer();
+		DataOutputStream data = new DataOutputStream(frame);
+		if (request instanceof BDSqlRequest) {
+			data.writeByte(SQL_REQUEST);
+			data.writeInt(id);
+			writeString(data, ((BDSqlRequest) request).getSql());
+			data.writeInt(((BDSqlRequest) request).getFetchSize());
+		} else if (request instanceof BDFetchRequest) {
+			data.writeByte(FETCH_REQUEST);
+			data.writeInt(id);
+			data.writeInt(((BDFetchRequest) request).getCursorId());
+		} else if (request instanceof BDCloseRequest) {
+			data.writeByte(CLOSE_REQUEST);
+			data.writeInt(id);
+			data.writeInt(((BDCloseRequest) request).getCursorId());
+		} else {
+			data.writeByte(OBJECT);
+			data.writeInt(id);
+			writeObject(data, request);
+		}
+		writeFrame(out, frame);
+	}
+
+	/**
+	 * @return The next request, or null if the client closed the connection
+	 *         between requests
+	 */
+	public static BDRequest readRequest(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		Tagged<BDRequest> request = readTaggedRequest(in);
+		return request == null ? null : request.getMessage();
+	}
+
+	/**
+	 * @return The next request and its correlation ID, or null if the client
+	 *         closed the connection between requests
+	 */
+	public static Tagged<BDRequest> readTaggedRequest(DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		DataInputStream data = readFrame(in);
+		if (data == null) {
+			return null;
+		}
+		byte kind = data.readByte();
+		int id = data.readInt();
+		switch (kind) {
+		case SQL_REQUEST:
+			String sql = readString(data);
+			return new Tagged<BDRequest>(id, new BDSqlRequest(sql, data.readInt()));
+		case FETCH_REQUEST:
+			return new Tagged<BDRequest>(id, new BDFetchRequest(data.readInt()));
+		case CLOSE_REQUEST:
+			return new Tagged<BDRequest>(id, new BDCloseRequest(data.readInt()));
+		case OBJECT:
+			return new Tagged<BDRequest>(id, (BDRequest) readObject(data));
+		default:
+			throw new StreamCorruptedException("Unknown request kind " + kind);
+		}
+	}
+
+	public static void writeResponse(DataOutputStream out, BDResponse response)
+			throws IOException {
+		writeResponse(out, 0, response);
+	}
+
+	/**
+	 * @param id
+	 *            The correlation ID of the request the response answers
+	 */
+	public static void writeResponse(DataOutputStream out, int id,
+			BDResponse response) throws IOException {
+		FrameBuffer frame = new FrameBuffer();
+		DataOutputStream data = new DataOutputStream(frame);
+		if (response instanceof BDResultResponse) {
+			data.writeByte(RESULT_RESPONSE);
+			data.writeInt(id);
+			data.writeInt(((BDResultResponse) response).getCursorId());
+			writeResultSet(data, ((BDResultResponse) response).getResults());
+		} else if (response instanceof BDErrorResponse) {
+			data.writeByte(ERROR_RESPONSE);
+			data.writeInt(id);
+			writeString(data, ((BDErrorResponse) response).getMessage());
+		} else {
+			data.writeByte(OBJECT);
+			data.writeInt(id);
+			writeObject(data, response);
+		}
+		writeFrame(out, frame);
+	}
+
+	public static BDResponse readResponse(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		return readTaggedResponse(in).getMessage();
+	}
+
+	/**
+	 * @return The next response and the correlation ID of the request it
+	 *         answers
+	 */
+	public static Tagged<BDResponse> readTaggedResponse(DataInputStream in)
+			throws IOException, ClassNotFoundException {
+		DataInputStream data = readFrame(in);
+		if (data == null) {
+			throw new EOFException("Server closed the connection");
+		}
+		byte kind = data.readByte();
+		int id = data.readInt();
+		switch (kind) {
+		case RESULT_RESPONSE:
+			int cursorId = data.readInt();
+			return new Tagged<BDResponse>(id, new BDResultResponse(
+					readResultSet(data), cursorId));
+		case ERROR_RESPONSE:
+			return new Tagged<BDResponse>(id, new BDErrorResponse(readString(data)));
+		case OBJECT:
+			return new Tagged<BDResponse>(id, (BDResponse) readObject(data));
+		default:
+			throw new StreamCorruptedException("Unknown response kind " + kind);
+		}
+	}
+
+	private static void writeFrame(DataOutputStream out, FrameBuffer frame)
+			throws IOException {
+		out.writeInt(frame.size());
+		out.write(frame.bytes(), 0, frame.size());
+		out.flush();
+	}
+
+	/**
+	 * @return The contents of the next frame, or null at the end of the
+	 *         stream
+	 */
+	private static DataInputStream readFrame(DataInputStream in) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return null;
+		}
+		int length = (first << 24) | (in.readUnsignedByte() << 16)
+				| (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+		if (length <= 0 || length > MAX_FRAME_SIZE) {
+			throw new StreamCorruptedException("Bad frame length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	private static void writeResultSet(DataOutputStream out, BDResultSet results)
+			throws IOException {
+		BDSchema schema = results == null ? null : results.getSchema();
+		if (schema == null) {
+			out.writeBoolean(false);
+			return;
+		}
+		out.writeBoolean(true);
+		int columns = schema.size();
+		out.writeInt(columns);
+		for (int col = 0; col < columns; col++) {
+			out.writeUTF(schema.getName(col));
+			BDObjectType type = schema.getObjectType(col);
+			out.writeByte(type == null ? -1 : type.ordinal());
+		}
+
+		List<? extends BDRow> rows = results.getData();
+		out.writeInt(rows.size());
+		for (int col = 0; col < columns; col++) {
+			byte encoding = encodingOf(rows, col);
+			out.writeByte(encoding);
+			switch (encoding) {
+			case NUMBERS:
+				BitSet nulls = new BitSet();
+				int row = 0;
+				for (BDRow r : rows) {
+					if (r.getField(col) == null) {
+						nulls.set(row);
+					}
+					row++;
+				}
+				writeBits(out, nulls);
+				for (BDRow r : rows) {
+					Object value = r.getField(col);
+					out.writeDouble(value == null ? 0 : (Double) value);
+				}
+				break;
+			case STRINGS:
+				for (BDRow r : rows) {
+					writeString(out, (String) r.getField(col));
+				}
+				break;
+			default:
+				for (BDRow r : rows) {
+					writeValue(out, r.getField(col));
+				}
+			}
+		}
+	}
+
+	private static BDResultSet readResultSet(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		int columns = in.readInt();
+		checkLength(in, columns, 3);
+		Vector<String> names = new Vector<String>(columns);
+		Vector<BDObjectType> types = new Vector<BDObjectType>(columns);
+		for (int col = 0; col < columns; col++) {
+			names.add(in.readUTF());
+			byte type = in.readByte();
+			types.add(type < 0 ? null : BDObjectType.values()[type]);
+		}
+
+		int rows = in.readInt();
+		if (columns > 0) {
+			checkLength(in, rows, 1);
+		}
+		Object[] data = new Object[columns];
+		BitSet[] nulls = new BitSet[columns];
+		for (int col = 0; col < columns; col++) {
+			byte encoding = in.readByte();
+			switch (encoding) {
+			case NUMBERS:
+				nulls[col] = readBits(in);
+				checkLength(in, rows, 8);
+				double[] numbers = new double[rows];
+				for (int row = 0; row < rows; row++) {
+					numbers[row] = in.readDouble();
+				}
+				data[col] = numbers;
+				break;
+			case STRINGS:
+				checkLength(in, rows, 4);
+				String[] strings = new String[rows];
+				for (int row = 0; row < rows; row++) {
+					strings[row] = readString(in);
+				}
+				data[col] = strings;
+				break;
+			case VALUES:
+				Object[] values = new Object[rows];
+				for (int row = 0; row < rows; row++) {
+					values[row] = readValue(in);
+				}
+				data[col] = values;
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown column encoding "
+						+ encoding);
+			}
+		}
+		return new BDPackedResultSet(new BDSchema(names, types), rows, data, nulls);
+	}
+
+	/**
+	 * Picks the most compact encoding that fits every value in a column.
+	 */
+	private static byte encodingOf(List<? extends BDRow> rows, int col) {
+		boolean numbers = true;
+		boolean strings = true;
+		for (BDRow r : rows) {
+			Object value = r.getField(col);
+			if (value == null) {
+				continue;
+			}
+			numbers &= value instanceof Double;
+			strings &= value instanceof String;
+			if (!numbers && !strings) {
+				return VALUES;
+			}
+		}
+		return numbers ? NUMBERS : STRINGS;
+	}
+
+	/**
+	 * Writes one value of a row with a tag for its type. The server also
+	 * uses this for rows it writes to its own temporary files.
+	 */
+	public static void writeValue(DataOutputStream out, Object value)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Serializable) {
+			out.writeByte(SERIALIZED);
+			writeObject(out, value);
+		} else {
+			throw new NotSerializableException(value.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads a value written by writeValue.
+	 */
+	public static Object readValue(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case DOUBLE:
+			return in.readDouble();
+		case STRING:
+			return readString(in);
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case SERIALIZED:
+			return readObject(in);
+		default:
+			throw new StreamCorruptedException("Unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Writes a string of any length, or null, as its UTF-8 bytes.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		checkLength(in, length, 1);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeBits(DataOutputStream out, BitSet bits) throws IOException {
+		long[] words = bits.toLongArray();
+		out.writeInt(words.length);
+		for (long word : words) {
+			out.writeLong(word);
+		}
+	}
+
+	/**
+	 * @return The bits written by writeBits, or null if none were set
+	 */
+	private static BitSet readBits(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length == 0) {
+			return null;
+		}
+		checkLength(in, length, 8);
+		long[] words = new long[length];
+		for (int i = 0; i < length; i++) {
+			words[i] = in.readLong();
+		}
+		return BitSet.valueOf(words);
+	}
+
+	private static void writeObject(DataOutputStream out, Object object)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream objects = new ObjectOutputStream(bytes);
+		objects.writeObject(object);
+		objects.close();
+		out.writeInt(bytes.size());
+		bytes.writeTo(out);
+	}
+
+	private static Object readObject(DataInputStream in) throws IOException,
+			ClassNotFoundException {
+		int length = in.readInt();
+		checkLength(in, length, 1);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+
+	/**
+	 * Rejects a count read from the stream before anything is allocated for
+	 * it: the frames and spill files values are read from know how many
+	 * bytes they have left, and the items counted must fit in them.
+	 * 
+	 * @param size The fewest bytes each item takes
+	 */
+	private static void checkLength(DataInputStream in, int length, int size)
+			throws IOException {
+		if (length < 0 || length > MAX_FRAME_SIZE
+				|| (long) length * size > in.available()) {
+			throw new StreamCorruptedException("Bad length " + length);
+		}
+	}
+}
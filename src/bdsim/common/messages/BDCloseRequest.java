@@ -0,0 +1,34 @@
+package bdsim.common.messages;
+
+import java.io.Serializable;
+
+import bdsim.common.BDRequest;
+import bdsim.common.BDRequestHandler;
+import bdsim.common.BDResponse;
+
+/**
+ * A request to close a cursor whose remaining rows are not wanted.
+ */
+public final class BDCloseRequest implements BDRequest, Serializable {
+
+	private static final long serialVersionUID = 8810393412875146027L;
+	private int m_cursorId;
+
+	/**
+	 * Class constructor.
+	 * 
+	 * @param cursorId
+	 *            The cursor, from BDResultResponse.getCursorId
+	 */
+	public BDCloseRequest(int cursorId) {
+		m_cursorId = cursorId;
+	}
+
+	public int getCursorId() {
+		return m_cursorId;
+	}
+
+	public BDResponse handle(BDRequestHandler handler) {
+		return handler.handle(this);
+	}
+}
@@ -0,0 +1,34 @@
+package bdsim.common.messages;
+
+import java.io.Serializable;
+
+import bdsim.common.BDRequest;
+import bdsim.common.BDRequestHandler;
+import bdsim.common.BDResponse;
+
+/**
+ * A request for the next page of a result from a cursor.
+ */
+public final class BDFetchRequest implements BDRequest, Serializable {
+
+	private static final long serialVersionUID = -5384125610239947372L;
+	private int m_cursorId;
+
+	/**
+	 * Class constructor.
+	 * 
+	 * @param cursorId
+	 *            The cursor, from BDResultResponse.getCursorId
+	 */
+	public BDFetchRequest(int cursorId) {
+		m_cursorId = cursorId;
+	}
+
+	public int getCursorId() {
+		return m_cursorId;
+	}
+
+	public BDResponse handle(BDRequestHandler handler) {
+		return handler.handle(this);
+	}
+}
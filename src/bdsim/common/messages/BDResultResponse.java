@@ -17,15 +17,40 @@ public final class BDResultResponse implements BDResponse, Serializable {
 	private static final long serialVersionUID = 1613512129923224644L;
 
 	private BDResultSet m_results;
+	private int m_cursorId;
 
 	public BDResultResponse(BDResultSet results) {
+		this(results, 0);
+	}
+
+	/**
+	 * @param results
+	 *            A page of the result
+	 * @param cursorId
+	 *            The cursor to fetch the next page from, or 0 if this is the
+	 *            last page
+	 */
+	public BDResultResponse(BDResultSet results, int cursorId) {
 		this.m_results = results;
+		this.m_cursorId = cursorId;
 	}
 
 	public BDResultSet getResults() {
 		return m_results;
 	}
 
+	/**
+	 * @return The cursor to send a BDFetchRequest for to get more rows, or 0
+	 *         if there are none
+	 */
+	public int getCursorId() {
+		return m_cursorId;
+	}
+
+	public boolean hasMore() {
+		return m_cursorId != 0;
+	}
+
 	public void handle(BDResponseHandler handler, long elapsed) {
 		handler.handle(this, elapsed);
 	}
@@ -14,9 +14,22 @@ public final class BDSqlRequest implements BDRequest, Serializable {
 
 	private static final long serialVersionUID = 295408025484005578L;
 	private String m_sql;
+	private int m_fetchSize;
 	
 	public BDSqlRequest(String sql) {
+		this(sql, 0);
+	}
+
+	/**
+	 * @param sql
+	 *            The query
+	 * @param fetchSize
+	 *            The number of rows in each page of the result, or 0 to get
+	 *            all rows in one response
+	 */
+	public BDSqlRequest(String sql, int fetchSize) {
 		this.m_sql = sql;
+		this.m_fetchSize = fetchSize;
 	}
 
     /**
@@ -26,6 +39,14 @@ public final class BDSqlRequest implements BDRequest, Serializable {
         return m_sql;
     }
 
+	/**
+	 * @return The number of rows in each page of the result, or 0 if the
+	 *         result comes in one response
+	 */
+	public int getFetchSize() {
+		return m_fetchSize;
+	}
+
 	public BDResponse handle(BDRequestHandler handler) {
 		return handler.handle(this);
 	}
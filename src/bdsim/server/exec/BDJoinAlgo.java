@@ -6,5 +6,5 @@ package bdsim.server.exec;
  * @author wpijewsk
  */
 public enum BDJoinAlgo {
-	BNLJ, HASH, ALGO1, ALGO2;
+	BNLJ, HASH, MERGE, ALGO1, ALGO2;
 }
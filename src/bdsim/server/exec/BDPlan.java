@@ -13,6 +13,7 @@ import bdsim.server.exec.nodes.BDCondOpType;
 import bdsim.server.exec.nodes.BDJoinType;
 import bdsim.server.exec.nodes.Node;
 import bdsim.server.exec.nodes.NodeCondition;
+import bdsim.server.system.BDPredicate;
 import bdsim.server.system.BDSystem;
 
 /**
@@ -170,6 +171,17 @@ public final class BDPlan {
 			m_selectAll = false;
 		}
 
+		public void handleInsertRow() {
+			logger.debug("handleInsertRow()");
+
+			// Each row after the first gets a map of its own
+			if (!m_rows.isEmpty()) {
+				m_data = new Hashtable<BDTableColumnPair, Object>();
+			}
+			m_rows.add(m_data);
+			m_dataSeen = 0;
+		}
+
 		public void handleLiteral(String literal) {
 			logger.debug("handleLiteral(literal:" + literal + ")");
 
@@ -260,12 +272,38 @@ public final class BDPlan {
 	 */
 	protected BDConditionList m_conditions;
 
+	/**
+	 * Whether the planner chose to read the rows of the one table with
+	 * m_accessCondition and to check the other conditions as they are read,
+	 * rather than to combine the rows of each condition.
+	 */
+	protected boolean m_filtered;
+
+	/**
+	 * The condition whose index reads the rows when m_filtered, or null to
+	 * read all rows of the table.
+	 */
+	protected BDCondition m_accessCondition;
+
+	/**
+	 * The conditions compiled into one test of the rows of the one table,
+	 * when the planner chose to read all of its rows once and test each, or
+	 * null.
+	 */
+	protected BDPredicate m_predicate;
+
 	/**
 	 * The data to use in UPDATE and INSERT operations. A mapping from field
-	 * name to value for that field.
+	 * name to value for that field. For an INSERT of several rows, the last
+	 * row.
 	 */
 	protected Map<BDTableColumnPair, Object> m_data;
 
+	/**
+	 * The rows of an INSERT, in order, each mapped like m_data.
+	 */
+	protected List<Map<BDTableColumnPair, Object>> m_rows;
+
 	/**
 	 * Unique transaction ID for this plan
 	 */
@@ -321,6 +359,7 @@ public final class BDPlan {
 		m_node = node;
 		m_columnPairs = new LinkedList<BDTableColumnPair>();
 		m_data = new Hashtable<BDTableColumnPair, Object>();
+		m_rows = new LinkedList<Map<BDTableColumnPair, Object>>();
 		m_joins = new LinkedList<BDJoinInfo>();
 		m_orderByList = new LinkedList<BDOrderByInfo>();
 		m_tables = new LinkedList<String>();
@@ -379,9 +418,19 @@ public final class BDPlan {
 
 		boolean tablesEqual = this.m_tables.equals(otherPlan.m_tables);
 
+		boolean accessEqual = this.m_filtered == otherPlan.m_filtered;
+		if (this.m_accessCondition == null) {
+			accessEqual = accessEqual && otherPlan.m_accessCondition == null;
+		} else {
+			accessEqual = accessEqual
+					&& this.m_accessCondition.equals(otherPlan.m_accessCondition);
+		}
+		accessEqual = accessEqual
+				&& (this.m_predicate == null) == (otherPlan.m_predicate == null);
+
 		return colPairsEqual && condsEqual && dataEqual && joinsEqual
 				&& mappingsEqual && orderByEqual && qTypeEqual
-				&& selectAllEqual && tablesEqual;
+				&& selectAllEqual && tablesEqual && accessEqual;
 	}
 
 	/**
@@ -401,10 +450,55 @@ public final class BDPlan {
 		return m_conditions;
 	}
 
+	/**
+	 * @return true if the rows are read with getAccessCondition and the
+	 *         other conditions are checked as they are read
+	 */
+	public boolean isFiltered() {
+		return m_filtered;
+	}
+
+	/**
+	 * @return The condition whose index the rows are read with, or null to
+	 *         read all rows; only when isFiltered
+	 */
+	public BDCondition getAccessCondition() {
+		return m_accessCondition;
+	}
+
+	/**
+	 * Has the rows read with the index of one condition, or all rows if it
+	 * is null, and the other conditions checked as they are read.
+	 */
+	public void setAccessCondition(BDCondition access) {
+		m_filtered = true;
+		m_accessCondition = access;
+	}
+
+	/**
+	 * @return The conditions compiled into one test that every row of the
+	 *         table is read for, or null to combine the rows of each
+	 *         condition
+	 */
+	public BDPredicate getPredicate() {
+		return m_predicate;
+	}
+
+	public void setPredicate(BDPredicate predicate) {
+		m_predicate = predicate;
+	}
+
 	public Map<BDTableColumnPair, Object> getData() {
 		return m_data;
 	}
 
+	/**
+	 * @return The rows to insert, for an INSERT
+	 */
+	public List<Map<BDTableColumnPair, Object>> getRows() {
+		return m_rows;
+	}
+
 	public int getId() {
 		return m_id;
 	}
@@ -413,6 +507,20 @@ public final class BDPlan {
 		return m_joins;
 	}
 
+	/**
+	 * @return The algorithm the planner chose for the join of two columns,
+	 *         or null if it chose none
+	 */
+	public BDJoinAlgo getJoinAlgo(BDTableColumnPair table1,
+			BDTableColumnPair table2) {
+		for (BDJoinInfo join : m_joins) {
+			if (join.getTable1().equals(table1) && join.getTable2().equals(table2)) {
+				return join.getAlgo();
+			}
+		}
+		return null;
+	}
+
 	public List<BDOrderByInfo> getOrderByList() {
 		return m_orderByList;
 	}
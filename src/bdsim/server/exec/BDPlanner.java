@@ -1,7 +1,14 @@
 package bdsim.server.exec;
 
 import bdsim.server.exec.BDSemanticVisitor.BDNameMappings;
+import bdsim.server.exec.nodes.BDCondOpType;
+import bdsim.server.exec.nodes.BDJoinType;
 import bdsim.server.exec.nodes.NodeStatement;
+import bdsim.server.system.BDPredicate;
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDTable;
+import bdsim.server.system.handler.BDHandlerFunctions;
+import bdsim.server.system.index.BDIndex.RangeType;
 
 /**
  * Takes a parsed SQL expression and converts that intermediate representation
@@ -39,12 +46,199 @@ public final class BDPlanner {
 	}
 	
 	/**
-	 * Optimizes a plan that has already been generated.
+	 * Optimizes a plan that has already been generated. Each condition that
+	 * compares two columns is a join: equi-joins of columns that both have
+	 * an ordered index are done as merge joins, other equi-joins as hash
+	 * joins, and other comparisons as block nested loops joins.
+	 * 
+	 * When the conditions on a single table are all ANDed together, the rows
+	 * are read once, through the index of the most selective condition, and
+	 * the other conditions are checked as they are read. When they are not,
+	 * and some condition has no index to read its rows with, the conditions
+	 * are compiled into one predicate that each row of the table is read
+	 * for once.
 	 * 
 	 * @param plan The plan to optimize
 	 */
 	public void optimizePlan(BDPlan plan) {
-		
-		// TODO BDPlanner.optimizePlan
+		chooseAccessPath(plan);
+		compilePredicate(plan);
+
+		for (BDConditionList conds = plan.getConditions(); conds != null; conds = conds
+				.getRest()) {
+			BDCondition cond = conds.getCondition();
+			if (cond == null
+					|| cond.getLhsType() != BDCondition.ConditionValueType.COLUMN
+					|| cond.getRhsType() != BDCondition.ConditionValueType.COLUMN) {
+				continue;
+			}
+			BDTableColumnPair lhs = (BDTableColumnPair) cond.getLhs();
+			BDTableColumnPair rhs = (BDTableColumnPair) cond.getRhs();
+			BDJoinAlgo algo;
+			if (cond.getCondOp() != BDCondOpType.EQ) {
+				algo = BDJoinAlgo.BNLJ;
+			} else if (isOrdered(lhs) && isOrdered(rhs)) {
+				algo = BDJoinAlgo.MERGE;
+			} else {
+				algo = BDJoinAlgo.HASH;
+			}
+			BDJoinInfo join = new BDJoinInfo(lhs, rhs, BDJoinType.INNER, algo);
+			if (!plan.getJoins().contains(join)) {
+				plan.getJoins().add(join);
+			}
+		}
+	}
+
+	/**
+	 * Picks the condition whose index reads the fewest rows of a single
+	 * table, if all of the plan's conditions are ANDed together. An equality
+	 * on the primary key reads at most one row, an equality on a secondary
+	 * index the rows with one value, and a range on an ordered index the
+	 * rows in the range; without any of these, all rows are read.
+	 */
+	private void chooseAccessPath(BDPlan plan) {
+		BDConditionList conds = plan.getConditions();
+		if (plan.getTables().size() != 1 || conds == null
+				|| conds.getNumConditions() < 2 || BDSystem.tableManager == null) {
+			return;
+		}
+		BDTable table = BDSystem.tableManager.getTableByName(plan.getTables()
+				.get(0));
+		if (table == null) {
+			return;
+		}
+
+		BDCondition access = null;
+		int best = Integer.MAX_VALUE;
+		for (; conds != null; conds = conds.getRest()) {
+			BDCondition cond = conds.getCondition();
+			if (cond == null || (!conds.isAndedTogether() && conds.getRest() != null)) {
+				return;
+			}
+			BDTableColumnPair column;
+			if (cond.getLhsType() == BDCondition.ConditionValueType.COLUMN) {
+				if (cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
+					return;
+				}
+				column = (BDTableColumnPair) cond.getLhs();
+			} else if (cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
+				column = (BDTableColumnPair) cond.getRhs();
+			} else {
+				return;
+			}
+			int cost = accessCost(table, column.getColumn(), cond.getCondOp());
+			if (cost < best) {
+				best = cost;
+				access = cond;
+			}
+		}
+		plan.setAccessCondition(access);
+	}
+
+	/**
+	 * Compiles the conditions on a single table into one predicate, combining
+	 * them from first to last as the select handler combines their rows. This
+	 * is done when a condition would read all rows of the table anyway, and
+	 * the rows are not already read through chooseAccessPath.
+	 */
+	private void compilePredicate(BDPlan plan) {
+		BDConditionList conds = plan.getConditions();
+		if (plan.getTables().size() != 1 || conds == null
+				|| conds.getNumConditions() < 2 || plan.isFiltered()
+				|| BDSystem.tableManager == null) {
+			return;
+		}
+		BDTable table = BDSystem.tableManager.getTableByName(plan.getTables()
+				.get(0));
+		if (table == null) {
+			return;
+		}
+
+		BDPredicate predicate = null;
+		boolean lastAnd = false;
+		boolean scans = false;
+		for (; conds != null; conds = conds.getRest()) {
+			BDCondition cond = conds.getCondition();
+			if (cond == null) {
+				return;
+			}
+			BDTableColumnPair column;
+			Object value;
+			RangeType range;
+			if (cond.getLhsType() == BDCondition.ConditionValueType.COLUMN) {
+				if (cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
+					return;
+				}
+				column = (BDTableColumnPair) cond.getLhs();
+				value = cond.getRhs();
+				range = BDHandlerFunctions.condToRange(cond.getCondOp());
+			} else if (cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
+				column = (BDTableColumnPair) cond.getRhs();
+				value = cond.getLhs();
+				range = BDHandlerFunctions.invertRange(BDHandlerFunctions
+						.condToRange(cond.getCondOp()));
+			} else {
+				return;
+			}
+			int position = table.getSchema().getPosition(column.getColumn());
+			if (position < 0 || !(value instanceof Comparable)) {
+				return;
+			}
+			BDPredicate compared = BDPredicate.compare(position, table
+					.getSchema().getObjectType(position), range,
+					(Comparable) value);
+			if (compared == null) {
+				return;
+			}
+			if (predicate == null) {
+				predicate = compared;
+			} else if (lastAnd) {
+				predicate = BDPredicate.and(predicate, compared);
+			} else {
+				predicate = BDPredicate.or(predicate, compared);
+			}
+			lastAnd = conds.isAndedTogether();
+			if (accessCost(table, column.getColumn(), cond.getCondOp()) == Integer.MAX_VALUE) {
+				scans = true;
+			}
+		}
+		if (scans) {
+			plan.setPredicate(predicate);
+		}
+	}
+
+	/**
+	 * @return How many rows reading with a condition's index may take, as a
+	 *         rank: 0 for an equality on the primary key, 1 for one on a
+	 *         secondary index, 2 for a range on an ordered index, and
+	 *         Integer.MAX_VALUE if the condition has to read all rows
+	 */
+	private int accessCost(BDTable table, String column, BDCondOpType op) {
+		switch (op) {
+		case EQ:
+			if (table.isPrimaryKey(column)) {
+				return 0;
+			}
+			return table.isSecondaryIndex(column) ? 1 : Integer.MAX_VALUE;
+		case LT:
+		case LTEQ:
+		case GT:
+		case GTEQ:
+			return table.isOrderedOn(column) ? 2 : Integer.MAX_VALUE;
+		default:
+			return Integer.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * @return true if the column has an index that scans it in order; false
+	 *         without a table manager to ask
+	 */
+	private boolean isOrdered(BDTableColumnPair column) {
+		if (BDSystem.tableManager == null) {
+			return false;
+		}
+		BDTable table = BDSystem.tableManager.getTableByName(column.getTable());
+		return table != null && table.isOrderedOn(column.getColumn());
 	}
 }
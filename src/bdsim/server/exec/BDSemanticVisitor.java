@@ -126,6 +126,7 @@ public final class BDSemanticVisitor implements BDVisitor {
 	public void handleInsert(String table) {
 		m_tblAbbrs.put(table.trim(), table.trim());
 	}
+	public void handleInsertRow() {}
 	public void handleLiteral(String m_literal) {
 		
 	}
@@ -437,17 +437,27 @@ public class BDSqlParser {
 		}
 		m_tokenizer.advance();
 
-		if (m_tokenizer.token().getType() != BDTokenType.LEFTPAREN) {
-			throw new BDParseException("No value list specified");
-		}
-		m_tokenizer.advance();
-		values = parseValueList();
-		if (m_tokenizer.token().getType() != BDTokenType.RIGHTPAREN) {
-			throw new BDParseException("List of values does not have a closing )");
+		// One or more rows, separated by commas
+		List<NodeValueList> rows = new LinkedList<NodeValueList>();
+		while (true) {
+			if (m_tokenizer.token().getType() != BDTokenType.LEFTPAREN) {
+				throw new BDParseException("No value list specified");
+			}
+			m_tokenizer.advance();
+			values = parseValueList();
+			if (m_tokenizer.token().getType() != BDTokenType.RIGHTPAREN) {
+				throw new BDParseException("List of values does not have a closing )");
+			}
+			m_tokenizer.advance();
+			rows.add(values);
+
+			if (m_tokenizer.token().getType() != BDTokenType.COMMA) {
+				break;
+			}
+			m_tokenizer.advance();
 		}
-		m_tokenizer.advance();
 
-		return new NodeInsert(table, fields, values);
+		return new NodeInsert(table, fields, rows);
 	}
 
 	/**
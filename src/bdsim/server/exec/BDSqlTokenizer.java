@@ -213,13 +213,17 @@ public final class BDSqlTokenizer {
         } else if (lowerNext.equals("transaction")) {
             m_token = new BDSqlToken(BDTokenType.TRANSACTION);
         } else {
-            // If not a keyword, must wither be identifier or number
-            boolean isNumeric = true;
+            // If not a keyword, must wither be identifier or number. Quoted
+            // literals are not numbers, and are common enough in INSERTs
+            // that they should not cost a NumberFormatException each.
+            boolean isNumeric = !next.startsWith("'") && !next.startsWith("\"");
 			double value = -1;
-			try {
-				value = Double.valueOf(next).doubleValue();
-			} catch (NumberFormatException e) {
-				isNumeric = false;
+			if (isNumeric) {
+				try {
+					value = Double.valueOf(next).doubleValue();
+				} catch (NumberFormatException e) {
+					isNumeric = false;
+				}
 			}
 
 			if (isNumeric) {
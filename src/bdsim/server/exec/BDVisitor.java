@@ -36,6 +36,11 @@ public interface BDVisitor {
 
 	void handleInsert(String table);
 
+	/**
+	 * Called before the values of each row of an INSERT.
+	 */
+	void handleInsertRow();
+
 	void handleLiteral(String m_literal);
 
 	void handleNumber(double m_number);
@@ -1,9 +1,12 @@
 package bdsim.server.exec.nodes;
 
+import java.util.Collections;
+import java.util.List;
+
 import bdsim.server.exec.BDVisitor;
 
 /**
- * Represents an INSERT statement
+ * Represents an INSERT statement, which may insert several rows
  * @author wpijewsk
  * @revision $Id: NodeInsert.java 172 2006-05-09 10:26:44 +0000 (Tue, 09 May 2006) wpijewsk $
  */
@@ -11,7 +14,7 @@ public final class NodeInsert extends NodeStatement {
 
 	private String m_table;
 	private NodeIdList m_columns;
-	private NodeValueList m_values;
+	private List<NodeValueList> m_rows;
 
 	/**
 	 * Class constructor.
@@ -20,9 +23,19 @@ public final class NodeInsert extends NodeStatement {
 	 * @param values
 	 */
 	public NodeInsert(String table, NodeIdList columns, NodeValueList values) {
+		this(table, columns, Collections.singletonList(values));
+	}
+
+	/**
+	 * Class constructor.
+	 * @param table
+	 * @param columns
+	 * @param rows The values of each row to insert
+	 */
+	public NodeInsert(String table, NodeIdList columns, List<NodeValueList> rows) {
 		this.m_table = table;
 		this.m_columns = columns;
-		this.m_values = values;
+		this.m_rows = rows;
 	}
 
 	@Override
@@ -33,8 +46,11 @@ public final class NodeInsert extends NodeStatement {
 			m_columns.visit(visitor);
 		}
 
-		if (m_values != null) {
-			m_values.visit(visitor);
+		for (NodeValueList values : m_rows) {
+			if (values != null) {
+				visitor.handleInsertRow();
+				values.visit(visitor);
+			}
 		}
 	}
 
@@ -55,6 +71,6 @@ public final class NodeInsert extends NodeStatement {
 		}
 
 		return this.m_table.equals(otherInsert.m_table) && idsEqual
-				&& this.m_values.equals(otherInsert.m_values);
+				&& this.m_rows.equals(otherInsert.m_rows);
 	}
 }
@@ -16,6 +16,7 @@ import bdsim.server.system.BDScheduler;
 import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDTableManager;
 import bdsim.server.system.BDTableManager.XmlException;
+import bdsim.server.system.buffer.BDBufferPool;
 import bdsim.server.system.concurrency.ConcurrencyController;
 import bdsim.server.system.concurrency.TimeStampController;
 import bdsim.server.system.concurrency.TwoPhaseLockController;
@@ -38,6 +39,9 @@ public final class BDSimulator {
     private final static String DB_CONF = "conf/server.conf";
     static Logger logger = Logger.getLogger(BDSimulator.class);
     private final static String LOGGER_CONF = "conf/logger.conf";
+    
+    /** Size of the simulated memory */
+    private final static int MEMORY_BYTES = 1024 * 100000;
 	
     //
     // Pavlo Hack
@@ -65,7 +69,11 @@ public final class BDSimulator {
 	}
 
 	private static BDMemoryManager createMemoryManager() {
-		return new BDMemoryManager(1024, 100000);
+		int pageSize = Integer.parseInt(System.getProperty("index.pagesize", "4096"));
+		int numFrames = Integer.parseInt(System.getProperty("bufferpool.frames", "1024"));
+		return new BDMemoryManager(pageSize, MEMORY_BYTES / pageSize, numFrames,
+				BDBufferPool.createPolicy(System.getProperty("bufferpool.policy", "LRU")),
+				BDSystem.diskManager);
 	}
 
 	private static BDScheduler createScheduler() {
@@ -103,6 +111,9 @@ public final class BDSimulator {
             System.exit(-1);
         }   
 
+        // The tables' paged indices need the buffer pool
+        BDSystem.diskManager = createDiskManager();
+        BDSystem.memoryManager = createMemoryManager();
         BDSystem.tableManager = createTableManager();
         try {
 			BDSystem.tableManager.readFromXmlFile(xmlFile);
@@ -113,8 +124,6 @@ public final class BDSimulator {
 			System.exit(1);
 			
 		}
-        BDSystem.memoryManager = createMemoryManager();
-        BDSystem.diskManager = createDiskManager();
         BDSystem.concurrencyController = createConcurrencyController();
         BDSystem.logManager = createLogManager();
         BDSystem.scheduler = createScheduler();	
@@ -0,0 +1,152 @@
+package bdsim.server.network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+
+import bdsim.common.BDRequest;
+import bdsim.common.BDResponse;
+import bdsim.common.BDWireProtocol;
+import bdsim.common.BDWireProtocol.Tagged;
+
+/**
+ * How requests and responses are written on one client connection. Clients
+ * speaking the binary BDWireProtocol start with its magic number; anything
+ * else is taken to be a Java serialization stream, as sent by older clients.
+ *
+ * Responses may be written by other threads than the one reading requests,
+ * so writeResponse is synchronized.
+ */
+abstract class BDConnectionProtocol {
+
+	/**
+	 * Reads the start of a connection and picks the protocol the client
+	 * speaks.
+	 *
+	 * @param in
+	 *            The bytes from the client; only what the protocol's header
+	 *            takes is read
+	 * @param out
+	 *            The bytes to the client
+	 */
+	static BDConnectionProtocol open(InputStream in, OutputStream out)
+			throws IOException {
+		PushbackInputStream peek = new PushbackInputStream(in, 1);
+		int first = peek.read();
+		if (first < 0) {
+			throw new EOFException();
+		}
+		peek.unread(first);
+		if (first == BDWireProtocol.MAGIC >>> 24) {
+			return new Binary(peek, out);
+		}
+		return new Serialized(peek, out);
+	}
+
+	/**
+	 * @return The next request, and the correlation ID its response is
+	 *         written with
+	 * @throws EOFException
+	 *             If the client closed the connection
+	 */
+	abstract Tagged<BDRequest> readRequest() throws IOException,
+			ClassNotFoundException;
+
+	/**
+	 * Writes and flushes a response.
+	 *
+	 * @param id
+	 *            The correlation ID of the request it answers
+	 */
+	abstract void writeResponse(int id, BDResponse response) throws IOException;
+
+	/**
+	 * @return true if the client matches responses to its requests by
+	 *         correlation ID, so that they may be answered in any order
+	 */
+	abstract boolean isPipelined();
+
+	/**
+	 * @return true if each request is a BDWireProtocol frame, whose length
+	 *         tells when all of it has arrived
+	 */
+	abstract boolean isFramed();
+
+	private static final class Binary extends BDConnectionProtocol {
+
+		private final DataInputStream m_in;
+
+		private final DataOutputStream m_out;
+
+		Binary(InputStream in, OutputStream out) throws IOException {
+			m_in = new DataInputStream(in);
+			m_out = new DataOutputStream(out);
+			BDWireProtocol.readHeader(m_in);
+		}
+
+		Tagged<BDRequest> readRequest() throws IOException,
+				ClassNotFoundException {
+			Tagged<BDRequest> request = BDWireProtocol.readTaggedRequest(m_in);
+			if (request == null) {
+				throw new EOFException();
+			}
+			return request;
+		}
+
+		synchronized void writeResponse(int id, BDResponse response)
+				throws IOException {
+			BDWireProtocol.writeResponse(m_out, id, response);
+		}
+
+		boolean isPipelined() {
+			return true;
+		}
+
+		boolean isFramed() {
+			return true;
+		}
+	}
+
+	private static final class Serialized extends BDConnectionProtocol {
+
+		private final ObjectInputStream m_in;
+
+		private final ObjectOutputStream m_out;
+
+		Serialized(InputStream in, OutputStream out) throws IOException {
+			m_in = new ObjectInputStream(in);
+			m_out = new ObjectOutputStream(out);
+			// The client waits for the stream header before its first request
+			m_out.flush();
+		}
+
+		Tagged<BDRequest> readRequest() throws IOException,
+				ClassNotFoundException {
+			return new Tagged<BDRequest>(0, (BDRequest) m_in.readObject());
+		}
+
+		synchronized void writeResponse(int id, BDResponse response)
+				throws IOException {
+			m_out.writeObject(response);
+			m_out.flush();
+		}
+
+		/**
+		 * Serialized clients take responses in the order they sent their
+		 * requests.
+		 */
+		boolean isPipelined() {
+			return false;
+		}
+
+		boolean isFramed() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package bdsim.server.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+
+import bdsim.common.BDRequest;
+import bdsim.common.BDWireProtocol;
+import bdsim.common.BDWireProtocol.Tagged;
+
+/**
+ * The non-blocking front end of the server. One thread waits on a selector
+ * for all client connections, reads whatever bytes arrive and writes out the
+ * responses, so an idle client costs a socket and some buffers but no thread.
+ *
+ * A connection only gets one of the pool's threads when bytes of a request
+ * have arrived. That thread decodes and handles requests until the bytes
+ * received so far are used up, and then gives the connection back to the
+ * selector. Requests of one connection are read one at a time and in order,
+ * and are read and written in the same BDConnectionProtocol as with the
+ * blocking front end, so clients cannot tell the two apart. Responses to
+ * pipelined requests are written by whichever thread finishes them.
+ */
+final class BDSelectorServer {
+
+	static Logger logger = Logger.getLogger(BDSelectorServer.class);
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * The most bytes of responses a connection may have waiting for its
+	 * client before the server stops reading its requests
+	 */
+	private static final int MAX_UNSENT_BYTES = 1 << 20;
+
+	/**
+	 * How long a client speaking Java serialization may take to send the
+	 * rest of a request it started, in milliseconds
+	 */
+	private static final long PARTIAL_REQUEST_TIMEOUT = 10000;
+
+	private final BDServer m_server;
+
+	private final ExecutorService m_pool;
+
+	private final Selector m_selector;
+
+	/** Work for the selector thread, queued by the pool's threads */
+	private final Queue<Runnable> m_tasks;
+
+	private ServerSocketChannel m_serverChannel;
+
+	/**
+	 * The bytes received on a connection that have not been decoded yet. The
+	 * selector thread appends to it, and the thread handling the connection
+	 * reads from it. BDWireProtocol requests are only read once their whole
+	 * frame is here. Java serialization has no frames to tell where a request
+	 * ends, so a thread reading one waits for the rest of it, for at most
+	 * PARTIAL_REQUEST_TIMEOUT.
+	 */
+	private static final class ReceiveBuffer extends InputStream {
+
+		private final LinkedList<byte[]> m_chunks = new LinkedList<byte[]>();
+
+		private int m_offset;
+
+		private int m_available;
+
+		private boolean m_closed;
+
+		synchronized void append(byte[] chunk) {
+			m_chunks.add(chunk);
+			m_available += chunk.length;
+			notifyAll();
+		}
+
+		public synchronized void close() {
+			m_closed = true;
+			notifyAll();
+		}
+
+		synchronized boolean isClosed() {
+			return m_closed;
+		}
+
+		public synchronized int available() {
+			return m_available;
+		}
+
+		/**
+		 * @return The byte at a position past the next one to be read, which
+		 *         must be less than available
+		 */
+		synchronized int peek(int position) {
+			int i = position + m_offset;
+			for (byte[] chunk : m_chunks) {
+				if (i < chunk.length) {
+					return chunk[i] & 0xff;
+				}
+				i -= chunk.length;
+			}
+			throw new IndexOutOfBoundsException("Position " + position);
+		}
+
+		public synchronized int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long deadline = System.currentTimeMillis() + PARTIAL_REQUEST_TIMEOUT;
+			while (m_available == 0) {
+				if (m_closed) {
+					return -1;
+				}
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new SocketTimeoutException("Client sent part of a request");
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted while reading a request");
+				}
+			}
+			byte[] chunk = m_chunks.getFirst();
+			int n = Math.min(len, chunk.length - m_offset);
+			System.arraycopy(chunk, m_offset, b, off, n);
+			m_offset += n;
+			m_available -= n;
+			if (m_offset == chunk.length) {
+				m_chunks.removeFirst();
+				m_offset = 0;
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * A client connection, and the task that handles its requests on one of
+	 * the pool's threads.
+	 */
+	private final class Connection implements Runnable {
+
+		private final SocketChannel m_channel;
+
+		private final ReceiveBuffer m_received;
+
+		/** Responses that did not fit in the socket's send buffer */
+		private final Queue<ByteBuffer> m_unsent;
+
+		/** The bytes left in m_unsent */
+		private volatile int m_unsentBytes;
+
+		private final SendBuffer m_encoded;
+
+		/** Set once the client's first bytes tell which protocol it speaks */
+		private BDConnectionProtocol m_protocol;
+
+		private final BDServer.ServerRequestHandler m_requestHandler;
+
+		private SelectionKey m_key;
+
+		/** Whether a pool thread has the connection; guarded by m_received */
+		private boolean m_busy;
+
+		Connection(SocketChannel channel) throws IOException {
+			m_channel = channel;
+			m_received = new ReceiveBuffer();
+			m_unsent = new LinkedList<ByteBuffer>();
+			m_encoded = new SendBuffer();
+			m_requestHandler = m_server.new ServerRequestHandler();
+		}
+
+		/**
+		 * Called by the selector thread when the channel has bytes.
+		 */
+		void receive(ByteBuffer buffer) throws IOException {
+			buffer.clear();
+			int n = m_channel.read(buffer);
+			if (n < 0) {
+				synchronized (m_received) {
+					m_received.close();
+					if (!m_busy) {
+						close();
+					}
+				}
+				return;
+			}
+			if (n == 0) {
+				return;
+			}
+			byte[] chunk = new byte[n];
+			buffer.flip();
+			buffer.get(chunk);
+			synchronized (m_received) {
+				m_received.append(chunk);
+			}
+			resume();
+		}
+
+		/**
+		 * Gives the connection a pool thread if a request can be read from
+		 * it without waiting.
+		 */
+		void resume() {
+			synchronized (m_received) {
+				if (!m_busy && isReady()) {
+					m_busy = true;
+					m_pool.execute(this);
+				}
+			}
+		}
+
+		/**
+		 * @return true if the bytes received hold the next thing to read: the
+		 *         start of the connection, or a whole request, or for Java
+		 *         serialization some of it; and the client is reading its
+		 *         responses. Called holding m_received.
+		 */
+		private boolean isReady() {
+			if (m_unsentBytes > MAX_UNSENT_BYTES) {
+				return false;
+			}
+			int available = m_received.available();
+			if (available == 0) {
+				return false;
+			}
+			if (m_protocol == null) {
+				return m_received.peek(0) != BDWireProtocol.MAGIC >>> 24
+						|| available >= BDWireProtocol.HEADER_SIZE;
+			}
+			if (!m_protocol.isFramed()) {
+				return true;
+			}
+			if (available < BDWireProtocol.LENGTH_SIZE) {
+				return false;
+			}
+			long length = 0;
+			for (int i = 0; i < BDWireProtocol.LENGTH_SIZE; i++) {
+				length = (length << 8) | m_received.peek(i);
+			}
+			// A bad length is left for the protocol to reject, which closes the
+			// connection instead of buffering a frame that is never accepted
+			return length <= 0 || length > BDWireProtocol.MAX_FRAME_SIZE
+					|| available >= BDWireProtocol.LENGTH_SIZE + length;
+		}
+
+		/**
+		 * Handles requests until the bytes received so far hold no whole
+		 * request, or until the client falls behind reading responses.
+		 */
+		public void run() {
+			try {
+				while (true) {
+					if (m_protocol == null) {
+						m_protocol = BDConnectionProtocol.open(m_received, m_encoded);
+					} else {
+						Tagged<BDRequest> request = m_protocol.readRequest();
+						m_requestHandler.answer(request.getId(), request.getMessage(),
+								m_protocol);
+					}
+
+					synchronized (m_received) {
+						if (!isReady()) {
+							if (m_received.isClosed()) {
+								close();
+							}
+							m_busy = false;
+							return;
+						}
+					}
+				}
+			} catch (EOFException e) {
+				logger.debug("Client " + m_channel.socket().getInetAddress()
+						+ " closed its connection");
+			} catch (IOException e) {
+				logger.debug("IOException caught: " + e.getMessage());
+			} catch (ClassNotFoundException e) {
+				logger.error("Client " + m_channel.socket().getInetAddress()
+						+ " sent an unknown message: " + e.getMessage());
+			} catch (RuntimeException e) {
+				logger.error("Failed to handle a request from "
+						+ m_channel.socket().getInetAddress(), e);
+			}
+			synchronized (m_received) {
+				m_busy = false;
+				close();
+			}
+		}
+
+		/**
+		 * The bytes m_protocol writes, which are sent each time it flushes
+		 * them at the end of a response.
+		 */
+		private final class SendBuffer extends ByteArrayOutputStream {
+			public synchronized void flush() throws IOException {
+				if (count == 0) {
+					return;
+				}
+				ByteBuffer bytes = ByteBuffer.wrap(toByteArray());
+				reset();
+				send(bytes);
+			}
+		}
+
+		/**
+		 * Writes as much of some bytes as the socket takes now, and leaves
+		 * the rest to the selector thread.
+		 */
+		private void send(ByteBuffer bytes) throws IOException {
+			synchronized (m_unsent) {
+				if (m_unsent.isEmpty()) {
+					m_channel.write(bytes);
+					if (!bytes.hasRemaining()) {
+						return;
+					}
+				}
+				m_unsent.add(bytes);
+				m_unsentBytes += bytes.remaining();
+			}
+			runOnSelector(new Runnable() {
+				public void run() {
+					try {
+						updateInterest();
+					} catch (CancelledKeyException e) {
+						// The connection was closed in the meantime
+					}
+				}
+			});
+		}
+
+		/**
+		 * Called by the selector thread when the socket takes more bytes.
+		 */
+		void flushUnsent() throws IOException {
+			boolean backedUp = m_unsentBytes > MAX_UNSENT_BYTES;
+			synchronized (m_unsent) {
+				while (!m_unsent.isEmpty()) {
+					ByteBuffer bytes = m_unsent.peek();
+					int before = bytes.remaining();
+					m_channel.write(bytes);
+					m_unsentBytes -= before - bytes.remaining();
+					if (bytes.hasRemaining()) {
+						break;
+					}
+					m_unsent.remove();
+				}
+				updateInterest();
+			}
+			if (backedUp && m_unsentBytes <= MAX_UNSENT_BYTES) {
+				// Requests that arrived while the client was behind
+				resume();
+			}
+		}
+
+		/**
+		 * Waits for the socket to take bytes while responses are unsent, and
+		 * stops reading requests while more than MAX_UNSENT_BYTES of them
+		 * are, so a client that does not read its responses cannot make the
+		 * server hold any number of them. Called by the selector thread.
+		 */
+		private void updateInterest() {
+			int ops = 0;
+			synchronized (m_unsent) {
+				if (!m_unsent.isEmpty()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				if (m_unsentBytes <= MAX_UNSENT_BYTES) {
+					ops |= SelectionKey.OP_READ;
+				}
+			}
+			m_key.interestOps(ops);
+		}
+
+		void close() {
+			m_requestHandler.close();
+			m_received.close();
+			try {
+				m_channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @param server
+	 *            The server whose request handlers handle the requests
+	 * @param pool
+	 *            The threads requests are handled on
+	 */
+	BDSelectorServer(BDServer server, ExecutorService pool) throws IOException {
+		m_server = server;
+		m_pool = pool;
+		m_selector = Selector.open();
+		m_tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Accepts connections and moves bytes to and from them on the calling
+	 * thread until the server is closed.
+	 */
+	void serve(int port, int backlog) throws IOException {
+		m_serverChannel = ServerSocketChannel.open();
+		m_serverChannel.socket().bind(new InetSocketAddress(port), backlog);
+		m_serverChannel.configureBlocking(false);
+		m_serverChannel.register(m_selector, SelectionKey.OP_ACCEPT);
+
+		logger.info("Server listening on port "
+				+ m_serverChannel.socket().getLocalPort() + " (selector)");
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		while (true) {
+			try {
+				m_selector.select();
+			} catch (ClosedSelectorException e) {
+				return;
+			}
+			Runnable task;
+			while ((task = m_tasks.poll()) != null) {
+				task.run();
+			}
+			Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				// Pool threads close connections, so their keys may be
+				// cancelled at any time
+				if (key.channel() == m_serverChannel) {
+					accept();
+					continue;
+				}
+				Connection connection = (Connection) key.attachment();
+				try {
+					if (key.isWritable()) {
+						connection.flushUnsent();
+					}
+					if (key.isValid() && key.isReadable()) {
+						connection.receive(buffer);
+					}
+				} catch (IOException e) {
+					logger.debug("IOException caught: " + e.getMessage());
+					connection.close();
+				} catch (CancelledKeyException e) {
+					// A pool thread closed the connection while we used it
+					connection.close();
+				}
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = m_serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		logger.debug("Received connection from address "
+				+ channel.socket().getInetAddress());
+		channel.configureBlocking(false);
+		// Responses are small writes that must go out at once
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.m_key = channel.register(m_selector, SelectionKey.OP_READ,
+				connection);
+	}
+
+	/**
+	 * Runs a task on the selector thread, which alone may change the
+	 * selection keys while it is selecting.
+	 */
+	private void runOnSelector(Runnable task) {
+		m_tasks.add(task);
+		m_selector.wakeup();
+	}
+
+	void close() throws IOException {
+		m_selector.close();
+		if (m_serverChannel != null) {
+			m_serverChannel.close();
+		}
+	}
+}
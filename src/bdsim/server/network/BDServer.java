@@ -1,16 +1,23 @@
 package bdsim.server.network;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
@@ -18,11 +25,14 @@ import bdsim.common.BDRequest;
 import bdsim.common.BDRequestHandler;
 import bdsim.common.BDResponse;
 import bdsim.common.BDResultSet;
+import bdsim.common.BDWireProtocol.Tagged;
+import bdsim.common.messages.BDCloseRequest;
 import bdsim.common.messages.BDCreateRequest;
 import bdsim.common.messages.BDCreateResponse;
 import bdsim.common.messages.BDDropRequest;
 import bdsim.common.messages.BDDropResponse;
 import bdsim.common.messages.BDErrorResponse;
+import bdsim.common.messages.BDFetchRequest;
 import bdsim.common.messages.BDInfoRequest;
 import bdsim.common.messages.BDInfoResponse;
 import bdsim.common.messages.BDLoadRequest;
@@ -39,9 +49,12 @@ import bdsim.server.exec.BDSqlParser;
 import bdsim.server.exec.BDSemanticVisitor.BDNameMappings;
 import bdsim.server.exec.BDSemanticVisitor.SemanticException;
 import bdsim.server.exec.nodes.NodeStatement;
+import bdsim.server.system.BDResultStream;
 import bdsim.server.system.BDSchema;
 import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTable;
+import bdsim.server.system.BDTransactionHandle;
 import bdsim.server.system.BDTableManager.XmlException;
 import bdsim.server.system.concurrency.BDTransaction;
 
@@ -83,29 +96,36 @@ public final class BDServer {
 			logger.debug("Received connection from address "
 					+ clientSocket.getInetAddress());
 
-			ObjectOutputStream out = null;
-			ObjectInputStream in = null;
-
+			// The connection's responses are written by its own thread, so a
+			// client that does not read them only holds up itself. The thread
+			// ends once idle, which is after the last response even if the
+			// client left before it.
+			ThreadPoolExecutor responder = new ThreadPoolExecutor(1, 1, 1,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			responder.allowCoreThreadTimeOut(true);
+			ServerRequestHandler requestHandler = new ServerRequestHandler(
+					responder, new Semaphore(MAX_PIPELINED_REQUESTS));
 			try {
-				in = new ObjectInputStream(clientSocket.getInputStream());
-				out = new ObjectOutputStream(clientSocket.getOutputStream());
+				// Responses are small writes that must go out at once
+				clientSocket.setTcpNoDelay(true);
+				BDConnectionProtocol protocol = BDConnectionProtocol.open(
+						new BufferedInputStream(clientSocket.getInputStream()),
+						new BufferedOutputStream(clientSocket.getOutputStream()));
 
 				boolean listening = true;
 				
 				// FIXME wpijewsk It seems like clients should be responsible
 				// for closing their own connections.
 				while (listening) {
-					BDRequest request = (BDRequest) in.readObject();
-					BDResponse response = request.handle(m_requestHandler);
-					out.writeObject(response);
+					Tagged<BDRequest> request = protocol.readRequest();
+					requestHandler.answer(request.getId(), request.getMessage(),
+							protocol);
 					m_currid++;
 
 					logger.debug("Sent response to client at "
 							+ clientSocket.getInetAddress());
 				}
 
-				in.close();
-				out.close();
 				clientSocket.close();
 			} catch (EOFException e) {
 				logger.debug("Client " + clientSocket.getInetAddress()
@@ -118,9 +138,8 @@ public final class BDServer {
 				e.printStackTrace();
 				System.exit(-1);
 			} finally {
+				requestHandler.close();
 				try {
-					out.close();
-					in.close();
 					clientSocket.close();
 				} catch (Exception e) {
 				}
@@ -130,7 +149,39 @@ public final class BDServer {
 		}
 	}
 
-	private class ServerRequestHandler implements BDRequestHandler {
+	/**
+	 * Handles the requests of one connection, which may have cursors open on
+	 * the results of its queries.
+	 */
+	final class ServerRequestHandler implements BDRequestHandler {
+
+		/** Streams of unfinished results, by cursor ID */
+		private final Map<Integer, BDResultStream> m_cursors =
+			new ConcurrentHashMap<Integer, BDResultStream>();
+
+		private int m_lastCursorId;
+
+		/** Writes the responses of pipelined requests as they finish */
+		private final ExecutorService m_responder;
+
+		/**
+		 * Permits for the pipelined requests not yet answered, or null if
+		 * the connection may have any number of them
+		 */
+		private final Semaphore m_unanswered;
+
+		/**
+		 * Creates the handler of a selector server connection, whose writes
+		 * only queue its responses for the selector thread.
+		 */
+		ServerRequestHandler() {
+			this(m_responders, null);
+		}
+
+		ServerRequestHandler(ExecutorService responder, Semaphore unanswered) {
+			m_responder = responder;
+			m_unanswered = unanswered;
+		}
 
 		public BDResponse handle(BDInfoRequest request) {
 			Map<String, BDSchema> m_schemas = new HashMap<String, BDSchema>();
@@ -158,29 +209,17 @@ public final class BDServer {
 
 			BDResponse response = null;
 			BDResultSet resultSet = null;
-			int TID = -1;
+			BDTransactionHandle handle = null;
 
+			BDResultStream stream = null;
 			try {
-				BDTransaction trans = new BDTransaction();
-
-				// Parse SQL
-				BDSqlParser parser = new BDSqlParser();
-				List<NodeStatement> stmtList = parser.parse(request.getSql());
-				BDSemanticVisitor smtcVisitor = new BDSemanticVisitor();
-				for (NodeStatement stmt : stmtList) {
-					stmt.visit(smtcVisitor);
-
-					if (smtcVisitor.resolveNames()) {
-						// Process parsed statement
-						BDNameMappings mappings = smtcVisitor.getMappings();
-						BDPlanner planner = new BDPlanner(stmt);
-						BDPlan plan = planner.makePlan(mappings);
-						trans.addPlan(plan);
-					}
-				}
+				BDTransaction trans = plan(request);
 
-				TID = BDSystem.scheduler.addTransaction(trans);
-				trans.setId(TID);
+				if (request.getFetchSize() > 0) {
+					stream = new BDResultStream(request.getFetchSize(), m_bufferedPages);
+					trans.setResultStream(stream);
+				}
+				handle = BDSystem.scheduler.submit(trans);
 			} catch (BDParseException e) {
 				logger.error("BDParseException: " + e.getLocalizedMessage());
 				response = new BDErrorResponse(e.getLocalizedMessage());
@@ -191,17 +230,22 @@ public final class BDServer {
 				return response;
 			}
 
-			if (TID != -1) {
-				// Blocking call to wait for response
+			if (handle != null && stream != null) {
+				return openCursor(handle, stream);
+			} else if (handle != null) {
+				// The worker running the transaction wakes us up when it is
+				// done
 				try {
-					logger.debug("Handing task " + TID + " off to scheduler.");
-					while (!BDSystem.scheduler.isFinished(TID)) {
-						Thread.sleep(500);
-						// FIXME Change this so the process is woken up when
-						// ready instead of continually polling
-					}
+					logger.debug("Handing task " + handle.getTransactionId()
+							+ " off to scheduler.");
+					handle.await();
 					logger.debug("Task finished, getting result set.");
-					resultSet = BDSystem.scheduler.getResult(TID);
+					resultSet = BDSystem.scheduler.getResult(handle.getTransactionId());
+				} catch (ExecutionException e) {
+					logger.error("Transaction " + handle.getTransactionId() + " failed",
+							e.getCause());
+					BDSystem.scheduler.getResult(handle.getTransactionId());
+					return new BDErrorResponse(String.valueOf(e.getCause()));
 				} catch (Exception e) {
 					response = new BDErrorResponse(e.getLocalizedMessage());
 					logger.error("System failure, could not get response for query.");
@@ -216,6 +260,98 @@ public final class BDServer {
 			return response;
 		}
 
+		/**
+		 * Writes the response to a request. Requests of a pipelining client
+		 * are answered as soon as they are done: a SQL request is submitted
+		 * to the scheduler in the order it arrived, and its response is
+		 * written by another thread once its transaction finishes, so the
+		 * caller can go on reading requests. Other requests, and all those
+		 * of clients that are not pipelining, are handled before this
+		 * returns. Once the connection has as many requests unanswered as
+		 * it has permits, this waits for one of them to be answered.
+		 *
+		 * @param id
+		 *            The correlation ID of the request
+		 */
+		void answer(final int id, BDRequest request,
+				final BDConnectionProtocol protocol) throws IOException {
+			if (!protocol.isPipelined() || !(request instanceof BDSqlRequest)
+					|| ((BDSqlRequest) request).getFetchSize() > 0) {
+				protocol.writeResponse(id, request.handle(this));
+				return;
+			}
+
+			logger.debug("Received pipelined SQL request " + id);
+			final BDTransactionHandle handle;
+			try {
+				BDTransaction trans = plan((BDSqlRequest) request);
+				if (m_unanswered != null) {
+					m_unanswered.acquireUninterruptibly();
+				}
+				handle = BDSystem.scheduler.submit(trans);
+			} catch (BDParseException e) {
+				logger.error("BDParseException: " + e.getLocalizedMessage());
+				protocol.writeResponse(id, new BDErrorResponse(e.getLocalizedMessage()));
+				return;
+			} catch (SemanticException e) {
+				logger.error("SemanticException: " + e.getLocalizedMessage());
+				protocol.writeResponse(id, new BDErrorResponse(e.getLocalizedMessage()));
+				return;
+			}
+
+			handle.getCompletion().whenCompleteAsync(
+					new BiConsumer<BDSystemResultSet, Throwable>() {
+						public void accept(BDSystemResultSet result, Throwable failure) {
+							BDSystem.scheduler.getResult(handle.getTransactionId());
+							BDResponse response;
+							if (failure != null) {
+								logger.error("Transaction " + handle.getTransactionId()
+										+ " failed", failure);
+								response = new BDErrorResponse(String.valueOf(failure));
+							} else {
+								response = new BDResultResponse(result);
+							}
+							try {
+								protocol.writeResponse(id, response);
+							} catch (IOException e) {
+								logger.debug("Could not answer request " + id + ": "
+										+ e.getMessage());
+							} finally {
+								if (m_unanswered != null) {
+									m_unanswered.release();
+								}
+							}
+						}
+					}, m_responder);
+		}
+
+		/**
+		 * Parses the statements of a SQL request and plans them into a
+		 * transaction.
+		 */
+		private BDTransaction plan(BDSqlRequest request) throws BDParseException,
+				SemanticException {
+			BDTransaction trans = new BDTransaction();
+
+			// Parse SQL
+			BDSqlParser parser = new BDSqlParser();
+			List<NodeStatement> stmtList = parser.parse(request.getSql());
+			BDSemanticVisitor smtcVisitor = new BDSemanticVisitor();
+			for (NodeStatement stmt : stmtList) {
+				stmt.visit(smtcVisitor);
+
+				if (smtcVisitor.resolveNames()) {
+					// Process parsed statement
+					BDNameMappings mappings = smtcVisitor.getMappings();
+					BDPlanner planner = new BDPlanner(stmt);
+					BDPlan plan = planner.makePlan(mappings);
+					planner.optimizePlan(plan);
+					trans.addPlan(plan);
+				}
+			}
+			return trans;
+		}
+
 		public BDResponse handle(BDCreateRequest request) {
 			if (BDSystem.tableManager.getTableByName(request.getTableName()) != null) {
 				return new BDErrorResponse("Table " + request.getTableName()
@@ -254,21 +390,110 @@ public final class BDServer {
 				return new BDErrorResponse(e.getLocalizedMessage());
 			}
 		}
+
+		public BDResponse handle(BDFetchRequest request) {
+			BDResultStream stream = m_cursors.get(request.getCursorId());
+			if (stream == null) {
+				return new BDErrorResponse("No open cursor " + request.getCursorId());
+			}
+			return nextPage(request.getCursorId(), stream);
+		}
+
+		public BDResponse handle(BDCloseRequest request) {
+			BDResultStream stream = m_cursors.remove(request.getCursorId());
+			if (stream != null) {
+				stream.close();
+			}
+			return new BDResultResponse(null);
+		}
+
+		/**
+		 * Closes the cursors the client left open when its connection ends,
+		 * which lets their transactions finish.
+		 */
+		void close() {
+			for (BDResultStream stream : m_cursors.values()) {
+				stream.close();
+			}
+			m_cursors.clear();
+		}
+
+		/**
+		 * Returns the first page of a query's result, and keeps the rest for
+		 * BDFetchRequests.
+		 */
+		private BDResponse openCursor(final BDTransactionHandle handle,
+				final BDResultStream stream) {
+			// Rows that the transaction did not stream are paged out of its
+			// result once it commits
+			handle.getCompletion().whenComplete(
+					new BiConsumer<BDSystemResultSet, Throwable>() {
+						public void accept(BDSystemResultSet result, Throwable failure) {
+							BDSystem.scheduler.getResult(handle.getTransactionId());
+							if (failure != null) {
+								logger.error("Transaction " + handle.getTransactionId()
+										+ " failed", failure);
+								stream.fail(failure);
+							} else {
+								stream.finish(result);
+							}
+						}
+					});
+			int cursorId = ++m_lastCursorId;
+			m_cursors.put(cursorId, stream);
+			return nextPage(cursorId, stream);
+		}
+
+		private BDResponse nextPage(int cursorId, BDResultStream stream) {
+			try {
+				BDResultStream.Page page = stream.nextPage();
+				if (page.isLast()) {
+					m_cursors.remove(cursorId);
+					return new BDResultResponse(page.getRows());
+				}
+				return new BDResultResponse(page.getRows(), cursorId);
+			} catch (ExecutionException e) {
+				m_cursors.remove(cursorId);
+				return new BDErrorResponse(String.valueOf(e.getCause()));
+			} catch (InterruptedException e) {
+				m_cursors.remove(cursorId);
+				stream.close();
+				return new BDErrorResponse(e.getLocalizedMessage());
+			}
+		}
 	}
 	static Logger logger = Logger.getLogger(BDServer.class);
+	/**
+	 * The most pipelined requests a connection of the threads server may
+	 * have unanswered before the server stops reading its requests
+	 */
+	private static final int MAX_PIPELINED_REQUESTS = 64;
+
 	private int m_currid;
 	private final ExecutorService m_pool;
 
-	private ServerRequestHandler m_requestHandler;
+	/**
+	 * Writes the responses of pipelined requests on selector server
+	 * connections as they finish, on as many threads as handle requests
+	 */
+	private final ExecutorService m_responders;
+
+	/** How many pages a streamed query may run ahead of its client */
+	private final int m_bufferedPages;
 
 	private ServerSocket m_serversocket;
 
+	private BDSelectorServer m_selectorServer;
+
 	public BDServer() {
 		m_serversocket = null;
-		m_requestHandler = new ServerRequestHandler();
+		m_selectorServer = null;
+		m_bufferedPages = Integer.parseInt(System.getProperty(
+				"network.bufferedpages", "2"));
 		int numthreads = Integer.parseInt(System
 				.getProperty("network.numthreads"));
 		m_pool = Executors.newFixedThreadPool(numthreads);
+		m_responders = Executors.newFixedThreadPool(numthreads);
 		m_currid = 1;
 		logger.debug("Started a thread pool with " + numthreads + " threads");
 	}
@@ -279,12 +504,25 @@ public final class BDServer {
 			if (m_serversocket != null) {
 				m_serversocket.close();
 			}
+			if (m_selectorServer != null) {
+				m_selectorServer.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Serves clients until the server is shut down. With network.mode set to
+	 * "selector", all connections are multiplexed on one selector thread and
+	 * only requests take one of the network.numthreads threads; otherwise
+	 * ("threads", the default) each connected client holds a thread.
+	 */
 	public void startDbServer() {
+		if ("selector".equals(System.getProperty("network.mode"))) {
+			startSelectorServer();
+			return;
+		}
 		try {
 			m_serversocket = new ServerSocket(Integer.parseInt(System
 					.getProperty("network.port")), Integer.parseInt(System
@@ -318,7 +556,32 @@ public final class BDServer {
 			} catch (Exception e) {
 			}
 			m_pool.shutdown();
+			m_responders.shutdown();
 		}
 		// FIXME I need a better way of shutting the server down here.
 	}
+
+	private void startSelectorServer() {
+		try {
+			m_selectorServer = new BDSelectorServer(this, m_pool);
+			m_selectorServer.serve(Integer.parseInt(System
+					.getProperty("network.port")), Integer.parseInt(System
+					.getProperty("network.backlog")));
+		} catch (IOException e) {
+			e.printStackTrace();
+			m_pool.shutdownNow();
+			System.exit(-1);
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+			m_pool.shutdownNow();
+			System.exit(-1);
+		} finally {
+			try {
+				m_selectorServer.close();
+			} catch (Exception e) {
+			}
+			m_pool.shutdown();
+			m_responders.shutdown();
+		}
+	}
 }
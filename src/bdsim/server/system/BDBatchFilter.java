@@ -0,0 +1,158 @@
+package bdsim.server.system;
+
+import bdsim.server.system.index.BDIndex.RangeType;
+
+/**
+ * Compares a column of rows with a value, BATCH_SIZE rows at a time. The
+ * column of a batch is copied into an array of doubles when it holds
+ * numbers, and each comparison has its own loop over that array which
+ * writes the positions of the rows that pass into a selection vector, so
+ * the loop does no unboxing, no lookup of the column by name and no
+ * dispatch on the comparison. Columns of other types are compared with
+ * compareTo.
+ *
+ * Rows whose column is null pass no comparison, as in
+ * BDSystemResultSet.getTuplesByRange. Double.compare orders numbers the way
+ * Double.compareTo does, for -0.0 and NaN too.
+ */
+public final class BDBatchFilter {
+
+	/** The most rows filtered at once */
+	public static final int BATCH_SIZE = 1024;
+
+	private final RangeType m_range;
+
+	private final Comparable<?> m_value;
+
+	/** The value as a number, when it is one */
+	private final double m_number;
+
+	private final boolean m_numeric;
+
+	private final double[] m_column = new double[BATCH_SIZE];
+
+	private final int[] m_selected = new int[BATCH_SIZE];
+
+	/**
+	 * @param range
+	 *            How the column of the rows that pass compares with the value;
+	 *            rows pass no LIKE comparison
+	 */
+	public BDBatchFilter(RangeType range, Comparable<?> value) {
+		m_range = range;
+		m_value = value;
+		m_numeric = value instanceof Double;
+		m_number = m_numeric ? ((Double) value).doubleValue() : 0;
+	}
+
+	/**
+	 * Compares the column of a batch of rows with the value.
+	 *
+	 * @param rows
+	 *            The batch, at most BATCH_SIZE rows with the column at the
+	 *            same position
+	 * @param count
+	 *            The number of rows in the batch
+	 * @return The number of rows that pass, whose positions in the batch are
+	 *         the first elements of getSelected
+	 */
+	public int select(BDTuple[] rows, int count, int position) {
+		for (int i = 0; i < count; i++) {
+			Object value = rows[i].getObject(position);
+			if (!m_numeric || !(value instanceof Double)) {
+				return selectObjects(rows, count, position);
+			}
+			m_column[i] = ((Double) value).doubleValue();
+		}
+		return selectNumbers(count);
+	}
+
+	/**
+	 * @return The selection vector of the last batch
+	 */
+	public int[] getSelected() {
+		return m_selected;
+	}
+
+	/**
+	 * Compares a column of numbers.
+	 */
+	private int selectNumbers(int count) {
+		final double[] column = m_column;
+		final int[] selected = m_selected;
+		final double v = m_number;
+		int n = 0;
+		switch (m_range) {
+		case EQ:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) == 0 ? 1 : 0;
+			}
+			break;
+		case NEQ:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) != 0 ? 1 : 0;
+			}
+			break;
+		case LT:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) < 0 ? 1 : 0;
+			}
+			break;
+		case LTEQ:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) <= 0 ? 1 : 0;
+			}
+			break;
+		case GT:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) > 0 ? 1 : 0;
+			}
+			break;
+		case GTEQ:
+			for (int i = 0; i < count; i++) {
+				selected[n] = i;
+				n += Double.compare(column[i], v) >= 0 ? 1 : 0;
+			}
+			break;
+		default:
+			break;
+		}
+		return n;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int selectObjects(BDTuple[] rows, int count, int position) {
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			Comparable<Object> value = (Comparable<Object>) rows[i].getObject(position);
+			if (value != null && passes(value.compareTo(m_value))) {
+				m_selected[n++] = i;
+			}
+		}
+		return n;
+	}
+
+	private boolean passes(int cmp) {
+		switch (m_range) {
+		case EQ:
+			return cmp == 0;
+		case NEQ:
+			return cmp != 0;
+		case LT:
+			return cmp < 0;
+		case LTEQ:
+			return cmp <= 0;
+		case GT:
+			return cmp > 0;
+		case GTEQ:
+			return cmp >= 0;
+		default:
+			return false;
+		}
+	}
+}
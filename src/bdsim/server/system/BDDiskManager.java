@@ -1,30 +1,197 @@
 package bdsim.server.system;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import bdsim.server.system.buffer.BDPageStore;
 
 
 /**
+ * Every page read, write and sync of the system goes through the disk
+ * manager, which counts them for the transaction running on the calling
+ * thread and for the table the page belongs to. Indices that only simulate
+ * their disk accesses report them through recordReads and recordWrites.
+ *
+ * The counters can be updated by many threads at once without locking.
+ *
  * @author dclee, wpijewsk
  */
 public class BDDiskManager {
-	
-	private Map<Integer,Integer> m_transactionIOs;
+
+	/**
+	 * Disk operations of one transaction or table
+	 */
+	public static final class IOCounts {
+		private final LongAdder m_reads = new LongAdder();
+		private final LongAdder m_writes = new LongAdder();
+		private final LongAdder m_syncs = new LongAdder();
+
+		public long getReads() {
+			return m_reads.sum();
+		}
+
+		public long getWrites() {
+			return m_writes.sum();
+		}
+
+		public long getSyncs() {
+			return m_syncs.sum();
+		}
+
+		public String toString() {
+			return "reads=" + getReads() + " writes=" + getWrites()
+					+ " syncs=" + getSyncs();
+		}
+	}
+
+	private ConcurrentMap<Integer, IOCounts> m_transactionIOs;
+
+	private ConcurrentMap<String, IOCounts> m_tableIOs;
 
 	public BDDiskManager() {
-		m_transactionIOs = new HashMap<Integer,Integer>();
+		m_transactionIOs = new ConcurrentHashMap<Integer, IOCounts>();
+		m_tableIOs = new ConcurrentHashMap<String, IOCounts>();
+	}
+
+	/**
+	 * Reads a page from a store.
+	 *
+	 * @param dst Buffer with room for exactly one page
+	 */
+	public void readPage(BDPageStore store, int page, ByteBuffer dst) {
+		store.readPage(page, dst);
+		recordReads(store.getOwner(), 1);
+	}
+
+	/**
+	 * Writes a page back to a store.
+	 *
+	 * @param src Buffer holding exactly one page
+	 */
+	public void writePage(BDPageStore store, int page, ByteBuffer src) {
+		store.writePage(page, src);
+		recordWrites(store.getOwner(), 1);
+	}
+
+	/**
+	 * Makes the pages written to a store so far durable.
+	 */
+	public void sync(BDPageStore store) {
+		store.sync();
+		IOCounts transaction = transactionCounts();
+		if (transaction != null) {
+			transaction.m_syncs.increment();
+		}
+		tableCounts(store.getOwner()).m_syncs.increment();
 	}
-	
+
+	/**
+	 * Counts page reads that were simulated rather than performed.
+	 *
+	 * @param tableName The table read from, or null if it has none
+	 */
+	public void recordReads(String tableName, int pages) {
+		IOCounts transaction = transactionCounts();
+		if (transaction != null) {
+			transaction.m_reads.add(pages);
+		}
+		if (tableName != null) {
+			tableCounts(tableName).m_reads.add(pages);
+		}
+	}
+
+	/**
+	 * Counts page writes that were simulated rather than performed.
+	 *
+	 * @param tableName The table written to, or null if it has none
+	 */
+	public void recordWrites(String tableName, int pages) {
+		IOCounts transaction = transactionCounts();
+		if (transaction != null) {
+			transaction.m_writes.add(pages);
+		}
+		if (tableName != null) {
+			tableCounts(tableName).m_writes.add(pages);
+		}
+	}
+
+	/**
+	 * @return The number of pages read and written by a transaction
+	 */
 	public int getTransactionIOs(int TID) {
+		IOCounts counts = m_transactionIOs.get(TID);
+		return counts == null ? 0 : (int) (counts.getReads() + counts.getWrites());
+	}
+
+	/**
+	 * @return The disk operations of a transaction, or null if it did none
+	 */
+	public IOCounts getTransactionCounts(int TID) {
 		return m_transactionIOs.get(TID);
 	}
-	
-	public void addIOs(int TID, int ios) {
-		if(m_transactionIOs.get(TID) == null)
-			m_transactionIOs.put(TID, 0);
-		m_transactionIOs.put(TID, m_transactionIOs.get(TID) + ios);
+
+	/**
+	 * Stops counting for a finished transaction.
+	 *
+	 * @return The transaction's disk operations, or null if it did none
+	 */
+	public IOCounts endTransaction(int TID) {
+		return m_transactionIOs.remove(TID);
+	}
+
+	/**
+	 * @return The disk operations on a table since the system started
+	 */
+	public IOCounts getTableCounts(String tableName) {
+		return tableCounts(tableName);
+	}
+
+	/**
+	 * @return One line of counters per table, sorted by table
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, IOCounts> entry
+				: new TreeMap<String, IOCounts>(m_tableIOs).entrySet()) {
+			report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		return report.toString();
+	}
+
+	private IOCounts tableCounts(String tableName) {
+		IOCounts counts = m_tableIOs.get(tableName);
+		if (counts == null) {
+			IOCounts created = new IOCounts();
+			counts = m_tableIOs.putIfAbsent(tableName, created);
+			if (counts == null) {
+				counts = created;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The counters of the transaction running on the calling thread,
+	 *         or null if the thread runs no transaction
+	 */
+	private IOCounts transactionCounts() {
+		Thread thread = Thread.currentThread();
+		if (!(thread instanceof BDSystemThread)) {
+			return null;
+		}
+		int TID = ((BDSystemThread) thread).getTransactionId();
+		IOCounts counts = m_transactionIOs.get(TID);
+		if (counts == null) {
+			IOCounts created = new IOCounts();
+			counts = m_transactionIOs.putIfAbsent(TID, created);
+			if (counts == null) {
+				counts = created;
+			}
+		}
+		return counts;
 	}
-	
-	// TODO Something with concurrency controller
-	
 }
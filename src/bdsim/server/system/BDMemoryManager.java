@@ -1,16 +1,28 @@
 package bdsim.server.system;
 
+import org.apache.log4j.Logger;
+
+import bdsim.server.system.buffer.BDBufferPool;
+import bdsim.server.system.buffer.BDReplacementPolicy;
+
 /**
  * This class manages the simulated memory system of the database
  * Memory is allocated/freed by external classes  by the various request/release calls
  * 
+ * Part of the memory can be set aside as a buffer pool, through which the
+ * paged indices read and write their pages.
+ * 
  * @author dclee
  */
 
 public class BDMemoryManager {
 
+	static Logger logger = Logger.getLogger(BDMemoryManager.class);
+
 	private int m_pageSize, m_availableBlocks;
 	
+	private BDBufferPool m_bufferPool;
+	
 	/**
 	 * Creates a new memory manager for this system.
 	 * Intended to be statically initialized in BDSystem.
@@ -23,12 +35,57 @@ public class BDMemoryManager {
 		m_availableBlocks = numPages;
 	}
 	
+	/**
+	 * Creates a memory manager that sets aside some of its blocks as frames
+	 * of a buffer pool. The pool's dirty pages are flushed when the system
+	 * shuts down, and the pool's and the disk's counters are logged.
+	 * 
+	 * @param pageSize the intended size of a block in bytes
+	 * @param numPages the number of blocks that can be held by the system
+	 * @param numFrames the number of those blocks given to the buffer pool
+	 * @param policy the buffer pool's replacement policy
+	 * @param disk the disk manager the buffer pool reads and writes through
+	 */
+	public BDMemoryManager(int pageSize, int numPages, int numFrames,
+			BDReplacementPolicy policy, final BDDiskManager disk) {
+		this(pageSize, numPages - numFrames);
+		m_bufferPool = new BDBufferPool(numFrames, pageSize, policy, disk);
+		Runtime.getRuntime().addShutdownHook(new Thread("bufferpool") {
+			public void run() {
+				m_bufferPool.flushAll();
+				logger.info("Buffer pool statistics:\n" + m_bufferPool.report());
+				logger.info("Disk operations:\n" + disk.report());
+			}
+		});
+	}
+	
+	/**
+	 * @return the buffer pool, or null if no memory was set aside for one
+	 */
+	public BDBufferPool getBufferPool() {
+		return m_bufferPool;
+	}
+	
+	/**
+	 * @return the size of a block in bytes
+	 */
+	public int getPageSize() {
+		return m_pageSize;
+	}
+	
+	/**
+	 * @return the number of bytes that can still be allocated
+	 */
+	public synchronized long getAvailableMemory() {
+		return (long) m_pageSize * m_availableBlocks;
+	}
+	
 	/**
 	 * Requests memory in bytes. Useful if only part of a tuple must be allocated
 	 * @param bytes the number of bytes to be allocated
 	 * @return true if able to allocate the given amount, false if not
 	 */
-	public boolean requestMemory(int bytes) {
+	public synchronized boolean requestMemory(int bytes) {
 		if(bytes <= m_pageSize * m_availableBlocks) {
 			m_availableBlocks -= (bytes / m_pageSize);
 			return true;
@@ -42,7 +99,7 @@ public class BDMemoryManager {
 	 * @param numOfTs number of tuples of this schema to allocated memory for
 	 * @return
 	 */
-	public boolean requestMemory(BDTuple t, int numOfTs) {
+	public synchronized boolean requestMemory(BDTuple t, int numOfTs) {
 		int bytes = t.getSchema().getMemorySize() * numOfTs;
 		
 		if(bytes <= m_pageSize * m_availableBlocks) {
@@ -52,12 +109,20 @@ public class BDMemoryManager {
 		else return false;
 	}
 	
+	/**
+	 * Releases memory in bytes that was allocated with requestMemory(int).
+	 * @param bytes the number of bytes that were allocated
+	 */
+	public synchronized void releaseMemory(int bytes) {
+		m_availableBlocks += (bytes / m_pageSize);
+	}
+	
 	/**
 	 * Releases memory for a single tuple. Assumes this tuple stands on its own and is taking up a block;
 	 * This method is more for support for smaller operations, release as a BDResultSet whenever possible.
 	 * @param t
 	 */
-	public void releaseMemory(BDTuple t) {
+	public synchronized void releaseMemory(BDTuple t) {
 		m_availableBlocks++;
 	}	
 	
@@ -65,12 +130,18 @@ public class BDMemoryManager {
 	 * Releases memory for an entire result set. Preferred to releasing single tuples
 	 * @param rs the BDSystemResultSet to be released
 	 */
-	public void releaseMemory(BDSystemResultSet rs) {
+	public synchronized void releaseMemory(BDSystemResultSet rs) {
 		m_availableBlocks += (rs.getMemorySize() / m_pageSize);
 	}
 
 
-	public void requestMemory(BDSystemResultSet result) {
-		m_availableBlocks -= (result.getMemorySize() / m_pageSize);
+	/**
+	 * Requests memory for an entire result set, to be given back with
+	 * releaseMemory(BDSystemResultSet) while the set still has the same rows.
+	 * @param result the BDSystemResultSet to be allocated for
+	 * @return true if able to allocate the set, false if not
+	 */
+	public synchronized boolean requestMemory(BDSystemResultSet result) {
+		return requestMemory(result.getMemorySize());
 	}
 }
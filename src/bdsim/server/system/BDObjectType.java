@@ -5,7 +5,18 @@ package bdsim.server.system;
  * @revision $Id: BDObjectType.java 192 2006-05-14 21:57:53 +0000 (Sun, 14 May 2006) wpijewsk $
  */
 public enum BDObjectType {
-	INTEGER, FLOAT, STRING, DOUBLE;
+	INTEGER(4), FLOAT(4), STRING(32), DOUBLE(8);
+
+	/** Bytes a value of this type takes up; strings use an average size */
+	private final int m_memorySize;
+
+	private BDObjectType(int memorySize) {
+		m_memorySize = memorySize;
+	}
+
+	public int getMemorySize() {
+		return m_memorySize;
+	}
 
 	public static BDObjectType convertTo(String string) {
 		if (string.equals("INTEGER")) {
@@ -0,0 +1,219 @@
+package bdsim.server.system;
+
+import bdsim.server.system.index.BDIndex.RangeType;
+
+/**
+ * A test of a row that is put together once, before any row is read, from
+ * comparisons of columns with values joined by AND and OR. Each comparison
+ * is a class of its own for the type of its value and its operator, so
+ * testing a row looks up no column by name and chooses no order or
+ * operator. AND and OR test their second side only when the first does not
+ * decide the row. Values compare as they do in BDBatchFilter.
+ */
+public abstract class BDPredicate {
+
+	/**
+	 * @return true if the row passes
+	 */
+	public abstract boolean evaluate(BDTuple t);
+
+	/**
+	 * @return A predicate passing the rows that pass both predicates
+	 */
+	public static BDPredicate and(final BDPredicate left,
+			final BDPredicate right) {
+		return new BDPredicate() {
+			public boolean evaluate(BDTuple t) {
+				return left.evaluate(t) && right.evaluate(t);
+			}
+		};
+	}
+
+	/**
+	 * @return A predicate passing the rows that pass either predicate
+	 */
+	public static BDPredicate or(final BDPredicate left,
+			final BDPredicate right) {
+		return new BDPredicate() {
+			public boolean evaluate(BDTuple t) {
+				return left.evaluate(t) || right.evaluate(t);
+			}
+		};
+	}
+
+	/**
+	 * Makes a comparison of a column with a value. Numbers are compared as
+	 * doubles and strings in strict string order when the column holds
+	 * values of the same type; other values are compared with compareTo.
+	 *
+	 * @param position
+	 *            The position of the column in the rows
+	 * @param type
+	 *            The type of the column
+	 * @param range
+	 *            How the column of the rows that pass compares with the value
+	 * @return The comparison, or null for LIKE, which has no comparison
+	 */
+	public static BDPredicate compare(int position, BDObjectType type,
+			RangeType range, Comparable<?> value) {
+		if (range == RangeType.LIKE) {
+			return null;
+		}
+		if (value instanceof Double && type != BDObjectType.STRING) {
+			return compareNumber(position, range, ((Double) value).doubleValue());
+		}
+		if (value instanceof String && type == BDObjectType.STRING) {
+			return compareString(position, range, (String) value);
+		}
+		return compareObject(position, range, value);
+	}
+
+	private static BDPredicate compareNumber(final int position,
+			RangeType range, final double v) {
+		switch (range) {
+		case EQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) == 0;
+				}
+			};
+		case NEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) != 0;
+				}
+			};
+		case LT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) < 0;
+				}
+			};
+		case LTEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) <= 0;
+				}
+			};
+		case GT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) > 0;
+				}
+			};
+		default:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Double && Double.compare((Double) o, v) >= 0;
+				}
+			};
+		}
+	}
+
+	private static BDPredicate compareString(final int position,
+			RangeType range, final String v) {
+		switch (range) {
+		case EQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) == 0;
+				}
+			};
+		case NEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) != 0;
+				}
+			};
+		case LT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) < 0;
+				}
+			};
+		case LTEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) <= 0;
+				}
+			};
+		case GT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) > 0;
+				}
+			};
+		default:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof String && ((String) o).compareTo(v) >= 0;
+				}
+			};
+		}
+	}
+
+	private static BDPredicate compareObject(final int position,
+			RangeType range, final Object v) {
+		switch (range) {
+		case EQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) == 0;
+				}
+			};
+		case NEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) != 0;
+				}
+			};
+		case LT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) < 0;
+				}
+			};
+		case LTEQ:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) <= 0;
+				}
+			};
+		case GT:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) > 0;
+				}
+			};
+		default:
+			return new BDPredicate() {
+				public boolean evaluate(BDTuple t) {
+					Object o = t.getObject(position);
+					return o instanceof Comparable && compareObjects(o, v) >= 0;
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compareObjects(Object o, Object v) {
+		return ((Comparable<Object>) o).compareTo(v);
+	}
+}
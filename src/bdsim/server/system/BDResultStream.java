@@ -0,0 +1,173 @@
+package bdsim.server.system;
+
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The rows of a query's result on their way from the transaction that makes
+ * them to the client, which takes them a page at a time.
+ *
+ * A streamed scan adds its rows while it runs and has to wait once it is
+ * bufferedPages pages ahead of the client, so the server never holds more of
+ * its result than that. Queries that make their whole result at once hand
+ * it over with finish when they are done; those rows are then paged out of
+ * memory.
+ */
+public final class BDResultStream {
+
+	/**
+	 * A page of rows for the client.
+	 */
+	public static final class Page {
+
+		private final BDSystemResultSet m_rows;
+
+		private final boolean m_last;
+
+		Page(BDSystemResultSet rows, boolean last) {
+			m_rows = rows;
+			m_last = last;
+		}
+
+		public BDSystemResultSet getRows() {
+			return m_rows;
+		}
+
+		/**
+		 * @return true if there are no rows after this page
+		 */
+		public boolean isLast() {
+			return m_last;
+		}
+	}
+
+	private final int m_pageSize;
+
+	private final int m_capacity;
+
+	private final LinkedList<BDTuple> m_rows;
+
+	/** Whether the client has been given a page */
+	private boolean m_started;
+
+	private boolean m_finished;
+
+	private boolean m_closed;
+
+	private Throwable m_failure;
+
+	/**
+	 * @param pageSize
+	 *            The number of rows the client gets at a time
+	 * @param bufferedPages
+	 *            How many pages a streamed scan may run ahead of the client
+	 */
+	public BDResultStream(int pageSize, int bufferedPages) {
+		m_pageSize = pageSize;
+		m_capacity = pageSize * Math.max(1, bufferedPages);
+		m_rows = new LinkedList<BDTuple>();
+	}
+
+	/**
+	 * Adds a row of a streamed scan, waiting while the client is too far
+	 * behind.
+	 *
+	 * @return false if the client has closed the stream and wants no more
+	 *         rows
+	 */
+	public synchronized boolean add(BDTuple row) throws InterruptedException {
+		while (m_rows.size() >= m_capacity && !m_closed) {
+			wait();
+		}
+		if (m_closed) {
+			return false;
+		}
+		m_rows.add(row);
+		if (m_rows.size() >= m_pageSize) {
+			notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * @return true once the client has closed the stream
+	 */
+	public synchronized boolean isClosed() {
+		return m_closed;
+	}
+
+	/**
+	 * Drops the rows of a transaction that was rolled back, so that it can
+	 * add them again when it is retried.
+	 *
+	 * @return false if the client has already seen some of the rows, in
+	 *         which case the transaction cannot be retried without the
+	 *         client noticing
+	 */
+	public synchronized boolean restart() {
+		if (m_started) {
+			return false;
+		}
+		m_rows.clear();
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Ends the stream once the transaction has committed.
+	 *
+	 * @param rest
+	 *            Rows of the result that were not added to the stream, or
+	 *            null
+	 */
+	public synchronized void finish(BDSystemResultSet rest) {
+		if (rest != null && !m_closed) {
+			m_rows.addAll(rest.getTupleData());
+		}
+		m_finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Ends the stream because its transaction failed.
+	 */
+	public synchronized void fail(Throwable failure) {
+		m_failure = failure;
+		m_rows.clear();
+		notifyAll();
+	}
+
+	/**
+	 * Waits for the next page of rows: a full page, or the last rows once
+	 * the stream is finished.
+	 *
+	 * @throws ExecutionException
+	 *             If the transaction failed; the cause is the failure
+	 */
+	public synchronized Page nextPage() throws InterruptedException,
+			ExecutionException {
+		while (m_rows.size() < m_pageSize && !m_finished && m_failure == null) {
+			wait();
+		}
+		if (m_failure != null) {
+			throw new ExecutionException(m_failure);
+		}
+		m_started = true;
+		BDSystemResultSet page = new BDSystemResultSet();
+		for (int i = 0; i < m_pageSize && !m_rows.isEmpty(); i++) {
+			page.addRowWithoutCopy(m_rows.removeFirst());
+		}
+		notifyAll();
+		return new Page(page, m_finished && m_rows.isEmpty());
+	}
+
+	/**
+	 * Called when the client wants no more rows. A scan that is still adding
+	 * rows stops at its next one.
+	 */
+	public synchronized void close() {
+		m_closed = true;
+		m_rows.clear();
+		notifyAll();
+	}
+}
@@ -1,8 +1,10 @@
 package bdsim.server.system;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bdsim.server.system.concurrency.BDTransaction;
 import org.apache.log4j.Logger;
@@ -11,127 +13,186 @@ import org.apache.log4j.Logger;
  * This class schedules the execution of all operations for the system internals.
  * All operations are created by passing this class a plan, and these plans
  * are subsequently given BDSystemThreads to run in.
- * 
+ *
+ * Submitted transactions wait in a queue for one of a fixed pool of worker
+ * threads, which are started by run and live as long as the scheduler. A
+ * worker runs one transaction at a time and takes the next as soon as it is
+ * done. Each transaction gets a BDTransactionHandle that is completed when
+ * it finishes, and is looked up by its ID in a map.
+ *
  * @author dclee, wpijewsk, acath
  * @revision $Id: BDScheduler.java 292 2007-01-21 01:43:46 +0000 (Sun, 21 Jan 2007) wpijewsk $
  */
 public class BDScheduler implements Runnable {
-   
+
    /**
     * This hook allows us to insert a BDSystemThread into the scheduler
     * without having to wrap it in a transaction with a query plan
     * @param thread
     */
    public void addThread(BDSystemThread thread) {
-      this.m_threads.add(thread);
+      m_running.put(thread.getTransactionId(), thread);
    }
-   
+
 
 	static Logger logger = Logger.getLogger(BDScheduler.class);
-	private Vector<BDSystemThread> m_threads;
-	private Vector<BDTransaction> m_transactions;
+
+	/** Transactions waiting for a worker */
+	private BlockingQueue<BDTransactionHandle> m_queue;
+
+	/** Transactions whose result has not been collected, by ID */
+	private ConcurrentMap<Integer, BDTransactionHandle> m_handles;
+
+	/** Threads running a transaction, by transaction ID */
+	private ConcurrentMap<Integer, BDSystemThread> m_running;
+
 	private int m_maxThreads;
-	private int m_transactionCounter;
-	private Map<Integer, Long> m_startTimes;
-	
+	private AtomicInteger m_transactionCounter;
+
+	/**
+	 * A pooled system thread that runs the queued transactions one after
+	 * another.
+	 */
+	private final class Worker extends BDSystemThread {
+
+		Worker(int number) {
+			super(0);
+			setName("worker-" + number);
+		}
+
+		public void run() {
+			while (true) {
+				BDTransactionHandle handle;
+				try {
+					handle = m_queue.take();
+				} catch (InterruptedException e) {
+					// A rollback that came too late; nothing to roll back
+					continue;
+				}
+				int TID = handle.getTransactionId();
+				m_running.put(TID, this);
+				try {
+					runTransaction(handle.getTransaction());
+					handle.complete(getResult());
+				} catch (Throwable t) {
+					logger.error("Transaction " + TID + " failed", t);
+					handle.fail(t);
+				} finally {
+					// Once the transaction is gone from m_running, rollback
+					// cannot interrupt this thread on its behalf
+					synchronized (this) {
+						m_running.remove(TID);
+						Thread.interrupted();
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Initializes the schedule with a maximum number of threads that be be run
 	 * at a given time.
-	 * 
+	 *
 	 * @param maxThreads
 	 *            The maximum number of threads.
 	 */
 	public BDScheduler(int maxThreads) {
 		m_maxThreads = maxThreads;
-		m_threads = new Vector<BDSystemThread>();
-		m_transactions = new Vector<BDTransaction>();
-		m_transactionCounter = 0;
-		m_startTimes = new HashMap<Integer,Long>();
+		m_queue = new LinkedBlockingQueue<BDTransactionHandle>();
+		m_handles = new ConcurrentHashMap<Integer, BDTransactionHandle>();
+		m_running = new ConcurrentHashMap<Integer, BDSystemThread>();
+		m_transactionCounter = new AtomicInteger();
 	}
-	
+
+	/**
+	 * Queues a transaction to be executed.
+	 *
+	 * @param trans
+	 *            The transaction to be added
+	 * @return A handle that is completed when the transaction finishes
+	 */
+	public BDTransactionHandle submit(BDTransaction trans) {
+		trans.setId(m_transactionCounter.incrementAndGet());
+		BDTransactionHandle handle = new BDTransactionHandle(trans);
+		m_handles.put(trans.getId(), handle);
+		m_queue.add(handle);
+		return handle;
+	}
+
 	/**
 	 * Adds a plan to the plan queue to be executed.
-	 * 
+	 *
 	 * @param trans
 	 *            the plan to be added
 	 * @return The transaction ID of the plan
 	 */
-	public synchronized int addTransaction(BDTransaction trans) {
-		m_transactions.add(trans);
-		m_transactionCounter += 1;
-		trans.setId(m_transactionCounter);
-		m_startTimes.put(m_transactionCounter, System.currentTimeMillis());
-		return m_transactionCounter;
+	public int addTransaction(BDTransaction trans) {
+		return submit(trans).getTransactionId();
 	}
-	
+
 	/**
 	 * Gets the result for a given transaction. Should only be called if the
 	 * transaction isFinished
-	 * 
+	 *
 	 * @param TID
 	 *            The transaction ID to get the result for
-	 * @return the resultant thread of the transaction
+	 * @return the result of the transaction, or null if it has none
 	 */
 	public BDSystemResultSet getResult(int TID) {
-		BDSystemResultSet r = null;
-		BDSystemThread removeThis = null;
-		synchronized (m_threads) {
-			for (BDSystemThread t : m_threads) {
-				if (t.getTransactionId() == TID) {
-					r = t.getResult();
-					removeThis = t;
-				}
-			}
-			m_threads.removeElement(removeThis);
+		BDTransactionHandle handle = m_handles.remove(TID);
+		if (handle == null || !handle.isDone()) {
+			return null;
+		}
+		try {
+			return handle.await();
+		} catch (Exception e) {
+			return null;
 		}
-		return r;
 	}
-	
+
 	/**
 	 * Gets the starting time of a transacation.
-	 * 
+	 *
 	 * @param tid  A transaction id
 	 * @return  The starting time of that transaction
 	 */
 	public long getStartTime(int tid) {
-		if (m_startTimes.get(tid) != null)
-			return m_startTimes.get(tid);
+		BDTransactionHandle handle = m_handles.get(tid);
+		if (handle != null)
+			return handle.getStartTime();
 		return 0;
 	}
 
 	/**
 	 * Called by the frontend of the server in order to check if a given
 	 * transaction thread has completed.
-	 * 
+	 *
 	 * @param TID
 	 *            the integer ID of the transaction to be checked
 	 * @return true if the transaction's thread has completed, false if not
 	 */
 	public boolean isFinished(int TID) {
-		synchronized (m_threads) {
-			for (BDSystemThread t : m_threads) {
-				if (t.getTransactionId() == TID) {
-					if (t.getThreadStatus() == BDThreadStatus.COMPLETE)
-						return true;
-				}
-			}
-		}
-		return false;
+		BDTransactionHandle handle = m_handles.get(TID);
+		return handle != null && handle.isDone();
 	}
 
 	/**
 	 * This is extremely dangerous. You should only call it on a deadlocked
 	 * thread. It's already called once from the deadlock detector - you (the
 	 * student) never need to call it again.
-	 * 
+	 *
 	 * @param tid
 	 *            Transaction ID to rollback
 	 */
 	public void rollback(int tid) {
-		for (BDSystemThread thread : m_threads) {
-		   System.err.println("THREAD TID: " + thread.getTransactionId());
-			if (thread.getTransactionId() == tid) {
-			   System.err.println("ROLLING BACK: " + tid);
+		BDSystemThread thread = m_running.get(tid);
+		if (thread == null) {
+			return;
+		}
+		synchronized (thread) {
+			// The thread may have finished the transaction meanwhile
+			if (m_running.get(tid) == thread && thread.getTransactionId() == tid) {
+				System.err.println("ROLLING BACK: " + tid);
 				thread.setThreadStatus(BDThreadStatus.ROLLING_BACK);
 				thread.interrupt();
 			}
@@ -139,28 +200,25 @@ public class BDScheduler implements Runnable {
 	}
 
 	/**
-	 * The main loop of the scheduler. This algorithm is really basic - if any
-	 * BDSystem thread wants to start, the scheduler will start that thread.
+	 * Starts the worker threads and waits for them. The scheduler runs
+	 * scheduler.numthreads transactions at a time; the others wait in the
+	 * queue.
 	 */
 	public void run() {
 		BDSystem.concurrencyController.start();
 
-		while (true) {
-			if (!m_transactions.isEmpty()) {
-				if (m_threads.size() < m_maxThreads) {
-					BDSystemThread t = new BDSystemThread(m_transactions
-							.remove(0));
-					m_threads.add(t);
-					t.start();
-				}
-			}		
-			
-			try {
-				Thread.sleep(5);
-			} catch (InterruptedException e) {
-				logger.error(e.getMessage());
+		Worker[] workers = new Worker[m_maxThreads];
+		for (int i = 0; i < m_maxThreads; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+		try {
+			for (Worker worker : workers) {
+				worker.join();
 			}
+		} catch (InterruptedException e) {
+			logger.error(e.getMessage());
 		}
 	}
-	
-}
\ No newline at end of file
+
+}
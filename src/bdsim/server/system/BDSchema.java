@@ -72,11 +72,16 @@ public class BDSchema implements Serializable {
 	 * Calculates the memory size for this schema. Note that blob support is not
 	 * implemented, so the schema must be a definable size.
 	 * 
-	 * @return
+	 * @return the number of bytes a tuple of this schema takes up
 	 */
 	public int getMemorySize() {
-		// TODO calculate actual memory sizes
-		return 0;
+		int size = 0;
+		for (BDObjectType type : m_types) {
+			if (type != null) {
+				size += type.getMemorySize();
+			}
+		}
+		return size;
 	}
 	
 	/**
@@ -0,0 +1,165 @@
+package bdsim.server.system;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import bdsim.common.BDWireProtocol;
+
+/**
+ * A temporary file of rows that an operator writes out because they do not
+ * fit in its share of memory, and reads back later. The rows are written
+ * one after the other, the values of each encoded as on the wire; their
+ * schema is not written, so they are read back with the schema they were
+ * written with.
+ *
+ * Reading and writing the file are counted as disk operations of the
+ * transaction, one per page of the file. Nothing removes the file but
+ * delete, which its owner must call when it is done with it, also when it
+ * fails.
+ */
+public final class BDSpillFile {
+
+	private final File m_file;
+
+	private DataOutputStream m_out;
+
+	private int m_numTuples;
+
+	/** The last reader opened, which delete closes if it is still open */
+	private Reader m_reader;
+
+	/**
+	 * Rows of a spill file, read in the order they were written.
+	 */
+	public final class Reader {
+
+		private final BDSchema m_schema;
+
+		private DataInputStream m_in;
+
+		private int m_left;
+
+		Reader(BDSchema schema) throws IOException {
+			m_schema = schema;
+			m_left = m_numTuples;
+			m_in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(m_file), 1 << 16));
+			recordPages(false);
+		}
+
+		/**
+		 * @return The next row, or null after the last one
+		 */
+		public BDTuple next() throws IOException {
+			if (m_left == 0) {
+				close();
+				return null;
+			}
+			BDTuple tuple = new BDTuple(m_schema);
+			try {
+				for (int i = 0; i < m_schema.size(); i++) {
+					tuple.setObject(i, BDWireProtocol.readValue(m_in));
+				}
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Could not read a row of " + m_file, e);
+			} catch (EOFException e) {
+				throw new IOException(m_file + " ends before its last row", e);
+			}
+			m_left--;
+			return tuple;
+		}
+
+		public void close() throws IOException {
+			if (m_in != null) {
+				m_in.close();
+				m_in = null;
+			}
+		}
+	}
+
+	/**
+	 * Creates an empty spill file in the system's temporary directory.
+	 *
+	 * @param prefix
+	 *            The start of the file's name
+	 */
+	public BDSpillFile(String prefix) throws IOException {
+		m_file = File.createTempFile(prefix + ".", ".spill");
+		m_out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(m_file), 1 << 16));
+	}
+
+	public void write(BDTuple tuple) throws IOException {
+		for (int i = 0; i < tuple.getNumCols(); i++) {
+			BDWireProtocol.writeValue(m_out, tuple.getObject(i));
+		}
+		m_numTuples++;
+	}
+
+	/**
+	 * @return The number of rows written
+	 */
+	public int getNumTuples() {
+		return m_numTuples;
+	}
+
+	/**
+	 * Finishes writing, if that is not done yet, and starts reading the rows
+	 * from the beginning.
+	 *
+	 * @param schema
+	 *            The schema the rows were written with
+	 */
+	public Reader read(BDSchema schema) throws IOException {
+		if (m_out != null) {
+			m_out.close();
+			m_out = null;
+			recordPages(true);
+		}
+		m_reader = new Reader(schema);
+		return m_reader;
+	}
+
+	/**
+	 * Removes the file. Rows can no longer be read from it.
+	 */
+	public void delete() {
+		if (m_out != null) {
+			try {
+				m_out.close();
+			} catch (IOException e) {
+				// It is going away anyway
+			}
+			m_out = null;
+		}
+		if (m_reader != null) {
+			try {
+				m_reader.close();
+			} catch (IOException e) {
+				// It is going away anyway
+			}
+			m_reader = null;
+		}
+		m_file.delete();
+	}
+
+	private void recordPages(boolean writes) {
+		if (BDSystem.diskManager == null || BDSystem.memoryManager == null) {
+			return;
+		}
+		int pageSize = BDSystem.memoryManager.getPageSize();
+		int pages = (int) ((m_file.length() + pageSize - 1) / pageSize);
+		if (writes) {
+			BDSystem.diskManager.recordWrites(null, pages);
+		} else {
+			BDSystem.diskManager.recordReads(null, pages);
+		}
+	}
+}
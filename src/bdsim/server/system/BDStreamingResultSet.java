@@ -0,0 +1,76 @@
+package bdsim.server.system;
+
+import java.util.List;
+
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * A result set that keeps none of its rows: each row added is checked and
+ * copied like in a BDSystemResultSet, optionally projected onto some of its
+ * columns, and passed on to a BDResultStream for the client.
+ */
+public final class BDStreamingResultSet extends BDSystemResultSet {
+
+	private static final long serialVersionUID = -2937140461402312155L;
+
+	private final transient BDResultStream m_stream;
+
+	/** The columns to keep, or null for all of them */
+	private final List<String> m_columns;
+
+	/** The schema of the projected rows, made from the first row */
+	private BDSchema m_projected;
+
+	/**
+	 * @param stream
+	 *            Where the rows go
+	 * @param columns
+	 *            The columns to keep, or null for all of them
+	 */
+	public BDStreamingResultSet(BDResultStream stream, List<String> columns) {
+		m_stream = stream;
+		m_columns = columns;
+	}
+
+	public void addRow(BDTuple tuple) throws RollbackException {
+		BDTuple row;
+		synchronized (tuple) {
+			// Check row's read timestamp
+			BDSystem.concurrencyController.readDataItem(tuple);
+			row = m_columns == null ? new BDTuple(tuple) : project(tuple);
+		}
+		try {
+			m_stream.add(row);
+		} catch (InterruptedException e) {
+			// The transaction is being rolled back while the client is behind
+			throw new RollbackException();
+		}
+	}
+
+	public boolean isClosed() {
+		return m_stream.isClosed();
+	}
+
+	/**
+	 * Copies the kept columns of a tuple, the way BDProjectHandler does.
+	 */
+	private BDTuple project(BDTuple tuple) {
+		if (m_projected == null) {
+			m_projected = new BDSchema(tuple.getSchema());
+			for (String col : tuple.getSchema().getNames()) {
+				if (!m_columns.contains(col)) {
+					m_projected.projectOut(col);
+				}
+			}
+		}
+		BDTuple row = new BDTuple(m_projected);
+		int copyCounter = 0;
+		for (int i = 0; i < tuple.getNumCols() && copyCounter < m_projected.size(); i++) {
+			if (tuple.getName(i).equals(m_projected.getName(copyCounter))) {
+				row.setObject(copyCounter, tuple.getObject(i));
+				copyCounter++;
+			}
+		}
+		return row;
+	}
+}
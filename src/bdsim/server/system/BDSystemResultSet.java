@@ -63,7 +63,16 @@ public class BDSystemResultSet implements BDResultSet, Serializable {
 		return m_rows;
 	}
 	
+	/**
+	 * @return true if rows added from now on are not wanted, so that a scan
+	 *         filling this result set can stop
+	 */
+	public boolean isClosed() {
+		return false;
+	}
+
 	public int getMemorySize() {
+		if (m_rows.isEmpty()) return 0;
 		return m_rows.get(0).getSchema().getMemorySize() * m_rows.size(); 
 	}
 	
@@ -80,53 +89,47 @@ public class BDSystemResultSet implements BDResultSet, Serializable {
 		return m_rows;
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Copies the rows whose field compares with a value, comparing them a
+	 * batch at a time with a BDBatchFilter. Rows whose field is null are
+	 * left out.
+	 */
 	public BDSystemResultSet getTuplesByRange(RangeType rtype, String field, Comparable value) throws RollbackException {
 		BDSystemResultSet result = new BDSystemResultSet();
-		for (BDTuple t : this.getTupleData()) {
-			switch (rtype) {
-			case EQ:
-				if (((Comparable) t.getObject(field)).compareTo(value) == 0)
-					result.addRow(t);
-				break;
-			case NEQ:
-				if (((Comparable) t.getObject(field)).compareTo(value) != 0)
-					result.addRow(t);
-				break;
-			case LT:
-				if (((Comparable) t.getObject(field)).compareTo(value) < 0)
-					result.addRow(t);
-				break;
-			case LTEQ:
-				if (((Comparable) t.getObject(field)).compareTo(value) <= 0)
-					result.addRow(t);
-				break;
-			case GT:
-				if (((Comparable) t.getObject(field)).compareTo(value) > 0)
-					result.addRow(t);
-				break;
-			case GTEQ:
-				if (((Comparable) t.getObject(field)).compareTo(value) >= 0)
-					result.addRow(t);
-				break;
+		if (m_rows.isEmpty()) {
+			return result;
+		}
+		int position = getSchema().getPosition(field);
+		BDBatchFilter filter = new BDBatchFilter(rtype, value);
+		BDTuple[] batch = new BDTuple[Math.min(m_rows.size(),
+				BDBatchFilter.BATCH_SIZE)];
+		int count = 0;
+		for (BDTuple t : m_rows) {
+			batch[count++] = t;
+			if (count == batch.length) {
+				addSelected(result, filter, batch, count, position);
+				count = 0;
 			}
-			
-		}		
+		}
+		addSelected(result, filter, batch, count, position);
 		return result;
 	}
+
+	private static void addSelected(BDSystemResultSet result,
+			BDBatchFilter filter, BDTuple[] batch, int count, int position)
+			throws RollbackException {
+		int selected = filter.select(batch, count, position);
+		int[] rows = filter.getSelected();
+		for (int i = 0; i < selected; i++) {
+			result.addRow(batch[rows[i]]);
+		}
+	}
 	
 	/*
 	 * No index here: Brute force methods
 	 */
-	@SuppressWarnings("unchecked")
 	public BDSystemResultSet getTuplesByValue(String field, Comparable value) throws RollbackException {
-		BDSystemResultSet result = new BDSystemResultSet();		
-		for(BDTuple t : this.getTupleData()) {
-			if(((Comparable)t.getObject(field)).compareTo(value) == 0) {
-				result.addRow(t);
-			}
-		}		
-		return result;
+		return getTuplesByRange(RangeType.EQ, field, value);
 	}
 
 	public boolean hasTuple(BDTuple t2) {
@@ -153,12 +156,12 @@ public class BDSystemResultSet implements BDResultSet, Serializable {
 	}
 	
 	public String toString() {
-		String stuff = new String();
+		StringBuilder stuff = new StringBuilder();
 		for(BDTuple t : m_rows) {
-			stuff += t;
-			stuff += "\n";
+			stuff.append(t);
+			stuff.append("\n");
 		}
-		return stuff;
+		return stuff.toString();
 	}
 	
 }
\ No newline at end of file
@@ -23,9 +23,9 @@ import bdsim.server.system.handler.BDUpdateHandler;
 public class BDSystemThread extends Thread {
 
 	static Logger logger = Logger.getLogger(BDSystemThread.class);
-	protected int m_id;
+	protected volatile int m_id;
 	private BDSystemResultSet m_result;
-	private BDThreadStatus m_status;
+	private volatile BDThreadStatus m_status;
 	private List<BDTable> m_tables;
 	private BDTransaction m_transaction;
 
@@ -73,7 +73,24 @@ public class BDSystemThread extends Thread {
 	}
 
 	public void run() {
+		runTransaction(m_transaction);
+	}
 
+	/**
+	 * Runs a transaction on this thread until it commits, retrying it each
+	 * time it is rolled back. The worker threads of the scheduler call this
+	 * once for every transaction they take.
+	 * 
+	 * @param transaction
+	 *            The transaction to execute
+	 */
+	protected void runTransaction(BDTransaction transaction) {
+		synchronized (this) {
+			m_transaction = transaction;
+			m_id = transaction.getId();
+			m_result = null;
+			m_tables = new LinkedList<BDTable>();
+		}
 		setThreadStatus(BDThreadStatus.RUNNING);
 		
 		// Add every table touched by every transaction
@@ -85,6 +102,7 @@ public class BDSystemThread extends Thread {
 		
 		boolean done = false;
 		int attempts = 1;
+		RuntimeException failure = null;
 		
 		while (!done) {			
 			try {
@@ -122,7 +140,7 @@ public class BDSystemThread extends Thread {
 					m_result = handler.execute();
 					break;
 				case SELECT:
-					handler = new BDSelectHandler(plan);
+					handler = new BDSelectHandler(plan, m_transaction.getResultStream());
 					m_result = handler.execute();
 					break;
 				case DELETE:
@@ -169,16 +187,57 @@ public class BDSystemThread extends Thread {
 				rollback();
 				setThreadStatus(BDThreadStatus.RUNNING);
 				e.printStackTrace();
+
+				BDResultStream stream = m_transaction.getResultStream();
+				if (stream != null && !stream.restart()) {
+					// Running it again would send the client rows twice
+					failure = new IllegalStateException("Transaction " + m_id
+							+ " was rolled back after some of its rows were sent");
+					done = true;
+				}
+			} catch (RuntimeException e) {
+				abort();
+				throw e;
+			} catch (Error e) {
+				abort();
+				throw e;
 			}
 		}
 
-		// Unlock all tables
-		for (BDTable table : m_tables) {
-			BDSystem.concurrencyController.unlockTable(table.getName());
+		// Unlock all tables, unless the transaction gave up after a rollback,
+		// which already released them
+		if (failure == null) {
+			for (BDTable table : m_tables) {
+				BDSystem.concurrencyController.unlockTable(table.getName());
+			}
 		}
 
-		logger.debug("Result: " + m_result);
-		
+		if (logger.isDebugEnabled()) {
+			logger.debug("Result: " + m_result);
+		}
+		finish();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Gives up a transaction whose handler failed with something other than
+	 * a rollback: none of its changes are kept and its tables are released,
+	 * so the transactions waiting for them can run.
+	 */
+	private void abort() {
+		logger.debug("Transaction " + m_id + " failed, rolling it back");
+		rollback();
+		finish();
+	}
+
+	/**
+	 * Ends the transaction's disk accounting and marks this thread done.
+	 */
+	private void finish() {
+		logger.debug("Transaction " + m_id + " disk operations: "
+				+ BDSystem.diskManager.endTransaction(m_id));
 		setThreadStatus(BDThreadStatus.COMPLETE);
 	}
 
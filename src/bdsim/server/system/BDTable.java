@@ -1,11 +1,23 @@
 package bdsim.server.system;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 
+import org.apache.log4j.Logger;
+
 import bdsim.server.system.concurrency.BDTrackableReadWriteLock;
 import bdsim.server.system.concurrency.RollbackException;
 import bdsim.server.system.index.BDBPlusTreeIndex;
+import bdsim.server.system.index.BDHashIndex;
 import bdsim.server.system.index.BDIndex;
+import bdsim.server.system.index.BDPagedBPlusTreeIndex;
+import bdsim.server.system.index.BDShadowedIndex;
+import bdsim.server.system.index.BDSortedIndex;
 import bdsim.server.system.index.BDIndex.RangeType;
 
 /**
@@ -13,9 +25,12 @@ import bdsim.server.system.index.BDIndex.RangeType;
  * @revision $Id: BDTable.java 301 2007-01-22 18:32:38 +0000 (Mon, 22 Jan 2007) acath $
  */
 public class BDTable {
-	private BDBPlusTreeIndex m_primaryIndex;
+	
+	static Logger logger = Logger.getLogger(BDTable.class);
+	
+	private BDShadowedIndex m_primaryIndex;
 	private BDSchema m_schema;
-	private Vector<BDIndex> m_secondaryIndices;
+	private Vector<BDShadowedIndex> m_secondaryIndices;
 	private String m_primaryIndexName;
 	private BDTrackableReadWriteLock<BDSystemThread> m_lock;
 	private int m_numTuples;
@@ -24,19 +39,98 @@ public class BDTable {
 	public BDTable(BDSchema schema, String primaryName, String table) {
 		m_numTuples = 0;
 		m_schema = schema;
+		m_name = table;
 		m_primaryIndexName = primaryName;
-		m_primaryIndex = new BDBPlusTreeIndex(this, 
-				Integer.parseInt(System.getProperty("bplustree.d")), 
-				m_primaryIndexName, true);
-		m_secondaryIndices = new Vector<BDIndex>();
+		m_primaryIndex = newIndex(m_primaryIndexName, true);
+		m_secondaryIndices = new Vector<BDShadowedIndex>();
 		m_lock = new BDTrackableReadWriteLock<BDSystemThread>(table);
-		m_name = table;
 	}
 
+	/**
+	 * Builds a secondary B+ tree index on a column. Rows are found through
+	 * it by value or by range, and any number of rows may share a value. The
+	 * index gets the tuples already in the table.
+	 */
 	public void buildIndexOnAttribute(String columnName) {	
-		m_secondaryIndices.add(new BDBPlusTreeIndex(this, 
+		addSecondaryIndex(newIndex(columnName, false));
+	}
+	
+	/**
+	 * Builds a secondary index of a given type on a column. HASH_TABLE
+	 * indices answer equality lookups on the column by reading one bucket;
+	 * any other type builds the usual B+ tree.
+	 */
+	public void buildIndexOnAttribute(String columnName, BDIndex.IndexType type) {
+		if (type == BDIndex.IndexType.HASH_TABLE) {
+			addSecondaryIndex(new BDHashIndex(this, columnName, false,
+					Integer.parseInt(System.getProperty("hashindex.buckets", "16")),
+					Double.parseDouble(System.getProperty("hashindex.loadfactor", "2"))));
+		} else {
+			buildIndexOnAttribute(columnName);
+		}
+	}
+	
+	/**
+	 * Fills a new secondary index with the committed tuples of the primary
+	 * index (which only has some if it was reopened from its page file) and
+	 * adds it to the table.
+	 */
+	private void addSecondaryIndex(BDShadowedIndex index) {
+		try {
+			for (BDTuple t : m_primaryIndex.getCommittedTuples()) {
+				index.insertNow(t);
+			}
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while filling the index on " + index.getKeyName(), e);
+		}
+		m_secondaryIndices.add(index);
+	}
+	
+	/**
+	 * Creates an index on a column. The index.storage property chooses where
+	 * a primary B+ tree lives: "heap" (the default) keeps it on the Java heap,
+	 * while "mapped" stores it in a memory-mapped page file under
+	 * index.directory, cached in the memory manager's buffer pool. Unless
+	 * index.reopen is set those files are scratch files that are deleted on
+	 * exit. Secondary B+ trees, which hold duplicate values, stay on the heap.
+	 */
+	private BDShadowedIndex newIndex(String columnName, boolean isPrimary) {
+		if ("mapped".equals(System.getProperty("index.storage")) && isPrimary
+				&& columnName != null
+				&& BDSystem.memoryManager != null
+				&& BDSystem.memoryManager.getBufferPool() != null) {
+			File dir = new File(System.getProperty("index.directory", "data"));
+			String prefix = m_name + "." + columnName;
+			boolean reopen = "true".equals(System.getProperty("index.reopen"));
+			try {
+				dir.mkdirs();
+				File file;
+				if (reopen) {
+					file = new File(dir, prefix + ".idx");
+				} else {
+					file = File.createTempFile(prefix + ".", ".idx", dir);
+					file.deleteOnExit();
+				}
+				return new BDPagedBPlusTreeIndex(m_name, m_schema, columnName, file,
+						BDSystem.memoryManager.getBufferPool(), reopen);
+			} catch (IOException e) {
+				logger.error("Could not map the index on " + prefix
+						+ ", keeping it on the heap", e);
+			}
+		}
+		return new BDBPlusTreeIndex(this, 
 				Integer.parseInt(System.getProperty("bplustree.d")), 
-				columnName, false));
+				columnName, isPrimary, getColumnType(columnName));
+	}
+	
+	/**
+	 * @return The type of a column, or null if the schema has no such column
+	 */
+	private BDObjectType getColumnType(String columnName) {
+		if (columnName == null) {
+			return null;
+		}
+		return m_schema.getObjectType(m_schema.getPosition(columnName));
 	}
 	
 	public void commit(int TID) throws InterruptedException, RollbackException {
@@ -57,6 +151,15 @@ public class BDTable {
 	public BDSystemResultSet getAllTuples() throws InterruptedException, RollbackException {
 		return m_primaryIndex.getAllTuples();
 	}
+
+	/**
+	 * Adds all tuples to a result set as the primary index is scanned,
+	 * rather than collecting them first.
+	 */
+	public void addAllTuples(BDSystemResultSet result) throws InterruptedException,
+			RollbackException {
+		m_primaryIndex.addAllTuples(result);
+	}
 	
 	public BDSystemResultSet getAllTuplesUnchecked() {
 		return m_primaryIndex.getAllTuplesUnchecked();
@@ -73,9 +176,37 @@ public class BDTable {
 	}
 	
 	
+	/**
+	 * @return true if the table has an index that keeps a column's values in
+	 *         order
+	 */
+	public boolean isOrderedOn(String columnName) {
+		BDIndex index = getIndex(columnName);
+		return index instanceof BDSortedIndex;
+	}
+
+	/**
+	 * @return A scan of the tuples the current transaction sees in order of
+	 *         a column, or null if the column has no ordered index or the
+	 *         transaction has changed the table
+	 */
+	public BDSortedIndex.KeyOrderScan scanInOrderOf(String columnName) {
+		if (!isOrderedOn(columnName)) {
+			return null;
+		}
+		return ((BDSortedIndex) getIndex(columnName)).scanInKeyOrder();
+	}
+	
 	public BDIndex getPrimaryIndex() {
 		return m_primaryIndex;
 	}
+	
+	/**
+	 * @return true if the primary index holds no committed tuples
+	 */
+	public boolean isEmpty() {
+		return m_primaryIndex.isEmpty();
+	}
     
     public boolean isPrimaryIndex(String column) {
 		if (m_primaryIndex == null) {
@@ -149,14 +280,75 @@ public class BDTable {
 	}
 
 	/**
-	 * A unsafe version of insert - does not check for any concurrency. Note:
-	 * this only inserts the tuple in the primary index.
+	 * Inserts several tuples, like calling insert for each of them.
+	 */
+	public void insertAll(List<BDTuple> tuples) throws InterruptedException {
+		m_primaryIndex.insertAll(tuples);
+		for (BDShadowedIndex index : m_secondaryIndices) {
+			index.insertAll(tuples);
+		}
+
+		m_numTuples += tuples.size();
+	}
+
+	/**
+	 * A unsafe version of insert - does not check for any concurrency.
 	 * 
 	 * @param t
 	 *            The tuple to insert
 	 */
 	public void insertUnsafe(BDTuple t) throws InterruptedException {
 		m_primaryIndex.insertNow(t);
+		for (BDShadowedIndex index : m_secondaryIndices) {
+			index.insertNow(t);
+		}
+	}
+
+	/**
+	 * Loads tuples into an empty table without concurrency control, like
+	 * insertUnsafe. The tuples are sorted on the primary key and handed to
+	 * the primary index in one batch, which fills its nodes to the
+	 * bplustree.fillfactor property. Of several tuples with the same key, the
+	 * first one is kept. The secondary indices get the tuples one at a time.
+	 * The tuples loaded are added to the tuple count.
+	 * 
+	 * @param tuples
+	 *            The tuples to load, in any order
+	 */
+	public void insertAllUnsafe(List<BDTuple> tuples) throws InterruptedException {
+		if (m_primaryIndexName == null) {
+			for (BDTuple t : tuples) {
+				insertUnsafe(t);
+			}
+			m_numTuples += tuples.size();
+			return;
+		}
+		List<BDTuple> sorted = new ArrayList<BDTuple>(tuples);
+		final int key = m_schema.getPosition(m_primaryIndexName);
+		Comparator<BDTuple> byKey = new Comparator<BDTuple>() {
+			@SuppressWarnings("unchecked")
+			public int compare(BDTuple t1, BDTuple t2) {
+				return ((Comparable) t1.getObject(key)).compareTo(t2.getObject(key));
+			}
+		};
+		Collections.sort(sorted, byKey);
+		// As with insert, only the first tuple with a key is kept, and the
+		// secondary indices get the same tuples as the primary
+		List<BDTuple> distinct = new ArrayList<BDTuple>(sorted.size());
+		for (BDTuple t : sorted) {
+			if (distinct.isEmpty()
+					|| byKey.compare(distinct.get(distinct.size() - 1), t) != 0) {
+				distinct.add(t);
+			}
+		}
+		m_primaryIndex.bulkLoad(distinct.iterator(),
+				Double.parseDouble(System.getProperty("bplustree.fillfactor", "0.9")));
+		m_numTuples += distinct.size();
+		for (BDShadowedIndex index : m_secondaryIndices) {
+			for (BDTuple t : distinct) {
+				index.insertNow(t);
+			}
+		}
 	}
 
 	public boolean isPrimaryKey(String columnName) {
@@ -1,6 +1,7 @@
 package bdsim.server.system;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,6 +22,8 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
+import bdsim.server.system.index.BDBPlusTreeIndex;
+import bdsim.server.system.index.BDIndex;
 import bdsim.server.system.index.BDBPlusTreeVisualizer;
 import bdsim.server.main.BDSimulator;
 
@@ -57,7 +60,8 @@ public final class BDTableManager {
 
 	public void createTable(String s, BDTable t) {
 		m_tables.put(s, t);
-		if ("true".equals(System.getProperty("visualizer.doShow"))) {
+		if ("true".equals(System.getProperty("visualizer.doShow"))
+				&& t.getPrimaryIndex() instanceof BDBPlusTreeIndex) {
 			BDBPlusTreeVisualizer v = new BDBPlusTreeVisualizer(s, t);
 			v.setSize(1024, 300);
 			v.setVisible(true);
@@ -187,6 +191,7 @@ public final class BDTableManager {
 		
 		String primaryIndex = null;
 		List<String> secondaryIndices = new LinkedList<String>();
+		List<String> hashIndices = new LinkedList<String>();
 
 		for (int i = 0; i < schemaNode.getChildNodes().getLength(); i++) {
 			Node fieldNode = schemaNode.getChildNodes().item(i);
@@ -204,6 +209,10 @@ public final class BDTableManager {
 						.equals("SECONDARY")) {
 					secondaryIndices.add(fieldattributes.getNamedItem("Name")
 							.getNodeValue());
+				} else if (fieldattributes.getNamedItem("Index").getNodeValue()
+						.equals("HASH")) {
+					hashIndices.add(fieldattributes.getNamedItem("Name")
+							.getNodeValue());
 				}
 			}
 		}
@@ -215,7 +224,19 @@ public final class BDTableManager {
 		for(String secIndex : secondaryIndices) {
 			newTable.buildIndexOnAttribute(secIndex);
 		}
+		for (String hashIndex : hashIndices) {
+			newTable.buildIndexOnAttribute(hashIndex, BDIndex.IndexType.HASH_TABLE);
+		}
+
+		// A table whose index was reopened from its page file already holds
+		// its tuples
+		if (!newTable.isEmpty()) {
+			logger.debug("Reusing the stored tuples of table " + name);
+			this.createTable(name, newTable);
+			return;
+		}
 
+		List<BDTuple> tuples = new ArrayList<BDTuple>();
 		for (int i = 0; i < dataNode.getChildNodes().getLength(); i++) {
 			Node tupleNode = dataNode.getChildNodes().item(i);
 			NamedNodeMap tupleAttributes = tupleNode.getAttributes();
@@ -235,11 +256,12 @@ public final class BDTableManager {
 
 				newTuple.setObject(colName, dataItem);
 			}
-			try {
-				newTable.insertUnsafe(newTuple);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			tuples.add(newTuple);
+		}
+		try {
+			newTable.insertAllUnsafe(tuples);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 		
 		this.createTable(name, newTable);
@@ -283,7 +305,9 @@ public final class BDTableManager {
 			if (table.isPrimaryIndex(s)) {
 				tableNameElement.setAttribute("Index", "PRIMARY");
 			} else if (table.isSecondaryIndex(s)) {
-				tableNameElement.setAttribute("Index", "SECONDARY");
+				tableNameElement.setAttribute("Index",
+						table.getIndex(s).getIndexType() == BDIndex.IndexType.HASH_TABLE
+						? "HASH" : "SECONDARY");
 			}
 		}
 
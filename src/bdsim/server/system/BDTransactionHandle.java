@@ -0,0 +1,76 @@
+package bdsim.server.system;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import bdsim.server.system.concurrency.BDTransaction;
+
+/**
+ * A transaction submitted to the scheduler, completed by the worker thread
+ * that runs it. Callers can block on it with await or chain work onto
+ * getCompletion instead of polling the scheduler.
+ */
+public final class BDTransactionHandle {
+
+	private final BDTransaction m_transaction;
+
+	private final long m_startTime;
+
+	private final CompletableFuture<BDSystemResultSet> m_result;
+
+	BDTransactionHandle(BDTransaction transaction) {
+		m_transaction = transaction;
+		m_startTime = System.currentTimeMillis();
+		m_result = new CompletableFuture<BDSystemResultSet>();
+	}
+
+	public int getTransactionId() {
+		return m_transaction.getId();
+	}
+
+	/**
+	 * @return When the transaction was submitted, in milliseconds
+	 */
+	public long getStartTime() {
+		return m_startTime;
+	}
+
+	/**
+	 * @return true once the transaction has committed or failed
+	 */
+	public boolean isDone() {
+		return m_result.isDone();
+	}
+
+	/**
+	 * Waits for the transaction to finish.
+	 *
+	 * @return The transaction's result, which may be null
+	 * @throws ExecutionException
+	 *             If the transaction failed; the cause is the failure
+	 */
+	public BDSystemResultSet await() throws InterruptedException, ExecutionException {
+		return m_result.get();
+	}
+
+	/**
+	 * @return A stage completed with the transaction's result, or
+	 *         exceptionally with its failure
+	 */
+	public CompletionStage<BDSystemResultSet> getCompletion() {
+		return m_result;
+	}
+
+	BDTransaction getTransaction() {
+		return m_transaction;
+	}
+
+	void complete(BDSystemResultSet result) {
+		m_result.complete(result);
+	}
+
+	void fail(Throwable failure) {
+		m_result.completeExceptionally(failure);
+	}
+}
@@ -103,6 +103,20 @@ public class BDTuple extends BDRow implements Comparable, Serializable {
 		return true;
 	}
 
+	/**
+	 * Hashes the values of the tuple the way equals compares them, so that
+	 * equal tuples can be found in hash tables. Like equals, it leaves out
+	 * the schema.
+	 */
+	public int hashCode() {
+		int hash = getNumCols();
+		for (int i = 0; i < getNumCols(); i++) {
+			Object value = m_fields.elementAt(i);
+			hash = 31 * hash + (value == null ? 0 : value.hashCode());
+		}
+		return hash;
+	}
+
 	public String getName(int position) {
 		return m_schema.getName(position);
 	}
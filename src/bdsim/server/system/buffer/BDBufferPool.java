@@ -0,0 +1,288 @@
+package bdsim.server.system.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import bdsim.server.system.BDDiskManager;
+
+/**
+ * A fixed number of page-sized frames that cache the pages of one or more
+ * BDPageStores. A page is pinned while it is in use and cannot be evicted
+ * until every pin is released; callers say on unpin whether they changed the
+ * page, and dirty pages are written back to their store when they are evicted
+ * or flushed. Which unpinned frame is evicted is up to a BDReplacementPolicy.
+ *
+ * The frames are allocated off the Java heap. Pages are read and written
+ * through a BDDiskManager, which counts the disk operations; the pool itself
+ * keeps hit, miss, eviction and flush counts for each owner of the stores it
+ * caches.
+ */
+public class BDBufferPool {
+
+	static Logger logger = Logger.getLogger(BDBufferPool.class);
+
+	/** A page of a store */
+	private static final class PageId {
+		final BDPageStore store;
+		final int page;
+
+		PageId(BDPageStore store, int page) {
+			this.store = store;
+			this.page = page;
+		}
+
+		public boolean equals(Object other) {
+			if (!(other instanceof PageId)) {
+				return false;
+			}
+			PageId id = (PageId) other;
+			return store == id.store && page == id.page;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(store) * 31 + page;
+		}
+	}
+
+	private int m_pageSize;
+	private ByteBuffer[] m_frames;
+
+	/** The page held by each frame, or null for a free frame */
+	private PageId[] m_pages;
+	private int[] m_pins;
+	private boolean[] m_dirty;
+
+	private Map<PageId, Integer> m_pageTable;
+	private LinkedList<Integer> m_free;
+	private BDReplacementPolicy m_policy;
+	private Map<String, BDBufferPoolStats> m_stats;
+	private BDDiskManager m_disk;
+
+	/**
+	 * Creates a pool whose disk operations are counted by a disk manager of
+	 * its own.
+	 *
+	 * @param numFrames Number of pages the pool holds
+	 * @param pageSize Size of a page in bytes
+	 * @param policy Chooses the frames to evict
+	 */
+	public BDBufferPool(int numFrames, int pageSize, BDReplacementPolicy policy) {
+		this(numFrames, pageSize, policy, new BDDiskManager());
+	}
+
+	/**
+	 * @param numFrames Number of pages the pool holds
+	 * @param pageSize Size of a page in bytes
+	 * @param policy Chooses the frames to evict
+	 * @param disk Performs and counts the page reads, writes and syncs
+	 */
+	public BDBufferPool(int numFrames, int pageSize, BDReplacementPolicy policy,
+			BDDiskManager disk) {
+		m_disk = disk;
+		m_pageSize = pageSize;
+		m_frames = new ByteBuffer[numFrames];
+		m_pages = new PageId[numFrames];
+		m_pins = new int[numFrames];
+		m_dirty = new boolean[numFrames];
+		m_pageTable = new HashMap<PageId, Integer>(numFrames * 2);
+		m_free = new LinkedList<Integer>();
+		m_policy = policy;
+		m_stats = new HashMap<String, BDBufferPoolStats>();
+
+		ByteBuffer memory = ByteBuffer.allocateDirect(numFrames * pageSize);
+		for (int i = 0; i < numFrames; i++) {
+			memory.limit((i + 1) * pageSize);
+			memory.position(i * pageSize);
+			m_frames[i] = memory.slice();
+			m_free.add(i);
+		}
+		m_policy.init(numFrames);
+	}
+
+	/**
+	 * @param name LRU, CLOCK or 2Q
+	 * @return A new replacement policy of that kind
+	 */
+	public static BDReplacementPolicy createPolicy(String name) {
+		if ("LRU".equalsIgnoreCase(name)) {
+			return new BDLRUPolicy();
+		} else if ("CLOCK".equalsIgnoreCase(name)) {
+			return new BDClockPolicy();
+		} else if ("2Q".equalsIgnoreCase(name)) {
+			return new BDTwoQueuePolicy();
+		}
+		throw new IllegalArgumentException("Unknown replacement policy: " + name);
+	}
+
+	public int getPageSize() {
+		return m_pageSize;
+	}
+
+	public int getNumFrames() {
+		return m_frames.length;
+	}
+
+	/**
+	 * Pins a page, reading it from its store if it is not in a frame. The
+	 * returned buffer holds the page at offsets 0 to getPageSize() - 1 and
+	 * must only be used until the matching unpin.
+	 *
+	 * @throws IllegalStateException if every frame is pinned
+	 */
+	public synchronized ByteBuffer pin(BDPageStore store, int page) {
+		PageId id = new PageId(store, page);
+		BDBufferPoolStats stats = stats(store.getOwner());
+		Integer frame = m_pageTable.get(id);
+		if (frame != null) {
+			stats.hit();
+			m_policy.accessed(frame);
+		} else {
+			stats.miss();
+			frame = freeFrame();
+			ByteBuffer dst = m_frames[frame].duplicate();
+			dst.clear();
+			m_disk.readPage(store, page, dst);
+			m_pages[frame] = id;
+			m_pageTable.put(id, frame);
+			m_policy.loaded(frame, id);
+		}
+		m_pins[frame]++;
+		return m_frames[frame];
+	}
+
+	/**
+	 * Releases a pin taken by pin.
+	 *
+	 * @param dirty True if the page was changed while pinned
+	 */
+	public synchronized void unpin(BDPageStore store, int page, boolean dirty) {
+		Integer frame = m_pageTable.get(new PageId(store, page));
+		if (frame == null || m_pins[frame] == 0) {
+			throw new IllegalStateException("Page " + page + " of "
+					+ store.getOwner() + " is not pinned");
+		}
+		m_pins[frame]--;
+		m_dirty[frame] |= dirty;
+	}
+
+	/**
+	 * @return whether the page in a frame is in use
+	 */
+	public synchronized boolean isPinned(int frame) {
+		return m_pins[frame] > 0;
+	}
+
+	/**
+	 * Writes every dirty page of a store back to it.
+	 */
+	public synchronized void flush(BDPageStore store) {
+		for (int frame = 0; frame < m_frames.length; frame++) {
+			if (m_pages[frame] != null && m_pages[frame].store == store) {
+				writeBack(frame);
+			}
+		}
+	}
+
+	/**
+	 * Writes every dirty page back to its store and syncs the stores written
+	 * to.
+	 */
+	public synchronized void flushAll() {
+		Set<BDPageStore> written = new HashSet<BDPageStore>();
+		for (int frame = 0; frame < m_frames.length; frame++) {
+			if (m_pages[frame] != null && m_dirty[frame]) {
+				written.add(m_pages[frame].store);
+				writeBack(frame);
+			}
+		}
+		for (BDPageStore store : written) {
+			m_disk.sync(store);
+		}
+	}
+
+	/**
+	 * Flushes the pages of a store, syncs it and frees the frames it used,
+	 * e.g. before the store is closed.
+	 */
+	public synchronized void release(BDPageStore store) {
+		for (int frame = 0; frame < m_frames.length; frame++) {
+			PageId id = m_pages[frame];
+			if (id != null && id.store == store) {
+				writeBack(frame);
+				m_policy.removed(frame, id);
+				m_pageTable.remove(id);
+				m_pages[frame] = null;
+				m_pins[frame] = 0;
+				m_free.add(frame);
+			}
+		}
+		m_disk.sync(store);
+	}
+
+	/**
+	 * @return The counters for an owner
+	 */
+	public synchronized BDBufferPoolStats getStats(String owner) {
+		return stats(owner);
+	}
+
+	/**
+	 * @return One line of counters per owner, sorted by owner
+	 */
+	public synchronized String report() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, BDBufferPoolStats> entry
+				: new TreeMap<String, BDBufferPoolStats>(m_stats).entrySet()) {
+			report.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		return report.toString();
+	}
+
+	private BDBufferPoolStats stats(String owner) {
+		BDBufferPoolStats stats = m_stats.get(owner);
+		if (stats == null) {
+			stats = new BDBufferPoolStats();
+			m_stats.put(owner, stats);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return A frame with no page in it, evicting a page if needed
+	 */
+	private int freeFrame() {
+		if (!m_free.isEmpty()) {
+			return m_free.removeFirst();
+		}
+		int frame = m_policy.victim(this);
+		if (frame < 0) {
+			throw new IllegalStateException("All " + m_frames.length
+					+ " buffer frames are pinned");
+		}
+		PageId id = m_pages[frame];
+		writeBack(frame);
+		stats(id.store.getOwner()).evicted();
+		m_policy.removed(frame, id);
+		m_pageTable.remove(id);
+		m_pages[frame] = null;
+		return frame;
+	}
+
+	private void writeBack(int frame) {
+		if (m_dirty[frame]) {
+			PageId id = m_pages[frame];
+			ByteBuffer src = m_frames[frame].duplicate();
+			src.clear();
+			m_disk.writePage(id.store, id.page, src);
+			stats(id.store.getOwner()).flushed();
+			m_dirty[frame] = false;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package bdsim.server.system.buffer;
+
+/**
+ * Counters a BDBufferPool keeps for each owner (table) of the pages it caches.
+ */
+public class BDBufferPoolStats {
+
+	private long m_hits;
+	private long m_misses;
+	private long m_evictions;
+	private long m_flushes;
+
+	void hit() {
+		m_hits++;
+	}
+
+	void miss() {
+		m_misses++;
+	}
+
+	void evicted() {
+		m_evictions++;
+	}
+
+	void flushed() {
+		m_flushes++;
+	}
+
+	/**
+	 * @return Number of page requests served from a frame
+	 */
+	public long getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * @return Number of page requests that had to read the page
+	 */
+	public long getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * @return Fraction of page requests served from a frame
+	 */
+	public double getHitRatio() {
+		long requests = m_hits + m_misses;
+		return (requests == 0) ? 0.0 : (double) m_hits / requests;
+	}
+
+	/**
+	 * @return Number of pages evicted to make room for other pages
+	 */
+	public long getEvictions() {
+		return m_evictions;
+	}
+
+	/**
+	 * @return Number of dirty pages written back to their store
+	 */
+	public long getFlushes() {
+		return m_flushes;
+	}
+
+	public String toString() {
+		return String.format("hits=%d misses=%d hit ratio=%.3f evictions=%d flushes=%d",
+				m_hits, m_misses, getHitRatio(), m_evictions, m_flushes);
+	}
+}
@@ -0,0 +1,51 @@
+package bdsim.server.system.buffer;
+
+/**
+ * The CLOCK approximation of LRU: every frame has a reference bit that is set
+ * when the frame is used, and a hand sweeps the frames, clearing set bits and
+ * evicting the first unpinned frame whose bit is already clear.
+ */
+public class BDClockPolicy implements BDReplacementPolicy {
+
+	private boolean[] m_referenced;
+	private boolean[] m_resident;
+	private int m_hand;
+
+	public void init(int numFrames) {
+		m_referenced = new boolean[numFrames];
+		m_resident = new boolean[numFrames];
+		m_hand = 0;
+	}
+
+	public void loaded(int frame, Object page) {
+		m_resident[frame] = true;
+		m_referenced[frame] = true;
+	}
+
+	public void accessed(int frame) {
+		m_referenced[frame] = true;
+	}
+
+	public void removed(int frame, Object page) {
+		m_resident[frame] = false;
+		m_referenced[frame] = false;
+	}
+
+	public int victim(BDBufferPool pool) {
+		// Two full sweeps clear every reference bit, so a third finds a
+		// victim if there is any unpinned frame
+		for (int step = 0; step < 3 * m_resident.length; step++) {
+			int frame = m_hand;
+			m_hand = (m_hand + 1) % m_resident.length;
+			if (!m_resident[frame] || pool.isPinned(frame)) {
+				continue;
+			}
+			if (m_referenced[frame]) {
+				m_referenced[frame] = false;
+			} else {
+				return frame;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,37 @@
+package bdsim.server.system.buffer;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used unpinned frame.
+ */
+public class BDLRUPolicy implements BDReplacementPolicy {
+
+	/** Resident frames, least recently used first */
+	private LinkedHashMap<Integer, Boolean> m_order;
+
+	public void init(int numFrames) {
+		m_order = new LinkedHashMap<Integer, Boolean>(numFrames * 2, 0.75f, true);
+	}
+
+	public void loaded(int frame, Object page) {
+		m_order.put(frame, Boolean.TRUE);
+	}
+
+	public void accessed(int frame) {
+		m_order.get(frame);
+	}
+
+	public void removed(int frame, Object page) {
+		m_order.remove(frame);
+	}
+
+	public int victim(BDBufferPool pool) {
+		for (int frame : m_order.keySet()) {
+			if (!pool.isPinned(frame)) {
+				return frame;
+			}
+		}
+		return -1;
+	}
+}
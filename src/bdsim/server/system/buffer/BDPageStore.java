@@ -0,0 +1,35 @@
+package bdsim.server.system.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Backing storage for pages that are cached in a BDBufferPool.
+ */
+public interface BDPageStore {
+
+	/**
+	 * @return Size of each page in bytes
+	 */
+	public int getPageSize();
+
+	/**
+	 * @return The name statistics for this store are kept under, usually the
+	 *         table it belongs to
+	 */
+	public String getOwner();
+
+	/**
+	 * Copies a page into dst, which has room for exactly one page.
+	 */
+	public void readPage(int page, ByteBuffer dst);
+
+	/**
+	 * Copies src, which holds exactly one page, back into the store.
+	 */
+	public void writePage(int page, ByteBuffer src);
+
+	/**
+	 * Makes the pages written so far durable.
+	 */
+	public void sync();
+}
@@ -0,0 +1,40 @@
+package bdsim.server.system.buffer;
+
+/**
+ * Chooses which frame of a BDBufferPool to evict. The pool tells the policy
+ * about every load, hit and eviction; the policy only ever picks a victim
+ * among the frames for which the pool's isPinned returns false.
+ */
+public interface BDReplacementPolicy {
+
+	/**
+	 * Called once by the pool before any other call.
+	 * 
+	 * @param numFrames Number of frames in the pool
+	 */
+	public void init(int numFrames);
+
+	/**
+	 * A page was read into a frame.
+	 * 
+	 * @param frame The frame
+	 * @param page Identifies the page, for policies that remember pages
+	 *            after they are evicted
+	 */
+	public void loaded(int frame, Object page);
+
+	/**
+	 * A page that was already in a frame was requested again.
+	 */
+	public void accessed(int frame);
+
+	/**
+	 * The page in a frame was evicted or dropped.
+	 */
+	public void removed(int frame, Object page);
+
+	/**
+	 * @return The frame to evict, or -1 if every frame is pinned
+	 */
+	public int victim(BDBufferPool pool);
+}
@@ -0,0 +1,93 @@
+package bdsim.server.system.buffer;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The 2Q policy (Johnson and Shasha). Pages read for the first time go into a
+ * FIFO queue (A1in); only pages that are requested again after dropping out
+ * of it are promoted to the LRU queue (Am). A1out remembers the pages recently
+ * evicted from A1in without holding their data. A scan therefore only churns
+ * A1in and leaves the hot pages in Am alone.
+ */
+public class BDTwoQueuePolicy implements BDReplacementPolicy {
+
+	/** Frames holding pages seen once, oldest first */
+	private LinkedHashSet<Integer> m_in;
+
+	/** Frames holding hot pages, least recently used first */
+	private LinkedHashMap<Integer, Boolean> m_main;
+
+	/** Pages recently evicted from m_in, oldest first */
+	private LinkedHashSet<Object> m_out;
+
+	/** Target size of m_in */
+	private int m_inSize;
+
+	/** Number of evicted pages remembered in m_out */
+	private int m_outSize;
+
+	/** Whether the page in each frame is queued in m_in rather than m_main */
+	private boolean[] m_fromIn;
+
+	public void init(int numFrames) {
+		m_in = new LinkedHashSet<Integer>();
+		m_main = new LinkedHashMap<Integer, Boolean>(numFrames * 2, 0.75f, true);
+		m_out = new LinkedHashSet<Object>();
+		m_inSize = Math.max(1, numFrames / 4);
+		m_outSize = Math.max(1, numFrames / 2);
+		m_fromIn = new boolean[numFrames];
+	}
+
+	public void loaded(int frame, Object page) {
+		if (m_out.remove(page)) {
+			m_main.put(frame, Boolean.TRUE);
+			m_fromIn[frame] = false;
+		} else {
+			m_in.add(frame);
+			m_fromIn[frame] = true;
+		}
+	}
+
+	public void accessed(int frame) {
+		// Hits in A1in do not count: they are usually the same scan or
+		// operation touching the page again
+		m_main.get(frame);
+	}
+
+	public void removed(int frame, Object page) {
+		if (m_fromIn[frame]) {
+			m_in.remove(frame);
+			m_out.add(page);
+			if (m_out.size() > m_outSize) {
+				m_out.remove(m_out.iterator().next());
+			}
+		} else {
+			m_main.remove(frame);
+		}
+	}
+
+	public int victim(BDBufferPool pool) {
+		if (m_in.size() >= m_inSize || m_main.isEmpty()) {
+			int frame = firstUnpinned(pool, m_in);
+			if (frame >= 0) {
+				return frame;
+			}
+			return firstUnpinned(pool, m_main.keySet());
+		}
+		int frame = firstUnpinned(pool, m_main.keySet());
+		if (frame >= 0) {
+			return frame;
+		}
+		return firstUnpinned(pool, m_in);
+	}
+
+	private static int firstUnpinned(BDBufferPool pool, Iterable<Integer> frames) {
+		for (int frame : frames) {
+			if (!pool.isPinned(frame)) {
+				return frame;
+			}
+		}
+		return -1;
+	}
+}
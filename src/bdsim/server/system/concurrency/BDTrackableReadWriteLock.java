@@ -1,6 +1,7 @@
 package bdsim.server.system.concurrency;
 
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -69,10 +70,11 @@ public class BDTrackableReadWriteLock<T extends BDSystemThread> {
 	public synchronized void abandon() {	
 		// remove ourselves from any groups to which we belong, and delete
 		// any now-empty groups
-		for (ConcurrentThreadGroup<T> group : m_threadGroups) {
+		for (Iterator<ConcurrentThreadGroup<T>> it = m_threadGroups.iterator(); it.hasNext();) {
+			ConcurrentThreadGroup<T> group = it.next();
 			if (group.removeThread((T)Thread.currentThread()) &&
 					group.getThreads().size() == 0) {
-				m_threadGroups.remove(group);
+				it.remove();
 			}
 		}
 		// if we held the lock, we now need to notify the first group. No harm
@@ -3,6 +3,7 @@ package bdsim.server.system.concurrency;
 import java.util.LinkedList;
 
 import bdsim.server.exec.BDPlan;
+import bdsim.server.system.BDResultStream;
 
 /**
  * A list of BDPlans which constitute one transaction.
@@ -14,6 +15,7 @@ public final class BDTransaction {
 
 	private LinkedList<BDPlan> m_plans;
 	private int m_id;
+	private BDResultStream m_resultStream;
 
 	/**
 	 * Class constructor.
@@ -37,4 +39,16 @@ public final class BDTransaction {
 	public void setId(int counter) {
 		m_id = counter;
 	}
+
+	/**
+	 * @return Where a streamed SELECT sends its rows while it runs, or null
+	 *         if its result is collected and returned at the end
+	 */
+	public BDResultStream getResultStream() {
+		return m_resultStream;
+	}
+
+	public void setResultStream(BDResultStream stream) {
+		m_resultStream = stream;
+	}
 }
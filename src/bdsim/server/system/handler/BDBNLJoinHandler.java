@@ -1,15 +1,143 @@
 package bdsim.server.system.handler;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import bdsim.server.exec.nodes.BDCondOpType;
+import bdsim.server.system.BDSchema;
 import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
 
 /**
+ * A block nested loops join of two result sets on a comparison of a column
+ * of each. The left input is taken BLOCK_SIZE rows at a time, and each pass
+ * over the right input compares its rows with a whole block, so the right
+ * input is read once per block rather than once per left row. Pulled as a
+ * pipeline, each right row's matches in the block are made at a time.
+ *
+ * This works for any comparison, so it is used for joins a hash join cannot
+ * do. For an equi-join the right input's join column is left out of the
+ * result, as in BDNaturalJoinHandler; otherwise all columns are kept.
+ *
  * @author dclee
  */
-public class BDBNLJoinHandler implements BDHandler {
+public class BDBNLJoinHandler extends BDPipelineHandler {
+
+	static Logger logger = Logger.getLogger(BDBNLJoinHandler.class);
+
+	/** The number of left rows compared in each pass over the right input */
+	static final int BLOCK_SIZE = 64;
+
+	private BDSystemResultSet m_leftSet, m_rightSet;
+
+	private String m_leftAttrib, m_rightAttrib;
+
+	private BDCondOpType m_op;
+
+	private BDSchema m_schema;
+
+	private int m_leftCol, m_rightCol;
+
+	/** The position of the right column left out of the result, or -1 */
+	private int m_skip;
+
+	private Iterator<BDTuple> m_leftRows, m_rightRows;
+
+	/** The left rows the right rows are being compared with */
+	private List<BDTuple> m_block = new ArrayList<BDTuple>(BLOCK_SIZE);
+
+	/**
+	 * @param op
+	 *            How the left column compares with the right one for rows
+	 *            that are joined; one of EQ, NEQ, LT, LTEQ, GT and GTEQ
+	 */
+	public BDBNLJoinHandler(BDSystemResultSet leftSet,
+			BDSystemResultSet rightSet, String leftAttrib, BDCondOpType op,
+			String rightAttrib) {
+		m_leftSet = leftSet;
+		m_rightSet = rightSet;
+		m_leftAttrib = leftAttrib;
+		m_rightAttrib = rightAttrib;
+		m_op = op;
+	}
+
+	protected void openInputs() {
+		m_leftRows = m_leftSet.getTupleData().iterator();
+		m_block.clear();
+		m_rightRows = null;
+		m_schema = null;
+		if (m_leftSet.getNumTuples() == 0 || m_rightSet.getNumTuples() == 0) {
+			return;
+		}
+
+		m_leftCol = m_leftSet.getSchema().getPosition(m_leftAttrib);
+		m_rightCol = m_rightSet.getSchema().getPosition(m_rightAttrib);
+		m_skip = m_op == BDCondOpType.EQ ? m_rightCol : -1;
+
+		m_schema = BDHandlerFunctions.joinSchema(m_leftSet.getSchema(),
+				m_rightSet.getSchema(), m_skip == -1 ? null : m_rightAttrib);
+	}
+
+	/**
+	 * Joins the next right row with the block of left rows, taking the next
+	 * block once the right input has been gone through.
+	 */
+	protected boolean fill(List<BDTuple> rows) {
+		if (m_schema == null) {
+			return false;
+		}
+		if (m_rightRows == null || !m_rightRows.hasNext()) {
+			m_block.clear();
+			while (m_block.size() < BLOCK_SIZE && m_leftRows.hasNext()) {
+				m_block.add(m_leftRows.next());
+			}
+			if (m_block.isEmpty()) {
+				return false;
+			}
+			m_rightRows = m_rightSet.getTupleData().iterator();
+		}
+
+		BDTuple t2 = m_rightRows.next();
+		Object value = t2.getObject(m_rightCol);
+		if (value == null) {
+			return true;
+		}
+		for (BDTuple t1 : m_block) {
+			if (matches(t1.getObject(m_leftCol), value)) {
+				rows.add(BDHandlerFunctions.joinTuples(m_schema, t1, t2, m_skip));
+			}
+		}
+		return true;
+	}
+
+	protected void closeInputs() {
+		m_block.clear();
+	}
 
-	public BDSystemResultSet execute() {
-		// TODO Auto-generated method stub
-		return null;
+	@SuppressWarnings("unchecked")
+	private boolean matches(Object left, Object right) {
+		if (left == null) {
+			return false;
+		}
+		int cmp = ((Comparable) left).compareTo(right);
+		switch (m_op) {
+		case EQ:
+			return cmp == 0;
+		case NEQ:
+			return cmp != 0;
+		case LT:
+			return cmp < 0;
+		case LTEQ:
+			return cmp <= 0;
+		case GT:
+			return cmp > 0;
+		case GTEQ:
+			return cmp >= 0;
+		default:
+			throw new IllegalArgumentException("Cannot join on " + m_op);
+		}
 	}
-	
 }
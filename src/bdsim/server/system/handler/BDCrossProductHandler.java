@@ -1,5 +1,7 @@
 package bdsim.server.system.handler;
 
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import bdsim.server.system.BDSchema;
@@ -8,50 +10,57 @@ import bdsim.server.system.BDTuple;
 import bdsim.server.system.concurrency.RollbackException;
 
 /**
+ * The left rows are pulled one at a time and each is paired with every row
+ * of the right result set.
+ * 
  * @author dclee
  */
-public class BDCrossProductHandler implements BDHandler {
+public class BDCrossProductHandler extends BDPipelineHandler {
 	
 	static Logger logger = Logger.getLogger(BDCrossProductHandler.class);
-	private BDSystemResultSet m_leftSet, m_rightSet;
+	private BDIterator m_leftSet;
+	private BDSystemResultSet m_rightSet;
+	
+	/** The schema of the rows made, from the first left row */
+	private BDSchema m_schema;
 		
 	public BDCrossProductHandler(BDSystemResultSet leftSet, BDSystemResultSet rightSet) {
+		this(new BDResultSetIterator(leftSet), rightSet);
+	}
+	
+	public BDCrossProductHandler(BDIterator leftSet, BDSystemResultSet rightSet) {
 		m_leftSet = leftSet;
 		m_rightSet = rightSet;		
 	}
 	
-	public BDSystemResultSet execute() throws RollbackException {
-		BDSystemResultSet result = new BDSystemResultSet();		
-		
-		BDSchema temp = new BDSchema(m_leftSet.getSchema());
-		BDSchema temp2 = m_rightSet.getSchema();		
-			
-		for(int i = 0; i < temp2.size(); i++) {
-			temp.add(temp2.getName(i), temp2.getObjectType(i));
-		}		
-		
-		result.setSchema(temp);
-		
-		logger.debug("New schema: " + temp.getNames());
+	protected void openInputs() throws InterruptedException, RollbackException {
+		m_schema = null;
+		m_leftSet.open();
+	}
+
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		BDTuple t1 = m_leftSet.next();
+		if (t1 == null) {
+			return false;
+		}
+		if (m_rightSet.getNumTuples() == 0) {
+			return true;
+		}
 		
-		int i;
+		if (m_schema == null) {
+			m_schema = BDHandlerFunctions.joinSchema(t1.getSchema(), m_rightSet
+					.getSchema(), null);
+			logger.debug("New schema: " + m_schema.getNames());
+		}
 		
-		for(BDTuple t1 : m_leftSet.getTupleData()) {
-			for(BDTuple t2 : m_rightSet.getTupleData()) {				
-				BDTuple newTuple = new BDTuple(temp);					
-				for(i = 0; i < t1.getSchema().size(); i++) {
-					//System.out.println("Crossing: " + t1.getObject(i));
-					newTuple.setObject(i, t1.getObject(i));
-				}
-				logger.debug("T2 Schema size: " + t2.getSchema().size());
-				for(int j = 0; j < t2.getSchema().size(); j++) {
-					//System.out.println("Crossing: " + t2.getObject(j));
-					newTuple.setObject(i + j, t2.getObject(j));
-				}
-				result.addRow(newTuple);
-			}
+		for(BDTuple t2 : m_rightSet.getTupleData()) {				
+			rows.add(BDHandlerFunctions.joinTuples(m_schema, t1, t2, -1));
 		}
-			
-		return result;
+		return true;
+	}
+
+	protected void closeInputs() {
+		m_leftSet.close();
 	}
 }
@@ -0,0 +1,101 @@
+package bdsim.server.system.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bdsim.server.system.BDBatchFilter;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+import bdsim.server.system.index.BDIndex.RangeType;
+
+/**
+ * Keeps the rows of a pipeline whose columns compare with values the way
+ * BDSystemResultSet.getTuplesByRange keeps them, without making a result set
+ * of them. The rows are pulled a batch at a time, and each condition in turn
+ * narrows the batch down with a BDBatchFilter, so all of them are checked in
+ * one pass over the rows, comparing values as BDBatchFilter does.
+ */
+public class BDFilterHandler extends BDPipelineHandler {
+
+	private BDIterator m_input;
+
+	private List<RangeType> m_ranges = new ArrayList<RangeType>();
+
+	private List<String> m_fields = new ArrayList<String>();
+
+	private List<Comparable<?>> m_values = new ArrayList<Comparable<?>>();
+
+	/** The positions of the columns, found from the first row */
+	private int[] m_positions;
+
+	private BDBatchFilter[] m_filters;
+
+	private BDTuple[] m_batch;
+
+	public BDFilterHandler(BDIterator input, RangeType range, String field,
+			Comparable<?> value) {
+		m_input = input;
+		addCondition(range, field, value);
+	}
+
+	/**
+	 * Also keeps only the rows whose field compares with a value, before the
+	 * handler is opened.
+	 */
+	public void addCondition(RangeType range, String field, Comparable<?> value) {
+		m_ranges.add(range);
+		m_fields.add(field);
+		m_values.add(value);
+	}
+
+	protected void openInputs() throws InterruptedException, RollbackException {
+		m_positions = null;
+		m_filters = new BDBatchFilter[m_ranges.size()];
+		for (int i = 0; i < m_filters.length; i++) {
+			m_filters[i] = new BDBatchFilter(m_ranges.get(i), m_values.get(i));
+		}
+		m_batch = new BDTuple[BDBatchFilter.BATCH_SIZE];
+		m_input.open();
+	}
+
+	/**
+	 * Pulls a batch of rows and keeps those that pass every condition.
+	 */
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		int count = 0;
+		BDTuple t;
+		while (count < m_batch.length && (t = m_input.next()) != null) {
+			m_batch[count++] = t;
+		}
+		if (count == 0) {
+			return false;
+		}
+		if (m_positions == null) {
+			m_positions = new int[m_fields.size()];
+			for (int i = 0; i < m_positions.length; i++) {
+				m_positions[i] = m_batch[0].getSchema().getPosition(
+						m_fields.get(i));
+			}
+		}
+		for (int i = 0; i < m_filters.length && count > 0; i++) {
+			int selected = m_filters[i].select(m_batch, count, m_positions[i]);
+			int[] positions = m_filters[i].getSelected();
+			// The rows that pass move to the front of the batch, in order
+			for (int j = 0; j < selected; j++) {
+				m_batch[j] = m_batch[positions[j]];
+			}
+			count = selected;
+		}
+		for (int i = 0; i < count; i++) {
+			rows.add(m_batch[i]);
+		}
+		return true;
+	}
+
+	protected void closeInputs() {
+		m_filters = null;
+		m_batch = null;
+		m_input.close();
+	}
+}
@@ -5,6 +5,10 @@ import java.util.LinkedList;
 
 import bdsim.server.exec.BDTableColumnPair;
 import bdsim.server.exec.nodes.BDCondOpType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
 import bdsim.server.system.index.BDIndex.RangeType;
 
 /**
@@ -54,4 +58,68 @@ public class BDHandlerFunctions {
 		}
 		return columns;
 	}
+
+	/**
+	 * Makes the schema of a join: the columns of the left input followed by
+	 * those of the right input.
+	 * 
+	 * @param rightAttrib
+	 *            A column of the right input to leave out because it is equal
+	 *            to a column of the left input, or null to keep them all
+	 */
+	public static BDSchema joinSchema(BDSchema left, BDSchema right,
+			String rightAttrib) {
+		BDSchema schema = new BDSchema(left);
+		for (int i = 0; i < right.size(); i++) {
+			if (right.getName(i) != null && !right.getName(i).equals(rightAttrib)) {
+				schema.add(right.getName(i), right.getObjectType(i));
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Makes a row of a join from a row of each input.
+	 * 
+	 * @param schema
+	 *            The schema made by joinSchema
+	 * @param skip
+	 *            The position of the right input's column that joinSchema
+	 *            left out, or -1
+	 */
+	public static BDTuple joinTuples(BDSchema schema, BDTuple left,
+			BDTuple right, int skip) {
+		BDTuple tuple = new BDTuple(schema);
+		int i = 0;
+		for (int j = 0; j < left.getNumCols(); j++) {
+			tuple.setObject(i++, left.getObject(j));
+		}
+		for (int j = 0; j < right.getNumCols(); j++) {
+			if (j != skip) {
+				tuple.setObject(i++, right.getObject(j));
+			}
+		}
+		return tuple;
+	}
+
+	/**
+	 * Pulls all rows of a pipeline into a result set, the one copy of them
+	 * a query makes. The set is not charged to the memory manager: a handler
+	 * that holds it while it runs requests and releases its memory, and the
+	 * result of a query belongs to whoever it is sent to.
+	 */
+	public static BDSystemResultSet materialize(BDIterator rows)
+			throws InterruptedException, RollbackException {
+		BDSystemResultSet result = new BDSystemResultSet();
+		rows.open();
+		try {
+			BDTuple t;
+			while ((t = rows.next()) != null) {
+				result.addRowWithoutCopy(t);
+			}
+		} finally {
+			rows.close();
+		}
+		return result;
+	}
 }
@@ -0,0 +1,397 @@
+package bdsim.server.system.handler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSpillFile;
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * A hash join of two result sets on equal columns. The smaller input is put
+ * in a hash table on its join column, and each row of the larger input is
+ * looked up in it, so the join takes one pass over each input instead of
+ * comparing every pair of rows.
+ *
+ * The hash table has to fit in the memory the memory manager will give the
+ * join. When it does not, this is a Grace hash join: both inputs are split
+ * by the hash of their join column into partitions in spill files, which
+ * empties the inputs as it goes, and each pair of partitions is then joined
+ * on its own. A partition that is still too big is split again with another
+ * hash, up to MAX_DEPTH times.
+ *
+ * The result has the same columns as a BDNaturalJoinHandler: those of the
+ * left input followed by those of the right input without its join column.
+ * Rows with a null join column match nothing.
+ *
+ * Pulled as a pipeline, the hash table is built when the join is opened and
+ * each probe row is joined as the rows are pulled. A partitioned join makes
+ * all its rows when it is opened, as the partitions are gone through.
+ */
+public class BDHashJoinHandler extends BDPipelineHandler {
+
+	static Logger logger = Logger.getLogger(BDHashJoinHandler.class);
+
+	/** The most partitions an input is split into at once */
+	static final int MAX_PARTITIONS = 64;
+
+	/**
+	 * How many times a partition may be split again. A partition whose rows
+	 * all have the same key never gets smaller, so past this it is joined in
+	 * memory anyway.
+	 */
+	static final int MAX_DEPTH = 3;
+
+	private BDSystemResultSet m_leftSet, m_rightSet;
+
+	private String m_leftAttrib, m_rightAttrib;
+
+	private BDSchema m_schema;
+
+	/** The schemas of the build and probe inputs */
+	private BDSchema m_buildSchema, m_probeSchema;
+
+	private int m_buildCol, m_probeCol;
+
+	private boolean m_buildLeft;
+
+	/** The position of the right input's join column */
+	private int m_skip;
+
+	/** The hash table of the build input, when it fits in memory */
+	private Map<Object, List<BDTuple>> m_table;
+
+	private Iterator<BDTuple> m_probeRows;
+
+	/** The rows of a partitioned join, which are all made when it is opened */
+	private LinkedList<BDTuple> m_spilledRows;
+
+	/** The memory taken by the hash table */
+	private int m_tableBytes;
+
+	public BDHashJoinHandler(BDSystemResultSet leftSet,
+			BDSystemResultSet rightSet, String leftAttrib, String rightAttrib) {
+		m_leftSet = leftSet;
+		m_rightSet = rightSet;
+		m_leftAttrib = leftAttrib;
+		m_rightAttrib = rightAttrib;
+	}
+
+	protected void openInputs() throws InterruptedException,
+			RollbackException {
+		m_table = null;
+		m_probeRows = null;
+		m_spilledRows = null;
+		m_tableBytes = 0;
+		if (m_leftSet.getNumTuples() == 0 || m_rightSet.getNumTuples() == 0) {
+			return;
+		}
+
+		BDSchema leftSchema = m_leftSet.getSchema();
+		BDSchema rightSchema = m_rightSet.getSchema();
+		m_schema = BDHandlerFunctions.joinSchema(leftSchema, rightSchema,
+				m_rightAttrib);
+
+		int leftCol = leftSchema.getPosition(m_leftAttrib);
+		int rightCol = rightSchema.getPosition(m_rightAttrib);
+		m_skip = rightCol;
+
+		m_buildLeft = m_leftSet.getNumTuples() < m_rightSet.getNumTuples();
+		BDSystemResultSet build = m_buildLeft ? m_leftSet : m_rightSet;
+		BDSystemResultSet probe = m_buildLeft ? m_rightSet : m_leftSet;
+		m_buildSchema = build.getSchema();
+		m_probeSchema = probe.getSchema();
+		m_buildCol = m_buildLeft ? leftCol : rightCol;
+		m_probeCol = m_buildLeft ? rightCol : leftCol;
+
+		logger.debug("Hash join building " + build.getNumTuples()
+				+ " rows, probing " + probe.getNumTuples());
+
+		int bytes = tableSize(build.getNumTuples());
+		if (requestMemory(bytes)) {
+			m_tableBytes = bytes;
+			m_table = build(build.getTupleData().iterator());
+			m_probeRows = probe.getTupleData().iterator();
+		} else {
+			m_spilledRows = new LinkedList<BDTuple>();
+			try {
+				partitionedJoin(new Rows(build.getTupleData()), new Rows(probe
+						.getTupleData()), build.getNumTuples(), 0);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not spill a hash join", e);
+			}
+		}
+	}
+
+	/**
+	 * Joins the next probe row, or hands out the rows of a partitioned join.
+	 */
+	protected boolean fill(List<BDTuple> rows) {
+		if (m_spilledRows != null) {
+			if (m_spilledRows.isEmpty()) {
+				return false;
+			}
+			rows.add(m_spilledRows.removeFirst());
+			return true;
+		}
+		if (m_probeRows == null || !m_probeRows.hasNext()) {
+			return false;
+		}
+		probe(m_table, m_probeRows.next(), rows);
+		return true;
+	}
+
+	protected void closeInputs() {
+		m_table = null;
+		m_probeRows = null;
+		m_spilledRows = null;
+		releaseMemory(m_tableBytes);
+		m_tableBytes = 0;
+	}
+
+	/**
+	 * Takes memory for a hash table from the memory manager. The inputs
+	 * belong to whoever made them, so only the tables are counted here.
+	 *
+	 * @return true if the memory was given, or there is no memory manager
+	 */
+	private static boolean requestMemory(int bytes) {
+		return BDSystem.memoryManager == null
+				|| BDSystem.memoryManager.requestMemory(bytes);
+	}
+
+	private static void releaseMemory(int bytes) {
+		if (BDSystem.memoryManager != null) {
+			BDSystem.memoryManager.releaseMemory(bytes);
+		}
+	}
+
+	/**
+	 * @return The memory the hash table of a build input takes
+	 */
+	private int tableSize(int buildRows) {
+		return (int) Math.min(Integer.MAX_VALUE, (long) buildRows
+				* m_buildSchema.getMemorySize());
+	}
+
+	/**
+	 * Puts the rows of a build input in a hash table on their join column.
+	 */
+	private Map<Object, List<BDTuple>> build(Iterator<BDTuple> build) {
+		Map<Object, List<BDTuple>> table = new HashMap<Object, List<BDTuple>>();
+		while (build.hasNext()) {
+			BDTuple t = build.next();
+			Object key = t.getObject(m_buildCol);
+			if (key == null) {
+				continue;
+			}
+			List<BDTuple> matches = table.get(key);
+			if (matches == null) {
+				matches = new LinkedList<BDTuple>();
+				table.put(key, matches);
+			}
+			matches.add(t);
+		}
+		return table;
+	}
+
+	/**
+	 * Joins a probe row with its matches in a hash table.
+	 */
+	private void probe(Map<Object, List<BDTuple>> table, BDTuple t,
+			List<BDTuple> rows) {
+		Object key = t.getObject(m_probeCol);
+		List<BDTuple> matches = key == null ? null : table.get(key);
+		if (matches == null) {
+			return;
+		}
+		for (BDTuple match : matches) {
+			BDTuple left = m_buildLeft ? match : t;
+			BDTuple right = m_buildLeft ? t : match;
+			// The inputs were checked and copied when they were read, so
+			// the new row needs neither
+			rows.add(BDHandlerFunctions.joinTuples(m_schema, left, right,
+					m_skip));
+		}
+	}
+
+	/**
+	 * Joins a build input that fits in memory with a probe input.
+	 */
+	private void join(Iterator<BDTuple> build, Iterator<BDTuple> probe) {
+		Map<Object, List<BDTuple>> table = build(build);
+		while (probe.hasNext()) {
+			probe(table, probe.next(), m_spilledRows);
+		}
+	}
+
+	/**
+	 * Splits both inputs into partitions on disk, and joins each pair of
+	 * partitions in memory, or by splitting it again if it is too big.
+	 *
+	 * @param buildRows
+	 *            The number of rows in the build input
+	 * @param depth
+	 *            How many times these rows have been split already
+	 */
+	private void partitionedJoin(Iterator<BDTuple> build,
+			Iterator<BDTuple> probe, int buildRows, int depth)
+			throws IOException {
+		long available = Math.max(1, BDSystem.memoryManager.getAvailableMemory());
+		int numPartitions = (int) Math.min(MAX_PARTITIONS, Math.max(2,
+				tableSize(buildRows) / available + 1));
+		logger.debug("Hash join splitting " + buildRows + " rows into "
+				+ numPartitions + " partitions at depth " + depth);
+
+		BDSpillFile[] buildParts = new BDSpillFile[numPartitions];
+		BDSpillFile[] probeParts = new BDSpillFile[numPartitions];
+		try {
+			split(build, m_buildCol, buildParts, depth, null);
+			split(probe, m_probeCol, probeParts, depth, buildParts);
+
+			for (int i = 0; i < numPartitions; i++) {
+				if (buildParts[i] == null || probeParts[i] == null) {
+					continue;
+				}
+				int rows = buildParts[i].getNumTuples();
+				int bytes = tableSize(rows);
+				if (requestMemory(bytes)) {
+					try {
+						join(new Rows(buildParts[i].read(m_buildSchema)),
+								new Rows(probeParts[i].read(m_probeSchema)));
+					} finally {
+						releaseMemory(bytes);
+					}
+				} else if (depth + 1 < MAX_DEPTH) {
+					partitionedJoin(new Rows(buildParts[i].read(m_buildSchema)),
+							new Rows(probeParts[i].read(m_probeSchema)), rows,
+							depth + 1);
+				} else {
+					logger.warn("Hash join partition of " + rows
+							+ " rows does not fit in memory, joining it anyway");
+					join(new Rows(buildParts[i].read(m_buildSchema)), new Rows(
+							probeParts[i].read(m_probeSchema)));
+				}
+				buildParts[i].delete();
+				probeParts[i].delete();
+				buildParts[i] = null;
+				probeParts[i] = null;
+			}
+		} finally {
+			for (int i = 0; i < numPartitions; i++) {
+				if (buildParts[i] != null) {
+					buildParts[i].delete();
+				}
+				if (probeParts[i] != null) {
+					probeParts[i].delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the rows of an input to the partitions their keys hash to,
+	 * creating the files of partitions as they are needed.
+	 *
+	 * @param matching
+	 *            The partitions of the build input, to drop probe rows whose
+	 *            partition has no build rows; or null to keep all rows
+	 */
+	private void split(Iterator<BDTuple> rows, int col, BDSpillFile[] parts,
+			int depth, BDSpillFile[] matching) throws IOException {
+		while (rows.hasNext()) {
+			BDTuple t = rows.next();
+			Object key = t.getObject(col);
+			if (key == null) {
+				continue;
+			}
+			int part = partition(key, depth, parts.length);
+			if (matching != null && matching[part] == null) {
+				continue;
+			}
+			if (parts[part] == null) {
+				parts[part] = new BDSpillFile("bdsim-join");
+			}
+			parts[part].write(t);
+		}
+	}
+
+	/**
+	 * Picks the partition of a key. Each depth mixes the key's hash code
+	 * differently, so that the rows of one partition are spread over all
+	 * partitions when it is split again.
+	 */
+	static int partition(Object key, int depth, int numPartitions) {
+		int h = key.hashCode() + depth * 0x9E3779B9;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % numPartitions;
+	}
+
+	/**
+	 * Takes the rows of a list, removing each from the list so that the rows
+	 * already written to a partition can be collected; or the rows of a
+	 * spill file.
+	 */
+	private static final class Rows implements Iterator<BDTuple> {
+
+		private final Iterator<BDTuple> m_list;
+
+		private final BDSpillFile.Reader m_file;
+
+		private BDTuple m_next;
+
+		Rows(List<BDTuple> list) {
+			m_list = list.iterator();
+			m_file = null;
+		}
+
+		Rows(BDSpillFile.Reader file) {
+			m_list = null;
+			m_file = file;
+		}
+
+		public boolean hasNext() {
+			if (m_list != null) {
+				return m_list.hasNext();
+			}
+			if (m_next == null) {
+				try {
+					m_next = m_file.next();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return m_next != null;
+		}
+
+		public BDTuple next() {
+			if (m_list != null) {
+				BDTuple t = m_list.next();
+				m_list.remove();
+				return t;
+			}
+			hasNext();
+			BDTuple t = m_next;
+			m_next = null;
+			return t;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
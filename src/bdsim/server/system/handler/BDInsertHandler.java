@@ -1,5 +1,9 @@
 package bdsim.server.system.handler;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.log4j.Logger;
 
 import bdsim.server.exec.BDPlan;
@@ -11,7 +15,8 @@ import bdsim.server.system.BDTuple;
 import bdsim.server.system.concurrency.RollbackException;
 
 /**
- * Handles the insertion of data into a specific table.
+ * Handles the insertion of data into a specific table. All rows of an INSERT
+ * are added to the table together, and are committed in one batch.
  * 
  * @author dclee, wpijewsk
  */
@@ -36,16 +41,21 @@ public class BDInsertHandler implements BDHandler {
 			RollbackException {
 		BDTable tb = BDSystem.tableManager.getTableByName(m_table);
 		BDSystemResultSet result = new BDSystemResultSet();
-		BDTuple tp = new BDTuple(tb.getSchema());
-		for (int i = 0; i < tp.getNumCols(); i++) {
-			tp.setObject(i, m_plan.getData().get(
-					new BDTableColumnPair(m_table, tp.getName(i))));
-			logger.debug("New BDTuple: " + i + " "
-					+ new BDTableColumnPair(m_table, tp.getName(i)) + " : "
-					+ tp.getField(i));
+		List<BDTuple> tuples = new ArrayList<BDTuple>(m_plan.getRows().size());
+		for (Map<BDTableColumnPair, Object> row : m_plan.getRows()) {
+			BDTuple tp = new BDTuple(tb.getSchema());
+			for (int i = 0; i < tp.getNumCols(); i++) {
+				tp.setObject(i, row.get(new BDTableColumnPair(m_table, tp.getName(i))));
+				if (logger.isDebugEnabled()) {
+					logger.debug("New BDTuple: " + i + " "
+							+ new BDTableColumnPair(m_table, tp.getName(i)) + " : "
+							+ tp.getField(i));
+				}
+			}
+			tuples.add(tp);
+			result.addRowWithoutCopy(tp);
 		}
-		tb.insert(tp);
-		result.addRowWithoutCopy(tp);
+		tb.insertAll(tuples);
 		return result;
 	}
 }
\ No newline at end of file
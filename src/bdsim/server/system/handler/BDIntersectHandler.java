@@ -1,42 +1,79 @@
 package bdsim.server.system.handler;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.log4j.Logger;
 
-import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTuple;
 import bdsim.server.system.concurrency.RollbackException;
 
 /**
+ * The right input is pulled into a result set when the handler is opened,
+ * and its rows are counted in a hash table on their values; the left rows
+ * are pulled one at a time, and each is handed out once for every right row
+ * equal to it.
+ * 
  * @author dclee
  */
-public class BDIntersectHandler implements BDHandler {
+public class BDIntersectHandler extends BDPipelineHandler {
 
 	static Logger logger = Logger.getLogger(BDIntersectHandler.class);
-	private BDSystemResultSet m_leftSet, m_rightSet;
+	private BDIterator m_leftSet, m_rightInput;
+	private BDSystemResultSet m_rightSet;
+	private Map<BDTuple, Integer> m_rightCounts;
+
+	/** Whether the memory manager gave memory for the right rows */
+	private boolean m_held;
 
 	public BDIntersectHandler(BDSystemResultSet leftSet,
 			BDSystemResultSet rightSet) {
-		m_leftSet = leftSet;
-		m_rightSet = rightSet;
+		this(new BDResultSetIterator(leftSet), new BDResultSetIterator(rightSet));
 	}
 
-	public BDSystemResultSet execute() throws RollbackException {
-		BDSystemResultSet result = new BDSystemResultSet();
-		BDSchema schema = new BDSchema(m_leftSet.getSchema());
+	public BDIntersectHandler(BDIterator leftSet, BDIterator rightSet) {
+		m_leftSet = leftSet;
+		m_rightInput = rightSet;
+	}
 
-		result.setSchema(schema);
+	protected void openInputs() throws InterruptedException, RollbackException {
+		m_rightSet = BDHandlerFunctions.materialize(m_rightInput);
+		m_held = BDSystem.memoryManager != null
+				&& BDSystem.memoryManager.requestMemory(m_rightSet);
+		m_rightCounts = new HashMap<BDTuple, Integer>();
+		for (BDTuple t2 : m_rightSet.getTupleData()) {
+			Integer count = m_rightCounts.get(t2);
+			m_rightCounts.put(t2, count == null ? 1 : count + 1);
+		}
+		m_leftSet.open();
+	}
 
-		for (BDTuple t1 : m_leftSet.getTupleData()) {
-			for (BDTuple t2 : m_rightSet.getTupleData()) {
-				if (t1.equals(t2)) {
-					result.addRow(t1);
-					logger.debug("Intersect: adding new tuple: "
-							+ t1.getObjects());
-				}
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		BDTuple t1 = m_leftSet.next();
+		if (t1 == null) {
+			return false;
+		}
+		Integer count = m_rightCounts.get(t1);
+		for (int i = 0; count != null && i < count; i++) {
+			rows.add(t1);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Intersect: adding new tuple: " + t1.getObjects());
 			}
 		}
-			
-		return result;
+		return true;
+	}
+
+	protected void closeInputs() {
+		if (m_held) {
+			BDSystem.memoryManager.releaseMemory(m_rightSet);
+			m_held = false;
+		}
+		m_rightSet = null;
+		m_rightCounts = null;
+		m_leftSet.close();
 	}
 }
@@ -0,0 +1,27 @@
+package bdsim.server.system.handler;
+
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * The rows of a stage of a query, pulled one at a time by the stage after
+ * it. A stage is opened before its first row is pulled and closed after its
+ * last, and only asks the stages before it for as many rows as it needs to
+ * make its next one, so that the rows of a query flow through its handlers
+ * instead of each handler making a result set of them.
+ */
+public interface BDIterator {
+
+	public void open() throws InterruptedException, RollbackException;
+
+	/**
+	 * @return The next row, or null after the last one
+	 */
+	public BDTuple next() throws InterruptedException, RollbackException;
+
+	/**
+	 * Lets go of the stage's memory and of the stages before it. Called once
+	 * the rows wanted have been pulled, whether or not that was all of them.
+	 */
+	public void close();
+}
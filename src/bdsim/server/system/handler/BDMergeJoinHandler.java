@@ -0,0 +1,142 @@
+package bdsim.server.system.handler;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTable;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+import bdsim.server.system.index.BDSortedIndex.KeyOrderScan;
+
+/**
+ * A merge join of two tables on equal columns that both have an ordered
+ * index. The two indices are scanned side by side in key order, and only
+ * the rows whose key is on both sides are read, so the join takes one pass
+ * over each index and holds the rows of only one key at a time.
+ *
+ * The result has the same columns as a BDNaturalJoinHandler. If the
+ * transaction has changed one of the tables, its scan would miss those
+ * changes, so the tables are joined with a BDHashJoinHandler instead.
+ */
+public class BDMergeJoinHandler extends BDPipelineHandler {
+
+	static Logger logger = Logger.getLogger(BDMergeJoinHandler.class);
+
+	private BDTable m_leftTable, m_rightTable;
+
+	private String m_leftAttrib, m_rightAttrib;
+
+	private KeyOrderScan m_left, m_right;
+
+	/** The join used instead when a table cannot be scanned in key order */
+	private BDHashJoinHandler m_fallback;
+
+	private BDSchema m_schema;
+
+	/** The position of the right table's join column */
+	private int m_skip;
+
+	public BDMergeJoinHandler(BDTable leftTable, BDTable rightTable,
+			String leftAttrib, String rightAttrib) {
+		m_leftTable = leftTable;
+		m_rightTable = rightTable;
+		m_leftAttrib = leftAttrib;
+		m_rightAttrib = rightAttrib;
+	}
+
+	protected void openInputs() throws InterruptedException,
+			RollbackException {
+		m_fallback = null;
+		m_left = m_leftTable.scanInOrderOf(m_leftAttrib);
+		m_right = m_rightTable.scanInOrderOf(m_rightAttrib);
+		if (m_left == null || m_right == null) {
+			logger.debug("No ordered scan of " + m_leftTable.getName() + "."
+					+ m_leftAttrib + " and " + m_rightTable.getName() + "."
+					+ m_rightAttrib + ", hashing instead");
+			m_fallback = new BDHashJoinHandler(m_leftTable.getAllTuples(),
+					m_rightTable.getAllTuples(), m_leftAttrib, m_rightAttrib);
+			m_fallback.open();
+			return;
+		}
+
+		m_schema = BDHandlerFunctions.joinSchema(m_leftTable.getSchema(),
+				m_rightTable.getSchema(), m_rightAttrib);
+		m_skip = m_rightTable.getSchema().getPosition(m_rightAttrib);
+	}
+
+	/**
+	 * Advances the scans to the next key on both sides and joins the rows
+	 * with that key.
+	 */
+	@SuppressWarnings("unchecked")
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		if (m_fallback != null) {
+			BDTuple t = m_fallback.next();
+			if (t == null) {
+				return false;
+			}
+			rows.add(t);
+			return true;
+		}
+
+		while (m_left.isValid() && m_right.isValid()) {
+			// Null keys come first and match nothing
+			if (m_left.getKey() == null) {
+				m_left.advance();
+				continue;
+			}
+			if (m_right.getKey() == null) {
+				m_right.advance();
+				continue;
+			}
+			int cmp = compare(m_left.getKey(), m_right.getKey());
+			if (cmp < 0) {
+				m_left.advance();
+			} else if (cmp > 0) {
+				m_right.advance();
+			} else {
+				// Secondary indices may hold several rows with the key
+				Comparable<?> key = m_left.getKey();
+				BDSystemResultSet leftRows = new BDSystemResultSet();
+				while (m_left.isValid() && compare(m_left.getKey(), key) == 0) {
+					m_left.addTo(leftRows);
+					m_left.advance();
+				}
+				BDSystemResultSet rightRows = new BDSystemResultSet();
+				while (m_right.isValid() && compare(m_right.getKey(), key) == 0) {
+					m_right.addTo(rightRows);
+					m_right.advance();
+				}
+				for (BDTuple t1 : leftRows.getTupleData()) {
+					for (BDTuple t2 : rightRows.getTupleData()) {
+						rows.add(BDHandlerFunctions.joinTuples(m_schema, t1, t2,
+								m_skip));
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares two join keys, which come from columns of the same type.
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compare(Comparable<?> key1, Comparable<?> key2) {
+		return ((Comparable<Object>) key1).compareTo(key2);
+	}
+
+	protected void closeInputs() {
+		if (m_fallback != null) {
+			m_fallback.close();
+			m_fallback = null;
+		}
+		m_left = null;
+		m_right = null;
+	}
+}
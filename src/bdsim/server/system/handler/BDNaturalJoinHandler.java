@@ -1,19 +1,26 @@
 package bdsim.server.system.handler;
 
+import java.util.Iterator;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 
 import bdsim.server.system.BDSchema;
-import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTuple;
-import bdsim.server.system.concurrency.RollbackException;
 
-public class BDNaturalJoinHandler implements BDHandler {
+public class BDNaturalJoinHandler extends BDPipelineHandler {
 
 	private BDSystemResultSet m_leftSet, m_rightSet;
 	
 	private String m_leftAttrib, m_rightAttrib;
 	
+	private BDSchema m_schema;
+	
+	private int m_leftCol, m_skip;
+	
+	private Iterator<BDTuple> m_leftRows;
+	
 	private Logger logger = Logger.getLogger(BDNaturalJoinHandler.class);
 	
 	public BDNaturalJoinHandler(BDSystemResultSet leftSet, BDSystemResultSet rightSet,
@@ -25,51 +32,36 @@ public class BDNaturalJoinHandler implements BDHandler {
 		m_rightAttrib = rightAttrib;
 	}
 	
-	public BDSystemResultSet execute() throws InterruptedException, RollbackException {
-		BDSystemResultSet result = new BDSystemResultSet();		
-		
-		BDSchema temp = new BDSchema(m_leftSet.getSchema());
-		BDSchema temp2 = m_rightSet.getSchema();
-		
-		for(int i = 0; i < temp2.size(); i++) {			
-			if(temp2.getName(i) != null && !m_rightAttrib.equals(temp2.getName(i)))
-				temp.add(temp2.getName(i), temp2.getObjectType(i));
-		}		
-		
-		result.setSchema(temp);		
-		
-		logger.debug("New schema: " + temp.getNames());				
-		
-		String name;
-		int i, copyCounter;
-		
-		for(BDTuple t1 : m_leftSet.getTupleData()) {
-			for(BDTuple t2 : m_rightSet.getTupleData()) {
-				if(t1.getField(m_leftAttrib).equals(t2.getField(m_rightAttrib))) {
-					BDTuple newTuple = new BDTuple(temp);
-					copyCounter = 0;
-					for(i = 0; i < t1.getSchema().size(); i++) {
-						newTuple.setObject(i, t1.getObject(i));
-					}					
-					//System.out.println("i = " + i);
-					for(int j = 0; j < t2.getSchema().size(); j++) {						
-						name = temp.getName(i + copyCounter);
-						//System.out.println("schemaname " + name);
-						//System.out.println("schemaname " + t2.getName(j));
-						if((t2.getName(j)).equals(name)) {
-							//System.out.println("copy = " + copyCounter);
-							newTuple.setObject(i + copyCounter, t2.getObject(j));
-							copyCounter++;
-						}
-					}
-					result.addRow(newTuple);
-				}
+	protected void openInputs() {
+		m_leftRows = m_leftSet.getTupleData().iterator();
+		m_schema = null;
+		if (m_leftSet.getNumTuples() == 0 || m_rightSet.getNumTuples() == 0) {
+			return;
+		}
+		m_schema = BDHandlerFunctions.joinSchema(m_leftSet.getSchema(),
+				m_rightSet.getSchema(), m_rightAttrib);
+		logger.debug("New schema: " + m_schema.getNames());
+		m_leftCol = m_leftSet.getSchema().getPosition(m_leftAttrib);
+		m_skip = m_rightSet.getSchema().getPosition(m_rightAttrib);
+	}
+
+	protected boolean fill(List<BDTuple> rows) {
+		if (m_schema == null || !m_leftRows.hasNext()) {
+			return false;
+		}
+		BDTuple t1 = m_leftRows.next();
+		Object key = t1.getObject(m_leftCol);
+		if (key == null) {
+			return true;
+		}
+		for(BDTuple t2 : m_rightSet.getTupleData()) {
+			if(key.equals(t2.getObject(m_skip))) {
+				rows.add(BDHandlerFunctions.joinTuples(m_schema, t1, t2, m_skip));
 			}
 		}
-		BDSystem.memoryManager.requestMemory(result);
-		
-		BDSystem.memoryManager.releaseMemory(m_leftSet);
-		BDSystem.memoryManager.releaseMemory(m_rightSet);
-		return result;
+		return true;
+	}
+
+	protected void closeInputs() {
 	}
 }
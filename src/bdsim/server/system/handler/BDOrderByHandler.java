@@ -5,17 +5,22 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import bdsim.server.exec.BDOrderByInfo;
+import bdsim.server.system.BDMemoryManager;
 import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTuple;
 import bdsim.server.system.concurrency.RollbackException;
 
 /**
+ * Sorting needs all the rows, so when the rows come from a pipeline this is
+ * where they are pulled into a result set.
+ * 
  * @author dclee
  */
 public class BDOrderByHandler implements BDHandler {
 
 	private BDSystemResultSet m_original;
+	private BDIterator m_input;
 	private String m_table;
 	private List<BDOrderByInfo> m_ordering;
 	
@@ -27,12 +32,19 @@ public class BDOrderByHandler implements BDHandler {
 		m_ordering = columnsToProject;
 	}
 
+	public BDOrderByHandler(BDIterator input, List<BDOrderByInfo> columnsToProject) {
+		this((BDSystemResultSet) null, columnsToProject);
+		m_input = input;
+	}
+
 	public BDSystemResultSet execute() throws InterruptedException, RollbackException {
 
 		logger.debug("Ordering by: "
 				+ m_ordering.get(0).getColumn().getColumn());
 
-		BDSystem.memoryManager.requestMemory(m_original);
+		if (m_input != null) {
+			m_original = BDHandlerFunctions.materialize(m_input);
+		}
 
 		if (m_original == null) {
 			//Must get data from table first
@@ -42,13 +54,24 @@ public class BDOrderByHandler implements BDHandler {
 					.getAllTuples();
 		}
 
+		// The rows are held while they are sorted, and given back only if
+		// the memory manager gave them
+		BDMemoryManager memory = BDSystem.memoryManager;
+		boolean held = memory != null && memory.requestMemory(m_original);
+		if (!held) {
+			logger.debug("Sorting " + m_original.getNumTuples()
+					+ " rows without memory for them");
+		}
+
 		for (BDTuple t : m_original.getTupleData()) {
 			t.setTempKey(m_ordering.get(0).getColumn().getColumn());
 		}
 
 		m_original.sort(m_ordering.get(0).isAscending());
 
-		BDSystem.memoryManager.releaseMemory(m_original);
+		if (held) {
+			memory.releaseMemory(m_original);
+		}
 
 		return m_original;
 	}
@@ -0,0 +1,68 @@
+package bdsim.server.system.handler;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * A handler whose rows can also be pulled one at a time, as a stage of a
+ * pipeline. A stage makes its rows in small batches with fill, such as the
+ * rows one probe row joins with, and hands them out one by one; execute
+ * pulls all of them into a result set, for when this is the last stage.
+ */
+public abstract class BDPipelineHandler implements BDHandler, BDIterator {
+
+	private LinkedList<BDTuple> m_batch = new LinkedList<BDTuple>();
+
+	private boolean m_exhausted;
+
+	/**
+	 * Opens the stages before this one and gets ready to make rows.
+	 */
+	protected abstract void openInputs() throws InterruptedException,
+			RollbackException;
+
+	/**
+	 * Makes the next few rows of this stage, which may be none.
+	 *
+	 * @param rows
+	 *            Where the rows go
+	 * @return false if there are no more rows to make
+	 */
+	protected abstract boolean fill(List<BDTuple> rows)
+			throws InterruptedException, RollbackException;
+
+	/**
+	 * Closes the stages before this one and lets go of this stage's memory.
+	 */
+	protected abstract void closeInputs();
+
+	public void open() throws InterruptedException, RollbackException {
+		m_batch.clear();
+		m_exhausted = false;
+		openInputs();
+	}
+
+	public BDTuple next() throws InterruptedException, RollbackException {
+		while (m_batch.isEmpty()) {
+			if (m_exhausted || !fill(m_batch)) {
+				m_exhausted = true;
+				return null;
+			}
+		}
+		return m_batch.removeFirst();
+	}
+
+	public void close() {
+		m_batch.clear();
+		closeInputs();
+	}
+
+	public BDSystemResultSet execute() throws InterruptedException,
+			RollbackException {
+		return BDHandlerFunctions.materialize(this);
+	}
+}
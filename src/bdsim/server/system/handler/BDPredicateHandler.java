@@ -0,0 +1,43 @@
+package bdsim.server.system.handler;
+
+import java.util.List;
+
+import bdsim.server.system.BDPredicate;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * Keeps the rows of a pipeline that pass a predicate the planner compiled,
+ * testing each row once as it is pulled.
+ */
+public class BDPredicateHandler extends BDPipelineHandler {
+
+	private BDIterator m_input;
+
+	private BDPredicate m_predicate;
+
+	public BDPredicateHandler(BDIterator input, BDPredicate predicate) {
+		m_input = input;
+		m_predicate = predicate;
+	}
+
+	protected void openInputs() throws InterruptedException, RollbackException {
+		m_input.open();
+	}
+
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		BDTuple t;
+		while ((t = m_input.next()) != null) {
+			if (m_predicate.evaluate(t)) {
+				rows.add(t);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected void closeInputs() {
+		m_input.close();
+	}
+}
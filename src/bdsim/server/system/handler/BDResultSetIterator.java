@@ -0,0 +1,33 @@
+package bdsim.server.system.handler;
+
+import java.util.Iterator;
+
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+
+/**
+ * The rows of a result set that has already been made, such as the rows an
+ * index returns, as the first stage of a pipeline.
+ */
+public class BDResultSetIterator implements BDIterator {
+
+	private BDSystemResultSet m_set;
+
+	private Iterator<BDTuple> m_rows;
+
+	public BDResultSetIterator(BDSystemResultSet set) {
+		m_set = set;
+	}
+
+	public void open() {
+		m_rows = m_set.getTupleData().iterator();
+	}
+
+	public BDTuple next() {
+		return m_rows.hasNext() ? m_rows.next() : null;
+	}
+
+	public void close() {
+		m_rows = null;
+	}
+}
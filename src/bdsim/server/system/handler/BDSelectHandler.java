@@ -6,14 +6,18 @@ import org.apache.log4j.Logger;
 
 import bdsim.server.exec.BDCondition;
 import bdsim.server.exec.BDConditionList;
+import bdsim.server.exec.BDJoinAlgo;
 import bdsim.server.exec.BDPlan;
 import bdsim.server.exec.BDQueryType;
 import bdsim.server.exec.BDTableColumnPair;
 import bdsim.server.exec.nodes.BDCondOpType;
+import bdsim.server.system.BDResultStream;
+import bdsim.server.system.BDStreamingResultSet;
 import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTable;
 import bdsim.server.system.concurrency.RollbackException;
+import bdsim.server.system.index.BDIndex.RangeType;
 
 /**
  * @author dclee
@@ -24,20 +28,29 @@ public class BDSelectHandler implements BDHandler {
 	private BDPlan m_plan;
 	private BDConditionList m_conditions;
 	private List<String> m_tables;
+	private BDResultStream m_stream;
 
 	public BDSelectHandler(BDPlan p) {
+		this(p, null);
+	}
+
+	/**
+	 * @param stream
+	 *            Where the rows of a plain scan of one table go as they are
+	 *            read, or null to return all rows from execute
+	 */
+	public BDSelectHandler(BDPlan p, BDResultStream stream) {
 		m_plan = p;
 		m_conditions = p.getConditions();
 		m_tables = p.getTables();
+		m_stream = stream;
 	}
 
 	public BDSystemResultSet execute() throws InterruptedException, RollbackException {
 
-		BDSystemResultSet selected;
-		BDHandler handler, handler2;
+		BDIterator selected;
 
 		BDTable t1, t2;
-		BDSystemResultSet rs1, rs2;
 
 		if (m_tables.isEmpty()) {
 			Logger.getLogger(BDSelectHandler.class).error(
@@ -49,30 +62,55 @@ public class BDSelectHandler implements BDHandler {
 		}
 		if (m_tables.size() == 1) {
 			if (m_conditions == null || m_conditions.getNumConditions() == 0) {
-				selected = selectFromSingleTable(null);
+				if (m_stream != null && m_plan.getOrderByList().isEmpty()) {
+					// Nothing needs all rows at once, so they go straight
+					// from the index to the client
+					BDTable table = BDSystem.tableManager.getTableByName(m_tables.get(0));
+					table.addAllTuples(new BDStreamingResultSet(m_stream, m_plan
+							.isSelectAll() ? null : BDHandlerFunctions
+							.stripTables(m_plan.getColumnPairs())));
+					return new BDSystemResultSet();
+				}
+				selected = new BDResultSetIterator(selectFromSingleTable(null));
+			} else if (m_plan.getPredicate() != null) {
+				// Read all rows once and test each against all conditions
+				logger.debug("Testing each row with the compiled conditions");
+				selected = new BDPredicateHandler(new BDResultSetIterator(
+						BDSystem.tableManager.getTableByName(m_tables.get(0))
+								.getAllTuples()), m_plan.getPredicate());
+			} else if (m_plan.isFiltered()) {
+				// Read the rows once, and check the other conditions as they
+				// are read
+				BDCondition access = m_plan.getAccessCondition();
+				BDSystemResultSet rows;
+				if (access == null) {
+					rows = BDSystem.tableManager.getTableByName(m_tables.get(0))
+							.getAllTuples();
+				} else {
+					logger.debug("Reading with the index of " + access);
+					rows = selectFromSingleTable(access);
+					if (rows == null) {
+						return rows;
+					}
+				}
+				selected = new BDResultSetIterator(rows);
+				for (; m_conditions != null; m_conditions = m_conditions.getRest()) {
+					if (m_conditions.getCondition() != access) {
+						selected = selectFromResultSet(m_conditions
+								.getCondition(), selected);
+					}
+				}
 			} else {
-				selected = selectFromSingleTable(m_conditions.getCondition());
+				BDSystemResultSet first = selectFromSingleTable(m_conditions.getCondition());
 
 				// TODO wpijewsk Why would this assume that selected is not null?
-				if(selected == null) {
-					return selected;
+				if(first == null) {
+					return first;
 				}
-				
+				selected = new BDResultSetIterator(first);
+
 				if (m_conditions.getNumConditions() == 1) {
-					if (!(m_plan.isSelectAll() || m_plan.getQTtype() == BDQueryType.DELETE)) {
-						assert(selected != null);
-						assert(selected.getSchema() != null);
-						handler = new BDProjectHandler(selected,
-								BDHandlerFunctions.stripTables(m_plan
-										.getColumnPairs()));
-						selected = handler.execute();
-					}
-					if (!(m_plan.getOrderByList().isEmpty())) {
-						handler = new BDOrderByHandler(selected, m_plan
-								.getOrderByList());
-						selected = handler.execute();
-					}
-					return selected;
+					return finish(selected);
 				}
 
 				boolean lastAnd = m_conditions.isAndedTogether();
@@ -81,42 +119,27 @@ public class BDSelectHandler implements BDHandler {
 				while (m_conditions.getNumConditions() > 1) {
 					if (lastAnd) {
 						logger.debug("Performing an intersect");
-						handler = new BDIntersectHandler(selected,
-								selectFromSingleTable(m_conditions
-										.getCondition()));
-						selected = handler.execute();
+						selected = new BDIntersectHandler(selected,
+								iterate(m_conditions.getCondition()));
 					} else {
 						logger.debug("Performing a union");
-						handler = new BDUnionHandler(selected,
-								selectFromSingleTable(m_conditions
-										.getCondition()));
-						selected = handler.execute();
+						selected = new BDUnionHandler(selected,
+								iterate(m_conditions.getCondition()));
 					}
 					lastAnd = m_conditions.isAndedTogether();
 					m_conditions = m_conditions.getRest();
 				}
 				if (lastAnd) {
 					logger.debug("Performing an intersect");
-					handler = new BDIntersectHandler(selected,
-							selectFromSingleTable(m_conditions.getCondition()));
+					selected = new BDIntersectHandler(selected,
+							iterate(m_conditions.getCondition()));
 				} else {
 					logger.debug("Performing a union");
-					handler = new BDUnionHandler(selected,
-							selectFromSingleTable(m_conditions.getCondition()));
+					selected = new BDUnionHandler(selected,
+							iterate(m_conditions.getCondition()));
 				}
-				selected = handler.execute();
-			}
-			if (!(m_plan.isSelectAll() || m_plan.getQTtype() == BDQueryType.DELETE)) {
-				handler = new BDProjectHandler(selected, BDHandlerFunctions
-						.stripTables(m_plan.getColumnPairs()));
-				selected = handler.execute();
-			}
-			if (!(m_plan.getOrderByList().isEmpty())) {
-				handler = new BDOrderByHandler(selected, m_plan
-						.getOrderByList());
-				selected = handler.execute();
 			}
-			return selected;
+			return finish(selected);
 		}
 
 		if (m_tables.size() >= 2) {
@@ -125,44 +148,26 @@ public class BDSelectHandler implements BDHandler {
 				logger.debug("\n\nComputing cross product\n\n");
 
 				t1 = BDSystem.tableManager.getTableByName(m_tables.get(0));
-				rs1 = t1.getAllTuples();
+				selected = new BDResultSetIterator(t1.getAllTuples());
 				for (int j = 1; j < m_tables.size(); j++) {
 					t2 = BDSystem.tableManager.getTableByName(m_tables.get(j));
-					rs2 = t2.getAllTuples();
-					handler = new BDCrossProductHandler(rs1, rs2);
-					rs1 = handler.execute();
+					selected = new BDCrossProductHandler(selected, t2
+							.getAllTuples());
 				}
 
 				if (!(m_plan.isSelectAll())) {
-					handler2 = new BDProjectHandler(rs1, BDHandlerFunctions
+					selected = new BDProjectHandler(selected, BDHandlerFunctions
 							.stripTables(m_plan.getColumnPairs()));
-					return handler2.execute();
-				} else
-					return rs1;
+				}
+				return BDHandlerFunctions.materialize(selected);
 			}
 			// Else it's some other kind of join
 
 			else {
-				selected = selectFromSingleTable(m_conditions.getCondition());
+				selected = iterate(m_conditions.getCondition());
 
 				if (m_conditions.getNumConditions() == 1) {
-					// if(m_plan.isSelectAll()) return selected;
-					// handler = new BDProjectHandler(selected,
-					// BDHandlerFunctions.stripTables(m_plan.getColumnPairs()));
-					// selected = handler.execute();
-
-					if (!(m_plan.isSelectAll() || m_plan.getQTtype() == BDQueryType.DELETE)) {
-						handler = new BDProjectHandler(selected,
-								BDHandlerFunctions.stripTables(m_plan
-										.getColumnPairs()));
-						selected = handler.execute();
-					}
-					if (!(m_plan.getOrderByList().isEmpty())) {
-						handler = new BDOrderByHandler(selected, m_plan
-								.getOrderByList());
-						selected = handler.execute();
-					}
-					return selected;
+					return finish(selected);
 				}
 
 				boolean lastAnd = m_conditions.isAndedTogether();
@@ -170,65 +175,74 @@ public class BDSelectHandler implements BDHandler {
 				m_conditions = m_conditions.getRest();
 				while (m_conditions.getNumConditions() > 1) {
 					if (lastAnd) {
-						// logger.debug("Performing an intersect");
-						// handler = new BDIntersectHandler(selected,
-						// selectFromSingleTable(m_conditions.getCondition()));
-						// selected = handler.execute();
 						selected = selectFromResultSet(m_conditions
 								.getCondition(), selected);
 					} else {
 						logger.debug("Performing a union");
-						handler = new BDUnionHandler(selected,
-								selectFromSingleTable(m_conditions
-										.getCondition()));
-						selected = handler.execute();
+						selected = new BDUnionHandler(selected,
+								iterate(m_conditions.getCondition()));
 					}
 
 					lastAnd = m_conditions.isAndedTogether();
 					m_conditions = m_conditions.getRest();
 				}
 				if (m_conditions.isAndedTogether()) {
-					// logger.debug("Performing an intersect");
 					selected = selectFromResultSet(m_conditions.getCondition(),
 							selected);
 				} else {
 					logger.debug("Performing a union");
-					handler = new BDUnionHandler(selected,
-							selectFromSingleTable(m_conditions.getCondition()));
-					selected = handler.execute();
+					selected = new BDUnionHandler(selected,
+							iterate(m_conditions.getCondition()));
 				}
 			}
-
-			if (!(m_plan.isSelectAll() || m_plan.getQTtype() == BDQueryType.DELETE)) {
-				handler = new BDProjectHandler(selected, BDHandlerFunctions
-						.stripTables(m_plan.getColumnPairs()));
-				selected = handler.execute();
-			}
-			logger.debug("Checking order-by: ");
-			if (!(m_plan.getOrderByList().isEmpty())) {
-				logger.debug("Order-by found");
-				handler = new BDOrderByHandler(selected, m_plan
-						.getOrderByList());
-				selected = handler.execute();
-			}
-			return selected;
+			return finish(selected);
 		}
 		return null;
 	}
 
-	private BDSystemResultSet selectFromResultSet(BDCondition c,
-			BDSystemResultSet original) throws InterruptedException, RollbackException {
-		// BDCondition c;
-		BDTableColumnPair conditionTablePair;
-		Object conditionOtherArg;
-		BDCondOpType cType;
+	/**
+	 * Ends the pipeline of a query with its projection and ordering, and
+	 * pulls its rows.
+	 */
+	private BDSystemResultSet finish(BDIterator selected)
+			throws InterruptedException, RollbackException {
+		if (!(m_plan.isSelectAll() || m_plan.getQTtype() == BDQueryType.DELETE)) {
+			selected = new BDProjectHandler(selected, BDHandlerFunctions
+					.stripTables(m_plan.getColumnPairs()));
+		}
+		logger.debug("Checking order-by: ");
+		if (!(m_plan.getOrderByList().isEmpty())) {
+			logger.debug("Order-by found");
+			return new BDOrderByHandler(selected, m_plan.getOrderByList())
+					.execute();
+		}
+		return BDHandlerFunctions.materialize(selected);
+	}
 
-		if (m_conditions == null) {
-			return BDSystem.tableManager.getTableByName(
-					m_plan.getTables().get(0)).getAllTuples();
+	/**
+	 * Starts a pipeline with the rows that meet a condition. A join makes its
+	 * rows as they are pulled; other conditions are looked up in the table
+	 * when the pipeline is made.
+	 */
+	private BDIterator iterate(BDCondition cond) throws InterruptedException,
+			RollbackException {
+		if (cond.getLhsType() == BDCondition.ConditionValueType.COLUMN
+				&& cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
+			return join(cond);
 		}
+		BDSystemResultSet rows = selectFromSingleTable(cond);
+		return new BDResultSetIterator(rows == null ? new BDSystemResultSet()
+				: rows);
+	}
 
-		// c = m_conditions.getCondition();
+	/**
+	 * Keeps the rows of a pipeline that meet a condition comparing a column
+	 * with a value.
+	 */
+	private BDIterator selectFromResultSet(BDCondition c, BDIterator original) {
+		BDTableColumnPair conditionTablePair;
+		Object conditionOtherArg;
+		BDCondOpType cType;
 
 		if (c.getLhsType() != BDCondition.ConditionValueType.COLUMN
 				&& c.getRhsType() != BDCondition.ConditionValueType.COLUMN) {
@@ -239,43 +253,91 @@ public class BDSelectHandler implements BDHandler {
 			conditionTablePair = (BDTableColumnPair) c.getLhs();
 			conditionOtherArg = c.getRhs();
 			cType = c.getCondOp();
-			if (cType.equals(BDCondOpType.EQ))
-				return original.getTuplesByValue(
-						conditionTablePair.getColumn(),
-						(Comparable) conditionOtherArg);
-			else
-				return original.getTuplesByRange(BDHandlerFunctions
-						.condToRange(cType), conditionTablePair.getColumn(),
-						(Comparable) conditionOtherArg);
-
+			return filter(original, BDHandlerFunctions.condToRange(cType),
+					conditionTablePair.getColumn(),
+					(Comparable) conditionOtherArg);
 		}
 		// One column on right side
 		else {
 			conditionTablePair = (BDTableColumnPair) c.getRhs();
 			conditionOtherArg = c.getLhs();
 			cType = c.getCondOp();
-			if (cType.equals(BDCondOpType.EQ))
-				return original.getTuplesByValue(
-						conditionTablePair.getColumn(),
-						(Comparable) conditionOtherArg);
-			else
-				return original.getTuplesByRange(BDHandlerFunctions
-						.invertRange(BDHandlerFunctions.condToRange(cType)),
-						conditionTablePair.getColumn(),
-						(Comparable) conditionOtherArg);
+			return filter(original, BDHandlerFunctions
+					.invertRange(BDHandlerFunctions.condToRange(cType)),
+					conditionTablePair.getColumn(),
+					(Comparable) conditionOtherArg);
 		}
 		return null;
 	}
 
-	private BDSystemResultSet selectFromSingleTable(BDCondition cond)
-			throws InterruptedException, RollbackException {
+	/**
+	 * Adds a condition to the filter at the end of a pipeline, so that all
+	 * conditions are checked in one pass, or starts a filter.
+	 */
+	private BDIterator filter(BDIterator original, RangeType range,
+			String field, Comparable<?> value) {
+		if (original instanceof BDFilterHandler) {
+			((BDFilterHandler) original).addCondition(range, field, value);
+			return original;
+		}
+		return new BDFilterHandler(original, range, field, value);
+	}
 
+	/**
+	 * Makes the join of two tables a condition comparing a column of each
+	 * asks for, with the algorithm the planner chose.
+	 */
+	private BDPipelineHandler join(BDCondition cond) throws InterruptedException,
+			RollbackException {
 		BDTableColumnPair conditionTablePair;
 		BDTableColumnPair conditionTablePair2;
 		BDTable table, table2;
+		BDCondOpType condType;
+
+		conditionTablePair = (BDTableColumnPair) cond.getLhs();
+		table = BDSystem.tableManager.getTableByName(conditionTablePair
+				.getTable());
+
+		logger.debug("Column 1:" + conditionTablePair.getColumn());
+
+		conditionTablePair2 = (BDTableColumnPair) cond.getRhs();
+		table2 = BDSystem.tableManager.getTableByName(conditionTablePair2
+				.getTable());
+
+		logger.debug("Column 2:" + conditionTablePair2.getColumn());
+
+		condType = cond.getCondOp();
+		BDJoinAlgo algo = m_plan.getJoinAlgo(conditionTablePair,
+				conditionTablePair2);
+		if (algo == BDJoinAlgo.MERGE && condType.equals(BDCondOpType.EQ)) {
+			return new BDMergeJoinHandler(table, table2,
+					conditionTablePair.getColumn(), conditionTablePair2
+							.getColumn());
+		} else if (algo == BDJoinAlgo.HASH && condType.equals(BDCondOpType.EQ)) {
+			return new BDHashJoinHandler(table.getAllTuples(), table2
+					.getAllTuples(), conditionTablePair.getColumn(),
+					conditionTablePair2.getColumn());
+		} else if (algo == BDJoinAlgo.BNLJ) {
+			return new BDBNLJoinHandler(table.getAllTuples(), table2
+					.getAllTuples(), conditionTablePair.getColumn(),
+					condType, conditionTablePair2.getColumn());
+		} else if (condType.equals(BDCondOpType.EQ)) {
+			return new BDNaturalJoinHandler(table.getAllTuples(), table2
+					.getAllTuples(), conditionTablePair.getColumn(),
+					conditionTablePair2.getColumn());
+		} else {
+			assert false;
+			return null;
+		}
+	}
+
+	private BDSystemResultSet selectFromSingleTable(BDCondition cond)
+			throws InterruptedException, RollbackException {
+
+		BDTableColumnPair conditionTablePair;
+		BDTable table;
 		Object conditionOtherArg;
 		BDCondOpType condType;
-		BDHandler handler;
 
 		if (m_conditions == null) {
 			return BDSystem.tableManager.getTableByName(
@@ -293,28 +355,8 @@ public class BDSelectHandler implements BDHandler {
 		// We need to join tables if there are two columns compared
 		if (cond.getLhsType() == BDCondition.ConditionValueType.COLUMN
 				&& cond.getRhsType() == BDCondition.ConditionValueType.COLUMN) {
-			conditionTablePair = (BDTableColumnPair) cond.getLhs();
-			table = BDSystem.tableManager.getTableByName(conditionTablePair
-					.getTable());
-
-			logger.debug("Column 1:" + conditionTablePair.getColumn());
-
-			conditionTablePair2 = (BDTableColumnPair) cond.getRhs();
-			table2 = BDSystem.tableManager.getTableByName(conditionTablePair2
-					.getTable());
-
-			logger.debug("Column 2:" + conditionTablePair2.getColumn());
-
-			condType = cond.getCondOp();
-			if (condType.equals(BDCondOpType.EQ)) {
-				handler = new BDNaturalJoinHandler(table.getAllTuples(), table2
-						.getAllTuples(), conditionTablePair.getColumn(),
-						conditionTablePair2.getColumn());
-				return handler.execute();
-			} else {
-				assert false;
-			}
-
+			BDPipelineHandler join = join(cond);
+			return join == null ? null : join.execute();
 		}
 		
 		// One column on left side
@@ -334,7 +376,12 @@ public class BDSelectHandler implements BDHandler {
 				return table.getTuplesByValue(conditionTablePair.getColumn(),
 						conditionOtherArg);
 			} else {
-				if (!table.isPrimaryKey(conditionTablePair.getColumn())) {
+				if (table.isSecondaryIndex(conditionTablePair.getColumn())) {
+					return table.getTuplesByRange(
+							BDHandlerFunctions.condToRange(condType),
+							conditionTablePair.getColumn(),
+							(Comparable) conditionOtherArg);
+				} else if (!table.isPrimaryKey(conditionTablePair.getColumn())) {
 					logger.debug("\nGetting from result set:");
 					return table.getAllTuples().getTuplesByRange(
 							BDHandlerFunctions.condToRange(condType),
@@ -369,7 +416,13 @@ public class BDSelectHandler implements BDHandler {
 				return table.getTuplesByValue(conditionTablePair.getColumn(),
 						conditionOtherArg);
 			else {
-				if (!table.isPrimaryKey(conditionTablePair.getColumn())) {
+				if (table.isSecondaryIndex(conditionTablePair.getColumn())) {
+					return table.getTuplesByRange(
+							BDHandlerFunctions.invertRange(BDHandlerFunctions
+									.condToRange(condType)),
+							conditionTablePair.getColumn(),
+							(Comparable) conditionOtherArg);
+				} else if (!table.isPrimaryKey(conditionTablePair.getColumn())) {
 					return table.getAllTuples().getTuplesByRange(
 							BDHandlerFunctions.invertRange(BDHandlerFunctions
 									.condToRange(condType)),
@@ -383,6 +436,5 @@ public class BDSelectHandler implements BDHandler {
 							(Comparable) conditionOtherArg);
 			}
 		}
-		return null;
 	}
 }
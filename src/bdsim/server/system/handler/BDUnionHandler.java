@@ -1,38 +1,63 @@
 package bdsim.server.system.handler;
 
-import bdsim.server.system.BDSchema;
-import bdsim.server.system.BDSystem;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDTuple;
 import bdsim.server.system.concurrency.RollbackException;
 
 /**
+ * The rows handed out are kept in a hash set on their values, so each right
+ * row is looked up in constant time.
+ * 
  * @author dclee, wpijewsk, acath
  */
-public class BDUnionHandler implements BDHandler {
+public class BDUnionHandler extends BDPipelineHandler {
+
+	private BDIterator m_leftSet, m_rightSet;
 
-	private BDSystemResultSet m_leftSet, m_rightSet;
+	/** The rows handed out so far, to leave out right rows already in them */
+	private Set<BDTuple> m_seen;
 
 	public BDUnionHandler(BDSystemResultSet leftSet, BDSystemResultSet rightSet) {
+		this(new BDResultSetIterator(leftSet), new BDResultSetIterator(rightSet));
+	}
+
+	public BDUnionHandler(BDIterator leftSet, BDIterator rightSet) {
 		m_leftSet = leftSet;
 		m_rightSet = rightSet;
 	}
 
-	public BDSystemResultSet execute() throws RollbackException {
-		BDSystemResultSet result = new BDSystemResultSet();
-		result.setSchema(new BDSchema(m_leftSet.getSchema()));
+	protected void openInputs() throws InterruptedException, RollbackException {
+		m_seen = new HashSet<BDTuple>();
+		m_leftSet.open();
+		m_rightSet.open();
+	}
 
-		for (BDTuple t1 : m_leftSet.getTupleData()) {
-			result.addRow(t1);
+	protected boolean fill(List<BDTuple> rows) throws InterruptedException,
+			RollbackException {
+		BDTuple t1 = m_leftSet.next();
+		if (t1 != null) {
+			m_seen.add(t1);
+			rows.add(t1);
+			return true;
 		}
 
-		for (BDTuple t2 : m_rightSet.getTupleData()) {
-			if (!(result.hasTuple(t2))) {
-				result.addRow(t2);
-			}
+		BDTuple t2 = m_rightSet.next();
+		if (t2 == null) {
+			return false;
+		}
+		if (m_seen.add(t2)) {
+			rows.add(t2);
 		}
+		return true;
+	}
 
-		BDSystem.memoryManager.requestMemory(result);
-		return result;
+	protected void closeInputs() {
+		m_seen = null;
+		m_leftSet.close();
+		m_rightSet.close();
 	}
 }
@@ -0,0 +1,115 @@
+package bdsim.server.system.index;
+
+import java.util.Random;
+import java.util.Vector;
+
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+
+/**
+ * Measures point-lookup latency of the B+ tree for several d-values, once with
+ * the generic Comparable nodes and once with the unboxed double[] nodes used
+ * for numeric keys. Each tree is loaded with the same random keys, warmed up
+ * so the JIT settles, and then timed over a fixed number of random finds.
+ *
+ * Run with: ant bench-btree [-Dbench.tuples=N]
+ */
+public final class BDBPlusTreeBenchmark {
+
+	/** The d-values to measure */
+	private static final int[] D_VALUES = { 2, 16, 64, 256 };
+
+	/** Default number of tuples loaded into each tree */
+	private static final int DEFAULT_TUPLES = 100000;
+
+	/** Lookups per warmup round and per measured round */
+	private static final int LOOKUPS_PER_ROUND = 200000;
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int MEASURED_ROUNDS = 10;
+
+	private static final String KEY_NAME = "id";
+
+	/** Key types to pass to the index: null for generic nodes */
+	private static final BDObjectType[] KEY_TYPES = { null, BDObjectType.DOUBLE };
+
+	public static void main(String[] args) throws InterruptedException {
+		int numTuples = DEFAULT_TUPLES;
+		if (args.length > 0) {
+			numTuples = Integer.parseInt(args[0]);
+		}
+
+		Vector<String> names = new Vector<String>();
+		names.add(KEY_NAME);
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		types.add(BDObjectType.DOUBLE);
+		BDSchema schema = new BDSchema(names, types);
+
+		Random random = new Random(127);
+		Double[] keys = new Double[numTuples];
+		for (int i = 0; i < numTuples; i++) {
+			keys[i] = Double.valueOf(random.nextInt(Integer.MAX_VALUE));
+		}
+		Double[] probes = new Double[LOOKUPS_PER_ROUND];
+		for (int i = 0; i < probes.length; i++) {
+			probes[i] = keys[random.nextInt(numTuples)];
+		}
+
+		System.out.printf("%8s %8s %12s %14s%n", "nodes", "d", "tuples",
+				"ns/lookup");
+		for (BDObjectType keyType : KEY_TYPES) {
+			String nodes = (keyType == null) ? "generic" : "double";
+			for (int d : D_VALUES) {
+				BDBPlusTreeIndex.BDBPlusTree tree = load(schema, keys, d, keyType);
+
+				for (int round = 0; round < WARMUP_ROUNDS; round++) {
+					lookup(tree, probes);
+				}
+				long elapsed = 0;
+				for (int round = 0; round < MEASURED_ROUNDS; round++) {
+					elapsed += lookup(tree, probes);
+				}
+				double nsPerLookup = (double) elapsed
+						/ ((long) MEASURED_ROUNDS * probes.length);
+				System.out.printf("%8s %8d %12d %14.1f%n", nodes, d, numTuples,
+						nsPerLookup);
+			}
+		}
+	}
+
+	private static BDBPlusTreeIndex.BDBPlusTree load(BDSchema schema,
+			Double[] keys, int d, BDObjectType keyType)
+			throws InterruptedException {
+		BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, d, KEY_NAME, true,
+				keyType);
+
+		for (Double key : keys) {
+			BDTuple tuple = new BDTuple(schema);
+			tuple.setObject(0, key);
+			index.getTree().insert(tuple);
+		}
+		return index.getTree();
+	}
+
+	/**
+	 * @return nanoseconds spent finding every probe
+	 */
+	private static long lookup(BDBPlusTreeIndex.BDBPlusTree tree,
+			Double[] probes) {
+		int found = 0;
+		long start = System.nanoTime();
+		for (Double probe : probes) {
+			if (tree.find(probe)) {
+				found++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if (found != probes.length) {
+			throw new IllegalStateException("Only found " + found + " of "
+					+ probes.length + " keys");
+		}
+		return elapsed;
+	}
+}
@@ -0,0 +1,163 @@
+package bdsim.server.system.index;
+
+import bdsim.server.system.BDTuple;
+
+/**
+ * A position in the leaf level of a B+ tree. The cursor walks the leaf chain
+ * one entry at a time, either forwards (ascending keys) or backwards
+ * (descending keys), so a range scan only touches the leaves it returns.
+ *
+ * Cursors are obtained from BDBPlusTreeIndex.BDBPlusTree and may be used while
+ * other threads change the tree. The cursor only holds a leaf's latch while it
+ * reads the current entry, and remembers the last key it returned. When it
+ * finds the leaf chain changed under it, it searches the tree again for the
+ * next key past that one. Keys come out in order and at most once; entries
+ * added or removed during the scan may or may not be seen.
+ */
+public class BDBPlusTreeCursor implements BDIndexCursor {
+
+	private BDBPlusTreeIndex.BDBPlusTree m_tree;
+	private boolean m_forward;
+
+	/** The current leaf, or null once the cursor ran off the end */
+	private BDBPlusTreeNode m_leaf;
+	private int m_slot;
+
+	/** The current entry, as read under the leaf's latch */
+	private Comparable<?> m_key;
+	private BDTuple m_tuple;
+
+	/**
+	 * Where to search from if the leaf chain changes: the last key returned,
+	 * or the key the cursor was opened at (null for either end of the tree)
+	 */
+	private Comparable<?> m_bound;
+
+	/** Whether an entry with key m_bound is still to be returned */
+	private boolean m_inclusive;
+
+	/**
+	 * @param tree The tree to walk
+	 * @param start The cursor starts at the first entry >= start (forwards)
+	 *            or the last entry <= start (backwards); null starts at the
+	 *            first or last entry of the tree
+	 * @param forward True to move towards larger keys
+	 */
+	BDBPlusTreeCursor(BDBPlusTreeIndex.BDBPlusTree tree, Comparable<?> start,
+			boolean forward) {
+		m_tree = tree;
+		m_forward = forward;
+		m_bound = start;
+		m_inclusive = true;
+		seek();
+		settle();
+	}
+
+	/**
+	 * @return true while the cursor points at an entry
+	 */
+	public boolean isValid() {
+		return m_leaf != null;
+	}
+
+	/**
+	 * @return the key at the current entry
+	 */
+	public Comparable<?> getKey() {
+		return m_key;
+	}
+
+	/**
+	 * @return the tuple at the current entry
+	 */
+	public BDTuple getTuple() {
+		return m_tuple;
+	}
+
+	/**
+	 * @return the leaf the cursor currently points into
+	 */
+	public BDBPlusTreeNode getLeaf() {
+		return m_leaf;
+	}
+
+	/**
+	 * Moves to the next entry in the cursor's direction.
+	 */
+	public void advance() {
+		m_leaf.getLatch().readLock().lock();
+		if (m_leaf.isRemoved()) {
+			m_leaf.getLatch().readLock().unlock();
+			seek();
+		} else if (m_slot < m_leaf.keyCount()
+				&& BDBPlusTreeIndex.compareKeys(m_leaf.getKey(m_slot), m_key) == 0) {
+			m_slot += m_forward ? 1 : -1;
+		} else {
+			// Entries moved within the leaf
+			position();
+		}
+		settle();
+	}
+
+	/**
+	 * Searches the tree for the entry after m_bound and latches its leaf.
+	 */
+	private void seek() {
+		m_leaf = m_tree.latchLeafShared(m_bound, m_forward);
+		position();
+	}
+
+	/**
+	 * Sets the slot to the entry after m_bound in the latched leaf, which may
+	 * be just past either end of the leaf.
+	 */
+	private void position() {
+		if (m_bound == null) {
+			m_slot = m_forward ? 0 : m_leaf.keyCount() - 1;
+			return;
+		}
+		int pos = m_leaf.findKeyPosition(m_bound);
+		if (pos >= 0) {
+			m_slot = m_inclusive ? pos : pos + (m_forward ? 1 : -1);
+		} else {
+			m_slot = -(pos + 1) - (m_forward ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Starting from the latched leaf, follows the leaf chain until the slot
+	 * is inside a leaf, reads that entry and releases the latch. Leaves the
+	 * cursor invalid when it runs off the end.
+	 */
+	private void settle() {
+		while (true) {
+			if (m_slot >= 0 && m_slot < m_leaf.keyCount()) {
+				m_key = m_leaf.getKey(m_slot);
+				m_tuple = m_leaf.tupleAt(m_slot);
+				m_leaf.getLatch().readLock().unlock();
+				m_bound = m_key;
+				m_inclusive = false;
+				return;
+			}
+			BDBPlusTreeNode from = m_leaf;
+			BDBPlusTreeNode next = m_forward ? from.getNext() : from.getPrev();
+			from.getLatch().readLock().unlock();
+			if (next == null) {
+				m_leaf = null;
+				m_key = null;
+				m_tuple = null;
+				return;
+			}
+			next.getLatch().readLock().lock();
+			if (next.isRemoved() || (m_forward ? next.getPrev() : next.getNext()) != from) {
+				// The neighbour was split or merged since we read the link
+				next.getLatch().readLock().unlock();
+				seek();
+				continue;
+			}
+			// Entries may have been moved over from the leaf we left
+			m_leaf = next;
+			position();
+		}
+	}
+}
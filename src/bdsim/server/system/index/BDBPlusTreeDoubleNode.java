@@ -0,0 +1,123 @@
+package bdsim.server.system.index;
+
+import java.util.Arrays;
+
+/**
+ * A BDBPlusTreeNode for numeric keys. The keys are kept unboxed in a sorted
+ * double[] instead of a Vector of Comparables, so lookups compare primitives
+ * in one contiguous array and inserts do not store a key object per entry.
+ *
+ * Every numeric column (INTEGER, FLOAT and DOUBLE) is held as a Double by the
+ * rest of the system, so a double[] represents all of them exactly for the
+ * values the system produces. Keys are still handed out as Doubles through
+ * getKey() so that the tree algorithms work unchanged.
+ */
+public class BDBPlusTreeDoubleNode extends BDBPlusTreeNode {
+
+	private double[] m_keys;
+	private int m_keyCount;
+
+	/**
+	 * @see BDBPlusTreeNode#BDBPlusTreeNode(int, int, boolean)
+	 */
+	public BDBPlusTreeDoubleNode(int d, int id, boolean leaf) {
+		super(d, id, leaf, null);
+		m_keys = new double[2 * d + 1];
+		m_keyCount = 0;
+	}
+
+	/**
+	 * @param index
+	 * @return the unboxed key stored at this 0-based index
+	 */
+	public double getDoubleKey(int index) {
+		if (index >= m_keyCount) {
+			throw new ArrayIndexOutOfBoundsException(index + " >= " + m_keyCount);
+		}
+		return m_keys[index];
+	}
+
+	public Comparable<?> getKey(int index) {
+		return Double.valueOf(getDoubleKey(index));
+	}
+
+	public int keyCount() {
+		return m_keyCount;
+	}
+
+	protected void addKey(int index, Comparable<?> key) {
+		if (m_keyCount == m_keys.length) {
+			m_keys = Arrays.copyOf(m_keys, m_keys.length * 2);
+		}
+		System.arraycopy(m_keys, index, m_keys, index + 1, m_keyCount - index);
+		m_keys[index] = toDouble(key);
+		m_keyCount++;
+	}
+
+	protected void removeKey(int index) {
+		System.arraycopy(m_keys, index + 1, m_keys, index, m_keyCount - index - 1);
+		m_keyCount--;
+	}
+
+	protected void setKey(int index, Comparable<?> key) {
+		m_keys[index] = toDouble(key);
+	}
+
+	protected void clearKeys() {
+		m_keyCount = 0;
+	}
+
+	/**
+	 * Boxed keys handed out by getKey() are fresh objects, so keys are
+	 * matched by value rather than by identity.
+	 */
+	protected boolean isKey(int index, Comparable<?> key) {
+		return m_keys[index] == toDouble(key);
+	}
+
+	protected int lowerBound(Comparable<?> key) {
+		return lowerBound(toDouble(key));
+	}
+
+	private int lowerBound(double k) {
+		int low = 0;
+		int high = m_keyCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (m_keys[mid] < k) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	protected int upperBound(Comparable<?> key) {
+		double k = toDouble(key);
+		int low = 0;
+		int high = m_keyCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (m_keys[mid] <= k) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	public int findKeyPosition(Comparable<?> key) {
+		double k = toDouble(key);
+		int i = lowerBound(k);
+		if (i < m_keyCount && m_keys[i] == k) {
+			return i;
+		}
+		return -(i + 1);
+	}
+
+	private static double toDouble(Comparable<?> key) {
+		return ((Number) key).doubleValue();
+	}
+}
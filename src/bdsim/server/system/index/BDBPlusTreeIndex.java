@@ -1,27 +1,27 @@
 package bdsim.server.system.index;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
+import bdsim.server.system.BDObjectType;
 import bdsim.server.system.BDSystem;
-import bdsim.server.system.BDSystemResultSet;
-import bdsim.server.system.BDSystemThread;
 import bdsim.server.system.BDTable;
 import bdsim.server.system.BDTuple;
-import bdsim.server.system.concurrency.RollbackException;
 //import javafx.scene.Parent;
 
 @SuppressWarnings("unchecked")
-public class BDBPlusTreeIndex implements BDIndex {
+public class BDBPlusTreeIndex extends BDSortedIndex {
 	
 	/** Counter for BDBPlusTreeNode ids */
-	protected static int m_insert_id = 1000;
+	protected static final AtomicInteger m_insert_id = new AtomicInteger(1000);
 	
 	/** Whether we check the validity of the tree after each insert/delete */
 	protected static boolean m_checkTree;
@@ -29,6 +29,16 @@ public class BDBPlusTreeIndex implements BDIndex {
 	/** Whether we should output disk operations used after each insert/delete */
 	protected static boolean m_outputDiskUse;
 	
+	/**
+	 * The tree can be used by several threads at once. Every node has a
+	 * read/write latch, and operations latch their way down from the root
+	 * ("latch crabbing"): readers hold at most one node at a time, releasing
+	 * the parent once the child is latched, while insert and delete keep the
+	 * path from the lowest node that will not split or merge down to the
+	 * leaf. Each operation keeps its own search path. The leaf chain is
+	 * followed without latches and checked by the cursors (see
+	 * BDBPlusTreeCursor).
+	 */
 	public class BDBPlusTree {
 		
 		/** 
@@ -38,13 +48,16 @@ public class BDBPlusTreeIndex implements BDIndex {
 		private int m_d;
 		
 		/** 
-		 * Is this a primary index? 
-		 * cs127 hint: all of our indices are primary. Don't worry about duplicates.
+		 * Is this a primary index? Secondary indices key their entries with
+		 * BDSecondaryKeys, so rows sharing a value are all kept.
 		 */
 		private boolean m_isPrimary;
 		
 		/** Root of the tree */
-		private BDBPlusTreeNode m_root;
+		private volatile BDBPlusTreeNode m_root;
+		
+		/** Guards m_root; held by writers until they know the root stays */
+		private final ReentrantReadWriteLock m_rootLatch = new ReentrantReadWriteLock();
 
 		public BDBPlusTreeNode getTreeRoot() {
 			return m_root;
@@ -53,21 +66,6 @@ public class BDBPlusTreeIndex implements BDIndex {
 		/** Number of nodes in the whole tree */
 		private int m_numNodes;
 		
-		/** 
-		 * Number of completed disk operations
-		 * Use these fields for the Analysis & Tuning part
-		 * You will need to increment and output these values
-		 * when needed. 
-		 */
-		protected int m_readNumDiskOps = 0; 
-		protected int m_writeNumDiskOps = 0;
-		
-		/** 
-		 * Saves the path of most recent call to find(), which prevents
-		 * the need for parent pointers.
-		 */
-		private Vector<BDBPlusTreeNode> m_searchPath;
-		
 		/** 
 		 * All leaves of the tree (for fast sequential access)
 		 * cs127 hint: unimportant.
@@ -84,27 +82,183 @@ public class BDBPlusTreeIndex implements BDIndex {
 		public BDBPlusTree(int d, boolean isPrimary) {
 			m_d = d;
 			m_isPrimary = isPrimary;
-			m_root = new BDBPlusTreeNode(m_d, m_numNodes, true);
+			m_root = newNode(m_d, m_numNodes, true);
 			m_leaves = new Vector<BDBPlusTreeNode>();
-			m_searchPath = new Vector<BDBPlusTreeNode>();
 		}
 
+		/**
+		 * @return All leaves of the tree in key order, collected by walking
+		 *         the leaf chain from the leftmost leaf
+		 */
 		public Vector<BDBPlusTreeNode> getLeaves() {
-			return this.getLeavesHelper(m_root);
-		}
-
-		private Vector<BDBPlusTreeNode> getLeavesHelper(BDBPlusTreeNode  node) {
 			Vector<BDBPlusTreeNode> leaves = new Vector<BDBPlusTreeNode>();
-			if(node.isLeaf()) {
-				leaves.add(node);
-			} else {
-				for(BDBPlusTreeNode child : node.getChildren()) {
-					leaves.addAll(getLeavesHelper(child));
-				}
+			for (BDBPlusTreeNode leaf = getFirstLeaf(); leaf != null; leaf = leaf.getNext()) {
+				leaves.add(leaf);
 			}
-			
 			return leaves;
 		}
+		
+		/**
+		 * @return The leftmost leaf of the tree. Like getLeaves, this takes no
+		 *         latches and is meant for tests and the visualizer.
+		 */
+		public BDBPlusTreeNode getFirstLeaf() {
+			BDBPlusTreeNode curr = m_root;
+			while (!curr.isLeaf()) {
+				curr = curr.getChild(0);
+			}
+			return curr;
+		}
+		
+		/**
+		 * @return The rightmost leaf of the tree
+		 */
+		public BDBPlusTreeNode getLastLeaf() {
+			BDBPlusTreeNode curr = m_root;
+			while (!curr.isLeaf()) {
+				curr = curr.getLastChild();
+			}
+			return curr;
+		}
+		
+		/**
+		 * @return A cursor over every entry of the tree in ascending key order
+		 */
+		public BDBPlusTreeCursor cursorFirst() {
+			return new BDBPlusTreeCursor(this, null, true);
+		}
+		
+		/**
+		 * @return A cursor over every entry of the tree in descending key order
+		 */
+		public BDBPlusTreeCursor cursorLast() {
+			return new BDBPlusTreeCursor(this, null, false);
+		}
+		
+		/**
+		 * Positions a cursor next to a key.
+		 * 
+		 * @param value The key to seek to
+		 * @param forward If true, the cursor starts at the first entry >= value
+		 *            and moves up; otherwise it starts at the last entry <=
+		 *            value and moves down
+		 * @return A cursor positioned at value
+		 */
+		public BDBPlusTreeCursor cursorAt(Comparable<?> value, boolean forward) {
+			return new BDBPlusTreeCursor(this, value, forward);
+		}
+		
+		/**
+		 * Descends to the leaf that may hold a key, holding a read latch on
+		 * one node at a time.
+		 * 
+		 * @param value The key, or null for the leftmost or rightmost leaf
+		 * @param first Whether a null value means the leftmost leaf
+		 * @return The leaf, read-latched; the caller must release the latch
+		 */
+		BDBPlusTreeNode latchLeafShared(Comparable<?> value, boolean first) {
+			// A node can only be removed by a writer holding its parent (or
+			// the root latch), so a node latched while holding its parent is
+			// still part of the tree
+			m_rootLatch.readLock().lock();
+			BDBPlusTreeNode curr = m_root;
+			curr.getLatch().readLock().lock();
+			m_rootLatch.readLock().unlock();
+			while (!curr.isLeaf()) {
+				BDBPlusTreeNode child;
+				if (value != null) {
+					child = curr.getChild(curr.findChildSlot(value));
+				} else {
+					child = first ? curr.getChild(0) : curr.getLastChild();
+				}
+				child.getLatch().readLock().lock();
+				curr.getLatch().readLock().unlock();
+				curr = child;
+				diskReads(1);
+			}
+			diskReads(1);
+			return curr;
+		}
+		
+		/**
+		 * Descends to the leaf that may hold a key for an insert or a delete,
+		 * write-latching each node on the way. Once a node is reached that
+		 * the operation cannot split (insert) or merge (delete), the latches
+		 * above it are released, so the path only holds the nodes the
+		 * operation may change.
+		 * 
+		 * @param value The key to insert or delete
+		 * @param insert Whether the operation is an insert
+		 * @param path Filled with the latched nodes, from the highest one
+		 *            that may change down to the leaf
+		 * @param latched Filled with the latched nodes; the operation adds
+		 *            any siblings it latches
+		 * @return Whether the root latch is still held, i.e. whether the
+		 *         operation may replace the root
+		 */
+		private boolean latchPathExclusive(Comparable<?> value, boolean insert,
+				Vector<BDBPlusTreeNode> path, Vector<BDBPlusTreeNode> latched) {
+			m_rootLatch.writeLock().lock();
+			boolean rootLatched = true;
+			BDBPlusTreeNode curr = m_root;
+			curr.getLatch().writeLock().lock();
+			path.add(curr);
+			latched.add(curr);
+			if (isSafe(curr, insert, true)) {
+				m_rootLatch.writeLock().unlock();
+				rootLatched = false;
+			}
+			while (!curr.isLeaf()) {
+				curr = curr.getChild(curr.findChildSlot(value));
+				curr.getLatch().writeLock().lock();
+				diskReads(1);
+				if (isSafe(curr, insert, false)) {
+					unlatch(latched, rootLatched);
+					rootLatched = false;
+					path.clear();
+				}
+				path.add(curr);
+				latched.add(curr);
+			}
+			diskReads(1);
+			return rootLatched;
+		}
+		
+		/**
+		 * @return Whether inserting into or deleting from a node cannot change
+		 *         its parent
+		 */
+		private boolean isSafe(BDBPlusTreeNode node, boolean insert, boolean root) {
+			if (node.isLeaf()) {
+				return insert ? node.keyCount() < 2 * m_d : root || node.keyCount() > m_d;
+			}
+			if (insert) {
+				return node.childCount() < 2 * m_d + 1;
+			}
+			return node.childCount() > (root ? 2 : m_d + 1);
+		}
+		
+		/**
+		 * Write-latches a sibling that a delete merges with or borrows from.
+		 * Its parent is latched, so no other writer can be on its way to it.
+		 */
+		private void latchSibling(BDBPlusTreeNode sibling, Vector<BDBPlusTreeNode> latched) {
+			sibling.getLatch().writeLock().lock();
+			latched.add(sibling);
+		}
+		
+		/**
+		 * Releases the write latches of an insert or delete.
+		 */
+		private void unlatch(Vector<BDBPlusTreeNode> latched, boolean rootLatched) {
+			for (BDBPlusTreeNode node : latched) {
+				node.getLatch().writeLock().unlock();
+			}
+			latched.clear();
+			if (rootLatched) {
+				m_rootLatch.writeLock().unlock();
+			}
+		}
 
 		public int getNumNodes() {
 			return m_numNodes;
@@ -114,10 +268,6 @@ public class BDBPlusTreeIndex implements BDIndex {
 			return m_root;
 		}
 		
-		public Vector<BDBPlusTreeNode> getSearchPath() {
-			return m_searchPath;
-		}
-		
 		/**
 		 * Delete the tuple t from the tree. This may involve merging or 
 		 * redistributing nodes. The call does nothing if the tuple is not in 
@@ -127,38 +277,48 @@ public class BDBPlusTreeIndex implements BDIndex {
 		 * @throws InterruptedException 
 		 */
 		public void delete(BDTuple t) throws InterruptedException {
-			Comparable K = (Comparable)t.getObject(m_keyName);
-			if(!find(K)){
-				return;
+			Comparable<?> K = keyOf(t);
+			Vector<BDBPlusTreeNode> path = new Vector<BDBPlusTreeNode>();
+			Vector<BDBPlusTreeNode> latched = new Vector<BDBPlusTreeNode>();
+			boolean rootLatched = latchPathExclusive(K, false, path, latched);
+			try {
+				BDBPlusTreeNode LeafNode = path.lastElement();
+				if (!LeafNode.containsKey(K)) {
+					return;
+				}
+				delete_entry(path, latched, LeafNode, K, t);
+			} finally {
+				unlatch(latched, rootLatched);
 			}
-			BDBPlusTreeNode LeafNode = m_tree.getSearchPath().lastElement();
-			delete_entry(LeafNode, K, t);
-			System.out.printf("read:%d\n",m_readNumDiskOps);
-			System.out.printf("write:%d\n",m_writeNumDiskOps);
+			logDiskUse();
 		}
 
 		
 		/**
 		 * Delete tuple P associated with key K from leaf node N
 		 * 
+		 * @param path The latched search path of the delete
+		 * @param latched The nodes the delete holds latches on
 		 * @param N leaf node
 		 * @param K comparable associated with tuple P
 		 * @param P tuple to delete
 		 * @throws InterruptedException 
 		 */
-		private void delete_entry(BDBPlusTreeNode N, Comparable K, BDTuple P) throws InterruptedException {
+		private void delete_entry(Vector<BDBPlusTreeNode> path, Vector<BDBPlusTreeNode> latched,
+				BDBPlusTreeNode N, Comparable<?> K, BDTuple P) throws InterruptedException {
 			N.deleteTuple(K, P);
 			if (N.equals(m_root)){
 				return;
 			}
 			
 			if (N.keyCount() < m_d) {
-				BDBPlusTreeNode ParentN = m_searchPath.get(m_searchPath.indexOf(N) - 1);
+				BDBPlusTreeNode ParentN = path.get(path.indexOf(N) - 1);
 				int index = ParentN.getChildren().indexOf(N);
 
 				BDBPlusTreeNode Nprime = ParentN.getChild((index == 0) ? 1 : index - 1);
 				Comparable Kprime = ParentN.getKey((index == 0) ? 0 : index - 1);
-				m_readNumDiskOps++;
+				latchSibling(Nprime, latched);
+				diskReads(1);
 				
 				boolean prev = index == 0 ? false : true;
 				//can merge into one node
@@ -172,8 +332,10 @@ public class BDBPlusTreeIndex implements BDIndex {
 					for (int i = 0; i < N.keyCount(); i++) {
 						Nprime.insertTuple(N.getKey(i), N.getTuple(i));
 					}
-					m_writeNumDiskOps++;
-					delete_entry(ParentN, Kprime, N);
+					N.unlink();
+					N.markRemoved();
+					diskWrites(1);
+					delete_entry(path, latched, ParentN, Kprime, N);
 				} else {
 					if (prev) {
 						int m = Nprime.keyCount() - 1;
@@ -184,12 +346,12 @@ public class BDBPlusTreeIndex implements BDIndex {
 						
 						Nprime.deleteTuple(Nprime.getKey(m), Nprime.getTuple(m));
 						N.insertTuple(key, tupleToInsert);
-						m_writeNumDiskOps+=3;
+						diskWrites(3);
 					} else {
 						N.insertTuple(Nprime.getKey(0), Nprime.getTuple(0));
 						Nprime.deleteTuple(Nprime.getKey(0), Nprime.getTuple(0));
 						ParentN.replace(Kprime, Nprime.getKey(0));
-						m_writeNumDiskOps+=3;
+						diskWrites(3);
 					}
 				}
 			}
@@ -198,26 +360,31 @@ public class BDBPlusTreeIndex implements BDIndex {
 		/**
 		 * Delete node P associated with key K from inner node N
 		 * 
+		 * @param path The latched search path of the delete
+		 * @param latched The nodes the delete holds latches on
 		 * @param P node to delete
 		 * @param K comparable associated with node P
 		 * @param N inner node
 		 * @throws InterruptedException 
 		 */
-		private void delete_entry(BDBPlusTreeNode N, Comparable K, BDBPlusTreeNode P) throws InterruptedException {
+		private void delete_entry(Vector<BDBPlusTreeNode> path, Vector<BDBPlusTreeNode> latched,
+				BDBPlusTreeNode N, Comparable<?> K, BDBPlusTreeNode P) throws InterruptedException {
 			N.deleteChild(K, P);
 			
 			if (N.equals(m_root)) {
 				if (N.childCount() == 1) {
 					m_root = N.getChild(0);
 					N.clear();
+					N.markRemoved();
 				}
 			} else if (N.childCount() < (m_d + 1)) {
-				BDBPlusTreeNode ParentN = m_searchPath.get(m_searchPath.indexOf(N) - 1);
+				BDBPlusTreeNode ParentN = path.get(path.indexOf(N) - 1);
 				int index = ParentN.getChildren().indexOf(N);
 				
 				BDBPlusTreeNode Nprime = ParentN.getChild((index == 0) ? 1 : index - 1);
 				Comparable Kprime = ParentN.getKey((index == 0) ? 0 : index - 1);
-				m_readNumDiskOps++;
+				latchSibling(Nprime, latched);
+				diskReads(1);
 				boolean prev = index == 0 ? false : true;
 				//can meerge into one node
 				if (N.childCount() + Nprime.childCount() <= (m_d * 2 + 1)) {
@@ -235,22 +402,23 @@ public class BDBPlusTreeIndex implements BDIndex {
 					Nprime.insertChild(
 							(N.keyCount() == 0) ? Kprime: N.getKey(N.keyCount() - 1), 
 							N.getChild(N.childCount() - 1));
-					m_writeNumDiskOps++;
-					delete_entry(ParentN, Kprime, N);
+					diskWrites(1);
+					delete_entry(path, latched, ParentN, Kprime, N);
 					N.clear();
+					N.markRemoved();
 				} else {
 					if (prev) {
 						int m = Nprime.childCount() - 1;
 						N.insertChild(Kprime, Nprime.getChild(m));
 						ParentN.replace(Kprime, Nprime.getKey(m - 1));
 						Nprime.deleteChild(Nprime.getKey(m - 1), Nprime.getChild(m));
-						m_writeNumDiskOps += 3;
+						diskWrites(3);
 					} else {
 						N.insertChild(Kprime, Nprime.getChild(0));
 						Comparable parentKey = Nprime.getKey(0);
 						Nprime.deleteChild(Nprime.getKey(0), Nprime.getChild(0));
 						ParentN.replace(Kprime, parentKey);
-						m_writeNumDiskOps += 3;
+						diskWrites(3);
 					}
 				}
 			}
@@ -259,86 +427,180 @@ public class BDBPlusTreeIndex implements BDIndex {
 			
 		/**
 		 * Add the tuple t to the tree. This may involve splitting nodes. 
-		 * Duplicates are not allowed on a primary index.
+		 * Duplicates are not allowed on a primary index; a secondary index
+		 * only drops a tuple it already holds.
 		 * 
 		 * @param t Tuple to insert
 		 * @throws InterruptedException
 		 */
 		public void insert(BDTuple t) throws InterruptedException {
-			Comparable K = (Comparable)t.getObject(m_keyName);
+			Comparable<?> K = keyOf(t);
+			Vector<BDBPlusTreeNode> path = new Vector<BDBPlusTreeNode>();
+			Vector<BDBPlusTreeNode> latched = new Vector<BDBPlusTreeNode>();
+			boolean rootLatched = latchPathExclusive(K, true, path, latched);
+			try {
+				insert(path, K, t);
+			} finally {
+				unlatch(latched, rootLatched);
+			}
+			logDiskUse();
+		}
+		
+		/**
+		 * Inserts a tuple into the leaf at the end of a latched search path.
+		 */
+		private void insert(Vector<BDBPlusTreeNode> path, Comparable<?> K, BDTuple t)
+				throws InterruptedException {
+			BDBPlusTreeNode LeafNode = path.lastElement();
 			//check if have duplicates
-			if(find(K)){
+			if(LeafNode.containsKey(K)){
 				return;
 			}
-			BDBPlusTreeNode LeafNode = m_tree.getSearchPath().lastElement();
 			//have space 
 			if(LeafNode.keyCount() < 2*m_d){
 				LeafNode.insertTuple(K, t);
-				m_writeNumDiskOps++;
+				diskWrites(1);
 			}
 			//should split
 			else{
-				BDBPlusTreeNode NewNode = new BDBPlusTreeNode(m_d, LeafNode.getId()+1, true);
-				BDBPlusTreeNode block = new BDBPlusTreeNode(m_d+1,0, true);
+				BDBPlusTreeNode NewNode = newNode(m_d, LeafNode.getId()+1, true);
+				BDBPlusTreeNode block = newNode(m_d+1,0, true);
 				//copy all pairs into block
 				for(int i = 0;i < LeafNode.keyCount();++i){
 					block.insertTuple(LeafNode.getKey(i), LeafNode.getTuple(i));
 				}
 				block.insertTuple(K, t);
-				m_writeNumDiskOps++;
+				diskWrites(1);
 				//delete all pairs in LeafNode
 				LeafNode.clear();
 				//copy 0 - m_d tuples into LeafNode
 				for(int i = 0;i < m_d;++i){
 					LeafNode.insertTuple(block.getKey(i), block.getTuple(i));
 				}
-				m_writeNumDiskOps++;
+				diskWrites(1);
 				//copy m_d+1 - n+1 into newNode
 				for(int i = m_d;i < block.keyCount();++i){
 					//NewNode.insertKey(block.getKey(i));
 					NewNode.insertTuple(block.getKey(i), block.getTuple(i));
 				}
-				m_writeNumDiskOps++;
+				LeafNode.linkAfter(NewNode);
+				diskWrites(1);
 				Comparable NewKey = NewNode.getKey(0);
-				insert_in_parent(LeafNode, NewKey, NewNode);
+				insert_in_parent(path, LeafNode, NewKey, NewNode);
 			}
-			System.out.printf("read:%d\n",m_readNumDiskOps);
-			System.out.printf("write:%d\n",m_writeNumDiskOps);
+		}
+		
+		/**
+		 * Adds a batch of tuples to the tree, like calling insert for each of
+		 * them. An empty tree is bulk loaded. Otherwise the tuples are
+		 * inserted in key order, and the ones that follow into the same leaf
+		 * while it has room are added under the latches taken for the first
+		 * of them, instead of latching a path down from the root for each.
+		 * 
+		 * @param tuples Tuples in any order
+		 * @param fillFactor Fraction of each node to fill if the tree is
+		 *            bulk loaded
+		 * @throws InterruptedException
+		 */
+		public void insertAll(List<BDTuple> tuples, double fillFactor)
+				throws InterruptedException {
+			List<BDTuple> sorted = new ArrayList<BDTuple>(tuples);
+			Collections.sort(sorted, new Comparator<BDTuple>() {
+				public int compare(BDTuple t1, BDTuple t2) {
+					return compareKeys(keyOf(t1), keyOf(t2));
+				}
+			});
+			
+			m_rootLatch.writeLock().lock();
+			BDBPlusTreeNode oldRoot = m_root;
+			oldRoot.getLatch().writeLock().lock();
+			try {
+				if (oldRoot.isLeaf() && oldRoot.keyCount() == 0) {
+					bulkLoadLatched(sorted.iterator(), fillFactor);
+					return;
+				}
+			} finally {
+				oldRoot.getLatch().writeLock().unlock();
+				m_rootLatch.writeLock().unlock();
+			}
+			
+			int next = 0;
+			while (next < sorted.size()) {
+				BDTuple t = sorted.get(next++);
+				Comparable<?> K = keyOf(t);
+				Vector<BDBPlusTreeNode> path = new Vector<BDBPlusTreeNode>();
+				Vector<BDBPlusTreeNode> latched = new Vector<BDBPlusTreeNode>();
+				boolean rootLatched = latchPathExclusive(K, true, path, latched);
+				try {
+					insert(path, K, t);
+					BDBPlusTreeNode leaf = path.lastElement();
+					while (next < sorted.size() && leaf.keyCount() < 2 * m_d) {
+						t = sorted.get(next);
+						K = keyOf(t);
+						if (!belongsIn(leaf, K)) {
+							break;
+						}
+						if (!leaf.containsKey(K)) {
+							leaf.insertTuple(K, t);
+							diskWrites(1);
+						}
+						next++;
+					}
+				} finally {
+					unlatch(latched, rootLatched);
+				}
+			}
+			logDiskUse();
+		}
+		
+		/**
+		 * @return Whether a key certainly belongs in a write-latched leaf:
+		 *         it falls between the leaf's keys, or after them in the last
+		 *         leaf, whose successor cannot change while it is latched
+		 */
+		private boolean belongsIn(BDBPlusTreeNode leaf, Comparable<?> K) {
+			int count = leaf.keyCount();
+			if (count == 0 || compareKeys(K, leaf.getKey(0)) <= 0) {
+				return false;
+			}
+			return leaf.getNext() == null || compareKeys(K, leaf.getKey(count - 1)) < 0;
 		}
 		
 		/**
 		 * Helper function to add the tuple if the node requires splitting
 		 * 
+		 * @param path The latched search path of the insert
 		 * @param n Primary node to insert into
 		 * @param kprime Key-value comparable associated with the splitting node
 		 * @param nprime Splitter node to insert into
 		 * @throws InterruptedException
 		 */
-		private void insert_in_parent(BDBPlusTreeNode N, Comparable Kprime, BDBPlusTreeNode Nprime) {
+		private void insert_in_parent(Vector<BDBPlusTreeNode> path, BDBPlusTreeNode N,
+				Comparable<?> Kprime, BDBPlusTreeNode Nprime) {
 
 			//if N is root
 			if(N.equals(m_root)){
-				BDBPlusTreeNode NewRoot = new BDBPlusTreeNode(m_d,0, false);
+				BDBPlusTreeNode NewRoot = newNode(m_d,0, false);
 				m_root = NewRoot;
 				NewRoot.insertChild(Kprime, N);
 				NewRoot.insertChild(Kprime, Nprime);
-				m_writeNumDiskOps++;
+				diskWrites(1);
 				return;
 			}
 			int i;
-			for(i = 0;i < m_searchPath.size();++i){
-				if (m_searchPath.elementAt(i).equals(N))break;
+			for(i = 0;i < path.size();++i){
+				if (path.elementAt(i).equals(N))break;
 			}
-			BDBPlusTreeNode Parent = m_searchPath.elementAt(i-1);
+			BDBPlusTreeNode Parent = path.elementAt(i-1);
 			//if P has < n key value
 			if(Parent.childCount() < m_d*2 +1){
 				Parent.insertChild(Kprime, Nprime);
-				m_writeNumDiskOps++;
+				diskWrites(1);
 			}
 			//need split
 			else{
-				BDBPlusTreeNode NewParent = new BDBPlusTreeNode(m_d, Parent.getId()+1, false);
-				BDBPlusTreeNode block = new BDBPlusTreeNode(m_d+1,0, false);
+				BDBPlusTreeNode NewParent = newNode(m_d, Parent.getId()+1, false);
+				BDBPlusTreeNode block = newNode(m_d+1,0, false);
 				//System.out.printf("Parent key count:%d chilren count:%d\n",Parent.keyCount(),Parent.childCount());
 				for(i = 0;i < Parent.keyCount();++i){
 					block.insertChild(Parent.getKey(i), Parent.getChild(i));
@@ -346,7 +608,7 @@ public class BDBPlusTreeIndex implements BDIndex {
 				}
 				block.insertChild(Parent.getKey(i-1), Parent.getChild(i));
 				block.insertChild(Kprime,Nprime);
-				m_writeNumDiskOps++;
+				diskWrites(1);
 				//delete all pairs in Parent
 				Parent.clear();
 				//copy 0 - m_d tuples into Parent
@@ -354,7 +616,7 @@ public class BDBPlusTreeIndex implements BDIndex {
 					Parent.insertChild(block.getKey(i), block.getChild(i));
 				}
 				Parent.insertChild(block.getKey(i-1), block.getChild(i));
-				m_writeNumDiskOps++;
+				diskWrites(1);
 				//!!!!!!!!!!!!!!!
 				//copy m_d+1 - n+1 into newParent
 				Comparable NewKey = block.getKey(i);
@@ -362,48 +624,147 @@ public class BDBPlusTreeIndex implements BDIndex {
 					NewParent.insertChild(block.getKey(i), block.getChild(i));
 				}
 				NewParent.insertChild(block.getKey(i-1), block.getChild(i));
-				m_writeNumDiskOps++;
-				insert_in_parent(Parent, NewKey, NewParent);
+				diskWrites(1);
+				insert_in_parent(path, Parent, NewKey, NewParent);
+			}
+		}
+
+		/**
+		 * Builds the tree bottom-up from tuples sorted on the key: the leaves
+		 * are filled in one pass over the tuples, then each inner level is
+		 * built over the level below it until a single root is left. Every
+		 * node is filled to about fillFactor of its capacity, but never below
+		 * the minimum a B+ tree node must hold. As with insert, only the first
+		 * tuple with a given key is kept.
+		 * 
+		 * @param tuples Tuples in ascending key order
+		 * @param fillFactor Fraction of each node to fill
+		 * @throws IllegalStateException if the tree is not empty
+		 * @throws IllegalArgumentException if the tuples are not sorted
+		 */
+		public void bulkLoad(Iterator<BDTuple> tuples, double fillFactor) {
+			m_rootLatch.writeLock().lock();
+			BDBPlusTreeNode oldRoot = m_root;
+			oldRoot.getLatch().writeLock().lock();
+			try {
+				if (!oldRoot.isLeaf() || oldRoot.keyCount() > 0) {
+					throw new IllegalStateException("Can only bulk load an empty tree");
+				}
+				bulkLoadLatched(tuples, fillFactor);
+			} finally {
+				oldRoot.getLatch().writeLock().unlock();
+				m_rootLatch.writeLock().unlock();
+			}
+		}
+		
+		/**
+		 * Builds the tree for bulkLoad, which holds the latches of the empty
+		 * root.
+		 */
+		private void bulkLoadLatched(Iterator<BDTuple> tuples, double fillFactor) {
+			Vector<Comparable<?>> keys = new Vector<Comparable<?>>();
+			Vector<BDTuple> sorted = new Vector<BDTuple>();
+			while (tuples.hasNext()) {
+				BDTuple t = tuples.next();
+				Comparable<?> key = keyOf(t);
+				if (!keys.isEmpty()) {
+					int order = compareKeys(keys.lastElement(), key);
+					if (order > 0) {
+						throw new IllegalArgumentException("Tuples to bulk load are not sorted: "
+								+ key + " follows " + keys.lastElement());
+					} else if (order == 0) {
+						continue;
+					}
+				}
+				keys.add(key);
+				sorted.add(t);
+			}
+			if (sorted.isEmpty()) {
+				return;
+			}
+			
+			// Pack the leaves and chain them together
+			int[] sizes = groupSizes(sorted.size(),
+					(int) Math.round(2 * m_d * fillFactor), m_d, 2 * m_d);
+			Vector<BDBPlusTreeNode> level = new Vector<BDBPlusTreeNode>(sizes.length);
+			Vector<Comparable<?>> lowKeys = new Vector<Comparable<?>>(sizes.length);
+			int next = 0;
+			for (int size : sizes) {
+				BDBPlusTreeNode leaf = newNode(m_d, m_insert_id.getAndIncrement(), true);
+				for (int i = 0; i < size; i++, next++) {
+					leaf.appendTuple(keys.get(next), sorted.get(next));
+				}
+				if (!level.isEmpty()) {
+					level.lastElement().linkAfter(leaf);
+				}
+				level.add(leaf);
+				lowKeys.add(leaf.getKey(0));
 			}
+			diskWrites(level.size());
+			
+			// Each inner node is split by the smallest keys of its children
+			while (level.size() > 1) {
+				sizes = groupSizes(level.size(),
+						(int) Math.round(2 * m_d * fillFactor) + 1, m_d + 1, 2 * m_d + 1);
+				Vector<BDBPlusTreeNode> parents = new Vector<BDBPlusTreeNode>(sizes.length);
+				Vector<Comparable<?>> parentLowKeys = new Vector<Comparable<?>>(sizes.length);
+				next = 0;
+				for (int size : sizes) {
+					BDBPlusTreeNode parent = newNode(m_d, m_insert_id.getAndIncrement(), false);
+					parentLowKeys.add(lowKeys.get(next));
+					for (int i = 0; i < size; i++, next++) {
+						parent.appendChild(lowKeys.get(next), level.get(next));
+					}
+					parents.add(parent);
+				}
+				diskWrites(parents.size());
+				level = parents;
+				lowKeys = parentLowKeys;
+			}
+			m_root.markRemoved();
+			m_root = level.firstElement();
 		}
 
 		/**
-		 * Searches the tree. Saves the search path in m_searchPath.
+		 * Searches the tree.
 		 * 
 		 * @param value to find
 		 * @return Whether or not the value is in the tree
 		 */
 		public boolean find(Comparable value) {
-			//clear search path
-			m_tree.getSearchPath().clear();
-			//get the root and add to path
-			BDBPlusTreeNode curr = m_tree.getRoot();
-			m_tree.getSearchPath().add(curr);
-			int i;
-			//get the correct leaf node, the smallest key value greater than v
-			while(!curr.isLeaf()){
-				for (i = 0; i < curr.keyCount(); i++) {
-					if (curr.getKey(i).compareTo(value) > 0) break;
-				}
-				//Reached the end, nothing greater here
-				if (i == curr.keyCount()) 
-					curr = curr.getChild(i);
-				else
-					//the smallest key value greater than v
-					curr = curr.getChild(i);
-				//add this node into path
-				m_tree.getSearchPath().add(curr);
-				m_readNumDiskOps++;
-			}
-			//search value in leaf node
-			for (i = 0; i < curr.keyCount(); i++) {
-				if (curr.getKey(i).compareTo(value) == 0) {
-					m_readNumDiskOps++;
-					return true;
-				}
+			BDBPlusTreeNode leaf = latchLeafShared(value, true);
+			try {
+				return leaf.findKeyPosition(value) >= 0;
+			} finally {
+				leaf.getLatch().readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Counts node reads with the disk manager, as if each node were a page
+		 * on disk.
+		 */
+		private void diskReads(int nodes) {
+			if (BDSystem.diskManager != null) {
+				BDSystem.diskManager.recordReads(m_tableName, nodes);
+			}
+		}
+		
+		/**
+		 * Counts node writes with the disk manager, as if each node were a
+		 * page on disk.
+		 */
+		private void diskWrites(int nodes) {
+			if (BDSystem.diskManager != null) {
+				BDSystem.diskManager.recordWrites(m_tableName, nodes);
+			}
+		}
+		
+		private void logDiskUse() {
+			if (m_outputDiskUse && BDSystem.diskManager != null) {
+				m_logger.info(m_tableName + " disk operations: "
+						+ BDSystem.diskManager.getTableCounts(m_tableName));
 			}
-			m_readNumDiskOps++;
-			return false;
 		}
 	}
 		
@@ -412,18 +773,25 @@ public class BDBPlusTreeIndex implements BDIndex {
 	 * ------------------------------------------------------------------- 
 	 */
 	
-	public Map<Integer, List<BDTuple>> m_delete_shadows;
-	
-	public Map<Integer, List<BDTuple>> m_insert_shadows;
-
 	private Logger m_logger;
 	
-	/** Name of the key on which this is an index */
-	private String m_keyName;
-		
-	/** Number of completed disk operations */
-	protected int m_readNumDiskOps; 
-	protected int m_writeNumDiskOps;
+	/** Type of the key column, or null if unknown */
+	private BDObjectType m_keyType;
+	
+	/**
+	 * Whether the tree is keyed by BDSecondaryKeys made of the key column
+	 * and m_rowKeyName, rather than by the key column alone
+	 */
+	private boolean m_secondary;
+	
+	/**
+	 * Column that tells apart the rows of a secondary index sharing a value:
+	 * the table's primary key, or null to use every column
+	 */
+	private String m_rowKeyName;
+	
+	/** Table the disk operations are counted for, or null if none */
+	private String m_tableName;
 	
 	/** The workhorse of the index */
 	private BDBPlusTree m_tree;
@@ -438,11 +806,31 @@ public class BDBPlusTreeIndex implements BDIndex {
 
 	public BDBPlusTreeIndex(BDTable table, int d, String keyName,
 			boolean isPrimary) {
+		this(table, d, keyName, isPrimary, null);
+	}
+	
+	/**
+	 * @param table The table of the index, or null. The rows of a secondary
+	 *            index are told apart by the table's primary key, or by all
+	 *            their columns if there is no table or primary key.
+	 * @param isPrimary False for a secondary index, which may hold many rows
+	 *            with the same value
+	 * @param keyType The type of the key column. Numeric keys of a primary
+	 *            index get nodes that store their keys unboxed (see
+	 *            BDBPlusTreeDoubleNode); other indices use the generic
+	 *            Comparable nodes.
+	 */
+	public BDBPlusTreeIndex(BDTable table, int d, String keyName,
+			boolean isPrimary, BDObjectType keyType) {
+		super(keyName);
 		m_logger = Logger.getLogger(BDBPlusTree.class);
-		m_insert_shadows = new HashMap<Integer, List<BDTuple>>();
-		m_delete_shadows = new HashMap<Integer, List<BDTuple>>();
+		m_keyType = keyType;
+		m_tableName = table == null ? null : table.getName();
+		m_secondary = !isPrimary;
+		if (m_secondary && table != null && table.getPrimaryIndex() != null) {
+			m_rowKeyName = table.getPrimaryIndex().getKeyName();
+		}
 		m_tree = new BDBPlusTree(d, isPrimary);
-		m_keyName = keyName;
 		
 		//
 		// Do we want to check the validity of each tree after each operation
@@ -459,493 +847,156 @@ public class BDBPlusTreeIndex implements BDIndex {
 	}
 	
 	/**
-	 * Actually DOES operations on the tree which are queued in m_*_shadows.
-	 * @throws RollbackException 
+	 * Actually removes the tuple from the index, ignoring concurrency.
 	 */
-	public void commit(int TID) throws InterruptedException, RollbackException {
-		if (m_delete_shadows.get(TID) != null) {
-			for (BDTuple t : m_delete_shadows.get(TID)) {
-				BDSystem.concurrencyController.writeDataItem(t);
-			}
-		}
-		if (m_insert_shadows.get(TID) != null) {
-			for (BDTuple t : m_insert_shadows.get(TID)) {
-				BDSystem.concurrencyController.writeDataItem(t);
-			}
-		}
-		
-		
-		if (m_delete_shadows.get(TID) != null) {
-			for (BDTuple t : m_delete_shadows.get(TID)) {
-				deleteNow(t);
-			}
-		}
-		if (m_insert_shadows.get(TID) != null) {
-			for (BDTuple t : m_insert_shadows.get(TID)) {
-				insertNow(t);
-			}
-		}
-
-		m_delete_shadows.put(TID, null);
-		m_insert_shadows.put(TID, null);
+	public void deleteNow(BDTuple t) throws InterruptedException {
+		m_tree.delete(t);
+		pokeVisualizer();
 	}
-
+	
 	/**
-	 * Deletes enqueued operations.
+	 * Actually inserts the tuple into the index, ignoring concurrency.
 	 */
-	public void rollback(int TID) {
-		m_insert_shadows.put(TID, null);
-		m_delete_shadows.put(TID, null);
+	public void insertNow(BDTuple t) throws InterruptedException {
+		m_tree.insert(t);
+		pokeVisualizer();
 	}
-
+	
 	/**
-	 * Enqueues the deletion of tuple t from the index.
+	 * Inserts a committed batch in key order (see BDBPlusTree.insertAll).
 	 */
-	public void delete(BDTuple t) {
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
-		if(m_delete_shadows.get(TID) == null) {
-			m_delete_shadows.put(TID, new LinkedList<BDTuple>());
-		}
-		m_delete_shadows.get(TID).add(t);
+	public void insertAllNow(List<BDTuple> tuples) throws InterruptedException {
+		m_tree.insertAll(tuples,
+				Double.parseDouble(System.getProperty("bplustree.fillfactor", "0.9")));
+		pokeVisualizer();
 	}
 	
 	/**
-	 * Actually removes the tuple from the index, ignoring concurrency.
+	 * Builds the tree bottom-up instead of inserting the tuples one at a time
+	 * (see BDBPlusTree.bulkLoad).
 	 */
-	public void deleteNow(BDTuple t) throws InterruptedException {
-		m_tree.delete(t);
+	public void bulkLoad(Iterator<BDTuple> tuples, double fillFactor) {
+		m_tree.bulkLoad(tuples, fillFactor);
 		pokeVisualizer();
 	}
 	
 	/**
-	 * Enqueues the insertion of tuple t from the index.
+	 * Splits n entries into as few nodes as possible holding about target
+	 * entries each, with every node holding between min and max entries.
+	 * 
+	 * @return The number of entries in each node
 	 */
-	public void insert(BDTuple t) {
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
-		if(m_insert_shadows.get(TID) == null) {
-			m_insert_shadows.put(TID, new LinkedList<BDTuple>());
+	private static int[] groupSizes(int n, int target, int min, int max) {
+		target = Math.max(min, Math.min(max, target));
+		int groups = (n + target - 1) / target;
+		while (groups > 1 && n / groups < min) {
+			groups--;
 		}
-		m_insert_shadows.get(TID).add(t);
+		int[] sizes = new int[groups];
+		for (int i = 0; i < groups; i++) {
+			sizes[i] = n / groups + (i < n % groups ? 1 : 0);
+		}
+		return sizes;
 	}
-
+	
 	/**
-	 * Actually inserts the tuple into the index, ignoring concurrency.
+	 * Creates a tree node suited to the type of the key column.
 	 */
-	public void insertNow(BDTuple t) throws InterruptedException {
-		m_tree.insert(t);
-		pokeVisualizer();
+	protected BDBPlusTreeNode newNode(int d, int id, boolean leaf) {
+		if (!m_secondary && (m_keyType == BDObjectType.INTEGER
+				|| m_keyType == BDObjectType.FLOAT || m_keyType == BDObjectType.DOUBLE)) {
+			return new BDBPlusTreeDoubleNode(d, id, leaf);
+		}
+		return new BDBPlusTreeNode(d, id, leaf);
+	}
+	
+	public BDObjectType getKeyType() {
+		return m_keyType;
 	}
 	
 	public IndexType getIndexType() {
 		return IndexType.B_PLUS_TREE;
 	}
 
-	public String getKeyName() {
-		return m_keyName;
-	}
-	
 	public BDBPlusTreeNode getRoot() {
 		return m_tree.getRoot();
 	}
-
-	/**
-	 * Note: this method makes a copy of the tuples, leaving the caller free to
-	 * mess with these tuples.
-	 * 
-	 * @return All tuples in the index
-	 * @throws RollbackException 
-	 */
-	public BDSystemResultSet getAllTuples() throws InterruptedException, RollbackException {
-		
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
-		
-		BDSystemResultSet result = new BDSystemResultSet();
-
-		for (BDBPlusTreeNode node : m_tree.getLeaves()) {
-			for (int i = 0; i < node.keyCount(); i++) {
-
-				m_logger.debug("Values: " + node.keyCount());
-				m_logger.debug("Getting a tuple...");
-				m_logger.debug(node.getTuple(i));
-				
-				if(m_delete_shadows.get(TID) == null ||
-				 !(m_delete_shadows.get(TID).contains(node.getTuple(i)))) {
-					result.addRow(node.getTuple(i));
-				}
-			}
-		}
-		if(m_insert_shadows.get(TID) != null) {
-			for(BDTuple tx : m_insert_shadows.get(TID)) {
-				result.addRow(tx);
-			}
+	
+	public boolean isEmpty() {
+		return !m_tree.cursorFirst().isValid();
+	}
+	
+	protected BDIndexCursor cursorFirst() {
+		if (m_secondary) {
+			return new ValueCursor(m_tree.cursorFirst());
 		}
-		return result;
+		return m_tree.cursorFirst();
 	}
 	
-	/**
-	 * @return All tuples in the index right now, ignoring shadows 
-	 * @throws RollbackException 
-	 */
-	public BDSystemResultSet getAllTuplesUnchecked() {
-
-		BDSystemResultSet result = new BDSystemResultSet();
-
-		for (BDBPlusTreeNode node : m_tree.getLeaves()) {
-			for (int i = 0; i < node.keyCount(); i++) {
-				try {
-					result.addRow(node.getTuple(i));
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				} catch (RollbackException e) {
-					e.printStackTrace();
-				}
-			}
+	protected BDIndexCursor cursorAt(Comparable<?> value, boolean forward) {
+		if (m_secondary) {
+			return new ValueCursor(m_tree.cursorAt(forward ? BDSecondaryKey.low(value)
+					: BDSecondaryKey.high(value), forward));
 		}
-		return result;
+		return m_tree.cursorAt(value, forward);
 	}
 	
-
 	/**
-	 * Selects all tuples from the index that fall within a given range in some
-	 * field.
-	 * 
-	 * @param rtype The type of range (less-than, greater-than, etc)
-	 * @param field The field on which to filter 
-	 * @param value The value to be compared against (i.e. the range's bound)
-	 * @return All tuples in the range
-	 * @throws RollbackException 
+	 * @return The tree key of a tuple: its key column, or for a secondary
+	 *         index the key column and the columns that identify the row
 	 */
-	public BDSystemResultSet getTuplesByRange(RangeType rtype, String field,
-			Comparable value) throws InterruptedException, RollbackException {
-		Collections.sort(m_tree.getLeaves());
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
-		BDSystemResultSet result = new BDSystemResultSet();
-		BDBPlusTreeNode currentNode;
-		boolean moreNodes = false;
-		int lastIndex = 0;
-
-		switch (rtype) {
-		case GT:
-			m_tree.find(value);
-			currentNode = m_tree.getSearchPath().lastElement();
-			//curr is now the leaf node that should have value
-			for (int i = 0; i < currentNode.keyCount(); i++) {
-				if (currentNode.getKey(i) == null) continue;
-				if (currentNode.getKey(i).compareTo(value) > 0) {
-					result.addRow(currentNode.getTuple(i));
-					if (i == (currentNode.keyCount() - 1)) {
-						moreNodes = true;
-					}
-				}
-			}
-			while (moreNodes == true
-					&& (m_tree.getLeaves().indexOf(currentNode) < (m_tree.getLeaves().size() - 1))) {
-				currentNode = m_tree.getLeaves()
-						.elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				moreNodes = false;
-				for (int i = 0; i < currentNode.keyCount(); i++) {
-					if (currentNode.getKey(i) == null) continue;
-					if (currentNode.getKey(i).compareTo(value) > 0) {
-						result.addRow(currentNode.getTuple(i));
-						if (i == (currentNode.keyCount() - 1)) {
-							moreNodes = true;
-						}
-					}
-				}
-			}
-			
-			if(m_insert_shadows.get(TID) != null) {
-				for(BDTuple tx : m_insert_shadows.get(TID)) {			
-					if(tx.getField(field) != null) {
-						if (((Comparable)(tx.getField(field))).compareTo(value) > 0) {
-							result.addRow(tx);
-						}
-					}
-				}
-			}
-			break;
-
-		case GTEQ:
-			m_tree.find(value);
-			currentNode = m_tree.getSearchPath().lastElement();
-			//curr is now the leaf node that should have value
-			for (int i = 0; i < currentNode.keyCount(); i++) {
-				if (currentNode.getKey(i) == null) continue;
-				if (currentNode.getKey(i).compareTo(value) >= 0) {
-					result.addRow(currentNode.getTuple(i));
-					if (i == (currentNode.keyCount() - 1)) {
-						moreNodes = true;
-					}
-				}
-			}
-			while (moreNodes == true
-					&& (m_tree.getLeaves().indexOf(currentNode) < (m_tree.getLeaves().size() - 1))) {
-				currentNode = m_tree.getLeaves()
-						.elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				moreNodes = false;
-				for (int i = 0; i < currentNode.keyCount(); i++) {
-					if (currentNode.getKey(i) == null) continue;
-					if (currentNode.getKey(i).compareTo(value) >= 0) {
-						result.addRow(currentNode.getTuple(i));
-						if (i == (currentNode.keyCount() - 1)) {
-							moreNodes = true;
-						}
-					}
-				}
-			}
-			if(m_insert_shadows.get(TID) != null) {
-				for(BDTuple tx : m_insert_shadows.get(TID)) {
-					if(tx.getField(field) != null) {
-						if (((Comparable)(tx.getField(field))).compareTo(value) >= 0) {
-							result.addRow(tx);
-						}
-					}
-				}
-			}
-			break;
-
-		case LT:
-			System.out.println("LT on primary key: ");
-			m_tree.find(value);
-			currentNode = m_tree.getSearchPath().lastElement();
-			//curr is now the leaf node that should have value
-			for (int i = 0; i < currentNode.keyCount(); i++) {
-				if (currentNode.getKey(i) == null) continue;
-				if (currentNode.getKey(i).compareTo(value) <= 0) {
-					//if(currentNode.value(i).compareTo(value) < 0)
-						//result.addRow(currentNode.getTuple(i));
-					if (i == 0) {
-						moreNodes = true;						
-						System.out.println("More nodes...");
-					}
-				}
-			}
-			lastIndex = m_tree.getLeaves().indexOf(currentNode);
-			currentNode = m_tree.getLeaves().firstElement();
-			while (moreNodes == true
-					&& (m_tree.getLeaves().indexOf(currentNode) <= lastIndex)) {
-				System.out.println("Inspecting next node...");
-				//currentNode = m_tree.getLeaves().elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				moreNodes = false;
-				for (int i = 0; i < currentNode.keyCount(); i++) {
-					System.out.println("Comparing: " + currentNode.getKey(i) + " to " + value);
-					if (currentNode.getKey(i) == null) continue;
-					if (currentNode.getKey(i).compareTo(value) < 0) {						
-						result.addRow(currentNode.getTuple(i));
-						if (i == (currentNode.keyCount() - 1)) {
-							moreNodes = true;
-							System.out.println("Even more nodes...");
-						}
-					}
-				}
-				if(moreNodes) {
-					currentNode = m_tree.getLeaves().elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				}
-			}
-			if(m_insert_shadows.get(TID) != null) {
-				for(BDTuple tx : m_insert_shadows.get(TID)) {
-					if(tx.getField(field) != null) {
-						if (((Comparable)(tx.getField(field))).compareTo(value) < 0) {
-							result.addRow(tx);
-						}
-					}
-				}
-			}
-			break;
-
-		case LTEQ:
-			System.out.println("LT on primary key: ");
-			m_tree.find(value);
-			currentNode = m_tree.getSearchPath().lastElement();
-			//curr is now the leaf node that should have value
-			for (int i = 0; i < currentNode.keyCount(); i++) {
-				if (currentNode.getKey(i) == null) continue;
-				if (currentNode.getKey(i).compareTo(value) <= 0) {
-					//if(currentNode.value(i).compareTo(value) < 0)
-						//result.addRow(currentNode.getTuple(i));
-					if (i == 0) {
-						moreNodes = true;						
-						System.out.println("More nodes...");
-					}
-				}
-			}
-			lastIndex = m_tree.getLeaves().indexOf(currentNode);
-			currentNode = m_tree.getLeaves().firstElement();
-			while (moreNodes == true
-					&& (m_tree.getLeaves().indexOf(currentNode) <= lastIndex)) {
-				System.out.println("Inspecting next node...");
-				//currentNode = m_tree.getLeaves().elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				moreNodes = false;
-				for (int i = 0; i < currentNode.keyCount(); i++) {
-					System.out.println("Comparing: " + currentNode.getKey(i) + " to " + value);
-					if (currentNode.getKey(i) == null) continue;
-					if (currentNode.getKey(i).compareTo(value) <= 0) {
-						result.addRow(currentNode.getTuple(i));
-						if (i == currentNode.keyCount()) {
-							moreNodes = true;
-							System.out.println("Even more nodes...");
-						}
-					}
-				}
-				if(moreNodes) {
-					currentNode = m_tree.getLeaves().elementAt(m_tree.getLeaves().indexOf(currentNode) + 1);
-				}
-			}
-			if(m_insert_shadows.get(TID) != null) {
-				for(BDTuple tx : m_insert_shadows.get(TID)) {
-					if(tx.getField(field) != null) {
-						if (((Comparable)(tx.getField(field))).compareTo(value) <= 0) {
-							result.addRow(tx);
-						}
-					}
-				}
-			}
-			break;
-
-		case NEQ:
-			for (BDBPlusTreeNode node : m_tree.getLeaves()) {
-				for (int i = 0; i < node.keyCount(); i++) {
-					if (node.getKey(i) == null) continue;
-					if (value.compareTo(node.getKey(i)) != 0)
-						result.addRow(node.getTuple(i));
-				}
-			}
-			if(m_insert_shadows.get(TID) != null) {
-				for(BDTuple tx : m_insert_shadows.get(TID)) {
-					if(tx.getField(field) != null) {
-						if (((Comparable)(tx.getField(field))).compareTo(value) != 0) {
-							result.addRow(tx);
-						}
-					}
-				}
-			}
-			break;
+	Comparable<?> keyOf(BDTuple t) {
+		Comparable<?> value = (Comparable<?>) t.getObject(m_keyName);
+		if (!m_secondary) {
+			return value;
 		}
-
-		if(m_delete_shadows.get(TID) != null) {
-			for(BDTuple tx : m_delete_shadows.get(TID)) {
-				if(result.hasTuple(tx))
-					result.remove(tx);
+		Comparable<?>[] row;
+		if (m_rowKeyName != null) {
+			row = new Comparable<?>[] { (Comparable<?>) t.getObject(m_rowKeyName) };
+		} else {
+			row = new Comparable<?>[t.getNumCols()];
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (Comparable<?>) t.getObject(i);
 			}
 		}
-		
-		return result;
-	}	
+		return new BDSecondaryKey(value, row);
+	}
 
 	/**
-	 * @return All tuples whose [m_keyName] field is equal to [value]
-	 * @throws RollbackException 
+	 * Compares two keys of the tree, which are all of the key column's type
+	 * or all BDSecondaryKeys.
 	 */
-	public BDSystemResultSet getTuplesByValue(Comparable value) throws InterruptedException, RollbackException {
-		
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
+	static int compareKeys(Comparable<?> key1, Comparable<?> key2) {
+		return ((Comparable<Object>) key1).compareTo(key2);
+	}
+	
+	/**
+	 * Hands out the key column values of a secondary index's entries, so the
+	 * lookups of BDSortedIndex can compare them with the values they are
+	 * given.
+	 */
+	private static class ValueCursor implements BDIndexCursor {
+		private BDBPlusTreeCursor m_cursor;
 		
-		BDSystemResultSet returnSet = new BDSystemResultSet();
-
-		m_tree.getSearchPath().clear();
-		BDBPlusTreeNode curr = m_tree.getRoot();
-		m_tree.getSearchPath().add(curr);
-		int i;
-		while (!curr.isLeaf()) {
-			assert (curr.keyCount() == (curr.childCount() - 1));
-			for (i = 0; i < curr.keyCount(); i++) {
-				//if (curr.getValue(i) == null) continue;
-				//System.out.println("i: " + i + " out of: " + curr.valueCount());
-			
-				if (curr.getKey(i).compareTo(value) > 0) break;
-			}
-			if (i == curr.keyCount()) //Reached the end, nothing greater here
-				curr = curr.getChild(i);
-			else
-				//broke on value(i) > value
-				curr = curr.getChild(i);
-			m_tree.getSearchPath().add(curr);
+		ValueCursor(BDBPlusTreeCursor cursor) {
+			m_cursor = cursor;
 		}
-		//TODO update disk manager for read
-
-		//curr is now the leaf node that should have value
-		for (i = 0; i < curr.keyCount(); i++) {
-			//if (curr.getValue(i) == null) continue;
-			if (curr.getKey(i).compareTo(value) == 0) {
-				returnSet.addRow(curr.getTuple(i));
-			}
-		}
-		
-		//TODO check next node
 		
-		if(m_insert_shadows.get(TID) != null) {
-			for(BDTuple tx : m_insert_shadows.get(TID)) {
-				if(tx.getField(m_keyName) != null) {
-					if(((Comparable)(tx.getField(m_keyName))).compareTo(value) == 0) {
-						returnSet.addRow(tx);
-					}
-				}
-			}				
-		}
-		if(m_delete_shadows.get(TID) != null) {
-			for(BDTuple tx : m_delete_shadows.get(TID)) {
-				if(returnSet.hasTuple(tx))
-					returnSet.remove(tx);
-			}
+		public boolean isValid() {
+			return m_cursor.isValid();
 		}
 		
-		return returnSet;
-	}
-	
-	/**
-	 * @return All tuples whose [field] field is equal to [value]
-	 * @throws RollbackException 
-	 */
-	public BDSystemResultSet getTuplesByValue(String field, Comparable value) throws InterruptedException, RollbackException {
-
-		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
-		int TID = thread.getTransactionId();
-		
-		if (field.equals(m_keyName))
-			return this.getTuplesByValue(value);
-		
-		//System.out.println("It's not a primary key.");
-		
-		BDTuple t;
-		BDSystemResultSet result = new BDSystemResultSet();
-		for (BDBPlusTreeNode n : m_tree.getLeaves()) {
-			for (int i = 0; i < n.keyCount(); i++) {
-				t = n.getTuple(i);
-				if (t.getObject(field) == null) continue;
-				if (((Comparable) t.getObject(field)).compareTo(value) == 0) {
-					result.addRow(t);
-				}
-			}
+		public Comparable<?> getKey() {
+			return ((BDSecondaryKey) m_cursor.getKey()).getValue();
 		}
-		if(m_insert_shadows.get(TID) != null) {
-			for(BDTuple tx : m_insert_shadows.get(TID)) {
-				if(tx.getField(m_keyName) != null) {
-					if(((Comparable)(tx.getField(field))).compareTo(value) == 0) {
-						result.addRow(tx);
-					}
-				}
-			}				
+		
+		public BDTuple getTuple() {
+			return m_cursor.getTuple();
 		}
-		if(m_delete_shadows.get(TID) != null) {
-			for(BDTuple tx : m_delete_shadows.get(TID)) {
-				if(result.hasTuple(tx))
-					result.remove(tx);
-			}
+		
+		public void advance() {
+			m_cursor.advance();
 		}
-		return result;
-	}
-	
-	/**
-	 * Delete oldTuple, insert newTuple
-	 */
-	public void replace(BDTuple oldTuple, BDTuple newTuple) {
-		this.delete(oldTuple);
-		this.insert(newTuple);
 	}
 
 	public void setVisualizer(BDBPlusTreeVisualizer visualizer) {
@@ -958,17 +1009,6 @@ public class BDBPlusTreeIndex implements BDIndex {
 		}
 	}
 
-	/**
-	 * Removes a tuple from either the insert shadows or the delete shadows
-	 * 
-	 * @param tuple
-	 *            The tuple to remove
-	 */
-	public void abandon(BDTuple tuple) {
-		m_insert_shadows.remove(tuple);
-		m_delete_shadows.remove(tuple);	
-	}
-
 	/**
 	 * cs127, ebuzek, 2011
 	 * NotYetImplementedException
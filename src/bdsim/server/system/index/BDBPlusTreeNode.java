@@ -3,6 +3,7 @@ package bdsim.server.system.index;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -20,7 +21,13 @@ import bdsim.server.system.BDTuple;
  * whereas non-leaf nodes contain pointers to children (BDBPlusTreeNode)
  * We store keys and pointers inside of Vector objects.
  * 
- * There are no leaf-to-leaf pointers as in the B+ Tree described in the textbook.
+ * Leaf nodes are chained to their neighbours with next/previous pointers, as in
+ * the B+ Tree described in the textbook, so that range scans can walk the leaf
+ * level without going back to the root.
+ * 
+ * Each node has a read/write latch that the tree takes while it reads or
+ * changes the node (see BDBPlusTreeIndex.BDBPlusTree). The methods of the node
+ * itself do not latch.
  * 
  * BDBPlusTreeNode has public methods for finding, inserting and deleting keys/children/pointers.
  * These methods generally return a boolean value to help you with splitting/coalescing of the nodes.
@@ -45,6 +52,16 @@ public class BDBPlusTreeNode implements Comparable {
     private Vector<BDBPlusTreeNode> m_pointers;
     private Vector<BDTuple> m_tuples;
     
+    /** Neighbouring leaves in key order (null at either end and for inner nodes) */
+    private volatile BDBPlusTreeNode m_next;
+    private volatile BDBPlusTreeNode m_prev;
+    
+    /** Latch protecting the contents of the node */
+    private final ReentrantReadWriteLock m_latch = new ReentrantReadWriteLock();
+    
+    /** Set once the node has been merged away or replaced as root */
+    private volatile boolean m_removed;
+    
     /**
 	 * Creates and initializes a new BDBPlusTreeNode
 	 * 
@@ -52,13 +69,26 @@ public class BDBPlusTreeNode implements Comparable {
 	 * @param id Unique id. Mostly for debugging purposes. Simple incrementing counter is enough.
 	 * @param leaf True for leaf nodes, false otherwise
 	 */
+	@SuppressWarnings("rawtypes")
 	public BDBPlusTreeNode(int d, int id, boolean leaf)
+    {
+        this(d, id, leaf, new Vector<Comparable>(2*d));
+    }
+	
+	/**
+	 * Constructor for subclasses that keep their keys in their own storage
+	 * and override the key accessors below.
+	 * 
+	 * @param keys The boxed key storage, or null if the subclass stores keys
+	 */
+	@SuppressWarnings("rawtypes")
+	protected BDBPlusTreeNode(int d, int id, boolean leaf, Vector<Comparable> keys)
     {
         m_d = d;
         m_id = id;
         m_leaf = leaf;
         m_pointers = new Vector<BDBPlusTreeNode>();
-        m_keys = new Vector<Comparable>(2*m_d);
+        m_keys = keys;
         m_tuples = new Vector<BDTuple>(2*m_d);
     }
     
@@ -67,7 +97,7 @@ public class BDBPlusTreeNode implements Comparable {
 	 * (think when the B+Tree might want to use this...)
 	 */
 	public void clear() {
-		this.m_keys.clear();
+		this.clearKeys();
 		this.m_pointers.clear();
 		this.m_tuples.clear();
 	}
@@ -81,20 +111,9 @@ public class BDBPlusTreeNode implements Comparable {
      */
     public boolean insertKey(Comparable key) 
     {
-        int i;
         if(keyCount() == 2*m_d) return false;
 
-        for(i = 0; i < keyCount(); i++)
-        {
-            if(getKey(i).compareTo(key) > 0)
-            {
-                m_keys.insertElementAt(key, i);
-                return true;
-            }
-        }
-  
-        //val is > everything here
-        m_keys.add(key);
+        addKey(upperBound(key), key);
         return true;
     }
     
@@ -109,9 +128,9 @@ public class BDBPlusTreeNode implements Comparable {
     {
         for(int i = 0; i < keyCount(); i++)
         {
-            if(getKey(i) == key)
+            if(isKey(i, key))
             {
-                m_keys.removeElementAt(i);
+                removeKey(i);
                 break;
             }
         }
@@ -149,31 +168,29 @@ public class BDBPlusTreeNode implements Comparable {
         {   //No values, but we have one child
             if(childCount() > 0 && getChild(0).getKey(0).compareTo(child.getKey(0)) > 0)
             {
-                m_keys.add(0, key);
+                addKey(0, key);
                 m_pointers.add(0, child);
                 return true;
             }
             else
             {
-                m_keys.add(key);
+                addKey(keyCount(), key);
                 m_pointers.add(child);
                 return true;
             }
         }
-        for(i = 0; i < keyCount(); i++)
+        i = upperBound(key);
+        if(i < keyCount())
         {
-            if(getKey(i).compareTo(key) > 0)
-            {
-                m_keys.add(i, key);
-                if(key.compareTo(child.getKey(0)) <= 0)
-                    m_pointers.add(i+1, child);
-                else m_pointers.add(i, child);
-                return true;
-            }
+            addKey(i, key);
+            if(key.compareTo(child.getKey(0)) <= 0)
+                m_pointers.add(i+1, child);
+            else m_pointers.add(i, child);
+            return true;
         }
         
         //new child only has stuff greater than we've seen
-        m_keys.add(key);
+        addKey(keyCount(), key);
         m_pointers.add(child);
         return true;
     }
@@ -203,6 +220,35 @@ public class BDBPlusTreeNode implements Comparable {
     }
 
     
+    /**
+     * Appends a tuple after every entry of a leaf. Used by bulk loading, which
+     * fills nodes in key order.
+     *
+     * @param key The key of the tuple, which must not be smaller than any key in the node
+     * @param t The tuple
+     */
+    public void appendTuple(Comparable<?> key, BDTuple t)
+    {
+        addKey(keyCount(), key);
+        m_tuples.add(t);
+    }
+
+    /**
+     * Appends a child after every child of an inner node. Used by bulk
+     * loading, which fills nodes in key order.
+     *
+     * @param key The splitter between the last child and the new one; ignored
+     *            for the first child
+     * @param child The new rightmost child
+     */
+    public void appendChild(Comparable<?> key, BDBPlusTreeNode child)
+    {
+        if (childCount() > 0) {
+            addKey(keyCount(), key);
+        }
+        m_pointers.add(child);
+    }
+
     /**
      * A helper function for creating a root node with two pointers.
      * @param child1 - pointer1
@@ -218,13 +264,13 @@ public class BDBPlusTreeNode implements Comparable {
         val2 = child2.getKey(0);
         if(val2.compareTo(key) >= 0)
         {
-            m_keys.add(0, key);
+            addKey(0, key);
             m_pointers.add(0, child2);
             m_pointers.add(0, child1);
         }
         else
         {
-            m_keys.add(0, key);
+            addKey(0, key);
             m_pointers.add(0, child1);
             m_pointers.add(0, child2);
         }
@@ -243,13 +289,53 @@ public class BDBPlusTreeNode implements Comparable {
         int i;
         for(i = 0; i < keyCount(); i++)
         {
-            if(getKey(i) == oldKey){
-                m_keys.set(i, newKey);
+            if(isKey(i, oldKey)){
+                setKey(i, newKey);
                 return;
             }
         }
     }
 
+    /*
+     * Key storage. Subclasses that keep their keys outside of m_keys override
+     * all of these together with getKey, keyCount, lowerBound and upperBound.
+     */
+    
+    /**
+     * Inserts a key at a position, shifting later keys to the right.
+     */
+    protected void addKey(int index, Comparable<?> key) {
+        m_keys.insertElementAt(key, index);
+    }
+    
+    /**
+     * Removes the key at a position, shifting later keys to the left.
+     */
+    protected void removeKey(int index) {
+        m_keys.removeElementAt(index);
+    }
+    
+    /**
+     * Overwrites the key at a position.
+     */
+    protected void setKey(int index, Comparable<?> key) {
+        m_keys.set(index, key);
+    }
+    
+    /**
+     * Removes every key from the node.
+     */
+    protected void clearKeys() {
+        m_keys.clear();
+    }
+    
+    /**
+     * @return true if the key stored at index is the given key object
+     */
+    protected boolean isKey(int index, Comparable<?> key) {
+        return m_keys.elementAt(index) == key;
+    }
+    
     /**
      * This unique ID is mostly for debugging
      * (feel free to use it to figure out which node you're dealing with,
@@ -296,6 +382,13 @@ public class BDBPlusTreeNode implements Comparable {
 //	}
 		return m_tuples.elementAt(i);
 	}
+	
+	/**
+	 * @return the tuple at index i, for callers that hold the node's latch
+	 */
+	BDTuple tupleAt(int i) {
+		return m_tuples.elementAt(i);
+	}
 
 	/**
 	 * @param index of the child node you want
@@ -306,6 +399,72 @@ public class BDBPlusTreeNode implements Comparable {
         return m_pointers.elementAt(index);
     }
 	
+	/**
+	 * @return the next leaf in key order, or null if this is the last leaf
+	 */
+	public BDBPlusTreeNode getNext() {
+		return m_next;
+	}
+	
+	/**
+	 * @return the previous leaf in key order, or null if this is the first leaf
+	 */
+	public BDBPlusTreeNode getPrev() {
+		return m_prev;
+	}
+	
+	/**
+	 * Links a freshly split leaf into the leaf chain directly after this one.
+	 * 
+	 * @param sibling The new right sibling of this leaf
+	 */
+	public void linkAfter(BDBPlusTreeNode sibling) {
+		sibling.m_prev = this;
+		sibling.m_next = this.m_next;
+		if (this.m_next != null) {
+			this.m_next.m_prev = sibling;
+		}
+		this.m_next = sibling;
+	}
+	
+	/**
+	 * Removes this leaf from the leaf chain, joining its neighbours together.
+	 * Used when the leaf is merged away.
+	 */
+	public void unlink() {
+		if (m_prev != null) {
+			m_prev.m_next = m_next;
+		}
+		if (m_next != null) {
+			m_next.m_prev = m_prev;
+		}
+		m_prev = null;
+		m_next = null;
+	}
+	
+	/**
+	 * @return The latch to hold while reading (shared) or changing
+	 *         (exclusive) this node
+	 */
+	public ReentrantReadWriteLock getLatch() {
+		return m_latch;
+	}
+	
+	/**
+	 * Marks a node that is no longer part of the tree, so that cursors that
+	 * reach it through a stale leaf pointer know to search again.
+	 */
+	public void markRemoved() {
+		m_removed = true;
+	}
+	
+	/**
+	 * @return true if the node is no longer part of the tree
+	 */
+	public boolean isRemoved() {
+		return m_removed;
+	}
+	
 	/**
 	 * @return All the child nodes of this node
 	 */
@@ -363,28 +522,19 @@ public class BDBPlusTreeNode implements Comparable {
 //				((BDSystemThread) Thread.currentThread())
 //						.getTransactionId());
 //	}
-		int i;
 		if (keyCount() == 2 * m_d) {
 			return false;
 		}
         
-        logger.debug("Inserted tuple: " + t);
-        logger.debug("... first field: " + t.getName(0));
-        logger.debug("... first value: " + t.getObject(0));
-
-        for(i = 0; i < keyCount(); i++)
-        {
-            if(getKey(i).compareTo(key) > 0)
-            {
-                m_keys.insertElementAt(key, i);
-                m_tuples.insertElementAt(t, i);
-                return true;
-            }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Inserted tuple: " + t);
+            logger.debug("... first field: " + t.getName(0));
+            logger.debug("... first value: " + t.getObject(0));
         }
-  
-        //val is > everything here
-        m_keys.add(key);
-        m_tuples.add(t);
+
+        int i = upperBound(key);
+        addKey(i, key);
+        m_tuples.insertElementAt(t, i);
         return true;
 	}
 
@@ -407,12 +557,10 @@ public class BDBPlusTreeNode implements Comparable {
 //					((BDSystemThread) Thread.currentThread())
 //							.getTransactionId());
 //		}
-		for (int i = 0; i < keyCount(); i++) {
-			if (getKey(i).compareTo(key) == 0) {
-				m_keys.removeElementAt(i);
-				m_tuples.removeElementAt(i);
-				break;
-			}
+		int i = findKeyPosition(key);
+		if (i >= 0) {
+			removeKey(i);
+			m_tuples.removeElementAt(i);
 		}
 		if (keyCount() < m_d)
 			return false;
@@ -442,12 +590,67 @@ public class BDBPlusTreeNode implements Comparable {
 	 * @author mme
 	 */
 	public boolean containsKey(Comparable key) {
-		for (int i = 0; i < m_keys.size(); i++) {
-			if (m_keys.elementAt(i).compareTo(key) == 0) {
-				return true;
+		return findKeyPosition(key) >= 0;
+	}
+	
+	/**
+	 * Binary searches the sorted keys of this node for the given key.
+	 * 
+	 * @param key The key to look for
+	 * @return the 0-based position of the key if it is present; otherwise
+	 *         (-(insertion point) - 1), as in Collections.binarySearch
+	 */
+	public int findKeyPosition(Comparable<?> key) {
+		int i = lowerBound(key);
+		if (i < keyCount() && getKey(i).compareTo(key) == 0) {
+			return i;
+		}
+		return -(i + 1);
+	}
+	
+	/**
+	 * Finds the child to descend into when looking for the given key. Keys
+	 * equal to a splitter live in the subtree to the right of it.
+	 * 
+	 * @param key The key to look for
+	 * @return the 0-based index of the child whose subtree may hold key
+	 */
+	public int findChildSlot(Comparable<?> key) {
+		return upperBound(key);
+	}
+	
+	/**
+	 * @return the index of the first key that is >= key (keyCount() if none)
+	 */
+	protected int lowerBound(Comparable<?> key) {
+		int low = 0;
+		int high = m_keys.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (m_keys.elementAt(mid).compareTo(key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * @return the index of the first key that is > key (keyCount() if none)
+	 */
+	protected int upperBound(Comparable<?> key) {
+		int low = 0;
+		int high = m_keys.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (m_keys.elementAt(mid).compareTo(key) <= 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
 			}
 		}
-		return false;
+		return low;
 	}
 	
 	/**
@@ -0,0 +1,361 @@
+package bdsim.server.system.index;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTable;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * An index that hashes its key column, so looking up a value only reads the
+ * one bucket the value hashes to.
+ *
+ * The table grows by linear hashing. Whenever the buckets hold more than
+ * loadFactor entries on average, the bucket at the split pointer is split in
+ * two and the pointer moves on; once every bucket of a round has been split
+ * the table has doubled and a new round starts. No insert ever rehashes more
+ * than one bucket, so the index never pauses to rebuild itself. Deletes undo
+ * the splits the same way when the table is less than half as full.
+ *
+ * The entries are kept in no particular order, so range lookups and cursors
+ * scan every bucket. A unique index keeps the first tuple of each key, like
+ * BDBPlusTreeIndex; other indices keep every tuple. Inserts and deletes are
+ * queued per transaction and applied at commit like those of the B+ tree
+ * indices (see BDShadowedIndex). The buckets are guarded by one read/write
+ * latch.
+ */
+public class BDHashIndex extends BDShadowedIndex {
+
+	/**
+	 * A key and its tuple, with the hash of the key
+	 */
+	private static final class Entry {
+		private final int m_hash;
+		private final Comparable<?> m_key;
+		private final BDTuple m_tuple;
+
+		private Entry(int hash, Comparable<?> key, BDTuple tuple) {
+			m_hash = hash;
+			m_key = key;
+			m_tuple = tuple;
+		}
+	}
+
+	/**
+	 * Walks a copy of the entries taken when the cursor was created.
+	 */
+	private static final class Cursor implements BDIndexCursor {
+		private final List<Entry> m_entries;
+		private int m_position;
+
+		private Cursor(List<Entry> entries) {
+			m_entries = entries;
+		}
+
+		public boolean isValid() {
+			return m_position < m_entries.size();
+		}
+
+		public Comparable<?> getKey() {
+			return m_entries.get(m_position).m_key;
+		}
+
+		public BDTuple getTuple() {
+			return m_entries.get(m_position).m_tuple;
+		}
+
+		public void advance() {
+			m_position++;
+		}
+	}
+
+	private final ReentrantReadWriteLock m_latch = new ReentrantReadWriteLock();
+
+	private final List<List<Entry>> m_buckets;
+
+	/** Number of buckets the table starts with and never shrinks below */
+	private final int m_initialBuckets;
+
+	/** Average number of entries per bucket above which a bucket is split */
+	private final double m_loadFactor;
+
+	/** Whether only one tuple is kept per key */
+	private final boolean m_unique;
+
+	/** Number of times the table has doubled */
+	private int m_level;
+
+	/** The next bucket to split in this round */
+	private int m_split;
+
+	private int m_size;
+
+	/** Table the disk operations are counted for, or null if none */
+	private final String m_tableName;
+
+	/**
+	 * @param table The table the index belongs to, or null
+	 * @param keyName The column to index
+	 * @param unique Whether to keep only the first tuple of each key
+	 * @param initialBuckets Number of buckets to start with
+	 * @param loadFactor Average number of entries per bucket above which the
+	 *            table grows
+	 */
+	public BDHashIndex(BDTable table, String keyName, boolean unique,
+			int initialBuckets, double loadFactor) {
+		super(keyName);
+		if (initialBuckets < 1 || loadFactor <= 0) {
+			throw new IllegalArgumentException("Bad hash index size: "
+					+ initialBuckets + " buckets, load factor " + loadFactor);
+		}
+		m_tableName = table == null ? null : table.getName();
+		m_unique = unique;
+		m_initialBuckets = initialBuckets;
+		m_loadFactor = loadFactor;
+		m_buckets = new ArrayList<List<Entry>>();
+		for (int i = 0; i < initialBuckets; i++) {
+			m_buckets.add(new ArrayList<Entry>());
+		}
+	}
+
+	public IndexType getIndexType() {
+		return IndexType.HASH_TABLE;
+	}
+
+	/**
+	 * @return The number of buckets, for tests
+	 */
+	int getBucketCount() {
+		m_latch.readLock().lock();
+		try {
+			return m_buckets.size();
+		} finally {
+			m_latch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Actually inserts the tuple into the index, ignoring concurrency.
+	 */
+	public void insertNow(BDTuple t) {
+		Comparable<?> key = (Comparable<?>) t.getObject(m_keyName);
+		int hash = hash(key);
+		m_latch.writeLock().lock();
+		try {
+			List<Entry> bucket = m_buckets.get(bucketOf(hash));
+			diskReads(1);
+			if (m_unique) {
+				for (Entry entry : bucket) {
+					if (entry.m_hash == hash && keysEqual(entry.m_key, key)) {
+						return;
+					}
+				}
+			}
+			bucket.add(new Entry(hash, key, t));
+			m_size++;
+			diskWrites(1);
+			if (m_size > m_loadFactor * m_buckets.size()) {
+				split();
+			}
+		} finally {
+			m_latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Actually removes the tuple from the index, ignoring concurrency. A
+	 * unique index removes the entry with the tuple's key; other indices
+	 * remove the entry holding an equal tuple.
+	 */
+	public void deleteNow(BDTuple t) {
+		Comparable<?> key = (Comparable<?>) t.getObject(m_keyName);
+		int hash = hash(key);
+		m_latch.writeLock().lock();
+		try {
+			List<Entry> bucket = m_buckets.get(bucketOf(hash));
+			diskReads(1);
+			for (Iterator<Entry> it = bucket.iterator(); it.hasNext();) {
+				Entry entry = it.next();
+				if (entry.m_hash == hash && keysEqual(entry.m_key, key)
+						&& (m_unique || entry.m_tuple.equals(t))) {
+					it.remove();
+					m_size--;
+					diskWrites(1);
+					break;
+				}
+			}
+			while (m_buckets.size() > m_initialBuckets
+					&& m_size < m_loadFactor * m_buckets.size() / 2) {
+				merge();
+			}
+		} finally {
+			m_latch.writeLock().unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+		m_latch.readLock().lock();
+		try {
+			return m_size == 0;
+		} finally {
+			m_latch.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return A cursor over every committed entry, in no particular order
+	 */
+	protected BDIndexCursor cursorFirst() {
+		List<Entry> entries = new ArrayList<Entry>();
+		m_latch.readLock().lock();
+		try {
+			for (List<Entry> bucket : m_buckets) {
+				entries.addAll(bucket);
+			}
+			diskReads(m_buckets.size());
+		} finally {
+			m_latch.readLock().unlock();
+		}
+		return new Cursor(entries);
+	}
+
+	/**
+	 * Reads the one bucket the value hashes to.
+	 *
+	 * @return All tuples whose [m_keyName] field is equal to [value]
+	 * @throws RollbackException
+	 */
+	public BDSystemResultSet getTuplesByValue(Comparable<?> value)
+			throws InterruptedException, RollbackException {
+		int TID = currentTransactionId();
+		BDSystemResultSet result = new BDSystemResultSet();
+
+		int hash = hash(value);
+		List<BDTuple> matches = new ArrayList<BDTuple>();
+		m_latch.readLock().lock();
+		try {
+			for (Entry entry : m_buckets.get(bucketOf(hash))) {
+				if (entry.m_hash == hash && keysEqual(entry.m_key, value)) {
+					matches.add(entry.m_tuple);
+				}
+			}
+			diskReads(1);
+		} finally {
+			m_latch.readLock().unlock();
+		}
+		for (BDTuple t : matches) {
+			result.addRow(t);
+		}
+
+		addInsertShadows(TID, result, RangeType.EQ, m_keyName, value);
+		removeDeleteShadows(TID, result);
+		return result;
+	}
+
+	/**
+	 * Splits the bucket at the split pointer, moving the entries that hash
+	 * into the next round's new bucket to the end of the table.
+	 */
+	private void split() {
+		int round = m_initialBuckets << m_level;
+		List<Entry> bucket = m_buckets.get(m_split);
+		List<Entry> stay = new ArrayList<Entry>();
+		List<Entry> moved = new ArrayList<Entry>();
+		for (Entry entry : bucket) {
+			if (entry.m_hash % (2 * round) == m_split) {
+				stay.add(entry);
+			} else {
+				moved.add(entry);
+			}
+		}
+		m_buckets.set(m_split, stay);
+		m_buckets.add(moved);
+		diskWrites(2);
+		m_split++;
+		if (m_split == round) {
+			m_level++;
+			m_split = 0;
+		}
+	}
+
+	/**
+	 * Undoes the last split, moving the last bucket's entries back into the
+	 * bucket it was split from.
+	 */
+	private void merge() {
+		if (m_split == 0) {
+			m_level--;
+			m_split = m_initialBuckets << m_level;
+		}
+		m_split--;
+		List<Entry> last = m_buckets.remove(m_buckets.size() - 1);
+		m_buckets.get(m_split).addAll(last);
+		diskReads(1);
+		diskWrites(1);
+	}
+
+	/**
+	 * @return The bucket a hash belongs in: its remainder by this round's
+	 *         table size, or by the next round's if that bucket was already
+	 *         split
+	 */
+	private int bucketOf(int hash) {
+		int round = m_initialBuckets << m_level;
+		int bucket = hash % round;
+		if (bucket < m_split) {
+			bucket = hash % (2 * round);
+		}
+		return bucket;
+	}
+
+	/**
+	 * @return A non-negative hash of a key. The key's own hash code is mixed
+	 *         first: the hash codes of whole-number Doubles differ only in
+	 *         their high bits.
+	 */
+	private static int hash(Object key) {
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & 0x7fffffff;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean keysEqual(Comparable<?> key1, Comparable<?> key2) {
+		if (key1 == null || key2 == null) {
+			return key1 == key2;
+		}
+		return ((Comparable<Object>) key1).compareTo(key2) == 0;
+	}
+
+	/**
+	 * Counts bucket reads with the disk manager, as if each bucket were a
+	 * page on disk.
+	 */
+	private void diskReads(int buckets) {
+		if (BDSystem.diskManager != null) {
+			BDSystem.diskManager.recordReads(m_tableName, buckets);
+		}
+	}
+
+	/**
+	 * Counts bucket writes with the disk manager, as if each bucket were a
+	 * page on disk.
+	 */
+	private void diskWrites(int buckets) {
+		if (BDSystem.diskManager != null) {
+			BDSystem.diskManager.recordWrites(m_tableName, buckets);
+		}
+	}
+}
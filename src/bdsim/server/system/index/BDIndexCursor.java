@@ -0,0 +1,32 @@
+package bdsim.server.system.index;
+
+import bdsim.server.system.BDTuple;
+
+/**
+ * A position in the entries of an ordered index. A cursor moves one entry at
+ * a time in the direction it was created with and becomes invalid when it
+ * runs off the end of the index.
+ */
+public interface BDIndexCursor {
+
+	/**
+	 * @return true while the cursor points at an entry
+	 */
+	public boolean isValid();
+
+	/**
+	 * @return the key at the current entry
+	 */
+	public Comparable<?> getKey();
+
+	/**
+	 * @return the tuple at the current entry
+	 * @throws InterruptedException
+	 */
+	public BDTuple getTuple() throws InterruptedException;
+
+	/**
+	 * Moves to the next entry in the cursor's direction.
+	 */
+	public void advance();
+}
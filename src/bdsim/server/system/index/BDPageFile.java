@@ -0,0 +1,210 @@
+package bdsim.server.system.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import org.apache.log4j.Logger;
+
+import bdsim.server.system.buffer.BDPageStore;
+
+/**
+ * A file of fixed-size pages mapped into memory. Page 0 holds the header
+ * (page size, number of pages in use, root page of the structure stored in the
+ * file and a generation counter); every other page is handed out by
+ * allocatePage. The mapping doubles whenever it runs out of pages.
+ *
+ * The pages live in the operating system's page cache rather than on the Java
+ * heap. A single mapping is limited to 2GB, which bounds the file size.
+ * Structures stored in the file read and write its pages through a
+ * BDBufferPool; only the header is accessed directly.
+ */
+public class BDPageFile implements BDPageStore {
+
+	static Logger logger = Logger.getLogger(BDPageFile.class);
+
+	/** Marks a page number that refers to no page; page 0 is the header */
+	public static final int NO_PAGE = 0;
+
+	private static final int MAGIC = 0x42445046;
+	private static final int VERSION = 1;
+
+	/** Header layout */
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_PAGE_SIZE = 8;
+	private static final int HEADER_PAGE_COUNT = 12;
+	private static final int HEADER_ROOT = 16;
+	private static final int HEADER_GENERATION = 20;
+
+	/** Pages mapped when a file is created */
+	private static final int INITIAL_PAGES = 16;
+
+	private RandomAccessFile m_file;
+	private FileChannel m_channel;
+	private FileLock m_lock;
+	private MappedByteBuffer m_buffer;
+	private int m_pageSize;
+	private boolean m_new;
+	private String m_owner;
+
+	/**
+	 * Opens a page file, creating it if needed. The file is locked while it
+	 * is open, so it cannot be used by two page files at once.
+	 *
+	 * @param file The file to map
+	 * @param owner The table the file belongs to
+	 * @param pageSize Size of each page in bytes
+	 * @param reopen If true and the file already holds pages of this size,
+	 *            they are kept; otherwise the file starts out empty
+	 * @throws IOException
+	 */
+	public BDPageFile(File file, String owner, int pageSize, boolean reopen)
+			throws IOException {
+		m_owner = owner;
+		m_pageSize = pageSize;
+		m_file = new RandomAccessFile(file, "rw");
+		m_channel = m_file.getChannel();
+		try {
+			m_lock = m_channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			m_lock = null;
+		}
+		if (m_lock == null) {
+			m_file.close();
+			throw new IOException(file + " is already in use");
+		}
+
+		if (reopen && isValid()) {
+			map(m_file.length());
+			m_buffer.putInt(HEADER_GENERATION, m_buffer.getInt(HEADER_GENERATION) + 1);
+			m_new = false;
+			logger.debug("Reopened " + file + " with " + getPageCount() + " pages");
+		} else {
+			m_file.setLength(0);
+			map((long) INITIAL_PAGES * m_pageSize);
+			m_buffer.putInt(HEADER_MAGIC, MAGIC);
+			m_buffer.putInt(HEADER_VERSION, VERSION);
+			m_buffer.putInt(HEADER_PAGE_SIZE, m_pageSize);
+			m_buffer.putInt(HEADER_PAGE_COUNT, 1);
+			m_buffer.putInt(HEADER_ROOT, NO_PAGE);
+			m_buffer.putInt(HEADER_GENERATION, 0);
+			m_new = true;
+		}
+	}
+
+	/**
+	 * @return whether the file already holds a header matching this page size
+	 */
+	private boolean isValid() throws IOException {
+		if (m_file.length() < m_pageSize || m_file.length() % m_pageSize != 0) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_GENERATION + 4);
+		m_channel.read(header, 0);
+		return header.getInt(HEADER_MAGIC) == MAGIC
+				&& header.getInt(HEADER_VERSION) == VERSION
+				&& header.getInt(HEADER_PAGE_SIZE) == m_pageSize
+				&& header.getInt(HEADER_PAGE_COUNT) > 0;
+	}
+
+	private void map(long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Page file cannot grow past " + Integer.MAX_VALUE + " bytes");
+		}
+		if (m_file.length() < size) {
+			m_file.setLength(size);
+		}
+		m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	/**
+	 * @return true if the file was created empty rather than reopened
+	 */
+	public boolean isNew() {
+		return m_new;
+	}
+
+	public int getPageSize() {
+		return m_pageSize;
+	}
+
+	public String getOwner() {
+		return m_owner;
+	}
+
+	public synchronized void readPage(int page, ByteBuffer dst) {
+		ByteBuffer src = m_buffer.duplicate();
+		src.limit((page + 1) * m_pageSize);
+		src.position(page * m_pageSize);
+		dst.put(src);
+	}
+
+	public synchronized void writePage(int page, ByteBuffer src) {
+		ByteBuffer dst = m_buffer.duplicate();
+		dst.limit((page + 1) * m_pageSize);
+		dst.position(page * m_pageSize);
+		dst.put(src);
+	}
+
+	public int getPageCount() {
+		return m_buffer.getInt(HEADER_PAGE_COUNT);
+	}
+
+	public int getRoot() {
+		return m_buffer.getInt(HEADER_ROOT);
+	}
+
+	public void setRoot(int page) {
+		m_buffer.putInt(HEADER_ROOT, page);
+	}
+
+	/**
+	 * @return A counter that goes up each time the file is reopened
+	 */
+	public int getGeneration() {
+		return m_buffer.getInt(HEADER_GENERATION);
+	}
+
+	/**
+	 * @return The number of a fresh page at the end of the file
+	 */
+	public synchronized int allocatePage() {
+		int page = getPageCount();
+		if ((long) (page + 1) * m_pageSize > m_buffer.capacity()) {
+			long limit = (Integer.MAX_VALUE / m_pageSize) * (long) m_pageSize;
+			try {
+				map(Math.min(2L * m_buffer.capacity(),
+						Math.max(limit, (long) (page + 1) * m_pageSize)));
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not grow page file", e);
+			}
+		}
+		m_buffer.putInt(HEADER_PAGE_COUNT, page + 1);
+		return page;
+	}
+
+	/**
+	 * Writes the mapped pages back to the file.
+	 */
+	public void sync() {
+		m_buffer.force();
+	}
+
+	/**
+	 * Closes the file. Pages written since the last sync are left to the
+	 * operating system to write back.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		m_lock.release();
+		m_channel.close();
+		m_file.close();
+	}
+}
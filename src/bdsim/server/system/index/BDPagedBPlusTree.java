@@ -0,0 +1,633 @@
+package bdsim.server.system.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.buffer.BDBufferPool;
+
+/**
+ * A B+ tree whose nodes are pages of a BDPageFile, read and written through a
+ * BDBufferPool. Keys and tuples are stored serialized with BDTupleCodec, so
+ * the tree itself keeps nothing on the Java heap between calls.
+ *
+ * Each node page starts with a small header followed by a slot array that
+ * holds the offset of every entry, so lookups binary search the keys in
+ * place. A leaf entry is [key][read ts][write ts][generation][tuple]; an inner
+ * entry is [key][child page], where the child holds the keys >= key and the
+ * header's link field holds the leftmost child. Leaves are chained through
+ * the link (next) and prev fields for range scans.
+ *
+ * Nodes split when their entries no longer fit in a page. Deletes do not
+ * merge nodes; an emptied leaf stays in the chain and is skipped by cursors.
+ */
+public class BDPagedBPlusTree {
+
+	private static final byte LEAF = 1;
+	private static final byte INNER = 2;
+
+	/** Node page layout */
+	private static final int KIND = 0;
+	private static final int COUNT = 1;
+	private static final int LINK = 3;
+	private static final int PREV = 7;
+	private static final int END = 11;
+	private static final int SLOTS = 13;
+
+	/** Bytes of the read timestamp, write timestamp and generation of a leaf entry */
+	private static final int STAMPS = 12;
+
+	private static final int MIN_PAGE_SIZE = 512;
+	private static final int MAX_PAGE_SIZE = 32768;
+
+	private BDPageFile m_file;
+	private BDBufferPool m_pool;
+	private BDSchema m_schema;
+	private int m_keyPosition;
+
+	/**
+	 * Largest entry a page takes. Keeping entries under a quarter page
+	 * guarantees that both halves of a split fit in their pages.
+	 */
+	private int m_maxEntrySize;
+
+	/** Counts the inserts and deletes, so cursors can tell the tree changed */
+	private int m_modCount;
+
+	/** A node split: the separator key and the new right-hand page */
+	private static class Split {
+		Comparable<?> key;
+		int page;
+
+		Split(Comparable<?> key, int page) {
+			this.key = key;
+			this.page = page;
+		}
+	}
+
+	/**
+	 * Opens the tree stored in a page file, creating an empty one if the file
+	 * holds no tree yet.
+	 *
+	 * @param file The file holding the pages
+	 * @param pool The buffer pool to cache the pages in; its page size must
+	 *            match the file's
+	 * @param schema The schema of the stored tuples
+	 * @param keyName The column the tree is keyed on
+	 */
+	public BDPagedBPlusTree(BDPageFile file, BDBufferPool pool, BDSchema schema,
+			String keyName) {
+		if (file.getPageSize() < MIN_PAGE_SIZE || file.getPageSize() > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("Page size must be between "
+					+ MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE + " bytes");
+		}
+		if (file.getPageSize() != pool.getPageSize()) {
+			throw new IllegalArgumentException("Page file has " + file.getPageSize()
+					+ " byte pages but the buffer pool has " + pool.getPageSize());
+		}
+		m_file = file;
+		m_pool = pool;
+		m_schema = schema;
+		m_keyPosition = schema.getPosition(keyName);
+		m_maxEntrySize = (file.getPageSize() - SLOTS) / 4 - 2;
+
+		if (m_file.getRoot() == BDPageFile.NO_PAGE) {
+			int root = m_file.allocatePage();
+			writeNode(root, LEAF, new ArrayList<byte[]>(), BDPageFile.NO_PAGE,
+					BDPageFile.NO_PAGE);
+			m_file.setRoot(root);
+		}
+	}
+
+	/**
+	 * @return Whether the key is in the tree
+	 */
+	public synchronized boolean find(Comparable<?> key) {
+		int leaf = findLeaf(key, null);
+		ByteBuffer p = m_pool.pin(m_file, leaf);
+		try {
+			return indexOf(p, key) >= 0;
+		} finally {
+			m_pool.unpin(m_file, leaf, false);
+		}
+	}
+
+	/**
+	 * Adds a tuple to the tree, splitting nodes on the way up as needed.
+	 *
+	 * @return false if the key was already in the tree, in which case nothing
+	 *         is stored
+	 */
+	public synchronized boolean insert(BDTuple t) {
+		Comparable<?> key = (Comparable<?>) t.getObject(m_keyPosition);
+		byte[] entry = leafEntry(key, t);
+
+		List<Integer> path = new ArrayList<Integer>();
+		int leaf = findLeaf(key, path);
+		List<byte[]> entries;
+		int link, prev;
+		ByteBuffer p = m_pool.pin(m_file, leaf);
+		try {
+			if (indexOf(p, key) >= 0) {
+				return false;
+			}
+			entries = readEntries(p);
+			entries.add(search(p, key, false), entry);
+			link = p.getInt(LINK);
+			prev = p.getInt(PREV);
+		} finally {
+			m_pool.unpin(m_file, leaf, false);
+		}
+		Split split = store(leaf, LEAF, entries, link, prev);
+
+		for (int level = path.size() - 1; split != null && level >= 0; level--) {
+			int parent = path.get(level);
+			p = m_pool.pin(m_file, parent);
+			try {
+				entries = readEntries(p);
+				entries.add(search(p, split.key, true),
+						innerEntry(split.key, split.page));
+				link = p.getInt(LINK);
+			} finally {
+				m_pool.unpin(m_file, parent, false);
+			}
+			split = store(parent, INNER, entries, link, BDPageFile.NO_PAGE);
+		}
+
+		if (split != null) {
+			int root = m_file.allocatePage();
+			entries = new ArrayList<byte[]>();
+			entries.add(innerEntry(split.key, split.page));
+			writeNode(root, INNER, entries, m_file.getRoot(), BDPageFile.NO_PAGE);
+			m_file.setRoot(root);
+		}
+		m_modCount++;
+		return true;
+	}
+
+	/**
+	 * Removes the entry with the given key.
+	 *
+	 * @return false if the key was not in the tree
+	 */
+	public synchronized boolean delete(Comparable<?> key) {
+		int leaf = findLeaf(key, null);
+		List<byte[]> entries;
+		int link, prev;
+		ByteBuffer p = m_pool.pin(m_file, leaf);
+		try {
+			int pos = indexOf(p, key);
+			if (pos < 0) {
+				return false;
+			}
+			entries = readEntries(p);
+			entries.remove(pos);
+			link = p.getInt(LINK);
+			prev = p.getInt(PREV);
+		} finally {
+			m_pool.unpin(m_file, leaf, false);
+		}
+		writeNode(leaf, LEAF, entries, link, prev);
+		m_modCount++;
+		return true;
+	}
+
+	/**
+	 * Writes the tree's dirty pages back to the file.
+	 */
+	public void flush() {
+		m_pool.flush(m_file);
+	}
+
+	/**
+	 * @return A cursor over every entry in ascending key order
+	 */
+	public synchronized Cursor cursorFirst() {
+		int page = m_file.getRoot();
+		while (true) {
+			ByteBuffer p = m_pool.pin(m_file, page);
+			int next;
+			try {
+				if (p.get(KIND) == LEAF) {
+					break;
+				}
+				next = p.getInt(LINK);
+			} finally {
+				m_pool.unpin(m_file, page, false);
+			}
+			page = next;
+		}
+		return new Cursor(page, 0, true);
+	}
+
+	/**
+	 * @return A cursor over every entry in descending key order
+	 */
+	public synchronized Cursor cursorLast() {
+		int page = m_file.getRoot();
+		while (true) {
+			ByteBuffer p = m_pool.pin(m_file, page);
+			int next;
+			try {
+				if (p.get(KIND) == LEAF) {
+					return new Cursor(page, count(p) - 1, false);
+				}
+				next = childAt(p, count(p));
+			} finally {
+				m_pool.unpin(m_file, page, false);
+			}
+			page = next;
+		}
+	}
+
+	/**
+	 * @param value The key to seek to
+	 * @param forward If true, the cursor starts at the first entry >= value
+	 *            and moves up; otherwise it starts at the last entry <= value
+	 *            and moves down
+	 * @return A cursor positioned at value
+	 */
+	public synchronized Cursor cursorAt(Comparable<?> value, boolean forward) {
+		int leaf = findLeaf(value, null);
+		int slot;
+		ByteBuffer p = m_pool.pin(m_file, leaf);
+		try {
+			slot = forward ? search(p, value, false) : search(p, value, true) - 1;
+		} finally {
+			m_pool.unpin(m_file, leaf, false);
+		}
+		return new Cursor(leaf, slot, forward);
+	}
+
+	/**
+	 * Descends from the root to the leaf that should hold key.
+	 *
+	 * @param path If not null, receives the inner pages passed on the way
+	 * @return The leaf page
+	 */
+	private int findLeaf(Comparable<?> key, List<Integer> path) {
+		int page = m_file.getRoot();
+		while (true) {
+			ByteBuffer p = m_pool.pin(m_file, page);
+			int next;
+			try {
+				if (p.get(KIND) == LEAF) {
+					return page;
+				}
+				next = childAt(p, search(p, key, true));
+			} finally {
+				m_pool.unpin(m_file, page, false);
+			}
+			if (path != null) {
+				path.add(page);
+			}
+			page = next;
+		}
+	}
+
+	/**
+	 * @param upper If false, finds the first entry >= key; otherwise the first
+	 *            entry > key
+	 * @return The position of that entry, or the entry count if there is none
+	 */
+	private static int search(ByteBuffer p, Comparable<?> key, boolean upper) {
+		int low = 0;
+		int high = count(p);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = BDTupleCodec.compareValue(p, entry(p, mid), key);
+			if (cmp < 0 || (upper && cmp == 0)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return The position of the entry with this key, or -1 if there is none
+	 */
+	private static int indexOf(ByteBuffer p, Comparable<?> key) {
+		int pos = search(p, key, false);
+		if (pos < count(p) && BDTupleCodec.compareValue(p, entry(p, pos), key) == 0) {
+			return pos;
+		}
+		return -1;
+	}
+
+	private static int count(ByteBuffer p) {
+		return p.getShort(COUNT) & 0xFFFF;
+	}
+
+	/**
+	 * @return The offset of entry i within its page
+	 */
+	private static int entry(ByteBuffer p, int i) {
+		return p.getShort(SLOTS + 2 * i) & 0xFFFF;
+	}
+
+	/**
+	 * @return Child i of an inner page, 0 being the leftmost
+	 */
+	private static int childAt(ByteBuffer p, int i) {
+		if (i == 0) {
+			return p.getInt(LINK);
+		}
+		return p.getInt(BDTupleCodec.skipValue(p, entry(p, i - 1)));
+	}
+
+	/**
+	 * @return Copies of the entries of a page, in order
+	 */
+	private static List<byte[]> readEntries(ByteBuffer p) {
+		int n = count(p);
+		List<byte[]> entries = new ArrayList<byte[]>(n + 1);
+		ByteBuffer dup = p.duplicate();
+		for (int i = 0; i < n; i++) {
+			int start = entry(p, i);
+			int end = (i + 1 < n) ? entry(p, i + 1) : p.getShort(END) & 0xFFFF;
+			byte[] bytes = new byte[end - start];
+			dup.position(start);
+			dup.get(bytes);
+			entries.add(bytes);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The bytes a page needs for these entries
+	 */
+	private static int nodeSize(List<byte[]> entries) {
+		int size = SLOTS;
+		for (byte[] entry : entries) {
+			size += 2 + entry.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes entries that are known to fit into a page.
+	 */
+	private void writeNode(int page, byte kind, List<byte[]> entries, int link, int prev) {
+		ByteBuffer p = m_pool.pin(m_file, page);
+		try {
+			int n = entries.size();
+			p.put(KIND, kind);
+			p.putShort(COUNT, (short) n);
+			p.putInt(LINK, link);
+			p.putInt(PREV, prev);
+
+			ByteBuffer dup = p.duplicate();
+			int pos = SLOTS + 2 * n;
+			for (int i = 0; i < n; i++) {
+				byte[] entry = entries.get(i);
+				p.putShort(SLOTS + 2 * i, (short) pos);
+				dup.position(pos);
+				dup.put(entry);
+				pos += entry.length;
+			}
+			p.putShort(END, (short) pos);
+		} finally {
+			m_pool.unpin(m_file, page, true);
+		}
+	}
+
+	/**
+	 * Writes entries into a page, splitting it in two if they do not fit.
+	 *
+	 * @return The split to insert into the parent, or null if none happened
+	 */
+	private Split store(int page, byte kind, List<byte[]> entries, int link, int prev) {
+		if (nodeSize(entries) <= m_file.getPageSize()) {
+			writeNode(page, kind, entries, link, prev);
+			return null;
+		}
+
+		int n = entries.size();
+		int mid = splitPoint(entries, kind == LEAF ? n - 1 : n - 2);
+		int right = m_file.allocatePage();
+
+		if (kind == LEAF) {
+			List<byte[]> rightEntries = entries.subList(mid, n);
+			writeNode(right, LEAF, rightEntries, link, page);
+			if (link != BDPageFile.NO_PAGE) {
+				ByteBuffer next = m_pool.pin(m_file, link);
+				next.putInt(PREV, right);
+				m_pool.unpin(m_file, link, true);
+			}
+			writeNode(page, LEAF, entries.subList(0, mid), right, prev);
+			return new Split(keyOf(rightEntries.get(0)), right);
+		} else {
+			// The middle separator moves up; its child becomes the leftmost
+			// child of the new node
+			ByteBuffer middle = ByteBuffer.wrap(entries.get(mid));
+			Comparable<?> key = (Comparable<?>) BDTupleCodec.getValue(middle, 0);
+			int child = middle.getInt(BDTupleCodec.skipValue(middle, 0));
+			writeNode(right, INNER, entries.subList(mid + 1, n), child, BDPageFile.NO_PAGE);
+			writeNode(page, INNER, entries.subList(0, mid), link, BDPageFile.NO_PAGE);
+			return new Split(key, right);
+		}
+	}
+
+	/**
+	 * @param last The largest position the split may happen at
+	 * @return The position of the first entry of the right half, chosen so
+	 *         both halves hold about the same number of bytes
+	 */
+	private static int splitPoint(List<byte[]> entries, int last) {
+		int total = nodeSize(entries);
+		int left = SLOTS;
+		int mid = 0;
+		while (mid < last && left + 2 + entries.get(mid).length <= total / 2) {
+			left += 2 + entries.get(mid).length;
+			mid++;
+		}
+		return Math.max(mid, 1);
+	}
+
+	private static Comparable<?> keyOf(byte[] entry) {
+		return (Comparable) BDTupleCodec.getValue(ByteBuffer.wrap(entry), 0);
+	}
+
+	private byte[] leafEntry(Comparable<?> key, BDTuple t) {
+		int size = BDTupleCodec.valueSize(key) + STAMPS + BDTupleCodec.tupleSize(t);
+		if (size > m_maxEntrySize) {
+			throw new IllegalArgumentException("Tuple of " + size
+					+ " bytes does not fit in a page of " + m_file.getPageSize() + " bytes");
+		}
+		ByteBuffer entry = ByteBuffer.allocate(size);
+		BDTupleCodec.putValue(entry, key);
+		entry.putInt(t.getReadTimestamp());
+		entry.putInt(t.getWriteTimestamp());
+		entry.putInt(m_file.getGeneration());
+		BDTupleCodec.putTuple(entry, t);
+		return entry.array();
+	}
+
+	private static byte[] innerEntry(Comparable<?> key, int child) {
+		ByteBuffer entry = ByteBuffer.allocate(BDTupleCodec.valueSize(key) + 4);
+		BDTupleCodec.putValue(entry, key);
+		entry.putInt(child);
+		return entry.array();
+	}
+
+	/**
+	 * A position in the leaf level of the tree. Tuples are decoded from the
+	 * page each time they are read, so changes to a returned tuple are not
+	 * seen by the tree; storeTimestamps writes back the concurrency
+	 * controller's timestamps.
+	 *
+	 * Cursors do not keep their page pinned, so they may be used while the
+	 * tree changes, as a scan streamed to a slow client is. A cursor
+	 * remembers the key of its entry, and when it finds the tree changed
+	 * since it last looked, it searches for that key again: if the entry
+	 * was removed, the cursor moves on to the next one. Keys come out in
+	 * order and at most once; entries added or removed during the scan may
+	 * or may not be seen.
+	 */
+	public class Cursor implements BDIndexCursor {
+
+		private int m_page;
+		private int m_slot;
+		private boolean m_forward;
+
+		/** The key of the current entry */
+		private Comparable<?> m_key;
+
+		/** The tree's m_modCount when m_page and m_slot were found */
+		private int m_seen;
+
+		Cursor(int page, int slot, boolean forward) {
+			m_page = page;
+			m_slot = slot;
+			m_forward = forward;
+			settle();
+		}
+
+		public boolean isValid() {
+			return m_page != BDPageFile.NO_PAGE;
+		}
+
+		public Comparable<?> getKey() {
+			synchronized (BDPagedBPlusTree.this) {
+				revalidate();
+				return m_key;
+			}
+		}
+
+		public BDTuple getTuple() {
+			synchronized (BDPagedBPlusTree.this) {
+				revalidate();
+				ByteBuffer p = m_pool.pin(m_file, m_page);
+				try {
+					int stamps = BDTupleCodec.skipValue(p, entry(p, m_slot));
+					BDTuple t = BDTupleCodec.getTuple(p, stamps + STAMPS, m_schema);
+					// Timestamps written before the file was reopened belong
+					// to transactions of an earlier run
+					if (p.getInt(stamps + 8) == m_file.getGeneration()) {
+						t.setReadTimestamp(p.getInt(stamps));
+						t.setWriteTimestamp(p.getInt(stamps + 4));
+					}
+					return t;
+				} finally {
+					m_pool.unpin(m_file, m_page, false);
+				}
+			}
+		}
+
+		/**
+		 * Stores the read and write timestamps of t with the current entry.
+		 */
+		public void storeTimestamps(BDTuple t) {
+			synchronized (BDPagedBPlusTree.this) {
+				revalidate();
+				ByteBuffer p = m_pool.pin(m_file, m_page);
+				try {
+					int stamps = BDTupleCodec.skipValue(p, entry(p, m_slot));
+					p.putInt(stamps, t.getReadTimestamp());
+					p.putInt(stamps + 4, t.getWriteTimestamp());
+					p.putInt(stamps + 8, m_file.getGeneration());
+				} finally {
+					m_pool.unpin(m_file, m_page, true);
+				}
+			}
+		}
+
+		public void advance() {
+			synchronized (BDPagedBPlusTree.this) {
+				if (m_seen != m_modCount && isValid()) {
+					seek(false);
+				} else {
+					m_slot += m_forward ? 1 : -1;
+					settle();
+				}
+			}
+		}
+
+		/**
+		 * Finds the current entry again if the tree changed since it was
+		 * found, or the entry after it if it is gone.
+		 */
+		private void revalidate() {
+			if (m_seen != m_modCount && isValid()) {
+				seek(true);
+			}
+		}
+
+		/**
+		 * Searches the tree for the entry after m_key.
+		 *
+		 * @param inclusive True if an entry with m_key itself is the one
+		 */
+		private void seek(boolean inclusive) {
+			m_page = findLeaf(m_key, null);
+			ByteBuffer p = m_pool.pin(m_file, m_page);
+			try {
+				if (m_forward) {
+					m_slot = search(p, m_key, !inclusive);
+				} else {
+					m_slot = search(p, m_key, inclusive) - 1;
+				}
+			} finally {
+				m_pool.unpin(m_file, m_page, false);
+			}
+			settle();
+		}
+
+		/**
+		 * Follows the leaf chain until the slot is inside a leaf, skipping
+		 * empty leaves, and reads the key there; leaves the cursor invalid
+		 * when it runs off the end.
+		 */
+		private void settle() {
+			synchronized (BDPagedBPlusTree.this) {
+				m_seen = m_modCount;
+				while (m_page != BDPageFile.NO_PAGE) {
+					int page = m_page;
+					ByteBuffer p = m_pool.pin(m_file, page);
+					try {
+						if (m_slot >= 0 && m_slot < count(p)) {
+							m_key = (Comparable) BDTupleCodec.getValue(p,
+									entry(p, m_slot));
+							return;
+						}
+						m_page = m_forward ? p.getInt(LINK) : p.getInt(PREV);
+					} finally {
+						m_pool.unpin(m_file, page, false);
+					}
+					if (m_page != BDPageFile.NO_PAGE && !m_forward) {
+						ByteBuffer q = m_pool.pin(m_file, m_page);
+						m_slot = count(q) - 1;
+						m_pool.unpin(m_file, m_page, false);
+					} else {
+						m_slot = 0;
+					}
+				}
+				m_key = null;
+			}
+		}
+	}
+}
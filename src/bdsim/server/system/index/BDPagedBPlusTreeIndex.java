@@ -0,0 +1,116 @@
+package bdsim.server.system.index;
+
+import java.io.File;
+import java.io.IOException;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.buffer.BDBufferPool;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * A B+ tree index stored off the Java heap in a memory-mapped page file and
+ * cached in a buffer pool (see BDPagedBPlusTree). Tables using it can grow
+ * past the heap, do not add to garbage collection work, and can be reopened
+ * from their files instead of being reloaded from XML.
+ *
+ * Tuples read from the index are fresh copies decoded from the pages.
+ */
+public class BDPagedBPlusTreeIndex extends BDSortedIndex {
+
+	private BDPageFile m_file;
+
+	private BDBufferPool m_pool;
+
+	private BDPagedBPlusTree m_tree;
+
+	/**
+	 * @param tableName The table the index belongs to
+	 * @param schema The schema of the table's tuples
+	 * @param keyName The column to index
+	 * @param file The file holding the index pages
+	 * @param pool The buffer pool to cache pages in; the file uses its page
+	 *            size
+	 * @param reopen If true, a tree already stored in the file is kept
+	 * @throws IOException
+	 */
+	public BDPagedBPlusTreeIndex(String tableName, BDSchema schema, String keyName,
+			File file, BDBufferPool pool, boolean reopen) throws IOException {
+		super(keyName);
+		m_pool = pool;
+		m_file = new BDPageFile(file, tableName, pool.getPageSize(), reopen);
+		m_tree = new BDPagedBPlusTree(m_file, pool, schema, keyName);
+	}
+
+	public BDPagedBPlusTree getTree() {
+		return m_tree;
+	}
+
+	public IndexType getIndexType() {
+		return IndexType.B_PLUS_TREE;
+	}
+
+	/**
+	 * Applies the transaction's shadows and writes the changed pages back to
+	 * the file, so a committed transaction survives a restart.
+	 */
+	public void commit(int TID) throws InterruptedException, RollbackException {
+		super.commit(TID);
+		m_tree.flush();
+	}
+
+	/**
+	 * Actually inserts the tuple into the index, ignoring concurrency.
+	 */
+	public void insertNow(BDTuple t) {
+		m_tree.insert(t);
+	}
+
+	/**
+	 * Actually removes the tuple from the index, ignoring concurrency.
+	 */
+	public void deleteNow(BDTuple t) {
+		m_tree.delete((Comparable) t.getObject(m_keyName));
+	}
+
+	public boolean isEmpty() {
+		return !m_tree.cursorFirst().isValid();
+	}
+
+	protected BDIndexCursor cursorFirst() {
+		return m_tree.cursorFirst();
+	}
+
+	protected BDIndexCursor cursorAt(Comparable<?> value, boolean forward) {
+		return m_tree.cursorAt(value, forward);
+	}
+
+	/**
+	 * The result set's copy is taken from a decoded tuple, so a read
+	 * timestamp the concurrency controller sets on it has to be written back.
+	 * Controllers that leave the timestamps alone dirty no pages.
+	 */
+	protected void addRow(BDSystemResultSet result, BDIndexCursor cursor)
+			throws InterruptedException, RollbackException {
+		BDPagedBPlusTree.Cursor pagedCursor = (BDPagedBPlusTree.Cursor) cursor;
+		BDTuple t = pagedCursor.getTuple();
+		int read = t.getReadTimestamp();
+		int write = t.getWriteTimestamp();
+		result.addRow(t);
+		if (t.getReadTimestamp() != read || t.getWriteTimestamp() != write) {
+			pagedCursor.storeTimestamps(t);
+		}
+	}
+
+	/**
+	 * Flushes the pages to disk, drops them from the buffer pool and closes
+	 * the file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		m_pool.release(m_file);
+		m_file.close();
+	}
+}
@@ -0,0 +1,111 @@
+package bdsim.server.system.index;
+
+/**
+ * The key of an entry in a secondary B+ tree index, where many rows can share
+ * a value: the indexed column's value followed by the row's primary key (or,
+ * for tables without one, all of the row's columns). Keys sort by value and
+ * then by row, so every entry is unique and the rows of one value are next
+ * to each other in the leaves.
+ *
+ * The keys made by low and high sort before and after every row of a value,
+ * for seeking to the first or last entry of that value.
+ */
+public final class BDSecondaryKey implements Comparable<BDSecondaryKey> {
+
+	private final Comparable<?> m_value;
+
+	/** The row's identifying columns, or null for a low or high key */
+	private final Comparable<?>[] m_row;
+
+	/** -1 for a low key, 1 for a high key, 0 for a row's key */
+	private final int m_bound;
+
+	private BDSecondaryKey(Comparable<?> value, Comparable<?>[] row, int bound) {
+		m_value = value;
+		m_row = row;
+		m_bound = bound;
+	}
+
+	/**
+	 * @param value The indexed column's value
+	 * @param row The columns that tell the row apart from other rows with
+	 *            the same value
+	 */
+	public BDSecondaryKey(Comparable<?> value, Comparable<?>[] row) {
+		this(value, row, 0);
+	}
+
+	/**
+	 * @return A key below every row with the given value
+	 */
+	public static BDSecondaryKey low(Comparable<?> value) {
+		return new BDSecondaryKey(value, null, -1);
+	}
+
+	/**
+	 * @return A key above every row with the given value
+	 */
+	public static BDSecondaryKey high(Comparable<?> value) {
+		return new BDSecondaryKey(value, null, 1);
+	}
+
+	/**
+	 * @return The indexed column's value
+	 */
+	public Comparable<?> getValue() {
+		return m_value;
+	}
+
+	public int compareTo(BDSecondaryKey key) {
+		int order = compare(m_value, key.m_value);
+		if (order != 0) {
+			return order;
+		}
+		if (m_bound != 0 || key.m_bound != 0) {
+			return m_bound - key.m_bound;
+		}
+		for (int i = 0; i < m_row.length && i < key.m_row.length; i++) {
+			order = compare(m_row[i], key.m_row[i]);
+			if (order != 0) {
+				return order;
+			}
+		}
+		return m_row.length - key.m_row.length;
+	}
+
+	public boolean equals(Object other) {
+		return other instanceof BDSecondaryKey
+				&& compareTo((BDSecondaryKey) other) == 0;
+	}
+
+	public int hashCode() {
+		int hash = m_value == null ? 0 : m_value.hashCode();
+		if (m_row != null) {
+			for (Comparable<?> column : m_row) {
+				hash = 31 * hash + (column == null ? 0 : column.hashCode());
+			}
+		}
+		return 31 * hash + m_bound;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder(String.valueOf(m_value));
+		if (m_row != null) {
+			for (Comparable<?> column : m_row) {
+				s.append('/').append(column);
+			}
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Compares two column values, with null below everything else.
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compare(Comparable<?> value1, Comparable<?> value2) {
+		if (value1 == null || value2 == null) {
+			return value1 == null ? (value2 == null ? 0 : -1) : 1;
+		}
+		return ((Comparable<Object>) value1).compareTo(value2);
+	}
+}
@@ -0,0 +1,409 @@
+package bdsim.server.system.index;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDSystemThread;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * Base class of the indices. Inserts and deletes are queued per
+ * transaction in shadow lists and only applied to the underlying structure
+ * (through insertNow/deleteNow) when the transaction commits. Reads walk the
+ * committed entries with a BDIndexCursor and then overlay the calling
+ * transaction's own shadows.
+ */
+public abstract class BDShadowedIndex implements BDIndex {
+
+	public Map<Integer, List<BDTuple>> m_delete_shadows;
+
+	public Map<Integer, List<BDTuple>> m_insert_shadows;
+
+	/** Name of the key on which this is an index */
+	protected String m_keyName;
+
+	public BDShadowedIndex(String keyName) {
+		// Transactions on different threads queue their shadows at once
+		m_insert_shadows = new ConcurrentHashMap<Integer, List<BDTuple>>();
+		m_delete_shadows = new ConcurrentHashMap<Integer, List<BDTuple>>();
+		m_keyName = keyName;
+	}
+
+	/**
+	 * Actually inserts the tuple into the index, ignoring concurrency.
+	 */
+	public abstract void insertNow(BDTuple t) throws InterruptedException;
+
+	/**
+	 * Actually removes the tuple from the index, ignoring concurrency.
+	 */
+	public abstract void deleteNow(BDTuple t) throws InterruptedException;
+
+	/**
+	 * Actually inserts the tuples a transaction commits, ignoring
+	 * concurrency. Indices that can add a batch faster than one insertNow at
+	 * a time override this.
+	 */
+	public void insertAllNow(List<BDTuple> tuples) throws InterruptedException {
+		for (BDTuple t : tuples) {
+			insertNow(t);
+		}
+	}
+
+	/**
+	 * Fills an empty index with tuples sorted on the key, ignoring
+	 * concurrency. Indices that cannot build themselves from sorted input
+	 * insert the tuples one at a time.
+	 *
+	 * @param tuples Tuples in ascending key order
+	 * @param fillFactor Fraction of each node to fill, for indices made of
+	 *            nodes
+	 */
+	public void bulkLoad(Iterator<BDTuple> tuples, double fillFactor)
+			throws InterruptedException {
+		while (tuples.hasNext()) {
+			insertNow(tuples.next());
+		}
+	}
+
+	/**
+	 * @return true if no tuple has been committed to the index
+	 */
+	public abstract boolean isEmpty();
+
+	/**
+	 * @return A cursor over every committed entry in ascending key order
+	 */
+	protected abstract BDIndexCursor cursorFirst();
+
+	/**
+	 * Adds the tuple under the cursor to a result set. Indices that hand out
+	 * copies of their tuples override this to keep the concurrency
+	 * controller's timestamps.
+	 */
+	protected void addRow(BDSystemResultSet result, BDIndexCursor cursor)
+			throws InterruptedException, RollbackException {
+		result.addRow(cursor.getTuple());
+	}
+
+	/**
+	 * Actually DOES operations on the tree which are queued in m_*_shadows.
+	 * @throws RollbackException
+	 */
+	public void commit(int TID) throws InterruptedException, RollbackException {
+		if (m_delete_shadows.get(TID) != null) {
+			for (BDTuple t : m_delete_shadows.get(TID)) {
+				BDSystem.concurrencyController.writeDataItem(t);
+			}
+		}
+		if (m_insert_shadows.get(TID) != null) {
+			for (BDTuple t : m_insert_shadows.get(TID)) {
+				BDSystem.concurrencyController.writeDataItem(t);
+			}
+		}
+
+
+		if (m_delete_shadows.get(TID) != null) {
+			for (BDTuple t : m_delete_shadows.get(TID)) {
+				deleteNow(t);
+			}
+		}
+		if (m_insert_shadows.get(TID) != null) {
+			insertAllNow(m_insert_shadows.get(TID));
+		}
+
+		m_delete_shadows.remove(TID);
+		m_insert_shadows.remove(TID);
+	}
+
+	/**
+	 * Deletes enqueued operations.
+	 */
+	public void rollback(int TID) {
+		m_insert_shadows.remove(TID);
+		m_delete_shadows.remove(TID);
+	}
+
+	/**
+	 * Enqueues the deletion of tuple t from the index.
+	 */
+	public void delete(BDTuple t) {
+		int TID = currentTransactionId();
+		if(m_delete_shadows.get(TID) == null) {
+			m_delete_shadows.put(TID, new LinkedList<BDTuple>());
+		}
+		m_delete_shadows.get(TID).add(t);
+	}
+
+	/**
+	 * Enqueues the insertion of tuple t from the index.
+	 */
+	public void insert(BDTuple t) {
+		int TID = currentTransactionId();
+		if(m_insert_shadows.get(TID) == null) {
+			m_insert_shadows.put(TID, new LinkedList<BDTuple>());
+		}
+		m_insert_shadows.get(TID).add(t);
+	}
+
+	/**
+	 * Enqueues the insertion of several tuples, like calling insert for each.
+	 */
+	public void insertAll(List<BDTuple> tuples) {
+		int TID = currentTransactionId();
+		if(m_insert_shadows.get(TID) == null) {
+			m_insert_shadows.put(TID, new LinkedList<BDTuple>());
+		}
+		m_insert_shadows.get(TID).addAll(tuples);
+	}
+
+	/**
+	 * Delete oldTuple, insert newTuple
+	 */
+	public void replace(BDTuple oldTuple, BDTuple newTuple) {
+		this.delete(oldTuple);
+		this.insert(newTuple);
+	}
+
+	/**
+	 * Removes a tuple from either the insert shadows or the delete shadows
+	 *
+	 * @param tuple
+	 *            The tuple to remove
+	 */
+	public void abandon(BDTuple tuple) {
+		m_insert_shadows.remove(tuple);
+		m_delete_shadows.remove(tuple);
+	}
+
+	public String getKeyName() {
+		return m_keyName;
+	}
+
+	/**
+	 * @return Every committed tuple, ignoring shadows and concurrency, for
+	 *         filling another index of the table
+	 */
+	public List<BDTuple> getCommittedTuples() throws InterruptedException {
+		List<BDTuple> tuples = new LinkedList<BDTuple>();
+		for (BDIndexCursor cursor = cursorFirst(); cursor.isValid(); cursor.advance()) {
+			tuples.add(cursor.getTuple());
+		}
+		return tuples;
+	}
+
+	/**
+	 * Note: this method makes a copy of the tuples, leaving the caller free to
+	 * mess with these tuples.
+	 *
+	 * @return All tuples in the index
+	 * @throws RollbackException
+	 */
+	public BDSystemResultSet getAllTuples() throws InterruptedException, RollbackException {
+		BDSystemResultSet result = new BDSystemResultSet();
+		addAllTuples(result);
+		return result;
+	}
+
+	/**
+	 * Adds all tuples the current transaction sees to a result set, one at a
+	 * time, and stops early if the result set is closed.
+	 */
+	public void addAllTuples(BDSystemResultSet result) throws InterruptedException,
+			RollbackException {
+		int TID = currentTransactionId();
+
+		List<BDTuple> deletes = m_delete_shadows.get(TID);
+		for (BDIndexCursor cursor = cursorFirst(); cursor.isValid() && !result.isClosed();
+				cursor.advance()) {
+			if (deletes == null || !deletes.contains(cursor.getTuple())) {
+				addRow(result, cursor);
+			}
+		}
+		if(m_insert_shadows.get(TID) != null) {
+			for(BDTuple tx : m_insert_shadows.get(TID)) {
+				result.addRow(tx);
+			}
+		}
+	}
+
+	/**
+	 * @return All tuples in the index right now, ignoring shadows
+	 */
+	public BDSystemResultSet getAllTuplesUnchecked() {
+		BDSystemResultSet result = new BDSystemResultSet();
+
+		for (BDIndexCursor cursor = cursorFirst(); cursor.isValid(); cursor.advance()) {
+			try {
+				addRow(result, cursor);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} catch (RollbackException e) {
+				e.printStackTrace();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Selects all tuples from the index that fall within a given range in some
+	 * field.
+	 *
+	 * @param rtype The type of range (less-than, greater-than, etc)
+	 * @param field The field on which to filter
+	 * @param value The value to be compared against (i.e. the range's bound)
+	 * @return All tuples in the range
+	 * @throws RollbackException
+	 */
+	@SuppressWarnings("rawtypes")
+	public BDSystemResultSet getTuplesByRange(RangeType rtype, String field,
+			Comparable value) throws InterruptedException, RollbackException {
+		BDIndexCursor cursor;
+		switch (rtype) {
+		case GT:
+		case GTEQ:
+		case LT:
+		case LTEQ:
+		case NEQ:
+			cursor = cursorFirst();
+			break;
+		default:
+			cursor = null;
+			break;
+		}
+		return scanRange(cursor, false, rtype, field, value);
+	}
+
+	/**
+	 * Adds the committed tuples a cursor reaches whose [field] falls within
+	 * the range, then overlays the current transaction's shadows.
+	 *
+	 * @param cursor The committed entries to scan, or null for none
+	 * @param onKey If true, the cursor moves up [field] in key order, so the
+	 *            scan stops as soon as it passes an upper bound
+	 * @return All tuples in the range
+	 * @throws RollbackException
+	 */
+	protected BDSystemResultSet scanRange(BDIndexCursor cursor, boolean onKey,
+			RangeType rtype, String field, Comparable<?> value)
+			throws InterruptedException, RollbackException {
+		int TID = currentTransactionId();
+		BDSystemResultSet result = new BDSystemResultSet();
+
+		for (; cursor != null && cursor.isValid(); cursor.advance()) {
+			Comparable<?> current = onKey ? cursor.getKey()
+					: (Comparable) cursor.getTuple().getObject(field);
+			if (current == null) continue;
+			if (inRange(rtype, current, value)) {
+				addRow(result, cursor);
+			} else if (onKey && (rtype == RangeType.LT || rtype == RangeType.LTEQ)) {
+				break;
+			}
+		}
+
+		if (cursor != null) {
+			addInsertShadows(TID, result, rtype, field, value);
+		}
+		removeDeleteShadows(TID, result);
+
+		return result;
+	}
+
+	/**
+	 * @return All tuples whose [m_keyName] field is equal to [value]
+	 * @throws RollbackException
+	 */
+	public abstract BDSystemResultSet getTuplesByValue(Comparable<?> value)
+			throws InterruptedException, RollbackException;
+
+	/**
+	 * @return All tuples whose [field] field is equal to [value]
+	 * @throws RollbackException
+	 */
+	@SuppressWarnings("rawtypes")
+	public BDSystemResultSet getTuplesByValue(String field, Comparable value) throws InterruptedException, RollbackException {
+		if (field.equals(m_keyName))
+			return this.getTuplesByValue(value);
+
+		int TID = currentTransactionId();
+		BDSystemResultSet result = new BDSystemResultSet();
+		for (BDIndexCursor cursor = cursorFirst(); cursor.isValid(); cursor.advance()) {
+			Object current = cursor.getTuple().getObject(field);
+			if (current == null) continue;
+			if (inRange(RangeType.EQ, (Comparable<?>) current, value)) {
+				addRow(result, cursor);
+			}
+		}
+
+		addInsertShadows(TID, result, RangeType.EQ, field, value);
+		removeDeleteShadows(TID, result);
+		return result;
+	}
+
+	/**
+	 * Adds the tuples that transaction TID has queued for insertion and whose
+	 * [field] falls within the range.
+	 */
+	protected void addInsertShadows(int TID, BDSystemResultSet result,
+			RangeType rtype, String field, Comparable<?> value) throws RollbackException {
+		if(m_insert_shadows.get(TID) != null) {
+			for(BDTuple tx : m_insert_shadows.get(TID)) {
+				if(tx.getField(field) != null) {
+					if (inRange(rtype, (Comparable)(tx.getField(field)), value)) {
+						result.addRow(tx);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the tuples that transaction TID has queued for deletion.
+	 */
+	protected void removeDeleteShadows(int TID, BDSystemResultSet result) {
+		if(m_delete_shadows.get(TID) != null) {
+			for(BDTuple tx : m_delete_shadows.get(TID)) {
+				if(result.hasTuple(tx))
+					result.remove(tx);
+			}
+		}
+	}
+
+	/**
+	 * @return whether key falls within the range given by rtype and bound
+	 */
+	@SuppressWarnings("unchecked")
+	protected static boolean inRange(RangeType rtype, Comparable<?> key, Comparable<?> bound) {
+		int cmp = ((Comparable<Object>) key).compareTo(bound);
+		switch (rtype) {
+		case EQ:
+			return cmp == 0;
+		case NEQ:
+			return cmp != 0;
+		case GT:
+			return cmp > 0;
+		case GTEQ:
+			return cmp >= 0;
+		case LT:
+			return cmp < 0;
+		case LTEQ:
+			return cmp <= 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return The transaction id of the system thread running this operation
+	 */
+	protected static int currentTransactionId() {
+		BDSystemThread thread = (BDSystemThread)(Thread.currentThread());
+		return thread.getTransactionId();
+	}
+}
@@ -0,0 +1,132 @@
+package bdsim.server.system.index;
+
+import java.util.List;
+
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+
+/**
+ * Base class of the indices whose cursors return the entries in key order.
+ * Lookups on the key seek straight to the value with cursorAt, range scans
+ * on the key stop as soon as they pass an upper bound, and the committed
+ * entries can be read in key order with scanInKeyOrder.
+ */
+public abstract class BDSortedIndex extends BDShadowedIndex {
+
+	public BDSortedIndex(String keyName) {
+		super(keyName);
+	}
+
+	/**
+	 * @param value The key to seek to
+	 * @param forward If true, the cursor starts at the first entry >= value
+	 *            and moves up; otherwise it starts at the last entry <= value
+	 *            and moves down
+	 * @return A cursor positioned at value
+	 */
+	protected abstract BDIndexCursor cursorAt(Comparable<?> value, boolean forward);
+
+	/**
+	 * The committed tuples of a sorted index in key order, which are read
+	 * like those of a lookup when they are added to a result set.
+	 */
+	public final class KeyOrderScan implements BDIndexCursor {
+
+		private final BDIndexCursor m_cursor;
+
+		KeyOrderScan(BDIndexCursor cursor) {
+			m_cursor = cursor;
+		}
+
+		public boolean isValid() {
+			return m_cursor.isValid();
+		}
+
+		public Comparable<?> getKey() {
+			return m_cursor.getKey();
+		}
+
+		public BDTuple getTuple() throws InterruptedException {
+			return m_cursor.getTuple();
+		}
+
+		public void advance() {
+			m_cursor.advance();
+		}
+
+		/**
+		 * Checks the current tuple with the concurrency controller and adds
+		 * a copy of it to a result set.
+		 */
+		public void addTo(BDSystemResultSet result) throws InterruptedException,
+				RollbackException {
+			addRow(result, m_cursor);
+		}
+	}
+
+	/**
+	 * @return A scan of what the current transaction sees in key order, or
+	 *         null if the transaction has inserted or deleted tuples of its
+	 *         own, which are not in key order
+	 */
+	public KeyOrderScan scanInKeyOrder() {
+		int TID = currentTransactionId();
+		List<BDTuple> inserts = m_insert_shadows.get(TID);
+		List<BDTuple> deletes = m_delete_shadows.get(TID);
+		if ((inserts != null && !inserts.isEmpty())
+				|| (deletes != null && !deletes.isEmpty())) {
+			return null;
+		}
+		return new KeyOrderScan(cursorFirst());
+	}
+
+	/**
+	 * Seeks to the lower bound of a range on the key.
+	 */
+	@SuppressWarnings("rawtypes")
+	public BDSystemResultSet getTuplesByRange(RangeType rtype, String field,
+			Comparable value) throws InterruptedException, RollbackException {
+		if (!field.equals(m_keyName)) {
+			return super.getTuplesByRange(rtype, field, value);
+		}
+		BDIndexCursor cursor;
+		switch (rtype) {
+		case GT:
+		case GTEQ:
+			cursor = cursorAt(value, true);
+			break;
+		case LT:
+		case LTEQ:
+		case NEQ:
+			cursor = cursorFirst();
+			break;
+		default:
+			cursor = null;
+			break;
+		}
+		return scanRange(cursor, true, rtype, field, value);
+	}
+
+	/**
+	 * @return All tuples whose [m_keyName] field is equal to [value]
+	 * @throws RollbackException
+	 */
+	public BDSystemResultSet getTuplesByValue(Comparable<?> value)
+			throws InterruptedException, RollbackException {
+		int TID = currentTransactionId();
+		BDSystemResultSet returnSet = new BDSystemResultSet();
+
+		// A secondary index can hold several entries with the value
+		for (BDIndexCursor cursor = cursorAt(value, true);
+				cursor.isValid() && inRange(RangeType.EQ, cursor.getKey(), value);
+				cursor.advance()) {
+			addRow(returnSet, cursor);
+		}
+
+		addInsertShadows(TID, returnSet, RangeType.EQ, m_keyName, value);
+		removeDeleteShadows(TID, returnSet);
+
+		return returnSet;
+	}
+}
@@ -0,0 +1,146 @@
+package bdsim.server.system.index;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+
+/**
+ * Serializes field values and tuples into byte buffers. A tuple is written as
+ * its fields in schema order; the schema itself is not stored, so a tuple
+ * must be read back with the schema it was written with.
+ *
+ * Every value carries a one byte tag. Numeric columns hold Doubles and are
+ * written as 8 byte doubles, but the XML loader keeps values it cannot parse
+ * as Strings whatever the declared column type, so the tag rather than the
+ * schema decides how a value is read back.
+ */
+public final class BDTupleCodec {
+
+	private static final byte NULL = 0;
+	private static final byte NUMBER = 1;
+	private static final byte STRING = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BDTupleCodec() {
+	}
+
+	/**
+	 * @return the number of bytes putValue will write for value
+	 */
+	public static int valueSize(Object value) {
+		if (value == null) {
+			return 1;
+		} else if (value instanceof Number) {
+			return 1 + 8;
+		} else {
+			return 1 + 2 + value.toString().getBytes(UTF8).length;
+		}
+	}
+
+	/**
+	 * Writes value at the buffer's position and advances it.
+	 */
+	public static void putValue(ByteBuffer buf, Object value) {
+		if (value == null) {
+			buf.put(NULL);
+		} else if (value instanceof Number) {
+			buf.put(NUMBER);
+			buf.putDouble(((Number) value).doubleValue());
+		} else {
+			byte[] bytes = value.toString().getBytes(UTF8);
+			if (bytes.length > 0xFFFF) {
+				throw new IllegalArgumentException("String of " + bytes.length
+						+ " bytes is too long to store");
+			}
+			buf.put(STRING);
+			buf.putShort((short) bytes.length);
+			buf.put(bytes);
+		}
+	}
+
+	/**
+	 * @return the value stored at offset
+	 */
+	public static Object getValue(ByteBuffer buf, int offset) {
+		switch (buf.get(offset)) {
+		case NUMBER:
+			return Double.valueOf(buf.getDouble(offset + 1));
+		case STRING:
+			byte[] bytes = new byte[buf.getShort(offset + 1) & 0xFFFF];
+			ByteBuffer dup = buf.duplicate();
+			dup.position(offset + 3);
+			dup.get(bytes);
+			return new String(bytes, UTF8);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * @return the offset just past the value stored at offset
+	 */
+	public static int skipValue(ByteBuffer buf, int offset) {
+		switch (buf.get(offset)) {
+		case NUMBER:
+			return offset + 1 + 8;
+		case STRING:
+			return offset + 1 + 2 + (buf.getShort(offset + 1) & 0xFFFF);
+		default:
+			return offset + 1;
+		}
+	}
+
+	/**
+	 * Compares the value stored at offset with key, reading numbers in place.
+	 *
+	 * @return a negative number, zero or a positive number as the stored value
+	 *         is less than, equal to or greater than key
+	 */
+	@SuppressWarnings("unchecked")
+	public static int compareValue(ByteBuffer buf, int offset, Comparable<?> key) {
+		if (buf.get(offset) == NUMBER && key instanceof Number) {
+			return Double.compare(buf.getDouble(offset + 1),
+					((Number) key).doubleValue());
+		}
+		Object stored = getValue(buf, offset);
+		if (stored == null) {
+			return (key == null) ? 0 : 1;
+		}
+		return ((Comparable<Object>) stored).compareTo(key);
+	}
+
+	/**
+	 * @return the number of bytes putTuple will write for t
+	 */
+	public static int tupleSize(BDTuple t) {
+		int size = 0;
+		for (int i = 0; i < t.getNumCols(); i++) {
+			size += valueSize(t.getObject(i));
+		}
+		return size;
+	}
+
+	/**
+	 * Writes every field of t at the buffer's position and advances it.
+	 */
+	public static void putTuple(ByteBuffer buf, BDTuple t) {
+		for (int i = 0; i < t.getNumCols(); i++) {
+			putValue(buf, t.getObject(i));
+		}
+	}
+
+	/**
+	 * @return a new tuple of the given schema read from offset
+	 */
+	public static BDTuple getTuple(ByteBuffer buf, int offset, BDSchema schema) {
+		BDTuple t = new BDTuple(schema);
+		for (int i = 0; i < schema.size(); i++) {
+			t.setObject(i, getValue(buf, offset));
+			offset = skipValue(buf, offset);
+		}
+		return t;
+	}
+}
@@ -4,6 +4,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -251,6 +255,7 @@ public final class BDDatabaseGenerator {
 				}
 			}
 
+			List<String[]> rows = new ArrayList<String[]>();
 			while (null != (str = breader.readLine())) {
 				String[] dataTokens = str.split(",");
 				if (dataTokens.length != nameTokens.length) {
@@ -258,11 +263,28 @@ public final class BDDatabaseGenerator {
 							"Illegal file format: not same number of columns in each data row");
 
 				}
+				for (int i = 0; i < nameTokens.length; i++) {
+					dataTokens[i] = removeQuotes(dataTokens[i]);
+				}
+				rows.add(dataTokens);
+			}
+
+			// Rows sorted on the primary key let the server bulk load the
+			// table's index in one sequential pass
+			final int primary = indices.indexOf("PRIMARY");
+			if (primary >= 0) {
+				Collections.sort(rows, new Comparator<String[]>() {
+					public int compare(String[] row1, String[] row2) {
+						return compareValues(row1[primary], row2[primary]);
+					}
+				});
+			}
+
+			for (String[] dataTokens : rows) {
 				Element tupleElement = doc.createElement("Data");
 				dataElement.appendChild(tupleElement);
 				for (int i = 0; i < nameTokens.length; i++) {
-					tupleElement.setAttribute(names.get(i),
-							removeQuotes(dataTokens[i]));
+					tupleElement.setAttribute(names.get(i), dataTokens[i]);
 				}
 			}
 		} catch (Exception e) {
@@ -271,6 +293,19 @@ public final class BDDatabaseGenerator {
 		}
 	}
     
+	/**
+	 * Compares two values the way the server will: as numbers if both parse as
+	 * one, otherwise as strings.
+	 */
+	private static int compareValues(String value1, String value2) {
+		try {
+			return Double.compare(Double.parseDouble(value1),
+					Double.parseDouble(value2));
+		} catch (NumberFormatException e) {
+			return value1.compareTo(value2);
+		}
+	}
+
 	private void createDatabase(String origFilePath) throws DatabaseGeneratorException {
 		File origFile = new File(origFilePath);
 		
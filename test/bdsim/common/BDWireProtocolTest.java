@@ -0,0 +1,140 @@
+package bdsim.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.common.messages.BDCloseRequest;
+import bdsim.common.messages.BDDropRequest;
+import bdsim.common.messages.BDErrorResponse;
+import bdsim.common.messages.BDFetchRequest;
+import bdsim.common.messages.BDResultResponse;
+import bdsim.common.messages.BDSqlRequest;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDTuple;
+
+public class BDWireProtocolTest extends TestCase {
+
+	private ByteArrayOutputStream m_bytes;
+
+	private DataOutputStream m_out;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		m_bytes = new ByteArrayOutputStream();
+		m_out = new DataOutputStream(m_bytes);
+	}
+
+	private DataInputStream input() {
+		return new DataInputStream(new ByteArrayInputStream(m_bytes.toByteArray()));
+	}
+
+	public void testRequests() throws Exception {
+		BDWireProtocol.writeHeader(m_out);
+		BDWireProtocol.writeRequest(m_out, new BDSqlRequest("SELECT * FROM Accounts"));
+		BDWireProtocol.writeRequest(m_out, new BDDropRequest("Accounts"));
+		BDWireProtocol.writeRequest(m_out, new BDSqlRequest("SELECT * FROM Accounts", 500));
+		BDWireProtocol.writeRequest(m_out, new BDFetchRequest(3));
+		BDWireProtocol.writeRequest(m_out, new BDCloseRequest(4));
+		BDWireProtocol.writeRequest(m_out, 42, new BDSqlRequest("SELECT * FROM Branches"));
+
+		DataInputStream in = input();
+		BDWireProtocol.readHeader(in);
+		assertEquals("SELECT * FROM Accounts",
+				((BDSqlRequest) BDWireProtocol.readRequest(in)).getSql());
+		assertEquals("Accounts",
+				((BDDropRequest) BDWireProtocol.readRequest(in)).getTableName());
+		assertEquals(500, ((BDSqlRequest) BDWireProtocol.readRequest(in)).getFetchSize());
+		assertEquals(3, ((BDFetchRequest) BDWireProtocol.readRequest(in)).getCursorId());
+		assertEquals(4, ((BDCloseRequest) BDWireProtocol.readRequest(in)).getCursorId());
+		BDWireProtocol.Tagged<BDRequest> tagged = BDWireProtocol.readTaggedRequest(in);
+		assertEquals(42, tagged.getId());
+		assertEquals("SELECT * FROM Branches", ((BDSqlRequest) tagged.getMessage()).getSql());
+		assertNull(BDWireProtocol.readRequest(in));
+	}
+
+	public void testBadHeader() throws Exception {
+		m_out.writeInt(0xACED0005);
+		m_out.writeByte(0);
+		try {
+			BDWireProtocol.readHeader(input());
+			fail("Read a serialization stream as a BDWP connection");
+		} catch (StreamCorruptedException e) {
+		}
+	}
+
+	public void testOversizedFrame() throws Exception {
+		m_out.writeInt(Integer.MAX_VALUE);
+		m_out.writeByte(0);
+		try {
+			BDWireProtocol.readRequest(input());
+			fail("Accepted a frame longer than MAX_FRAME_SIZE");
+		} catch (StreamCorruptedException e) {
+		}
+	}
+
+	public void testLengthBeyondFrame() throws Exception {
+		BDWireProtocol.writeRequest(m_out, new BDSqlRequest("SELECT * FROM Accounts"));
+		byte[] bytes = m_bytes.toByteArray();
+		// The SQL's length follows the frame length, kind and correlation ID
+		bytes[9] = 0x10;
+		try {
+			BDWireProtocol.readRequest(new DataInputStream(new ByteArrayInputStream(bytes)));
+			fail("Read a string longer than its frame");
+		} catch (StreamCorruptedException e) {
+		}
+	}
+
+	public void testResultSet() throws Exception {
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		names.add("name");
+		types.add(BDObjectType.STRING);
+		names.add("mixed");
+		types.add(BDObjectType.DOUBLE);
+		BDSchema schema = new BDSchema(names, types);
+
+		BDSystemResultSet results = new BDSystemResultSet();
+		for (int i = 0; i < 100; i++) {
+			BDTuple t = new BDTuple(schema);
+			t.setObject(0, i % 10 == 0 ? null : Double.valueOf(i));
+			t.setObject(1, i % 7 == 0 ? null : "name \u00e9" + i);
+			t.setObject(2, i % 2 == 0 ? (Object) Double.valueOf(i) : (Object) Integer.valueOf(i));
+			results.addRowWithoutCopy(t);
+		}
+		BDWireProtocol.writeResponse(m_out, new BDResultResponse(results, 7));
+		BDWireProtocol.writeResponse(m_out, new BDResultResponse(new BDSystemResultSet()));
+		BDWireProtocol.writeResponse(m_out, 9, new BDErrorResponse("No such table"));
+
+		DataInputStream in = input();
+		BDResultResponse page = (BDResultResponse) BDWireProtocol.readResponse(in);
+		assertEquals(7, page.getCursorId());
+		BDResultSet received = page.getResults();
+		assertEquals(names, received.getSchema().getNames());
+		assertEquals(types, received.getSchema().getTypes());
+		assertEquals(100, received.getData().size());
+		for (int i = 0; i < 100; i++) {
+			BDRow row = received.getData().get(i);
+			BDRow sent = results.getData().get(i);
+			for (int col = 0; col < 3; col++) {
+				assertEquals(sent.getField(col), row.getField(col));
+			}
+			assertEquals(sent.getField("name"), row.getField("name"));
+		}
+
+		page = (BDResultResponse) BDWireProtocol.readResponse(in);
+		assertNull(page.getResults());
+		assertFalse(page.hasMore());
+		BDWireProtocol.Tagged<BDResponse> error = BDWireProtocol.readTaggedResponse(in);
+		assertEquals(9, error.getId());
+		assertEquals("No such table", ((BDErrorResponse) error.getMessage()).getMessage());
+	}
+}
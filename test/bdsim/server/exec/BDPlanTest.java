@@ -11,8 +11,12 @@ import bdsim.server.exec.BDSemanticVisitor.BDNameMappings;
 import bdsim.server.exec.BDSemanticVisitor.SemanticException;
 import bdsim.server.exec.nodes.BDCondOpType;
 import bdsim.server.exec.nodes.NodeStatement;
+import bdsim.server.system.BDPredicate;
+import bdsim.server.system.BDSchema;
 import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDTableManager;
 import bdsim.server.system.BDTableManager.XmlException;
+import bdsim.server.system.BDTuple;
 
 /**
  * Tests the plan generation for select, insert, and delete statements.
@@ -638,4 +642,115 @@ public final class BDPlanTest extends TestCase {
 			e.printStackTrace();
 		}
 	}
+
+	public void testJoinAlgorithms() throws Exception {
+		BDSystem.tableManager.readFromXmlFile("test/files/SmallTwoTable.xml");
+		BDTableColumnPair num1 = new BDTableColumnPair("Test1", "Num1");
+		BDTableColumnPair num3 = new BDTableColumnPair("Test2", "Num3");
+
+		// Both are primary keys, in the order of their B+ trees
+		BDPlan plan = optimizedPlan("SELECT * from Test1, Test2 where Test1.Num1 = Test2.Num3");
+		assertEquals(1, plan.getJoins().size());
+		assertEquals(BDJoinAlgo.MERGE, plan.getJoinAlgo(num1, num3));
+
+		plan = optimizedPlan("SELECT * from Test1, Test2 where Test1.Num1 = Test2.Num4");
+		assertEquals(BDJoinAlgo.HASH, plan.getJoinAlgo(num1,
+				new BDTableColumnPair("Test2", "Num4")));
+
+		plan = optimizedPlan("SELECT * from Test1, Test2 where Test1.Num1 < Test2.Num3 AND Test1.Num2 = 5.0");
+		assertEquals(1, plan.getJoins().size());
+		assertEquals(BDJoinAlgo.BNLJ, plan.getJoinAlgo(num1, num3));
+
+		plan = optimizedPlan("SELECT * from Test1, Test2 where Test1.Num1 = 3.0");
+		assertTrue(plan.getJoins().isEmpty());
+
+		// Without a table manager no index is known, so equi-joins are hashed
+		NodeStatement stmt = m_parser.parse(
+				"SELECT * from Test1, Test2 where Test1.Num1 = Test2.Num3").get(0);
+		BDSemanticVisitor smtcVisitor = new BDSemanticVisitor();
+		stmt.visit(smtcVisitor);
+		assertTrue(smtcVisitor.resolveNames());
+		BDPlanner planner = new BDPlanner(stmt);
+		plan = planner.makePlan(smtcVisitor.getMappings());
+		BDTableManager tables = BDSystem.tableManager;
+		BDSystem.tableManager = null;
+		try {
+			planner.optimizePlan(plan);
+		} finally {
+			BDSystem.tableManager = tables;
+		}
+		assertEquals(BDJoinAlgo.HASH, plan.getJoinAlgo(num1, num3));
+	}
+
+	public void testAccessPath() throws Exception {
+		BDSystem.tableManager.readFromXmlFile("test/files/SmallTwoTable.xml");
+
+		// The primary key is read with its index, Num2 checked as it is read
+		BDPlan plan = optimizedPlan("SELECT * from Test1 where Test1.Num2 > 1.0 AND Test1.Num1 = 3.0");
+		assertTrue(plan.isFiltered());
+		assertSame(plan.getConditions().getRest().getCondition(), plan
+				.getAccessCondition());
+
+		plan = optimizedPlan("SELECT * from Test1 where Test1.Num2 = 5.0 AND 4.0 > Test1.Num1");
+		assertSame(plan.getConditions().getRest().getCondition(), plan
+				.getAccessCondition());
+
+		// No index helps, so all rows are read once
+		plan = optimizedPlan("SELECT * from Test1 where Test1.Num2 > 1.0 AND Test1.Num2 < 9.0");
+		assertTrue(plan.isFiltered());
+		assertNull(plan.getAccessCondition());
+
+		assertFalse(optimizedPlan("SELECT * from Test1 where Test1.Num1 = 3.0 OR Test1.Num2 = 9.0").isFiltered());
+		assertFalse(optimizedPlan("SELECT * from Test1 where Test1.Num1 = 3.0").isFiltered());
+		assertFalse(optimizedPlan("SELECT * from Test1, Test2 where Test1.Num1 = 3.0 AND Test2.Num3 = 5.0").isFiltered());
+	}
+
+	public void testPredicate() throws Exception {
+		BDSystem.tableManager.readFromXmlFile("test/files/SmallTwoTable.xml");
+		BDSchema schema = BDSystem.tableManager.getTableByName("Test1")
+				.getSchema();
+		List<BDTuple> rows = new LinkedList<BDTuple>();
+		for (double[] values : new double[][] { { 3, 5 }, { 7, 9 } }) {
+			BDTuple t = new BDTuple(schema);
+			t.setObject("Num1", Double.valueOf(values[0]));
+			t.setObject("Num2", Double.valueOf(values[1]));
+			rows.add(t);
+		}
+
+		// Num2 has no index, so each row is tested once against both
+		BDPredicate predicate = optimizedPlan(
+				"SELECT * from Test1 where Test1.Num1 = 3.0 OR Test1.Num2 = 9.0")
+				.getPredicate();
+		assertNotNull(predicate);
+		assertTrue(predicate.evaluate(rows.get(0)));
+		assertTrue(predicate.evaluate(rows.get(1)));
+
+		// The conditions are combined from first to last
+		predicate = optimizedPlan(
+				"SELECT * from Test1 where Test1.Num1 = 7.0 OR Test1.Num2 > 6.0 AND 5.0 > Test1.Num1")
+				.getPredicate();
+		for (BDTuple t : rows) {
+			assertFalse(predicate.evaluate(t));
+		}
+		predicate = optimizedPlan(
+				"SELECT * from Test1 where Test1.Num2 > 6.0 AND Test1.Num1 < 5.0 OR Test1.Num2 = 5.0")
+				.getPredicate();
+		assertTrue(predicate.evaluate(rows.get(0)));
+		assertFalse(predicate.evaluate(rows.get(1)));
+
+		// Indices read fewer rows
+		assertNull(optimizedPlan("SELECT * from Test1 where Test1.Num1 = 3.0 OR Test1.Num1 = 7.0").getPredicate());
+		assertNull(optimizedPlan("SELECT * from Test1 where Test1.Num2 > 1.0 AND Test1.Num2 < 9.0").getPredicate());
+	}
+
+	private BDPlan optimizedPlan(String text) throws Exception {
+		NodeStatement stmt = m_parser.parse(text).get(0);
+		BDSemanticVisitor smtcVisitor = new BDSemanticVisitor();
+		stmt.visit(smtcVisitor);
+		assertTrue(smtcVisitor.resolveNames());
+		BDPlanner planner = new BDPlanner(stmt);
+		BDPlan plan = planner.makePlan(smtcVisitor.getMappings());
+		planner.optimizePlan(plan);
+		return plan;
+	}
 }
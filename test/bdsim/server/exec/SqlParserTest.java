@@ -1,5 +1,6 @@
 package bdsim.server.exec;
 
+import java.util.LinkedList;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -450,6 +451,35 @@ public class SqlParserTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Tests INSERT expressions with several rows.
+	 */
+	public void testInsertRows() {
+		try {
+			String text = "insert into members values (1, 'Bill'), (2, 'Ann') ,(3,'Joe')";
+			List<NodeValueList> rows = new LinkedList<NodeValueList>();
+			rows.add(new NodeValueList(new NodeValueNumber(1), new NodeValueList(
+					new NodeValueLiteral("Bill"), null)));
+			rows.add(new NodeValueList(new NodeValueNumber(2), new NodeValueList(
+					new NodeValueLiteral("Ann"), null)));
+			rows.add(new NodeValueList(new NodeValueNumber(3), new NodeValueList(
+					new NodeValueLiteral("Joe"), null)));
+			NodeStatement expected = new NodeInsert("members", null, rows);
+			List<NodeStatement> actualList = m_parser.parse(text);
+			assertTrue(expected.equals(actualList.get(0)));
+		} catch (BDParseException e) {
+			e.printStackTrace();
+			fail("Caught unexpected BDParseException");
+		}
+
+		try {
+			m_parser.parse("insert into members values (1, 'Bill'), ");
+			fail("Did not throw BDParseException");
+		} catch (BDParseException e) {
+			assertTrue(true);
+		}
+	}
+
 	public void testOrderByComplex() {
 		try {
 			String text = "SELECT distinct col1 FROM table1 order by col2 desc, col1 asc, col3 desc";
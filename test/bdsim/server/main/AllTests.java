@@ -16,6 +16,7 @@ import bdsim.server.system.BDSystem;
 import bdsim.server.system.concurrency.TrackableReadWriteLockTest;
 //import bdsim.server.system.concurrency.WaitsForGraphTest;
 import bdsim.server.system.handler.IntersectTest;
+import bdsim.server.system.handler.JoinTest;
 import bdsim.server.system.handler.SelectTest;
 import bdsim.server.system.handler.UnionTest;
 
@@ -44,6 +45,7 @@ public class AllTests {
 		suite.addTestSuite(UnionTest.class);
 		suite.addTestSuite(IntersectTest.class);
 		suite.addTestSuite(SelectTest.class);
+		suite.addTestSuite(JoinTest.class);
 
 		// Concurrency tests (may crash)
 		//suite.addTestSuite(WaitsForGraphTest.class);
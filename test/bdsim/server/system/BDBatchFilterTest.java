@@ -0,0 +1,89 @@
+package bdsim.server.system;
+
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.system.index.BDIndex.RangeType;
+
+public class BDBatchFilterTest extends TestCase {
+
+	private BDTuple[] m_rows;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> names = new Vector<String>();
+		names.addElement("Num");
+		names.addElement("Name");
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		types.addElement(BDObjectType.DOUBLE);
+		types.addElement(BDObjectType.STRING);
+		BDSchema schema = new BDSchema(names, types);
+
+		Random random = new Random(22);
+		m_rows = new BDTuple[BDBatchFilter.BATCH_SIZE];
+		for (int i = 0; i < m_rows.length; i++) {
+			m_rows[i] = new BDTuple(schema);
+			m_rows[i].setObject(0, Double.valueOf(random.nextInt(20) - 10));
+			m_rows[i].setObject(1, "n" + random.nextInt(20));
+		}
+		m_rows[3].setObject(0, Double.valueOf(-0.0));
+		m_rows[7].setObject(0, null);
+		m_rows[7].setObject(1, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private boolean passes(RangeType range, Comparable<?> value, Object field) {
+		if (field == null) {
+			return false;
+		}
+		int cmp = ((Comparable) field).compareTo(value);
+		switch (range) {
+		case EQ:
+			return cmp == 0;
+		case NEQ:
+			return cmp != 0;
+		case LT:
+			return cmp < 0;
+		case LTEQ:
+			return cmp <= 0;
+		case GT:
+			return cmp > 0;
+		case GTEQ:
+			return cmp >= 0;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks a filter against compareTo, on all rows and on part of them.
+	 */
+	private void check(RangeType range, Comparable<?> value, int position) {
+		BDBatchFilter filter = new BDBatchFilter(range, value);
+		for (int count : new int[] { m_rows.length, 10 }) {
+			int selected = filter.select(m_rows, count, position);
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				if (passes(range, value, m_rows[i].getObject(position))) {
+					assertTrue(n < selected);
+					assertEquals(i, filter.getSelected()[n++]);
+				}
+			}
+			assertEquals(range + " " + value, n, selected);
+		}
+	}
+
+	public void testNumbers() {
+		for (RangeType range : RangeType.values()) {
+			check(range, Double.valueOf(3), 0);
+			check(range, Double.valueOf(0), 0);
+		}
+	}
+
+	public void testStrings() {
+		for (RangeType range : RangeType.values()) {
+			check(range, "n5", 1);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package bdsim.server.system;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+import bdsim.server.system.buffer.BDPageStore;
+
+public class BDDiskManagerTest extends TestCase {
+
+	private static class NullStore implements BDPageStore {
+		public int getPageSize() {
+			return 16;
+		}
+
+		public String getOwner() {
+			return "Accounts";
+		}
+
+		public void readPage(int page, ByteBuffer dst) {
+		}
+
+		public void writePage(int page, ByteBuffer src) {
+		}
+
+		public void sync() {
+		}
+	}
+
+	public void testCountsPerTransactionAndTable() throws Exception {
+		final BDDiskManager disk = new BDDiskManager();
+		final BDPageStore store = new NullStore();
+		final int threads = 4;
+		final int pages = 1000;
+
+		BDSystemThread[] workers = new BDSystemThread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new BDSystemThread(i) {
+				public void run() {
+					ByteBuffer buffer = ByteBuffer.allocate(16);
+					for (int p = 0; p < pages; p++) {
+						disk.readPage(store, p, buffer);
+						disk.recordWrites("Branches", 2);
+					}
+					disk.sync(store);
+				}
+			};
+			workers[i].start();
+		}
+		for (BDSystemThread worker : workers) {
+			worker.join();
+		}
+
+		for (int i = 0; i < threads; i++) {
+			BDDiskManager.IOCounts counts = disk.getTransactionCounts(i);
+			assertEquals(pages, counts.getReads());
+			assertEquals(2 * pages, counts.getWrites());
+			assertEquals(1, counts.getSyncs());
+			assertEquals(3 * pages, disk.getTransactionIOs(i));
+		}
+		assertEquals(threads * pages, disk.getTableCounts("Accounts").getReads());
+		assertEquals(threads, disk.getTableCounts("Accounts").getSyncs());
+		assertEquals(2 * threads * pages, disk.getTableCounts("Branches").getWrites());
+
+		// Work outside a transaction only counts for the table
+		disk.recordReads("Accounts", 1);
+		assertEquals(threads * pages + 1, disk.getTableCounts("Accounts").getReads());
+
+		assertNotNull(disk.endTransaction(0));
+		assertNull(disk.getTransactionCounts(0));
+		assertEquals(0, disk.getTransactionIOs(0));
+	}
+}
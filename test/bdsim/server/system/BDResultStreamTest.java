@@ -0,0 +1,158 @@
+package bdsim.server.system;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import junit.framework.TestCase;
+import bdsim.server.exec.BDPlanner;
+import bdsim.server.exec.BDSemanticVisitor;
+import bdsim.server.exec.BDSqlParser;
+import bdsim.server.exec.nodes.NodeStatement;
+import bdsim.server.system.concurrency.BDTransaction;
+import bdsim.server.system.concurrency.RollbackException;
+import bdsim.server.system.concurrency.TimeStampController;
+import bdsim.server.system.concurrency.TwoPhaseLockController;
+
+public class BDResultStreamTest extends TestCase {
+
+	private BDScheduler m_scheduler;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("visualizer.doShow", "false");
+		System.setProperty("bplustree.d", "2");
+		BDSystem.diskManager = new BDDiskManager();
+		BDSystem.concurrencyController = new TimeStampController();
+		BDSystem.tableManager = new BDTableManager();
+		BDSystem.tableManager.readFromXmlFile("test/files/Bank.xml");
+
+		m_scheduler = new BDScheduler(2);
+		BDSystem.scheduler = m_scheduler;
+		Thread schedThread = new Thread(m_scheduler, "sched");
+		schedThread.setDaemon(true);
+		schedThread.start();
+	}
+
+	/**
+	 * Runs a query whose result goes to a stream, ending the stream when the
+	 * transaction is done the way the server does.
+	 */
+	private BDTransactionHandle submit(String sql, final BDResultStream stream)
+			throws Exception {
+		BDTransaction trans = new BDTransaction();
+		BDSemanticVisitor visitor = new BDSemanticVisitor();
+		for (NodeStatement stmt : new BDSqlParser().parse(sql)) {
+			stmt.visit(visitor);
+			assertTrue(visitor.resolveNames());
+			trans.addPlan(new BDPlanner(stmt).makePlan(visitor.getMappings()));
+		}
+		trans.setResultStream(stream);
+		final BDTransactionHandle handle = m_scheduler.submit(trans);
+		handle.getCompletion().whenComplete(
+				new BiConsumer<BDSystemResultSet, Throwable>() {
+					public void accept(BDSystemResultSet result, Throwable failure) {
+						m_scheduler.getResult(handle.getTransactionId());
+						if (failure != null) {
+							stream.fail(failure);
+						} else {
+							stream.finish(result);
+						}
+					}
+				});
+		return handle;
+	}
+
+	private Set<Object> readAll(BDResultStream stream, int pageSize)
+			throws Exception {
+		Set<Object> ids = new HashSet<Object>();
+		BDResultStream.Page page;
+		do {
+			page = stream.nextPage();
+			assertTrue(page.getRows().getNumTuples() <= pageSize);
+			for (BDTuple t : page.getRows().getTupleData()) {
+				ids.add(t.getObject(0));
+			}
+		} while (!page.isLast());
+		return ids;
+	}
+
+	public void testStreamedScan() throws Exception {
+		// The scan can only get one page ahead, so it has to wait for us
+		BDResultStream stream = new BDResultStream(5, 1);
+		BDTransactionHandle handle = submit("SELECT * FROM Accounts", stream);
+		assertEquals(17, readAll(stream, 5).size());
+		assertEquals(0, handle.await().getNumTuples());
+	}
+
+	public void testProjectedScan() throws Exception {
+		BDResultStream stream = new BDResultStream(4, 2);
+		submit("SELECT Accounts.type FROM Accounts", stream);
+		BDResultStream.Page page = stream.nextPage();
+		assertEquals(1, page.getRows().getTupleData().get(0).getNumCols());
+		assertEquals("type", page.getRows().getTupleData().get(0).getName(0));
+	}
+
+	public void testMaterializedResultIsPaged() throws Exception {
+		BDResultStream stream = new BDResultStream(3, 1);
+		submit("SELECT * FROM Accounts WHERE Accounts.id > 10", stream);
+		assertEquals(7, readAll(stream, 3).size());
+	}
+
+	public void testCloseStopsScan() throws Exception {
+		BDResultStream stream = new BDResultStream(2, 1);
+		BDTransactionHandle handle = submit("SELECT * FROM Accounts", stream);
+		assertFalse(stream.nextPage().isLast());
+		stream.close();
+		// The scan gives up at its next row instead of waiting for us
+		handle.await();
+		assertTrue(handle.isDone());
+	}
+
+	public void testRestart() throws Exception {
+		BDResultStream stream = new BDResultStream(2, 2);
+		assertTrue(stream.restart());
+		stream.finish(null);
+		assertTrue(stream.nextPage().isLast());
+		// The client has seen the stream now
+		assertFalse(stream.restart());
+	}
+
+	public void testRollbackAfterRowsWereSent() throws Exception {
+		// Locks tables like the 2PL controller, and rolls back the scan at
+		// a row after the client has seen the first page
+		System.setProperty("controller.delay", "1000");
+		BDSystem.concurrencyController = new TwoPhaseLockController() {
+			private int m_reads;
+
+			public void readDataItem(BDTuple tuple) throws RollbackException {
+				if (++m_reads == 10) {
+					throw new RollbackException();
+				}
+			}
+		};
+		BDResultStream stream = new BDResultStream(2, 1);
+		BDTransactionHandle handle = submit("SELECT * FROM Accounts", stream);
+		try {
+			while (!stream.nextPage().isLast()) {
+			}
+			fail("The scan was not rolled back");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		try {
+			handle.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+			fail("The transaction did not fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// Its table was released
+		BDResultStream next = new BDResultStream(20, 1);
+		BDTransactionHandle delete = submit("DELETE FROM Accounts WHERE id = 1",
+				next);
+		delete.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+}
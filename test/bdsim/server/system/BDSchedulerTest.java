@@ -0,0 +1,106 @@
+package bdsim.server.system;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import bdsim.server.exec.BDPlanner;
+import bdsim.server.exec.BDSemanticVisitor;
+import bdsim.server.exec.BDSqlParser;
+import bdsim.server.exec.nodes.NodeStatement;
+import bdsim.server.system.concurrency.BDTransaction;
+import bdsim.server.system.concurrency.TimeStampController;
+import bdsim.server.system.concurrency.TwoPhaseLockController;
+
+public class BDSchedulerTest extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		System.setProperty("visualizer.doShow", "false");
+		System.setProperty("bplustree.d", "2");
+		BDSystem.diskManager = new BDDiskManager();
+		BDSystem.concurrencyController = new TimeStampController();
+		BDSystem.tableManager = new BDTableManager();
+		BDSystem.tableManager.readFromXmlFile("test/files/Bank.xml");
+	}
+
+	private BDTransaction transaction(String sql) throws Exception {
+		BDTransaction trans = new BDTransaction();
+		BDSemanticVisitor visitor = new BDSemanticVisitor();
+		for (NodeStatement stmt : new BDSqlParser().parse(sql)) {
+			stmt.visit(visitor);
+			assertTrue(visitor.resolveNames());
+			trans.addPlan(new BDPlanner(stmt).makePlan(visitor.getMappings()));
+		}
+		return trans;
+	}
+
+	public void testWorkersCompleteHandles() throws Exception {
+		BDScheduler scheduler = new BDScheduler(3);
+		// Transactions queued before the workers start are run once they do
+		BDTransactionHandle early = scheduler.submit(
+				transaction("SELECT * FROM Accounts WHERE id = 1"));
+		assertFalse(early.isDone());
+
+		Thread schedThread = new Thread(scheduler, "sched");
+		schedThread.setDaemon(true);
+		schedThread.start();
+
+		List<BDTransactionHandle> handles = new ArrayList<BDTransactionHandle>();
+		for (int i = 1; i <= 60; i++) {
+			handles.add(scheduler.submit(
+					transaction("SELECT * FROM Accounts WHERE id = " + (i % 17 + 1))));
+		}
+		assertEquals(1, early.await().getNumTuples());
+		for (BDTransactionHandle handle : handles) {
+			BDSystemResultSet result = handle.await();
+			assertEquals(1, result.getNumTuples());
+			assertTrue(scheduler.isFinished(handle.getTransactionId()));
+		}
+
+		// Results are handed out once
+		BDTransactionHandle last = handles.get(handles.size() - 1);
+		assertNotNull(scheduler.getResult(last.getTransactionId()));
+		assertNull(scheduler.getResult(last.getTransactionId()));
+		assertFalse(scheduler.isFinished(last.getTransactionId()));
+	}
+
+	public void testFailedTransactionReleasesTables() throws Exception {
+		// Locks tables like the 2PL controller; the first row read fails
+		System.setProperty("controller.delay", "1000");
+		BDSystem.concurrencyController = new TwoPhaseLockController() {
+			private boolean m_failed;
+
+			public void readDataItem(BDTuple tuple) {
+				if (!m_failed) {
+					m_failed = true;
+					throw new IllegalStateException("handler failed");
+				}
+			}
+		};
+		BDScheduler scheduler = new BDScheduler(1);
+		Thread schedThread = new Thread(scheduler, "sched");
+		schedThread.setDaemon(true);
+		schedThread.start();
+
+		BDTransactionHandle failed = scheduler.submit(
+				transaction("SELECT * FROM Accounts"));
+		try {
+			failed.await();
+			fail("The handler's failure was not reported");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+
+		// The one worker writes to the table the failed transaction read
+		BDTransactionHandle delete = scheduler.submit(
+				transaction("DELETE FROM Accounts WHERE id = 1"));
+		delete.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+		BDTransactionHandle select = scheduler.submit(
+				transaction("SELECT * FROM Accounts"));
+		assertEquals(16, select.getCompletion().toCompletableFuture().get(10,
+				TimeUnit.SECONDS).getNumTuples());
+	}
+}
@@ -0,0 +1,167 @@
+package bdsim.server.system.buffer;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class BDBufferPoolTest extends TestCase {
+
+	private static final int PAGE_SIZE = 64;
+
+	/** A store of pages held in memory; the first int of page p is p */
+	private static class MemoryStore implements BDPageStore {
+		byte[][] m_pages = new byte[100][PAGE_SIZE];
+		int m_reads;
+		int m_writes;
+
+		MemoryStore() {
+			for (int p = 0; p < m_pages.length; p++) {
+				ByteBuffer.wrap(m_pages[p]).putInt(0, p);
+			}
+		}
+
+		public int getPageSize() {
+			return PAGE_SIZE;
+		}
+
+		public String getOwner() {
+			return "table";
+		}
+
+		public void readPage(int page, ByteBuffer dst) {
+			m_reads++;
+			dst.put(m_pages[page]);
+		}
+
+		public void writePage(int page, ByteBuffer src) {
+			m_writes++;
+			src.get(m_pages[page]);
+		}
+
+		public void sync() {
+		}
+	}
+
+	private MemoryStore m_store;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		m_store = new MemoryStore();
+	}
+
+	/**
+	 * Pins and unpins a page, checking that the frame holds it.
+	 */
+	private void touch(BDBufferPool pool, int page) {
+		ByteBuffer frame = pool.pin(m_store, page);
+		assertEquals(page, frame.getInt(0));
+		pool.unpin(m_store, page, false);
+	}
+
+	/**
+	 * @return whether the page is in the pool, without changing its state
+	 */
+	private boolean isCached(BDBufferPool pool, int page) {
+		int reads = m_store.m_reads;
+		touch(pool, page);
+		return reads == m_store.m_reads;
+	}
+
+	public void testHitsAndMisses() {
+		BDBufferPool pool = new BDBufferPool(4, PAGE_SIZE, new BDLRUPolicy());
+		touch(pool, 1);
+		touch(pool, 2);
+		touch(pool, 1);
+		BDBufferPoolStats stats = pool.getStats("table");
+		assertEquals(1, stats.getHits());
+		assertEquals(2, stats.getMisses());
+		assertEquals(2, m_store.m_reads);
+		assertEquals(1.0 / 3, stats.getHitRatio(), 1e-9);
+	}
+
+	public void testDirtyPagesAreWrittenBack() {
+		BDBufferPool pool = new BDBufferPool(2, PAGE_SIZE, new BDLRUPolicy());
+		ByteBuffer frame = pool.pin(m_store, 5);
+		frame.putInt(4, 42);
+		pool.unpin(m_store, 5, true);
+		touch(pool, 6);
+		touch(pool, 7);
+
+		assertEquals(1, pool.getStats("table").getEvictions());
+		assertEquals(1, pool.getStats("table").getFlushes());
+		assertEquals(42, ByteBuffer.wrap(m_store.m_pages[5]).getInt(4));
+
+		frame = pool.pin(m_store, 8);
+		frame.putInt(4, 43);
+		pool.unpin(m_store, 8, true);
+		pool.flush(m_store);
+		assertEquals(43, ByteBuffer.wrap(m_store.m_pages[8]).getInt(4));
+		pool.flush(m_store);
+		assertEquals(2, m_store.m_writes);
+	}
+
+	public void testPinnedPagesStay() {
+		BDBufferPool pool = new BDBufferPool(2, PAGE_SIZE, new BDClockPolicy());
+		pool.pin(m_store, 1);
+		touch(pool, 2);
+		touch(pool, 3);
+		touch(pool, 4);
+		assertTrue(isCached(pool, 1));
+
+		pool.pin(m_store, 4);
+		try {
+			pool.pin(m_store, 5);
+			fail("Pinned a page with every frame pinned");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	public void testLRU() {
+		BDBufferPool pool = new BDBufferPool(3, PAGE_SIZE, new BDLRUPolicy());
+		touch(pool, 1);
+		touch(pool, 2);
+		touch(pool, 3);
+		touch(pool, 1);
+		touch(pool, 4);
+		assertTrue(isCached(pool, 1));
+		assertTrue(isCached(pool, 3));
+		assertTrue(isCached(pool, 4));
+		assertFalse(isCached(pool, 2));
+	}
+
+	public void testClock() {
+		BDBufferPool pool = new BDBufferPool(3, PAGE_SIZE, new BDClockPolicy());
+		touch(pool, 1);
+		touch(pool, 2);
+		touch(pool, 3);
+		// Clears every reference bit, then evicts page 1
+		touch(pool, 4);
+		touch(pool, 2);
+		// Page 3 is the first frame after the hand whose bit is clear
+		touch(pool, 5);
+		assertTrue(isCached(pool, 2));
+		assertTrue(isCached(pool, 4));
+		assertTrue(isCached(pool, 5));
+	}
+
+	public void testTwoQueueResistsScans() {
+		BDBufferPool pool = new BDBufferPool(8, PAGE_SIZE, new BDTwoQueuePolicy());
+		// Page 1 becomes hot once it is requested again after leaving A1in
+		for (int page = 1; page <= 9; page++) {
+			touch(pool, page);
+		}
+		touch(pool, 1);
+		for (int page = 50; page < 90; page++) {
+			touch(pool, page);
+		}
+		assertTrue(isCached(pool, 1));
+
+		BDBufferPool lru = new BDBufferPool(8, PAGE_SIZE, new BDLRUPolicy());
+		touch(lru, 1);
+		for (int page = 50; page < 90; page++) {
+			touch(lru, page);
+		}
+		assertFalse(isCached(lru, 1));
+	}
+}
@@ -2,7 +2,9 @@ package bdsim.server.system.handler;
 
 import java.util.Vector;
 
+import bdsim.server.system.BDMemoryManager;
 import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystem;
 import bdsim.server.system.BDSystemResultSet;
 import bdsim.server.system.BDObjectType;
 import bdsim.server.system.BDSystemThread;
@@ -85,6 +87,49 @@ public class IntersectTest extends TestCase {
 		}
 	}
 
+	private BDTuple tuple(BDSchema schema, Double num1, Double num2) {
+		BDTuple t = new BDTuple(schema);
+		t.setObject("Num1", num1);
+		t.setObject("Num2", num2);
+		return t;
+	}
+
+	public void testDuplicatesAndNulls() throws Exception {
+		if (BDSystem.memoryManager == null) {
+			BDSystem.memoryManager = new BDMemoryManager(4096, 1024);
+		}
+		Vector<String> names = new Vector<String>();
+		names.addElement("Num1");
+		names.addElement("Num2");
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		types.addElement(BDObjectType.INTEGER);
+		types.addElement(BDObjectType.INTEGER);
+		BDSchema schema1 = new BDSchema(names, types);
+		BDSchema schema2 = new BDSchema(names, types);
+
+		BDSystemResultSet lhs = new BDSystemResultSet();
+		lhs.addRowWithoutCopy(tuple(schema1, 1.0, 2.0));
+		lhs.addRowWithoutCopy(tuple(schema1, 1.0, 2.0));
+		lhs.addRowWithoutCopy(tuple(schema1, 3.0, null));
+		lhs.addRowWithoutCopy(tuple(schema1, 4.0, 5.0));
+		BDSystemResultSet rhs = new BDSystemResultSet();
+		rhs.addRowWithoutCopy(tuple(schema2, 1.0, 2.0));
+		rhs.addRowWithoutCopy(tuple(schema2, 1.0, 2.0));
+		rhs.addRowWithoutCopy(tuple(schema2, 3.0, null));
+		rhs.addRowWithoutCopy(tuple(schema2, 2.0, 1.0));
+
+		assertEquals(tuple(schema1, 1.0, 2.0).hashCode(), tuple(schema2, 1.0,
+				2.0).hashCode());
+
+		// Each left row is there once for every right row equal to it, and
+		// rows with a null equal nothing
+		BDSystemResultSet result = new BDIntersectHandler(lhs, rhs).execute();
+		assertEquals(4, result.getNumTuples());
+		for (BDTuple t : result.getTupleData()) {
+			assertEquals(tuple(schema1, 1.0, 2.0), t);
+		}
+	}
+
 	@Override
 	protected void tearDown() throws Exception {
 		super.tearDown();
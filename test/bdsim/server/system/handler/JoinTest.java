@@ -0,0 +1,300 @@
+package bdsim.server.system.handler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.exec.nodes.BDCondOpType;
+import bdsim.server.system.BDMemoryManager;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDSystemThread;
+import bdsim.server.system.BDTable;
+import bdsim.server.system.BDTableManager;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.RollbackException;
+import bdsim.server.system.concurrency.TimeStampController;
+import bdsim.server.system.index.BDIndex.RangeType;
+
+/**
+ * Tests the join handlers against the nested loops of BDNaturalJoinHandler
+ * and against brute force, and pulling their rows through a pipeline.
+ */
+public class JoinTest extends TestCase {
+
+	private Random m_random;
+
+	private BDSystemResultSet m_result;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		m_random = new Random(18);
+		if (BDSystem.memoryManager == null) {
+			BDSystem.memoryManager = new BDMemoryManager(4096, 1024);
+		}
+		if (BDSystem.concurrencyController == null) {
+			BDSystem.concurrencyController = new TimeStampController();
+		}
+	}
+
+	private BDSystemResultSet makeSet(String key, String value, int rows,
+			int keys) {
+		Vector<String> names = new Vector<String>();
+		names.addElement(key);
+		names.addElement(value);
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		types.addElement(BDObjectType.DOUBLE);
+		types.addElement(BDObjectType.DOUBLE);
+		BDSchema schema = new BDSchema(names, types);
+
+		BDSystemResultSet set = new BDSystemResultSet();
+		for (int i = 0; i < rows; i++) {
+			BDTuple t = new BDTuple(schema);
+			t.setObject(0, Double.valueOf(m_random.nextInt(keys)));
+			t.setObject(1, Double.valueOf(i));
+			set.addRowWithoutCopy(t);
+		}
+		return set;
+	}
+
+	/**
+	 * Runs a handler on a system thread, which reading rows needs.
+	 */
+	private BDSystemResultSet run(final BDHandler handler) throws Exception {
+		m_result = null;
+		final Exception[] failure = new Exception[1];
+		BDSystemThread sysThread = new BDSystemThread(0) {
+			public void run() {
+				try {
+					m_result = handler.execute();
+				} catch (Exception e) {
+					failure[0] = e;
+				}
+			}
+		};
+		sysThread.start();
+		sysThread.join();
+		if (failure[0] != null) {
+			throw failure[0];
+		}
+		return m_result;
+	}
+
+	private List<String> rows(BDSystemResultSet set) {
+		List<String> rows = new ArrayList<String>();
+		for (BDTuple t : set.getTupleData()) {
+			rows.add(t.getObjects().toString());
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	public void testHashJoinMatchesNestedLoops() throws Exception {
+		// Build on the right, then on the left
+		int[][] sizes = { { 200, 50 }, { 50, 200 } };
+		for (int[] size : sizes) {
+			BDSystemResultSet left = makeSet("A", "B", size[0], 20);
+			BDSystemResultSet right = makeSet("C", "D", size[1], 20);
+
+			BDSystemResultSet hashed = run(new BDHashJoinHandler(left, right,
+					"A", "C"));
+			BDSystemResultSet nested = run(new BDNaturalJoinHandler(left,
+					right, "A", "C"));
+			assertTrue(nested.getNumTuples() > 0);
+			assertEquals(nested.getSchema().getNames(), hashed.getSchema()
+					.getNames());
+			assertEquals(rows(nested), rows(hashed));
+		}
+	}
+
+	public void testHashJoinSkipsNulls() throws Exception {
+		BDSystemResultSet left = makeSet("A", "B", 10, 1);
+		BDSystemResultSet right = makeSet("C", "D", 10, 1);
+		left.getTupleData().get(0).setObject(0, null);
+		right.getTupleData().get(0).setObject(0, null);
+		assertEquals(81, run(new BDHashJoinHandler(left, right, "A", "C"))
+				.getNumTuples());
+		assertEquals(0, run(
+				new BDHashJoinHandler(new BDSystemResultSet(), right, "A", "C"))
+				.getNumTuples());
+	}
+
+	public void testBlockNestedLoops() throws Exception {
+		BDSystemResultSet left = makeSet("A", "B", BDBNLJoinHandler.BLOCK_SIZE * 2 + 7, 30);
+		BDSystemResultSet right = makeSet("C", "D", 40, 30);
+
+		int expected = 0;
+		for (BDTuple t1 : left.getTupleData()) {
+			for (BDTuple t2 : right.getTupleData()) {
+				if (((Double) t1.getObject(0)) < (Double) t2.getObject(0)) {
+					expected++;
+				}
+			}
+		}
+		BDSystemResultSet joined = run(new BDBNLJoinHandler(left, right, "A",
+				BDCondOpType.LT, "C"));
+		assertEquals(expected, joined.getNumTuples());
+		assertEquals(4, joined.getSchema().size());
+		for (BDTuple t : joined.getTupleData()) {
+			assertTrue((Double) t.getObject(0) < (Double) t.getObject(2));
+		}
+
+		// An equi-join gives what the other joins give
+		assertEquals(rows(run(new BDHashJoinHandler(left, right, "A", "C"))),
+				rows(run(new BDBNLJoinHandler(left, right, "A",
+						BDCondOpType.EQ, "C"))));
+	}
+
+	public void testPipeline() throws Exception {
+		BDSystemResultSet left = makeSet("A", "B", 300, 40);
+		BDSystemResultSet right = makeSet("C", "D", 100, 40);
+
+		List<String> expected = new ArrayList<String>();
+		for (BDTuple t : run(new BDHashJoinHandler(left, right, "A", "C"))
+				.getTupleData()) {
+			if ((Double) t.getObject("B") < 150) {
+				expected.add("[" + t.getObject("B") + ", " + t.getObject("D")
+						+ "]");
+			}
+		}
+		Collections.sort(expected);
+		assertFalse(expected.isEmpty());
+
+		// The joined rows are filtered and projected as they are pulled
+		BDProjectHandler pipeline = new BDProjectHandler(new BDFilterHandler(
+				new BDHashJoinHandler(left, right, "A", "C"), RangeType.LT,
+				"B", Double.valueOf(150)), Arrays.asList("B", "D"));
+		assertEquals(expected, rows(run(pipeline)));
+
+		// A pipeline can be closed before its last row, and opened again
+		pipeline.open();
+		assertNotNull(pipeline.next());
+		pipeline.close();
+		assertEquals(expected, rows(run(pipeline)));
+	}
+
+	private int spillFiles() {
+		int files = 0;
+		for (String name : new File(System.getProperty("java.io.tmpdir")).list()) {
+			if (name.startsWith("bdsim-join.")) {
+				files++;
+			}
+		}
+		return files;
+	}
+
+	public void testSpilledHashJoin() throws Exception {
+		BDSystemResultSet left = makeSet("A", "B", 3000, 500);
+		BDSystemResultSet right = makeSet("C", "D", 2000, 500);
+		List<String> expected = rows(run(new BDHashJoinHandler(left, right,
+				"A", "C")));
+
+		// The 2000 build rows take 32000 bytes, in 8192 bytes of memory
+		BDMemoryManager memory = BDSystem.memoryManager;
+		BDSystem.memoryManager = new BDMemoryManager(4096, 2);
+		int files = spillFiles();
+		try {
+			assertEquals(expected, rows(run(new BDHashJoinHandler(left, right,
+					"A", "C"))));
+			// The rows were moved out of the inputs
+			assertEquals(0, right.getNumTuples());
+
+			// Rows with one key cannot be split, however many times we try
+			left = makeSet("A", "B", 1000, 1);
+			right = makeSet("C", "D", 1000, 1);
+			assertEquals(1000000, run(new BDHashJoinHandler(left, right, "A",
+					"C")).getNumTuples());
+		} finally {
+			BDSystem.memoryManager = memory;
+		}
+		assertEquals(files, spillFiles());
+	}
+
+	public void testMemoryIsGivenBack() throws Exception {
+		BDMemoryManager memory = BDSystem.memoryManager;
+		BDSystem.memoryManager = new BDMemoryManager(4096, 64);
+		try {
+			long available = BDSystem.memoryManager.getAvailableMemory();
+			BDSystemResultSet left = makeSet("A", "B", 3000, 500);
+			BDSystemResultSet right = makeSet("C", "D", 2000, 500);
+
+			// The hash table is held from open to close
+			BDHashJoinHandler join = new BDHashJoinHandler(left, right, "A",
+					"C");
+			join.open();
+			assertTrue(BDSystem.memoryManager.getAvailableMemory() < available);
+			join.close();
+			assertEquals(available, BDSystem.memoryManager.getAvailableMemory());
+
+			run(new BDHashJoinHandler(left, right, "A", "C"));
+			assertEquals(available, BDSystem.memoryManager.getAvailableMemory());
+			run(new BDNaturalJoinHandler(left, right, "A", "C"));
+			assertEquals(available, BDSystem.memoryManager.getAvailableMemory());
+			run(new BDBNLJoinHandler(left, right, "A", BDCondOpType.LT, "C"));
+			assertEquals(available, BDSystem.memoryManager.getAvailableMemory());
+
+			// A spilled join takes memory for one partition at a time
+			BDSystem.memoryManager = new BDMemoryManager(4096, 2);
+			available = BDSystem.memoryManager.getAvailableMemory();
+			run(new BDHashJoinHandler(left, right, "A", "C"));
+			assertEquals(available, BDSystem.memoryManager.getAvailableMemory());
+		} finally {
+			BDSystem.memoryManager = memory;
+		}
+	}
+
+	/**
+	 * Reads two tables and hash joins them, when run on a system thread.
+	 */
+	private BDHandler hashJoin(final BDTable left, final BDTable right,
+			final String leftAttrib, final String rightAttrib) {
+		return new BDHandler() {
+			public BDSystemResultSet execute() throws InterruptedException,
+					RollbackException {
+				return new BDHashJoinHandler(left.getAllTuples(), right
+						.getAllTuples(), leftAttrib, rightAttrib).execute();
+			}
+		};
+	}
+
+	public void testMergeJoin() throws Exception {
+		if (BDSystem.tableManager == null) {
+			System.setProperty("bplustree.d", "2");
+			System.setProperty("visualizer.doShow", "false");
+			BDSystem.tableManager = new BDTableManager();
+		}
+		BDSystem.tableManager.readFromXmlFile("test/files/Bank.xml");
+		try {
+			BDTable accounts = BDSystem.tableManager.getTableByName("Accounts");
+			BDTable customers = BDSystem.tableManager.getTableByName("Customers");
+			assertTrue(accounts.isOrderedOn("id"));
+			assertFalse(accounts.isOrderedOn("cust_id"));
+
+			// Two primary keys
+			List<String> expected = rows(run(hashJoin(accounts, customers,
+					"id", "id")));
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, rows(run(new BDMergeJoinHandler(accounts,
+					customers, "id", "id"))));
+
+			// Customers own several accounts, which a secondary index on
+			// cust_id keeps together
+			accounts.buildIndexOnAttribute("cust_id");
+			assertTrue(accounts.isOrderedOn("cust_id"));
+			expected = rows(run(hashJoin(accounts, customers, "cust_id", "id")));
+			assertEquals(17, expected.size());
+			assertEquals(expected, rows(run(new BDMergeJoinHandler(accounts,
+					customers, "cust_id", "id"))));
+		} finally {
+			BDSystem.tableManager.readFromXmlFile("test/files/Bank.xml");
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package bdsim.server.system.index;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTable;
+import bdsim.server.system.BDTuple;
+
+public class BDBPlusTreeBulkLoadTest extends TestCase {
+
+	private static final int D = 3;
+
+	private BDSchema m_schema;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		m_schema = new BDSchema(names, types);
+	}
+
+	private Vector<BDTuple> tuples(int n) {
+		Vector<BDTuple> tuples = new Vector<BDTuple>();
+		for (int i = 0; i < n; i++) {
+			BDTuple t = new BDTuple(m_schema);
+			t.setObject(0, Double.valueOf(2 * i));
+			tuples.add(t);
+		}
+		return tuples;
+	}
+
+	/**
+	 * Checks node sizes, key order and the leaf chain of a tree.
+	 *
+	 * @return The height of the subtree
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private int checkNode(BDBPlusTreeNode node, boolean root, Comparable min,
+			Comparable max) {
+		for (int i = 0; i < node.keyCount(); i++) {
+			Comparable key = node.getKey(i);
+			assertTrue(min == null || key.compareTo(min) >= 0);
+			assertTrue(max == null || key.compareTo(max) < 0);
+			assertTrue(i == 0 || key.compareTo(node.getKey(i - 1)) > 0);
+		}
+		assertTrue(node.keyCount() <= 2 * D);
+		if (node.isLeaf()) {
+			assertTrue(root || node.keyCount() >= D);
+			return 1;
+		}
+		assertEquals(node.keyCount() + 1, node.childCount());
+		assertTrue(node.childCount() >= (root ? 2 : D + 1));
+		int height = -1;
+		for (int i = 0; i < node.childCount(); i++) {
+			int h = checkNode(node.getChild(i), false,
+					i == 0 ? min : node.getKey(i - 1),
+					i == node.keyCount() ? max : node.getKey(i));
+			assertTrue(height < 0 || height == h);
+			height = h;
+		}
+		return height + 1;
+	}
+
+	private void checkTree(BDBPlusTreeIndex.BDBPlusTree tree, TreeSet<Double> expected) {
+		checkNode(tree.getRoot(), true, null, null);
+		Vector<Double> keys = new Vector<Double>();
+		for (BDBPlusTreeCursor c = tree.cursorFirst(); c.isValid(); c.advance()) {
+			keys.add((Double) c.getKey());
+		}
+		assertEquals(new Vector<Double>(expected), keys);
+	}
+
+	public void testShapes() throws Exception {
+		int[] sizes = { 0, 1, D, 2 * D, 2 * D + 1, 50, 1000 };
+		double[] fills = { 0.5, 0.9, 1.0 };
+		for (int n : sizes) {
+			for (double fill : fills) {
+				BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, D, "id", true,
+						BDObjectType.INTEGER);
+				index.bulkLoad(tuples(n).iterator(), fill);
+				TreeSet<Double> expected = new TreeSet<Double>();
+				for (int i = 0; i < n; i++) {
+					expected.add(Double.valueOf(2 * i));
+				}
+				checkTree(index.getTree(), expected);
+			}
+		}
+	}
+
+	public void testFullNodesMakeShallowerTrees() throws Exception {
+		BDBPlusTreeIndex packed = new BDBPlusTreeIndex(null, D, "id", true);
+		packed.bulkLoad(tuples(1000).iterator(), 1.0);
+		BDBPlusTreeIndex inserted = new BDBPlusTreeIndex(null, D, "id", true);
+		for (BDTuple t : tuples(1000)) {
+			inserted.insertNow(t);
+		}
+		int packedLeaves = packed.getTree().getLeaves().size();
+		int insertedLeaves = inserted.getTree().getLeaves().size();
+		assertEquals(1000 / (2 * D) + 1, packedLeaves);
+		assertTrue(packedLeaves < insertedLeaves);
+		assertTrue(checkNode(packed.getRoot(), true, null, null)
+				<= checkNode(inserted.getRoot(), true, null, null));
+	}
+
+	public void testUpdatesAfterLoad() throws Exception {
+		BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, D, "id", true);
+		Vector<BDTuple> tuples = tuples(500);
+		// Duplicates keep their first tuple
+		tuples.insertElementAt(tuples.get(10), 10);
+		index.bulkLoad(tuples.iterator(), 0.9);
+		TreeSet<Double> expected = new TreeSet<Double>();
+		for (int i = 0; i < 500; i++) {
+			expected.add(Double.valueOf(2 * i));
+		}
+		checkTree(index.getTree(), expected);
+
+		Random random = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			double key = random.nextInt(1200);
+			BDTuple t = new BDTuple(m_schema);
+			t.setObject(0, Double.valueOf(key));
+			if (random.nextBoolean()) {
+				index.insertNow(t);
+				expected.add(key);
+			} else {
+				index.deleteNow(t);
+				expected.remove(key);
+			}
+			checkTree(index.getTree(), expected);
+		}
+	}
+
+	public void testInsertAll() throws Exception {
+		// An empty tree is bulk loaded from the batch, in any order
+		BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, D, "id", true);
+		Vector<BDTuple> tuples = tuples(300);
+		Collections.shuffle(tuples, new Random(3));
+		index.insertAllNow(tuples);
+		TreeSet<Double> expected = new TreeSet<Double>();
+		for (int i = 0; i < 300; i++) {
+			expected.add(Double.valueOf(2 * i));
+		}
+		checkTree(index.getTree(), expected);
+
+		// Later batches go between the keys, after them and onto ones that
+		// are already there
+		Random random = new Random(11);
+		for (int round = 0; round < 20; round++) {
+			Vector<BDTuple> batch = new Vector<BDTuple>();
+			for (int i = 0; i < 1 + random.nextInt(60); i++) {
+				double key = random.nextInt(900);
+				BDTuple t = new BDTuple(m_schema);
+				t.setObject(0, Double.valueOf(key));
+				batch.add(t);
+				expected.add(key);
+			}
+			index.insertAllNow(batch);
+			checkTree(index.getTree(), expected);
+		}
+	}
+
+	public void testTableCountsLoadedTuples() throws Exception {
+		if (System.getProperty("bplustree.d") == null) {
+			System.setProperty("bplustree.d", String.valueOf(D));
+		}
+		// Of the tuples with the same key, only the first is loaded
+		Vector<BDTuple> tuples = tuples(200);
+		tuples.addAll(tuples(10));
+		Collections.shuffle(tuples, new Random(5));
+		BDTable table = new BDTable(m_schema, "id", "Loaded");
+		table.insertAllUnsafe(tuples);
+		assertEquals(200, table.getTupleCount());
+	}
+
+	public void testSecondaryIndicesGetTheLoadedTuples() throws Exception {
+		if (System.getProperty("bplustree.d") == null) {
+			System.setProperty("bplustree.d", String.valueOf(D));
+		}
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		names.add("value");
+		types.add(BDObjectType.INTEGER);
+		BDSchema schema = new BDSchema(names, types);
+
+		// The second tuple with a key is dropped from every index
+		Vector<BDTuple> tuples = new Vector<BDTuple>();
+		for (int i = 0; i < 50; i++) {
+			BDTuple t = new BDTuple(schema);
+			t.setObject(0, Double.valueOf(i));
+			t.setObject(1, Double.valueOf(i % 7));
+			tuples.add(t);
+		}
+		Collections.shuffle(tuples, new Random(7));
+		for (int i = 0; i < 50; i += 5) {
+			BDTuple t = new BDTuple(schema);
+			t.setObject(0, Double.valueOf(i));
+			t.setObject(1, Double.valueOf(100 + i));
+			tuples.add(t);
+		}
+		BDTable table = new BDTable(schema, "id", "Loaded");
+		table.buildIndexOnAttribute("value");
+		table.insertAllUnsafe(tuples);
+
+		List<BDTuple> primary = ((BDShadowedIndex) table.getIndex("id"))
+				.getCommittedTuples();
+		List<BDTuple> secondary = ((BDShadowedIndex) table.getIndex("value"))
+				.getCommittedTuples();
+		assertEquals(50, table.getTupleCount());
+		assertEquals(50, primary.size());
+		assertEquals(50, secondary.size());
+		assertEquals(new HashSet<BDTuple>(primary), new HashSet<BDTuple>(secondary));
+		for (BDTuple t : secondary) {
+			assertTrue(((Double) t.getObject(1)).doubleValue() < 100);
+		}
+	}
+
+	public void testRejectsBadInput() throws Exception {
+		BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, D, "id", true);
+		Vector<BDTuple> tuples = tuples(20);
+		Collections.reverse(tuples);
+		try {
+			index.bulkLoad(tuples.iterator(), 1.0);
+			fail("Loaded unsorted tuples");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		index = new BDBPlusTreeIndex(null, D, "id", true);
+		index.insertNow(tuples.get(0));
+		try {
+			index.bulkLoad(tuples(5).iterator(), 1.0);
+			fail("Bulk loaded a tree that was not empty");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package bdsim.server.system.index;
+
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+
+public class BDBPlusTreeConcurrencyTest extends TestCase {
+
+	private static final int D = 2;
+
+	private static final int WRITERS = 4;
+
+	private static final int SCANNERS = 2;
+
+	private static final int OPERATIONS = 5000;
+
+	private static final int KEYS = 2000;
+
+	private BDSchema m_schema;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		m_schema = new BDSchema(names, types);
+	}
+
+	private BDTuple tuple(double key) {
+		BDTuple t = new BDTuple(m_schema);
+		t.setObject(0, Double.valueOf(key));
+		return t;
+	}
+
+	/**
+	 * Checks node sizes and key order below a node.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void checkNode(BDBPlusTreeNode node, boolean root, Comparable min,
+			Comparable max) {
+		for (int i = 0; i < node.keyCount(); i++) {
+			Comparable key = node.getKey(i);
+			assertTrue(min == null || key.compareTo(min) >= 0);
+			assertTrue(max == null || key.compareTo(max) < 0);
+			assertTrue(i == 0 || key.compareTo(node.getKey(i - 1)) > 0);
+		}
+		assertTrue(node.keyCount() <= 2 * D);
+		if (node.isLeaf()) {
+			assertTrue(root || node.keyCount() >= D);
+			return;
+		}
+		assertEquals(node.keyCount() + 1, node.childCount());
+		for (int i = 0; i < node.childCount(); i++) {
+			checkNode(node.getChild(i), false,
+					i == 0 ? min : node.getKey(i - 1),
+					i == node.keyCount() ? max : node.getKey(i));
+		}
+	}
+
+	/**
+	 * Writers each own the keys equal to their number modulo WRITERS, so
+	 * every writer knows exactly what its keys should be while the others
+	 * split and merge the nodes around them. Scanners walk the tree in both
+	 * directions meanwhile and check the keys come out in order.
+	 */
+	public void testWritersAndScanners() throws Exception {
+		final BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, D, "id", true,
+				BDObjectType.INTEGER);
+		final BDBPlusTreeIndex.BDBPlusTree tree = index.getTree();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		final Vector<TreeSet<Double>> owned = new Vector<TreeSet<Double>>();
+
+		Thread[] writers = new Thread[WRITERS];
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			final TreeSet<Double> keys = new TreeSet<Double>();
+			owned.add(keys);
+			writers[w] = new Thread() {
+				public void run() {
+					try {
+						Random random = new Random(writer);
+						for (int i = 0; i < OPERATIONS; i++) {
+							double key = random.nextInt(KEYS / WRITERS) * WRITERS + writer;
+							if (random.nextInt(3) > 0) {
+								index.insertNow(tuple(key));
+								keys.add(key);
+							} else {
+								index.deleteNow(tuple(key));
+								keys.remove(key);
+							}
+							assertEquals(keys.contains(key), tree.find(Double.valueOf(key)));
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+		}
+
+		Thread[] scanners = new Thread[SCANNERS];
+		for (int s = 0; s < SCANNERS; s++) {
+			final boolean forward = s % 2 == 0;
+			scanners[s] = new Thread() {
+				@SuppressWarnings({ "rawtypes", "unchecked" })
+				public void run() {
+					try {
+						while (!done.get()) {
+							Comparable last = null;
+							BDBPlusTreeCursor c = forward ? tree.cursorFirst() : tree.cursorLast();
+							for (; c.isValid(); c.advance()) {
+								Comparable key = c.getKey();
+								assertEquals(key, c.getTuple().getObject(0));
+								if (last != null) {
+									assertTrue(forward ? key.compareTo(last) > 0
+											: key.compareTo(last) < 0);
+								}
+								last = key;
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			};
+		}
+
+		for (Thread scanner : scanners) {
+			scanner.start();
+		}
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		done.set(true);
+		for (Thread scanner : scanners) {
+			scanner.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+
+		TreeSet<Double> expected = new TreeSet<Double>();
+		for (TreeSet<Double> keys : owned) {
+			expected.addAll(keys);
+		}
+		checkNode(tree.getRoot(), true, null, null);
+		Vector<Double> keys = new Vector<Double>();
+		for (BDBPlusTreeCursor c = tree.cursorFirst(); c.isValid(); c.advance()) {
+			keys.add((Double) c.getKey());
+		}
+		assertEquals(new Vector<Double>(expected), keys);
+		Vector<Double> reversed = new Vector<Double>();
+		for (BDBPlusTreeCursor c = tree.cursorLast(); c.isValid(); c.advance()) {
+			reversed.add(0, (Double) c.getKey());
+		}
+		assertEquals(keys, reversed);
+	}
+}
@@ -0,0 +1,96 @@
+package bdsim.server.system.index;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemResultSet;
+import bdsim.server.system.BDSystemThread;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.TimeStampController;
+import bdsim.server.system.index.BDIndex.RangeType;
+
+public class BDBPlusTreeSecondaryIndexTest extends TestCase {
+
+	private BDSchema m_schema;
+
+	private Throwable m_failure;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		names.add("cust_id");
+		types.add(BDObjectType.INTEGER);
+		m_schema = new BDSchema(names, types);
+		if (BDSystem.concurrencyController == null) {
+			BDSystem.concurrencyController = new TimeStampController();
+		}
+	}
+
+	private BDTuple tuple(int id, int custId) {
+		BDTuple t = new BDTuple(m_schema);
+		t.setObject(0, Double.valueOf(id));
+		t.setObject(1, Double.valueOf(custId));
+		return t;
+	}
+
+	/**
+	 * Runs part of a test as the transaction TID.
+	 */
+	private void runAs(int TID, final Runnable body) throws InterruptedException {
+		m_failure = null;
+		BDSystemThread thread = new BDSystemThread(TID) {
+			public void run() {
+				try {
+					body.run();
+				} catch (Throwable t) {
+					m_failure = t;
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		if (m_failure != null) {
+			throw new AssertionError(m_failure);
+		}
+	}
+
+	public void testDuplicateValues() throws Exception {
+		// 600 rows, 30 customers with 20 rows each
+		final BDBPlusTreeIndex index = new BDBPlusTreeIndex(null, 2, "cust_id", false,
+				BDObjectType.INTEGER);
+		for (int id = 0; id < 600; id++) {
+			index.insertNow(tuple(id, id % 30));
+		}
+		// The same row twice is only kept once
+		index.insertNow(tuple(5, 5));
+		index.deleteNow(tuple(35, 5));
+
+		runAs(1, new Runnable() {
+			public void run() {
+				try {
+					BDSystemResultSet rows = index.getTuplesByValue("cust_id", Double.valueOf(5));
+					assertEquals(19, rows.getNumTuples());
+					for (BDTuple t : rows.getTupleData()) {
+						assertEquals(Double.valueOf(5), t.getObject(1));
+						assertFalse(Double.valueOf(35).equals(t.getObject(0)));
+					}
+					assertEquals(0, index.getTuplesByValue("cust_id", Double.valueOf(30))
+							.getNumTuples());
+					assertEquals(3 * 20, index.getTuplesByRange(RangeType.LT, "cust_id",
+							Double.valueOf(3)).getNumTuples());
+					assertEquals(4 * 20, index.getTuplesByRange(RangeType.GTEQ, "cust_id",
+							Double.valueOf(26)).getNumTuples());
+					assertEquals(599, index.getAllTuples().getNumTuples());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,139 @@
+package bdsim.server.system.index;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDSystem;
+import bdsim.server.system.BDSystemThread;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.concurrency.TimeStampController;
+
+public class BDHashIndexTest extends TestCase {
+
+	private BDSchema m_schema;
+
+	private Throwable m_failure;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		names.add("branch");
+		types.add(BDObjectType.STRING);
+		m_schema = new BDSchema(names, types);
+		if (BDSystem.concurrencyController == null) {
+			BDSystem.concurrencyController = new TimeStampController();
+		}
+	}
+
+	private BDTuple tuple(int id, String branch) {
+		BDTuple t = new BDTuple(m_schema);
+		t.setObject(0, Double.valueOf(id));
+		t.setObject(1, branch);
+		return t;
+	}
+
+	/**
+	 * Runs part of a test as the transaction TID.
+	 */
+	private void runAs(int TID, final Runnable body) throws InterruptedException {
+		m_failure = null;
+		BDSystemThread thread = new BDSystemThread(TID) {
+			public void run() {
+				try {
+					body.run();
+				} catch (Throwable t) {
+					m_failure = t;
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		if (m_failure != null) {
+			throw new AssertionError(m_failure);
+		}
+	}
+
+	private int count(BDHashIndex index, Comparable<?> value) {
+		try {
+			return index.getTuplesByValue(value).getNumTuples();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testGrowsAndShrinks() throws Exception {
+		final BDHashIndex index = new BDHashIndex(null, "id", true, 2, 1.0);
+		for (int i = 0; i < 1000; i++) {
+			index.insertNow(tuple(i, "b"));
+		}
+		// Duplicate keys are dropped by a unique index
+		index.insertNow(tuple(7, "c"));
+		assertTrue(index.getBucketCount() >= 1000);
+		assertTrue(index.getBucketCount() <= 1001);
+
+		runAs(1, new Runnable() {
+			public void run() {
+				for (int i = 0; i < 1000; i++) {
+					assertEquals(1, count(index, Double.valueOf(i)));
+				}
+				assertEquals(0, count(index, Double.valueOf(1000)));
+				try {
+					assertEquals("b", index.getTuplesByValue(Double.valueOf(7))
+							.getTupleData().get(0).getObject(1));
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		for (int i = 0; i < 1000; i++) {
+			index.deleteNow(tuple(i, "b"));
+		}
+		assertTrue(index.isEmpty());
+		assertEquals(2, index.getBucketCount());
+	}
+
+	public void testDuplicatesAndShadows() throws Exception {
+		final BDHashIndex index = new BDHashIndex(null, "branch", false, 4, 2.0);
+		for (int i = 0; i < 100; i++) {
+			index.insertNow(tuple(i, "branch" + (i % 10)));
+		}
+		runAs(1, new Runnable() {
+			public void run() {
+				assertEquals(10, count(index, "branch3"));
+				index.insert(tuple(100, "branch3"));
+				index.delete(tuple(3, "branch3"));
+				index.delete(tuple(13, "branch3"));
+				assertEquals(9, count(index, "branch3"));
+			}
+		});
+		runAs(2, new Runnable() {
+			public void run() {
+				assertEquals(10, count(index, "branch3"));
+			}
+		});
+		runAs(1, new Runnable() {
+			public void run() {
+				try {
+					index.commit(1);
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		runAs(3, new Runnable() {
+			public void run() {
+				assertEquals(9, count(index, "branch3"));
+				index.delete(tuple(23, "branch3"));
+				assertEquals(8, count(index, "branch3"));
+				index.rollback(3);
+				assertEquals(9, count(index, "branch3"));
+			}
+		});
+	}
+}
@@ -0,0 +1,183 @@
+package bdsim.server.system.index;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import junit.framework.TestCase;
+import bdsim.server.system.BDObjectType;
+import bdsim.server.system.BDSchema;
+import bdsim.server.system.BDTuple;
+import bdsim.server.system.buffer.BDBufferPool;
+import bdsim.server.system.buffer.BDLRUPolicy;
+
+public class BDPagedBPlusTreeTest extends TestCase {
+
+	private static final int PAGE_SIZE = 512;
+
+	/** Few enough frames that the trees below keep evicting pages */
+	private static final int FRAMES = 8;
+
+	private File m_file;
+	private BDSchema m_schema;
+	private BDBufferPool m_pool;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		m_file = File.createTempFile("paged", ".idx");
+		Vector<String> names = new Vector<String>();
+		Vector<BDObjectType> types = new Vector<BDObjectType>();
+		names.add("id");
+		types.add(BDObjectType.INTEGER);
+		names.add("name");
+		types.add(BDObjectType.STRING);
+		m_schema = new BDSchema(names, types);
+		m_pool = new BDBufferPool(FRAMES, PAGE_SIZE, new BDLRUPolicy());
+	}
+
+	protected void tearDown() throws Exception {
+		m_file.delete();
+		super.tearDown();
+	}
+
+	private BDTuple tuple(double id) {
+		BDTuple t = new BDTuple(m_schema);
+		t.setObject(0, Double.valueOf(id));
+		t.setObject(1, "Customer " + (int) id);
+		return t;
+	}
+
+	/**
+	 * Checks that a forward and a backward scan return exactly the expected
+	 * entries.
+	 */
+	private void checkTree(BDPagedBPlusTree tree, TreeMap<Double, BDTuple> expected) {
+		Vector<Double> keys = new Vector<Double>();
+		for (BDIndexCursor c = tree.cursorFirst(); c.isValid(); c.advance()) {
+			keys.add((Double) c.getKey());
+			try {
+				assertEquals(expected.get(c.getKey()), c.getTuple());
+			} catch (InterruptedException e) {
+				fail();
+			}
+		}
+		assertEquals(new Vector<Double>(expected.keySet()), keys);
+
+		keys.clear();
+		for (BDIndexCursor c = tree.cursorLast(); c.isValid(); c.advance()) {
+			keys.add(0, (Double) c.getKey());
+		}
+		assertEquals(new Vector<Double>(expected.keySet()), keys);
+	}
+
+	public void testInsertDeleteFind() throws Exception {
+		BDPageFile file = new BDPageFile(m_file, "test", PAGE_SIZE, false);
+		BDPagedBPlusTree tree = new BDPagedBPlusTree(file, m_pool, m_schema, "id");
+		TreeMap<Double, BDTuple> expected = new TreeMap<Double, BDTuple>();
+		Random random = new Random(127);
+
+		for (int i = 0; i < 5000; i++) {
+			double id = random.nextInt(2000);
+			if (random.nextInt(3) > 0) {
+				BDTuple t = tuple(id);
+				assertEquals(!expected.containsKey(id), tree.insert(t));
+				if (!expected.containsKey(id)) {
+					expected.put(id, t);
+				}
+			} else {
+				assertEquals(expected.containsKey(id), tree.delete(Double.valueOf(id)));
+				expected.remove(id);
+			}
+		}
+		checkTree(tree, expected);
+
+		for (double id = -1; id <= 2000; id++) {
+			assertEquals(expected.containsKey(id), tree.find(Double.valueOf(id)));
+
+			BDIndexCursor up = tree.cursorAt(Double.valueOf(id), true);
+			Double ceiling = expected.ceilingKey(id);
+			assertEquals(ceiling, up.isValid() ? up.getKey() : null);
+
+			BDIndexCursor down = tree.cursorAt(Double.valueOf(id), false);
+			Double floor = expected.floorKey(id);
+			assertEquals(floor, down.isValid() ? down.getKey() : null);
+		}
+		m_pool.release(file);
+		file.close();
+	}
+
+	public void testCursorAcrossChanges() throws Exception {
+		BDPageFile file = new BDPageFile(m_file, "test", PAGE_SIZE, false);
+		BDPagedBPlusTree tree = new BDPagedBPlusTree(file, m_pool, m_schema, "id");
+		for (int i = 0; i < 1000; i += 2) {
+			tree.insert(tuple(i));
+		}
+
+		// The entry under the cursor goes, and splits move the rest
+		BDIndexCursor c = tree.cursorAt(Double.valueOf(100), true);
+		tree.delete(Double.valueOf(100));
+		for (int i = 1; i < 100; i += 2) {
+			tree.insert(tuple(i));
+		}
+		assertEquals(Double.valueOf(102), c.getKey());
+		assertEquals("Customer 102", c.getTuple().getObject(1));
+		tree.insert(tuple(103));
+		c.advance();
+		assertEquals(Double.valueOf(103), c.getKey());
+
+		// Each remaining key comes once and in order, however the tree
+		// changes behind and ahead of the scan
+		Vector<Double> keys = new Vector<Double>();
+		for (c = tree.cursorFirst(); c.isValid(); c.advance()) {
+			Double key = (Double) c.getKey();
+			assertTrue(keys.isEmpty() || key > keys.lastElement());
+			keys.add(key);
+			tree.delete(key);
+			tree.insert(tuple(-key - 1));
+		}
+		assertEquals(550, keys.size());
+		assertEquals(Double.valueOf(998), keys.lastElement());
+		for (c = tree.cursorLast(); c.isValid(); c.advance()) {
+			Double key = (Double) c.getKey();
+			assertTrue(key < 0);
+			tree.delete(key);
+			tree.insert(tuple(-key + 1000));
+		}
+		m_pool.release(file);
+		file.close();
+	}
+
+	public void testReopen() throws Exception {
+		BDPageFile file = new BDPageFile(m_file, "test", PAGE_SIZE, false);
+		BDPagedBPlusTree tree = new BDPagedBPlusTree(file, m_pool, m_schema, "id");
+		TreeMap<Double, BDTuple> expected = new TreeMap<Double, BDTuple>();
+		for (int i = 0; i < 1000; i++) {
+			BDTuple t = tuple(i);
+			t.setWriteTimestamp(7);
+			tree.insert(t);
+			expected.put(Double.valueOf(i), t);
+		}
+		BDIndexCursor first = tree.cursorFirst();
+		assertEquals(7, first.getTuple().getWriteTimestamp());
+		m_pool.release(file);
+		file.close();
+
+		file = new BDPageFile(m_file, "test", PAGE_SIZE, true);
+		assertFalse(file.isNew());
+		tree = new BDPagedBPlusTree(file, m_pool, m_schema, "id");
+		checkTree(tree, expected);
+		// Timestamps of the previous run are not carried over
+		first = tree.cursorFirst();
+		assertEquals(Integer.MIN_VALUE, first.getTuple().getWriteTimestamp());
+		m_pool.release(file);
+		file.close();
+
+		file = new BDPageFile(m_file, "test", PAGE_SIZE, false);
+		assertTrue(file.isNew());
+		tree = new BDPagedBPlusTree(file, m_pool, m_schema, "id");
+		assertFalse(tree.cursorFirst().isValid());
+		m_pool.release(file);
+		file.close();
+	}
+}